@@ -0,0 +1,119 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The {@code jdk.jfr} events behind {@link FlightRecorderEvents}, only loaded where JFR is available.
+ */
+class JfrStorageEvents implements FlightRecorderEvents.Recorder {
+
+    private final EventType operationType = EventType.getEventType(StorageOperationEvent.class);
+    private final EventType callType = EventType.getEventType(VaultCallEvent.class);
+
+    @Override
+    public boolean isEnabled() {
+        return operationType.isEnabled();
+    }
+
+    @Override
+    public Object begin() {
+        StorageOperationEvent event = new StorageOperationEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commit(Object started,
+                       String operation,
+                       String path,
+                       boolean failed,
+                       List<OperationTrace.Call> calls) {
+        StorageOperationEvent event = (StorageOperationEvent) started;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.operation = operation;
+        event.path = path;
+        event.failed = failed;
+        event.vaultCalls = calls.size();
+        event.commit();
+        if (!callType.isEnabled()) {
+            return;
+        }
+
+        for (OperationTrace.Call call : calls) {
+            VaultCallEvent callEvent = new VaultCallEvent();
+            callEvent.operation = operation;
+            callEvent.call = call.name;
+            callEvent.path = call.path;
+            callEvent.status = call.status;
+            callEvent.retry = call.attempt;
+            callEvent.offset = call.startMicros;
+            callEvent.elapsed = call.elapsedMicros;
+            callEvent.callThread = call.thread;
+            callEvent.commit();
+        }
+    }
+
+    @Name("io.github.valfadeev.rundeck.plugin.vault.SlowStorageOperation")
+    @Label("Slow Vault Storage Operation")
+    @Category({"Rundeck", "Vault Storage"})
+    @Description("A key storage operation that took longer than the slow operation threshold")
+    static class StorageOperationEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Path")
+        String path;
+
+        @Label("Failed")
+        boolean failed;
+
+        @Label("Vault Calls")
+        int vaultCalls;
+    }
+
+    @Name("io.github.valfadeev.rundeck.plugin.vault.VaultCall")
+    @Label("Vault Call")
+    @Category({"Rundeck", "Vault Storage"})
+    @Description("A Vault request made by a slow key storage operation")
+    static class VaultCallEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Call")
+        String call;
+
+        @Label("Path")
+        String path;
+
+        @Label("HTTP Status")
+        int status;
+
+        @Label("Retry")
+        int retry;
+
+        @Label("Offset")
+        @Description("Time from the start of the operation to the start of the call")
+        @Timespan(Timespan.MICROSECONDS)
+        long offset;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.MICROSECONDS)
+        long elapsed;
+
+        @Label("Thread")
+        String callThread;
+    }
+}
@@ -0,0 +1,78 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class FlightRecorderEventsTest {
+
+    private FakeVaultServer server;
+    private VaultStoragePlugin plugin;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeVaultServer();
+        server.put("secret/jfr-test/keys/db/password", VaultTestSupport.rundeckKey("s3cret"));
+        Properties configuration = VaultTestSupport.configuration(server, "jfr-test");
+        configuration.setProperty(ConfigOptions.VAULT_SLOW_OPERATION_THRESHOLD_MILLISECONDS, "20");
+        plugin = VaultTestSupport.configured(configuration);
+    }
+
+    @After
+    public void tearDown() {
+        if (plugin != null) {
+            plugin.getMetrics().unregister();
+        }
+        server.close();
+    }
+
+    @Test
+    public void noEventIsAllocatedWithoutARecording() {
+        assertTrue(FlightRecorderEvents.AVAILABLE);
+        assertThat(FlightRecorderEvents.beginOperation(), is(nullValue()));
+    }
+
+    @Test
+    public void slowOperationIsRecordedByFlightRecorder() throws Exception {
+        server.latencyMilliseconds = 30;
+
+        java.nio.file.Path file = Files.createTempFile("vault-storage", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("io.github.valfadeev.rundeck.plugin.vault.SlowStorageOperation");
+            recording.enable("io.github.valfadeev.rundeck.plugin.vault.VaultCall");
+            recording.start();
+            plugin.getResource("keys/db/password");
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> operations = new ArrayList<>();
+            List<RecordedEvent> calls = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                String name = event.getEventType().getName();
+                if (name.endsWith("SlowStorageOperation")) {
+                    operations.add(event);
+                } else if (name.endsWith("VaultCall")) {
+                    calls.add(event);
+                }
+            }
+            assertThat(operations.size(), is(1));
+            assertThat(operations.get(0).getString("operation"), is("plugin.getResource"));
+            assertThat(operations.get(0).getString("path"), is("keys/db/password"));
+            assertTrue(operations.get(0).getDuration().toMillis() >= 30);
+            assertThat(calls.size(), is(operations.get(0).getInt("vaultCalls")));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
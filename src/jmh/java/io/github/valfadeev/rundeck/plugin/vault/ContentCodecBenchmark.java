@@ -0,0 +1,76 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Writing and reading back key content, with the String round trip used before {@link ContentCodec}
+ * and with the codec, for payloads from 1 KB to 1 MB. Run with {@code -prof gc} to compare the heap
+ * allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentCodecBenchmark {
+
+    @Param({"1024", "16384", "262144", "1048576"})
+    public int size;
+
+    @Param({"text", "binary"})
+    public String kind;
+
+    private byte[] content;
+    //reused, so reading doesn't count towards the codec's allocations
+    private final byte[] chunk = new byte[8192];
+
+    @Setup
+    public void setUp() {
+        content = new byte[size];
+        if (kind.equals("text")) {
+            Arrays.fill(content, (byte) 'k');
+        } else {
+            new Random(size).nextBytes(content);
+        }
+    }
+
+    //content handling before ContentCodec: unsized buffer, String, platform charset bytes
+    @Benchmark
+    public byte[] stringRoundTrip() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(content);
+        String stored = out.toString("UTF-8");
+        return stored.getBytes();
+    }
+
+    @Benchmark
+    public void codecRoundTrip(Blackhole blackhole) throws Exception {
+        ContentCodec.Buffer out = new ContentCodec.Buffer(content.length);
+        out.write(content);
+        ContentCodec.Encoded stored = ContentCodec.encode(out);
+        try (InputStream in = ContentCodec.decode(stored.value, stored.encoding)) {
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                blackhole.consume(n);
+            }
+        }
+    }
+}
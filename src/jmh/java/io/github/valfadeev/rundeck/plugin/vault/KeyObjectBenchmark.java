@@ -0,0 +1,123 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonObject;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.bettercloud.vault.rest.RestResponse;
+import com.dtolabs.rundeck.core.storage.StorageUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+import org.rundeck.storage.impl.ResourceBase;
+
+/**
+ * Plugin overhead of reading and classifying single keys, against {@link InMemoryLogical}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyObjectBenchmark {
+
+    private final Path path = PathUtil.asPath("keys/rundeck");
+    private RundeckKey rundeckKey;
+    private LogicalResponse vaultKeyResponse;
+    private ContentCodec.Buffer content;
+
+    static Map<String, Object> rundeckPayload(String content) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(VaultStoragePlugin.VAULT_STORAGE_KEY, content);
+        data.put(StorageUtil.RES_META_RUNDECK_CONTENT_TYPE, VaultStoragePlugin.PASSWORD_MIME_TYPE);
+        data.put(StorageUtil.RES_META_RUNDECK_CONTENT_LENGTH, Integer.toString(content.length()));
+        data.put(StorageUtil.RES_META_RUNDECK_CONTENT_CREATION_TIME, "2018-08-03T10:15:30Z");
+        data.put(StorageUtil.RES_META_RUNDECK_CONTENT_MODIFY_TIME, "2018-08-03T10:15:30Z");
+        return data;
+    }
+
+    /**
+     * A stored key of each kind, {@code missing} is not stored.
+     */
+    @State(Scope.Benchmark)
+    public static class Stored {
+
+        @Param({"rundeck", "vault", "multi", "missing"})
+        public String kind;
+
+        final InMemoryLogical backend = new InMemoryLogical();
+        Path path;
+
+        @Setup
+        public void setUp() {
+            Map<String, Object> multi = new HashMap<>();
+            multi.put("user", "admin");
+            multi.put("password", "s3cret");
+
+            backend.put("secret/rundeck/keys/rundeck", rundeckPayload("s3cret"))
+                   .put("secret/rundeck/keys/vault", Collections.singletonMap("value", "s3cret"))
+                   .put("secret/rundeck/keys/multi", multi);
+            path = PathUtil.asPath("keys/" + kind);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Map<String, String> payload = new HashMap<>();
+        for (Map.Entry<String, Object> entry : rundeckPayload("s3cret").entrySet()) {
+            payload.put(entry.getKey(), entry.getValue().toString());
+        }
+        rundeckKey = new RundeckKey(path, payload);
+
+        JsonObject data = Json.object().add("value", "s3cret");
+        vaultKeyResponse = new LogicalResponse(
+                new RestResponse(200, "application/json",
+                        Json.object().add("data", data).toString().getBytes(StandardCharsets.UTF_8)),
+                0);
+        content = new ContentCodec.Buffer(6);
+        content.write("s3cret".getBytes(StandardCharsets.UTF_8), 0, 6);
+    }
+
+    @Benchmark
+    public KeyObject build(Stored stored) {
+        return KeyObjectBuilder.builder()
+                .path(stored.path)
+                .vault(stored.backend)
+                .vaultSecretBackend("secret")
+                .vaultPrefix("rundeck")
+                .build();
+    }
+
+    @Benchmark
+    public ResourceBase rundeckKeyLoadResource() {
+        return rundeckKey.loadResource();
+    }
+
+    @Benchmark
+    public void vaultKeyPayload(Blackhole blackhole) {
+        VaultKey key = new VaultKey(vaultKeyResponse, path);
+        blackhole.consume(key.saveResource(null, "update", content));
+    }
+
+    @Benchmark
+    public String getVaultPath() {
+        return VaultStoragePlugin.getVaultPath(path.getPath(), "secret", "rundeck");
+    }
+}
@@ -0,0 +1,63 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+import org.rundeck.storage.api.Resource;
+
+/**
+ * Plugin overhead of listing a directory of Rundeck keys, against {@link InMemoryLogical}.
+ * Caches are disabled, so every listing reads every key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListResourcesBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int entries;
+
+    @Param({"1", "8"})
+    public int listConcurrency;
+
+    private final VaultStoragePlugin plugin = new VaultStoragePlugin();
+    private final Path directory = PathUtil.asPath("keys/bulk");
+
+    @Setup
+    public void setUp() throws Exception {
+        InMemoryLogical backend = new InMemoryLogical();
+        for (int i = 0; i < entries; i++) {
+            backend.put("secret/rundeck/keys/bulk/key-" + i, KeyObjectBenchmark.rundeckPayload("s3cret-" + i));
+        }
+
+        Properties configuration = new Properties();
+        configuration.setProperty(ConfigOptions.VAULT_PREFIX, "rundeck");
+        configuration.setProperty(ConfigOptions.VAULT_SECRET_BACKEND, "secret");
+        configuration.setProperty(ConfigOptions.VAULT_LIST_CONCURRENCY, Integer.toString(listConcurrency));
+        configuration.setProperty(ConfigOptions.VAULT_PATH_PROBE_TTL_MILLISECONDS, "0");
+        plugin.configure(configuration, backend);
+    }
+
+    @Benchmark
+    public Set<Resource<ResourceMeta>> listDirectory() {
+        return plugin.listDirectory(directory);
+    }
+}
@@ -0,0 +1,103 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads one secret from a local TLS server through each HTTP transport: the driver's
+ * connection per call, the JDK's kept alive connections and {@link PooledHttpTransport}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+
+    private static final String SECRET_PATH = "secret/rundeck/keys/benchmark";
+
+    @Param({VaultClientProvider.HTTP_TRANSPORT_DRIVER,
+            VaultClientProvider.HTTP_TRANSPORT_JDK,
+            VaultClientProvider.HTTP_TRANSPORT_POOLED})
+    public String transport;
+
+    private HttpsServer server;
+    private VaultClientProvider provider;
+    private Logical logical;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = startServer();
+        Properties configuration = new Properties();
+        configuration.setProperty(ConfigOptions.VAULT_ADDRESS, "https://127.0.0.1:" + server.getAddress().getPort());
+        configuration.setProperty(ConfigOptions.VAULT_AUTH_BACKEND, SupportedAuthBackends.TOKEN);
+        configuration.setProperty(ConfigOptions.VAULT_VERIFY_SSL, "false");
+        configuration.setProperty(ConfigOptions.VAULT_OPEN_TIMEOUT, "5");
+        configuration.setProperty(ConfigOptions.VAULT_READ_TIMEOUT, "5");
+        configuration.setProperty(ConfigOptions.VAULT_HTTP_TRANSPORT, transport);
+        provider = new VaultClientProvider(configuration);
+        logical = provider.getLogical("benchmark");
+    }
+
+    @TearDown
+    public void tearDown() {
+        provider.close();
+        server.stop(0);
+    }
+
+    @Benchmark
+    public LogicalResponse read() throws Exception {
+        return logical.read(SECRET_PATH);
+    }
+
+    private static HttpsServer startServer() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = TransportBenchmark.class.getResourceAsStream("test-server.jks")) {
+            keyStore.load(in, "changeit".toCharArray());
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, "changeit".toCharArray());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), null, null);
+
+        //without it, Nagle's algorithm on the server side dominates the measured latency
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpsServer server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        byte[] body = "{\"data\":{\"value\":\"benchmark\"}}".getBytes(StandardCharsets.UTF_8);
+        server.createContext("/v1/", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,16 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+/**
+ * Hits and misses of one of the plugin's caches, as published over JMX.
+ */
+public interface CacheMetricsMXBean {
+
+    long getHitCount();
+
+    long getMissCount();
+
+    /**
+     * @return hits over all lookups, 0 before the first one
+     */
+    double getHitRatio();
+}
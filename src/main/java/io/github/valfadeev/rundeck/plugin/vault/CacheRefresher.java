@@ -0,0 +1,135 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.rundeck.storage.api.Path;
+
+/**
+ * Reads keys in frequent use again before their cache entry expires, so that hot keys
+ * stored at the same time don't all miss at once. A key is refreshed when it is read in the
+ * last {@code aheadFraction} of its TTL after at least {@code minReads} reads since it was stored;
+ * keys read less often just expire. Refreshes are made by a small pool, at most
+ * {@code requestsPerSecond} of them per second, the others are skipped.
+ */
+class CacheRefresher {
+
+    //refreshes waiting for a thread, beyond that they are skipped
+    private static final int QUEUE_SIZE = 100;
+
+    java.util.logging.Logger log = java.util.logging.Logger.getLogger("vault-storage");
+
+    private final Function<Path, KeyObject> loader;
+    private final double aheadFraction;
+    private final int minReads;
+    private final ThreadPoolExecutor executor;
+    //0 when refreshes are not rate limited
+    private final long requestIntervalNanos;
+
+    //paths queued or being refreshed, a path due again meanwhile is not refreshed twice
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    private long nextRequestAt;
+
+    /**
+     * @param loader reads a key from Vault, bypassing the cache
+     */
+    CacheRefresher(Function<Path, KeyObject> loader,
+                   double aheadFraction,
+                   int minReads,
+                   int concurrency,
+                   int requestsPerSecond) {
+        this.loader = loader;
+        this.aheadFraction = aheadFraction;
+        this.minReads = minReads;
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), new DaemonThreadFactory("vault-storage-refresh"));
+        this.requestIntervalNanos = requestsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / requestsPerSecond : 0;
+        this.nextRequestAt = System.nanoTime();
+    }
+
+    /**
+     * Refreshes the key in the background if it was just read from {@code cache} and is due.
+     */
+    void read(Path path, KeyObjectCache cache) {
+        if (!cache.isRefreshDue(path, aheadFraction, minReads) || !refreshing.add(path.getPath())) {
+            return;
+        }
+        if (!tryAcquire()) {
+            skipped(path);
+            return;
+        }
+
+        long generation = cache.generation(path);
+        try {
+            executor.execute(() -> refresh(path, cache, generation));
+        } catch (RejectedExecutionException e) {
+            //busy or shut down, the entry expires as it would without refreshing
+            skipped(path);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    long getRefreshCount() {
+        return refreshed.get();
+    }
+
+    /**
+     * @return refreshes that failed or were skipped, the entries then expired
+     */
+    long getMissedCount() {
+        return failed.get() + skipped.get();
+    }
+
+    private void refresh(Path path, KeyObjectCache cache, long generation) {
+        try {
+            KeyObject value = loader.apply(path);
+            if (value.isError()) {
+                //kept until it expires, the next read will find out what happened to the key
+                failed.incrementAndGet();
+                log.fine("cache refresh-ahead could not read " + path + ": " + value.getErrorMessage());
+                return;
+            }
+            //not stored if the key was written or deleted through Rundeck in the meantime
+            cache.put(path, value, generation);
+            refreshed.incrementAndGet();
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            log.fine("cache refresh-ahead could not read " + path + ": " + e.getMessage());
+        } finally {
+            refreshing.remove(path.getPath());
+        }
+    }
+
+    private void skipped(Path path) {
+        skipped.incrementAndGet();
+        refreshing.remove(path.getPath());
+    }
+
+    private synchronized boolean tryAcquire() {
+        if (requestIntervalNanos == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        //nanoTime may be negative, compare differences only
+        if (nextRequestAt - now > 0) {
+            return false;
+        }
+        //unused slots of the last second may be taken in a burst
+        long earliest = now - TimeUnit.SECONDS.toNanos(1);
+        nextRequestAt = (nextRequestAt - earliest > 0 ? nextRequestAt : earliest) + requestIntervalNanos;
+        return true;
+    }
+}
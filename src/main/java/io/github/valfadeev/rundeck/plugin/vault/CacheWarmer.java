@@ -0,0 +1,183 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.bettercloud.vault.VaultException;
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+
+/**
+ * Crawls the key tree in the background and loads every key once, so that the
+ * key cache is populated before the first jobs run after a restart.
+ * Directories are listed and keys loaded by at most {@code concurrency} threads,
+ * with no more than {@code requestsPerSecond} requests started per second.
+ */
+class CacheWarmer {
+
+    //a completed warm-up logs its summary at info level, progress in between every this many keys
+    private static final int PROGRESS_INTERVAL = 500;
+
+    @FunctionalInterface
+    interface Lister {
+        List<String> list(Path path) throws VaultException;
+    }
+
+    java.util.logging.Logger log = java.util.logging.Logger.getLogger("vault-storage");
+
+    private final Lister lister;
+    //returns an error object for a key it could not load
+    private final Function<Path, KeyObject> loader;
+    private final ExecutorService executor;
+    //0 when requests are not rate limited
+    private final long requestIntervalNanos;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger directories = new AtomicInteger();
+    private final AtomicInteger keys = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private long nextRequestAt;
+    private volatile long startedAt;
+
+    CacheWarmer(Lister lister, Function<Path, KeyObject> loader, int concurrency, int requestsPerSecond) {
+        this.lister = lister;
+        this.loader = loader;
+        this.executor = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("vault-storage-warmup"));
+        this.requestIntervalNanos = requestsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / requestsPerSecond : 0;
+        this.nextRequestAt = System.nanoTime();
+    }
+
+    /**
+     * Starts crawling from {@code root} and returns immediately.
+     */
+    void start(Path root) {
+        startedAt = System.currentTimeMillis();
+        log.info("Vault cache warm-up started");
+        submit(() -> crawl(root));
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    int getDirectoryCount() {
+        return directories.get();
+    }
+
+    int getKeyCount() {
+        return keys.get();
+    }
+
+    /**
+     * @return directories that could not be listed and keys that could not be loaded
+     */
+    int getErrorCount() {
+        return errors.get();
+    }
+
+    private void crawl(Path directory) {
+        List<String> items;
+        try {
+            throttle();
+            items = lister.list(directory);
+        } catch (VaultException e) {
+            errors.incrementAndGet();
+            log.fine("cache warm-up could not list " + directory + ": " + e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        directories.incrementAndGet();
+
+        for (String item : items) {
+            Path itemPath = PathUtil.appendPath(directory, item);
+            if (item.endsWith("/")) {
+                submit(() -> crawl(itemPath));
+            } else {
+                submit(() -> load(itemPath));
+            }
+        }
+    }
+
+    private void load(Path key) {
+        KeyObject object;
+        try {
+            throttle();
+            object = loader.apply(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            errors.incrementAndGet();
+            log.fine("cache warm-up could not load " + key + ": " + e.getMessage());
+            return;
+        }
+        if (object.isError()) {
+            errors.incrementAndGet();
+            log.fine("cache warm-up could not load " + key + ": " + object.getErrorMessage());
+            return;
+        }
+
+        int loaded = keys.incrementAndGet();
+        if (loaded % PROGRESS_INTERVAL == 0) {
+            log.info(String.format("Vault cache warm-up: %d keys loaded in %d ms",
+                    loaded, System.currentTimeMillis() - startedAt));
+        }
+    }
+
+    private void submit(Runnable task) {
+        pending.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    finished();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //shut down, the warm-up is abandoned
+            finished();
+        }
+    }
+
+    private void finished() {
+        if (pending.decrementAndGet() == 0) {
+            //the pool is only used by this warm-up, let its threads exit
+            executor.shutdown();
+            done.countDown();
+            log.info(String.format("Vault cache warm-up finished in %d ms: %d directories, %d keys, %d errors",
+                    System.currentTimeMillis() - startedAt, directories.get(), keys.get(), errors.get()));
+        }
+    }
+
+    private void throttle() throws InterruptedException {
+        if (requestIntervalNanos == 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            //nanoTime may be negative, compare differences only
+            long slot = nextRequestAt - now > 0 ? nextRequestAt : now;
+            nextRequestAt = slot + requestIntervalNanos;
+            wait = slot - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import com.bettercloud.vault.VaultException;
+
+/**
+ * Lets another thread abort the Vault request a call is making, by closing its connection:
+ * interrupting the calling thread doesn't stop a blocking socket read. The transports attach the
+ * connection of each request to the cancellation of the call made on their thread, if any.
+ * Requests of the driver's own HTTP client can't be aborted, they run to completion.
+ */
+class Cancellation {
+
+    private static final ThreadLocal<Cancellation> CURRENT = new ThreadLocal<>();
+
+    //closes the connection of the request in flight, null between requests
+    private Runnable abort;
+    private boolean cancelled;
+
+    /**
+     * Runs a call on the calling thread, its requests aborted once {@link #cancel()} is called.
+     */
+    <T> T run(VaultCall<T> call) throws VaultException {
+        Cancellation previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return call.execute();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Aborts the request in flight, and fails those the call would make next.
+     */
+    void cancel() {
+        Runnable running;
+        synchronized (this) {
+            cancelled = true;
+            running = abort;
+            abort = null;
+        }
+        if (running != null) {
+            running.run();
+        }
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Attaches the connection of the request about to be sent on this thread.
+     *
+     * @param abort closes the connection
+     * @throws InterruptedIOException if the call was cancelled, the request must not be sent
+     */
+    static void attach(Runnable abort) throws IOException {
+        Cancellation current = CURRENT.get();
+        if (current == null) {
+            return;
+        }
+        synchronized (current) {
+            if (current.cancelled) {
+                throw new InterruptedIOException("Vault request cancelled");
+            }
+            current.abort = abort;
+        }
+    }
+
+    /**
+     * @throws InterruptedIOException if the call made on this thread was cancelled, before a connection is taken for it
+     */
+    static void checkNotCancelled() throws IOException {
+        if (isCurrentCancelled()) {
+            throw new InterruptedIOException("Vault request cancelled");
+        }
+    }
+
+    /**
+     * Detaches the connection of the request sent on this thread, which is never closed by a cancellation after that.
+     *
+     * @return false if it was closed by one, it can't be used again
+     */
+    static boolean detach() {
+        Cancellation current = CURRENT.get();
+        if (current == null) {
+            return true;
+        }
+        synchronized (current) {
+            current.abort = null;
+            return !current.cancelled;
+        }
+    }
+
+    /**
+     * @return whether the call made on this thread was cancelled, its failures say nothing of Vault's health
+     */
+    static boolean isCurrentCancelled() {
+        Cancellation current = CURRENT.get();
+        return current != null && current.isCancelled();
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calls to Vault after {@code failureThreshold} consecutive failures.
+ * While open every call is rejected; once {@code openMilliseconds} have passed
+ * a single probe call is let through, and its outcome closes or re-opens the breaker.
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMilliseconds;
+    private final LongSupplier clock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    CircuitBreaker(int failureThreshold, long openMilliseconds) {
+        this(failureThreshold, openMilliseconds, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(int failureThreshold, long openMilliseconds, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.openMilliseconds = openMilliseconds;
+        this.clock = clock;
+    }
+
+    /**
+     * @return true if the call may proceed, in which case its outcome must be reported
+     * with {@link #onSuccess()} or {@link #onFailure()}
+     */
+    synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (clock.getAsLong() - openedAt < openMilliseconds) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                return true;
+            default:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Reports a call given up by its caller, such as an interrupted one, which tells nothing about Vault.
+     */
+    synchronized void onAbandoned() {
+        probeInFlight = false;
+    }
+
+    synchronized void onFailure() {
+        probeInFlight = false;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = clock.getAsLong();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
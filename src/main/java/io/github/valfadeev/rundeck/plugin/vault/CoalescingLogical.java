@@ -0,0 +1,121 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.LogicalResponse;
+
+/**
+ * Lets concurrent reads and lists of the same Vault path share a single request.
+ * Callers that arrive while a request is outstanding wait for it and receive
+ * its response or its exception. Requests are shared by exact path, a write or delete
+ * forgets those of the secret whichever KV version 2 endpoint they went through.
+ */
+class CoalescingLogical extends ForwardingLogical {
+
+    private final ConcurrentMap<String, CompletableFuture<LogicalResponse>> reads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<List<String>>> lists = new ConcurrentHashMap<>();
+
+    CoalescingLogical(Logical delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public LogicalResponse read(String path) throws VaultException {
+        if (LoadBalancedTransport.isOnActiveNode()) {
+            //a read sent to a standby must not answer one that has to see the latest writes
+            return delegate.read(path);
+        }
+        return coalesce(reads, path, () -> delegate.read(path));
+    }
+
+    @Override
+    public List<String> list(String path) throws VaultException {
+        return coalesce(lists, path, () -> delegate.list(path));
+    }
+
+    @Override
+    public LogicalResponse write(String path, Map<String, Object> nameValuePairs) throws VaultException {
+        forget(path);
+        return delegate.write(path, nameValuePairs);
+    }
+
+    @Override
+    public LogicalResponse delete(String path) throws VaultException {
+        forget(path);
+        return delegate.delete(path);
+    }
+
+    //reads issued after a write must not join a request that started before it
+    private void forget(String path) {
+        String secret = secretOf(path);
+        reads.keySet().removeIf(read -> secretOf(read).equals(secret));
+        int separator = secret.lastIndexOf('/');
+        if (separator > 0) {
+            String directory = secret.substring(0, separator);
+            lists.keySet().removeIf(list -> secretOf(list).equals(directory));
+        }
+    }
+
+    /**
+     * @return the path without the {@code data/} or {@code metadata/} segment of the KV version 2 endpoints,
+     * so that a write through one endpoint forgets the requests made through the other. Under KV version 1
+     * a key named like an endpoint is forgotten along with its sibling, which only costs a shared read.
+     */
+    static String secretOf(String path) {
+        int start = path.indexOf("/data/");
+        int metadata = path.indexOf("/metadata/");
+        if (metadata >= 0 && (start < 0 || metadata < start)) {
+            return path.substring(0, metadata) + path.substring(metadata + "/metadata".length());
+        }
+        if (start >= 0) {
+            return path.substring(0, start) + path.substring(start + "/data".length());
+        }
+        return path;
+    }
+
+    private static <T> T coalesce(ConcurrentMap<String, CompletableFuture<T>> calls,
+                                  String path,
+                                  VaultCall<T> call) throws VaultException {
+        CompletableFuture<T> pending = new CompletableFuture<>();
+        CompletableFuture<T> outstanding = calls.putIfAbsent(path, pending);
+        if (outstanding != null) {
+            return await(outstanding);
+        }
+
+        try {
+            T result = call.execute();
+            pending.complete(result);
+            return result;
+        } catch (VaultException | RuntimeException e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(path, pending);
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> outstanding) throws VaultException {
+        try {
+            return outstanding.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VaultException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof VaultException) {
+                throw (VaultException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new VaultException(cause);
+        }
+    }
+}
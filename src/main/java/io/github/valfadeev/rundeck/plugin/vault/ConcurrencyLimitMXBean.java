@@ -0,0 +1,42 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Map;
+
+/**
+ * State of the limit on concurrent requests to one Vault cluster, as published over JMX.
+ * Counts are since the plugin was configured.
+ */
+public interface ConcurrencyLimitMXBean {
+
+    /**
+     * @return requests currently allowed at once
+     */
+    int getLimit();
+
+    int getInFlight();
+
+    /**
+     * @return requests waiting for a permit
+     */
+    int getQueueDepth();
+
+    /**
+     * @return requests refused because the queue was full
+     */
+    long getRejectedCount();
+
+    /**
+     * @return requests that waited longer than the queue timeout
+     */
+    long getTimeoutCount();
+
+    /**
+     * @return requests in flight by project, for projects with requests in flight
+     */
+    Map<String, Integer> getProjectInFlight();
+
+    /**
+     * @return requests refused or timed out by project
+     */
+    Map<String, Long> getProjectRejectedCount();
+}
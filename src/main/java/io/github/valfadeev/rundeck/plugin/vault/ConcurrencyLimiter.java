@@ -0,0 +1,381 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.bettercloud.vault.VaultException;
+
+/**
+ * Limits the requests in flight to a Vault cluster, adapting the limit to the latencies observed.
+ * The limit follows the gradient between the long term and the recent response times: it grows while
+ * requests are as fast as usual, and shrinks as they slow down because Vault is queueing them.
+ * A 429, a server error or a failed connection cuts it by a tenth straight away.
+ * Each project may hold at most a share of the limit, so that a single busy project can't keep the
+ * others waiting. Requests over the limit queue in arrival order, up to a maximum queue size and
+ * for at most the queue timeout; they fail with a {@link Rejection} otherwise.
+ */
+class ConcurrencyLimiter implements ConcurrencyLimitMXBean {
+
+    static final int TOO_MANY_REQUESTS = 429;
+
+    //the long term latency is averaged over about this many requests, the recent one over a few
+    private static final int LONG_WINDOW = 600;
+    private static final int SHORT_WINDOW = 10;
+    //recent latencies up to this much above the long term average leave the limit growing
+    private static final double TOLERANCE = 1.5;
+    //weight of a new estimate of the limit
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double projectShare;
+    private final int maxQueueSize;
+    private final long queueTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private final Map<String, Integer> projectInFlight = new HashMap<>();
+    private final Map<String, Long> projectRejected = new HashMap<>();
+    private double limit;
+    private int inFlight;
+    private double longRttNanos;
+    private double shortRttNanos;
+    private long rejected;
+    private long timeouts;
+
+    /**
+     * A request waiting for a permit.
+     */
+    private static class Waiter {
+        final String project;
+        final Condition granted;
+        boolean permitted;
+
+        Waiter(String project, Condition granted) {
+            this.project = project;
+            this.granted = granted;
+        }
+    }
+
+    /**
+     * A request refused a permit. It never reached Vault, so it is neither retried nor a sign that Vault is failing.
+     */
+    static class Rejection extends VaultException {
+        Rejection(String message) {
+            super(message, TOO_MANY_REQUESTS);
+        }
+    }
+
+    /**
+     * @param projectShare fraction of the limit the requests of one project may take, between 0 and 1
+     */
+    ConcurrencyLimiter(int initialLimit,
+                       int minLimit,
+                       int maxLimit,
+                       double projectShare,
+                       int maxQueueSize,
+                       long queueTimeoutMilliseconds) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid concurrency limits: minimum %d, maximum %d", minLimit, maxLimit));
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.projectShare = projectShare;
+        this.maxQueueSize = maxQueueSize;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMilliseconds);
+    }
+
+    /**
+     * Makes the call once a permit is available for the project, null for calls outside any project.
+     */
+    <T> T call(String project, VaultCall<T> call) throws VaultException {
+        acquire(project);
+        long start = System.nanoTime();
+        boolean dropped = false;
+        try {
+            return call.execute();
+        } catch (VaultException e) {
+            //Vault shedding load or down, other errors say nothing about how busy it is
+            dropped = ResilientLogical.isRetryable(e);
+            throw e;
+        } finally {
+            release(project, System.nanoTime() - start, dropped);
+        }
+    }
+
+    /**
+     * Waits for a permit, to be given back through {@link #release}.
+     */
+    void acquire(String project) throws VaultException {
+        lock.lock();
+        try {
+            //nobody queued can start, see grant, a request that can start doesn't jump ahead of anyone
+            if (canStart(project)) {
+                start(project);
+                return;
+            }
+            if (queue.size() >= maxQueueSize) {
+                rejected++;
+                rejected(project);
+                throw new Rejection(String.format(
+                        "Too many concurrent Vault requests: %d in flight, %d queued", inFlight, queue.size()));
+            }
+
+            Waiter waiter = new Waiter(project, lock.newCondition());
+            queue.add(waiter);
+            long remaining = queueTimeoutNanos;
+            try {
+                while (!waiter.permitted) {
+                    if (remaining <= 0) {
+                        queue.remove(waiter);
+                        timeouts++;
+                        rejected(project);
+                        throw new Rejection(String.format(
+                                "Timed out after %d ms waiting for one of %d concurrent Vault requests",
+                                TimeUnit.NANOSECONDS.toMillis(queueTimeoutNanos), (int) limit));
+                    }
+                    remaining = waiter.granted.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                if (waiter.permitted) {
+                    //granted while interrupted, the permit goes to the next in line
+                    finish(project);
+                    grant();
+                } else {
+                    queue.remove(waiter);
+                }
+                Thread.currentThread().interrupt();
+                throw new VaultException(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a permit if one is free and nobody is queued for it, without waiting.
+     *
+     * @return false if the request must not be made
+     */
+    boolean tryAcquire(String project) {
+        lock.lock();
+        try {
+            if (!queue.isEmpty() || !canStart(project)) {
+                return false;
+            }
+            start(project);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a permit, adapting the limit to the response time of the request made with it.
+     *
+     * @param dropped whether Vault refused or failed the request for being overloaded or down
+     */
+    void release(String project, long elapsedNanos, boolean dropped) {
+        lock.lock();
+        try {
+            int concurrent = inFlight;
+            finish(project);
+            adapt(elapsedNanos, dropped, concurrent);
+            grant();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back the permit of a request aborted before it was answered, whose response time says nothing.
+     */
+    void abandon(String project) {
+        lock.lock();
+        try {
+            finish(project);
+            grant();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adapt(long elapsedNanos, boolean dropped, int concurrent) {
+        if (dropped) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            return;
+        }
+
+        if (longRttNanos == 0) {
+            longRttNanos = elapsedNanos;
+            shortRttNanos = elapsedNanos;
+        }
+        longRttNanos += (elapsedNanos - longRttNanos) * 2 / (LONG_WINDOW + 1);
+        shortRttNanos += (elapsedNanos - shortRttNanos) * 2 / (SHORT_WINDOW + 1);
+        if (longRttNanos > shortRttNanos * 2) {
+            //the load went down, forget the latencies of the busy period faster
+            longRttNanos *= 0.95;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / shortRttNanos));
+        //room for a few requests to queue in Vault, so that the limit keeps probing upwards
+        double estimate = limit * gradient + Math.sqrt(limit);
+        if (estimate > limit && concurrent * 2 < limit) {
+            //not using the limit, it says nothing about whether a higher one would be fine
+            return;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + estimate * SMOOTHING));
+    }
+
+    //lock held
+    private boolean canStart(String project) {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        return project == null || projectInFlight.getOrDefault(project, 0) < projectLimit();
+    }
+
+    //lock held
+    private int projectLimit() {
+        return Math.max(1, (int) Math.ceil((int) limit * projectShare));
+    }
+
+    //lock held
+    private void start(String project) {
+        inFlight++;
+        if (project != null) {
+            projectInFlight.merge(project, 1, Integer::sum);
+        }
+    }
+
+    //lock held
+    private void finish(String project) {
+        inFlight--;
+        if (project != null) {
+            projectInFlight.computeIfPresent(project, (name, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    //lock held
+    private void rejected(String project) {
+        if (project != null) {
+            projectRejected.merge(project, 1L, Long::sum);
+        }
+    }
+
+    //lock held, lets queued requests start in arrival order, skipping those of projects at their share
+    private void grant() {
+        Iterator<Waiter> waiters = queue.iterator();
+        while (waiters.hasNext() && inFlight < (int) limit) {
+            Waiter waiter = waiters.next();
+            if (canStart(waiter.project)) {
+                waiters.remove();
+                start(waiter.project);
+                waiter.permitted = true;
+                waiter.granted.signal();
+            }
+        }
+    }
+
+    @Override
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        lock.lock();
+        try {
+            return timeouts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getProjectInFlight() {
+        lock.lock();
+        try {
+            return Collections.unmodifiableMap(new TreeMap<>(projectInFlight));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Long> getProjectRejectedCount() {
+        lock.lock();
+        try {
+            return Collections.unmodifiableMap(new TreeMap<>(projectRejected));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the project of a Vault path below {@code keys/project/<name>}, null for other paths
+     */
+    static String projectOf(String vaultPath) {
+        String marker = "keys/project/";
+        int at = vaultPath.indexOf(marker);
+        while (at > 0 && vaultPath.charAt(at - 1) != '/') {
+            at = vaultPath.indexOf(marker, at + 1);
+        }
+        if (at < 0) {
+            return null;
+        }
+        int start = at + marker.length();
+        int end = vaultPath.indexOf('/', start);
+        String project = end < 0 ? vaultPath.substring(start) : vaultPath.substring(start, end);
+        int query = project.indexOf('?');
+        if (query >= 0) {
+            project = project.substring(0, query);
+        }
+        return project.isEmpty() ? null : project;
+    }
+}
@@ -24,4 +24,66 @@ class ConfigOptions {
     static final String VAULT_APPROLE_SECRET_ID = "approleSecretId";
     static final String VAULT_SECRET_BACKEND = "secretBackend";
     static final String VAULT_STORAGE_BEHAVIOUR = "storageBehaviour";
+    //route.<name>.path, with route.<name>.<option> for the options a route can override
+    static final String VAULT_ROUTE_PREFIX = "route.";
+    static final String VAULT_ROUTE_PATH = "path";
+    //shard.<name>.address, with shard.<name>.<option> for the connection and auth options of the shard
+    static final String VAULT_SHARD_PREFIX = "shard.";
+    static final String VAULT_SHARD_VIRTUAL_NODES = "shardVirtualNodes";
+    static final String VAULT_SHARD_REBALANCING = "shardRebalancing";
+    //dynamic.<name>.path and dynamic.<name>.vaultPath, a key directory holding the credentials generated at the Vault path
+    static final String VAULT_DYNAMIC_PREFIX = "dynamic.";
+    static final String VAULT_DYNAMIC_PATH = "path";
+    static final String VAULT_DYNAMIC_VAULT_PATH = "vaultPath";
+    static final String VAULT_DYNAMIC_SECRET_MIN_TTL_MILLISECONDS = "dynamicSecretMinTtlMilliseconds";
+    static final String VAULT_DYNAMIC_SECRET_RENEWAL_ENABLED = "dynamicSecretRenewalEnabled";
+    static final String VAULT_ENGINE_VERSION = "engineVersion";
+    static final String VAULT_CREATE_ONLY_IF_MISSING = "createOnlyIfMissing";
+    static final String VAULT_RETRY_MAX_INTERVAL_MILLISECONDS = "retryMaxIntervalMilliseconds";
+    static final String VAULT_RETRY_BUDGET_PERCENT = "retryBudgetPercent";
+    static final String VAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "circuitBreakerFailureThreshold";
+    static final String VAULT_CIRCUIT_BREAKER_OPEN_MILLISECONDS = "circuitBreakerOpenMilliseconds";
+    static final String VAULT_HTTP_TRANSPORT = "httpTransport";
+    static final String VAULT_CONNECTION_POOL_SIZE = "connectionPoolSize";
+    static final String VAULT_READ_ADDRESSES = "readAddresses";
+    static final String VAULT_LOAD_BALANCING = "loadBalancing";
+    static final String VAULT_ENDPOINT_FAILURE_THRESHOLD = "endpointFailureThreshold";
+    static final String VAULT_ENDPOINT_EJECTION_MILLISECONDS = "endpointEjectionMilliseconds";
+    static final String VAULT_CONNECTION_IDLE_TIMEOUT_MILLISECONDS = "connectionIdleTimeoutMilliseconds";
+    static final String VAULT_TOKEN_RENEWAL_ENABLED = "tokenRenewalEnabled";
+    static final String VAULT_HEDGED_READS_ENABLED = "hedgedReadsEnabled";
+    static final String VAULT_HEDGE_DELAY_PERCENTILE = "hedgeDelayPercentile";
+    static final String VAULT_HEDGE_MIN_DELAY_MILLISECONDS = "hedgeMinDelayMilliseconds";
+    static final String VAULT_HEDGE_BUDGET_PERCENT = "hedgeBudgetPercent";
+    static final String VAULT_HEDGE_MAX_CONCURRENT = "hedgeMaxConcurrent";
+    static final String VAULT_CONCURRENCY_LIMIT_ENABLED = "concurrencyLimitEnabled";
+    static final String VAULT_CONCURRENCY_LIMIT_INITIAL = "concurrencyLimitInitial";
+    static final String VAULT_CONCURRENCY_LIMIT_MIN = "concurrencyLimitMin";
+    static final String VAULT_CONCURRENCY_LIMIT_MAX = "concurrencyLimitMax";
+    static final String VAULT_PROJECT_CONCURRENCY_PERCENT = "projectConcurrencyPercent";
+    static final String VAULT_CONCURRENCY_QUEUE_SIZE = "concurrencyQueueSize";
+    static final String VAULT_CONCURRENCY_QUEUE_TIMEOUT_MILLISECONDS = "concurrencyQueueTimeoutMilliseconds";
+    static final String VAULT_COALESCE_READS = "coalesceReads";
+    static final String VAULT_CACHE_ENABLED = "cacheEnabled";
+    static final String VAULT_CACHE_MAX_SIZE = "cacheMaxSize";
+    static final String VAULT_CACHE_TTL_MILLISECONDS = "cacheTtlMilliseconds";
+    static final String VAULT_CACHE_WARMUP_ENABLED = "cacheWarmupEnabled";
+    static final String VAULT_CACHE_WARMUP_CONCURRENCY = "cacheWarmupConcurrency";
+    static final String VAULT_CACHE_WARMUP_REQUESTS_PER_SECOND = "cacheWarmupRequestsPerSecond";
+    static final String VAULT_CACHE_REFRESH_AHEAD_ENABLED = "cacheRefreshAheadEnabled";
+    static final String VAULT_CACHE_REFRESH_AHEAD_FRACTION = "cacheRefreshAheadFraction";
+    static final String VAULT_CACHE_REFRESH_AHEAD_MIN_READS = "cacheRefreshAheadMinReads";
+    static final String VAULT_CACHE_REFRESH_AHEAD_CONCURRENCY = "cacheRefreshAheadConcurrency";
+    static final String VAULT_CACHE_REFRESH_AHEAD_REQUESTS_PER_SECOND = "cacheRefreshAheadRequestsPerSecond";
+    static final String VAULT_NEGATIVE_CACHE_ENABLED = "negativeCacheEnabled";
+    static final String VAULT_NEGATIVE_CACHE_TTL_MILLISECONDS = "negativeCacheTtlMilliseconds";
+    static final String VAULT_NEGATIVE_CACHE_MAX_SIZE = "negativeCacheMaxSize";
+    static final String VAULT_SERVE_STALE_ON_ERROR = "serveStaleOnError";
+    static final String VAULT_SERVE_STALE_MAX_AGE_MILLISECONDS = "serveStaleMaxAgeMilliseconds";
+    static final String VAULT_SERVE_STALE_MAX_SIZE = "serveStaleMaxSize";
+    static final String VAULT_PATH_PROBE_TTL_MILLISECONDS = "pathProbeTtlMilliseconds";
+    static final String VAULT_LIST_CONCURRENCY = "listConcurrency";
+    static final String VAULT_LIST_TIMEOUT_MILLISECONDS = "listTimeoutMilliseconds";
+    static final String VAULT_METRICS_ENABLED = "metricsEnabled";
+    static final String VAULT_SLOW_OPERATION_THRESHOLD_MILLISECONDS = "slowOperationThresholdMilliseconds";
 }
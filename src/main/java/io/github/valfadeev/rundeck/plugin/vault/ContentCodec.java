@@ -0,0 +1,213 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Converts key content to and from the string stored in Vault.
+ * Valid UTF-8 content is stored as text, anything else (JKS, PKCS12 and other binary keys)
+ * base64 encoded and marked with {@link #ENCODING_META}. Entries without the marker are text.
+ */
+class ContentCodec {
+
+    static final String ENCODING_META = "Rundeck-content-encoding";
+    static final String BASE64 = "base64";
+
+    private ContentCodec() {
+    }
+
+    /**
+     * Buffer content is written to, read in place rather than copied by {@link #toByteArray()}.
+     */
+    static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+        }
+
+        Buffer(long expectedLength) {
+            super(expectedLength > 0 && expectedLength < Integer.MAX_VALUE ? (int) expectedLength : 32);
+        }
+
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * The content as stored, with its encoding: null for text, {@link #BASE64} otherwise.
+     */
+    static class Encoded {
+        final String value;
+        final String encoding;
+
+        Encoded(String value, String encoding) {
+            this.value = value;
+            this.encoding = encoding;
+        }
+    }
+
+    static Encoded encode(Buffer content) {
+        ByteBuffer bytes = content.contents();
+        if (isUtf8(bytes)) {
+            return new Encoded(new String(bytes.array(), bytes.arrayOffset(), bytes.remaining(), StandardCharsets.UTF_8), null);
+        }
+
+        ByteBuffer encoded = Base64.getEncoder().encode(bytes);
+        return new Encoded(
+                new String(encoded.array(), encoded.arrayOffset(), encoded.remaining(), StandardCharsets.US_ASCII),
+                BASE64);
+    }
+
+    /**
+     * @return the stored content, encoded or decoded while it is read rather than copied up front
+     */
+    static InputStream decode(String value, String encoding) {
+        if (BASE64.equals(encoding)) {
+            return Base64.getDecoder().wrap(new AsciiInputStream(value));
+        }
+        return new Utf8InputStream(value);
+    }
+
+    /**
+     * Checks the bytes are well-formed UTF-8, without decoding them.
+     */
+    static boolean isUtf8(ByteBuffer bytes) {
+        byte[] b = bytes.array();
+        int i = bytes.arrayOffset() + bytes.position();
+        int end = bytes.arrayOffset() + bytes.limit();
+        while (i < end) {
+            int lead = b[i] & 0xff;
+            int continuation;
+            int min;
+            if (lead < 0x80) {
+                i++;
+                continue;
+            } else if (lead >= 0xc2 && lead <= 0xdf) {
+                continuation = 1;
+                min = 0x80;
+            } else if (lead >= 0xe0 && lead <= 0xef) {
+                continuation = 2;
+                min = 0x800;
+            } else if (lead >= 0xf0 && lead <= 0xf4) {
+                continuation = 3;
+                min = 0x10000;
+            } else {
+                return false;
+            }
+            if (i + continuation >= end) {
+                return false;
+            }
+            int codePoint = lead & (0x3f >> continuation);
+            for (int k = 1; k <= continuation; k++) {
+                int next = b[i + k] & 0xff;
+                if ((next & 0xc0) != 0x80) {
+                    return false;
+                }
+                codePoint = (codePoint << 6) | (next & 0x3f);
+            }
+            //overlong forms, surrogates and code points beyond U+10FFFF are not valid UTF-8
+            if (codePoint < min || codePoint > 0x10ffff || (codePoint >= 0xd800 && codePoint <= 0xdfff)) {
+                return false;
+            }
+            i += continuation + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a string as UTF-8, encoding it a chunk at a time.
+     */
+    private static class Utf8InputStream extends InputStream {
+
+        private final CharBuffer chars;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer chunk;
+        private boolean flushed;
+
+        Utf8InputStream(String value) {
+            this.chars = CharBuffer.wrap(value);
+            //no larger than needed for mostly ASCII content, any longer character is encoded by the next fill
+            this.chunk = ByteBuffer.allocate(Math.min(8192, Math.max(16, value.length())));
+            this.chunk.flip();
+        }
+
+        @Override
+        public int read() {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!chunk.hasRemaining() && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            return n;
+        }
+
+        private boolean fill() {
+            if (flushed) {
+                return false;
+            }
+            chunk.clear();
+            encoder.encode(chars, chunk, true);
+            if (!chars.hasRemaining()) {
+                encoder.flush(chunk);
+                flushed = true;
+            }
+            chunk.flip();
+            return chunk.hasRemaining() || fill();
+        }
+    }
+
+    /**
+     * Reads the characters of an ASCII string as bytes.
+     */
+    private static class AsciiInputStream extends InputStream {
+
+        private final String value;
+        private int position;
+
+        AsciiInputStream(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public int read() {
+            return position < value.length() ? value.charAt(position++) & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= value.length()) {
+                return -1;
+            }
+            int n = Math.min(len, value.length() - position);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) value.charAt(position++);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return value.length() - position;
+        }
+    }
+}
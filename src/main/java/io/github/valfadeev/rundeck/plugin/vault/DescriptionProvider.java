@@ -126,9 +126,36 @@ class DescriptionProvider {
                 .property(PropertyBuilder.builder()
                         .string(VAULT_RETRY_INTERVAL_MILLISECONDS)
                         .title("Retry interval")
-                        .description("Connection retry interval, ms")
+                        .description("Initial connection retry interval, ms. "
+                                + "Doubles with every retry, each wait is randomised between 0 and the interval")
                         .defaultValue("1000")
                 )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_RETRY_MAX_INTERVAL_MILLISECONDS)
+                        .title("Max retry interval")
+                        .description("Upper bound of the retry interval, ms")
+                        .defaultValue("10000")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_RETRY_BUDGET_PERCENT)
+                        .title("Retry budget")
+                        .description("Maximum share of requests that may be retried, in percent")
+                        .defaultValue("20")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD)
+                        .title("Circuit breaker threshold")
+                        .description("Number of consecutive failed requests after which calls to Vault "
+                                + "fail immediately. Set to 0 to disable the circuit breaker")
+                        .defaultValue("5")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CIRCUIT_BREAKER_OPEN_MILLISECONDS)
+                        .title("Circuit breaker open time")
+                        .description("Time calls fail immediately before a single request "
+                                + "is let through to probe Vault, ms")
+                        .defaultValue("10000")
+                )
                 .property(PropertyBuilder.builder()
                         .string(VAULT_OPEN_TIMEOUT)
                         .title("Open timeout")
@@ -153,6 +180,335 @@ class DescriptionProvider {
                         .description("Use the default Rundeck Behaviour for key storage (with rundeck headers) or use just the key/value behaviour from vault. Options are: rundeck, vault")
                         .defaultValue("rundeck")
                  )
+                .property(PropertyBuilder.builder()
+                        .select(VAULT_ENGINE_VERSION)
+                        .title("KV engine version")
+                        .description("Version of the key/value secret engine mounted at the secret backend. "
+                                + "Version 2 is not supported by the 'driver' HTTP transport")
+                        .defaultValue(VaultStoragePlugin.ENGINE_VERSION_1)
+                        .values(VaultStoragePlugin.ENGINE_VERSION_1,
+                                VaultStoragePlugin.ENGINE_VERSION_2)
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_CREATE_ONLY_IF_MISSING)
+                        .title("Create only missing keys")
+                        .description("With KV engine version 2, fail to create a key that already exists "
+                                + "instead of overwriting it")
+                        .defaultValue("false")
+                )
+                .property(PropertyBuilder.builder()
+                        .select(VAULT_HTTP_TRANSPORT)
+                        .title("HTTP transport")
+                        .description("'jdk' sends requests with the JDK's HTTP client, which keeps connections alive, "
+                                + "'pooled' with the plugin's own pool of persistent connections, "
+                                + "'driver' opens a new connection for every request")
+                        .defaultValue(VaultClientProvider.HTTP_TRANSPORT_JDK)
+                        .values(VaultClientProvider.HTTP_TRANSPORT_JDK,
+                                VaultClientProvider.HTTP_TRANSPORT_POOLED,
+                                VaultClientProvider.HTTP_TRANSPORT_DRIVER)
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CONNECTION_POOL_SIZE)
+                        .title("Connection pool size")
+                        .description("Maximum number of idle connections kept open to Vault by the 'pooled' HTTP transport, "
+                                + "not used by the other transports")
+                        .defaultValue("10")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CONNECTION_IDLE_TIMEOUT_MILLISECONDS)
+                        .title("Connection idle timeout")
+                        .description("Time after which an unused connection to Vault is closed by the 'pooled' HTTP transport, "
+                                + "not used by the other transports, ms")
+                        .defaultValue("30000")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_READ_ADDRESSES)
+                        .title("Read addresses")
+                        .description("Comma separated addresses of Vault performance standbys, which serve reads "
+                                + "along with the Vault address. Writes always go to the Vault address. "
+                                + "Not supported by the 'driver' HTTP transport")
+                )
+                .property(PropertyBuilder.builder()
+                        .select(VAULT_LOAD_BALANCING)
+                        .title("Read load balancing")
+                        .description("'least-outstanding' sends each read to the node with the fewest requests "
+                                + "in flight, 'round-robin' to each node in turn")
+                        .defaultValue(LoadBalancedTransport.LEAST_OUTSTANDING)
+                        .values(LoadBalancedTransport.LEAST_OUTSTANDING,
+                                LoadBalancedTransport.ROUND_ROBIN)
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_ENDPOINT_FAILURE_THRESHOLD)
+                        .title("Node failure threshold")
+                        .description("Consecutive failed requests after which a node gets no reads "
+                                + "for the node ejection time")
+                        .defaultValue("3")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_ENDPOINT_EJECTION_MILLISECONDS)
+                        .title("Node ejection time")
+                        .description("Time a failing node gets no reads before it is tried again, ms")
+                        .defaultValue("30000")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_TOKEN_RENEWAL_ENABLED)
+                        .title("Renew auth token")
+                        .description("Renew the Vault token in the background before it expires "
+                                + "and log in again when Vault rejects it")
+                        .defaultValue("true")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_COALESCE_READS)
+                        .title("Coalesce reads")
+                        .description("Let concurrent reads of the same path share a single "
+                                + "request to Vault")
+                        .defaultValue("true")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_HEDGED_READS_ENABLED)
+                        .title("Hedge reads")
+                        .description("Send a second copy of a read or list that is slower than usual, "
+                                + "and use whichever answer comes first")
+                        .defaultValue("false")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_HEDGE_DELAY_PERCENTILE)
+                        .title("Hedge delay percentile")
+                        .description("Percentile of recent response times after which a read is hedged")
+                        .defaultValue("95")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_HEDGE_MIN_DELAY_MILLISECONDS)
+                        .title("Minimum hedge delay")
+                        .description("Reads answered sooner are never hedged, ms")
+                        .defaultValue("10")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_HEDGE_BUDGET_PERCENT)
+                        .title("Hedge budget")
+                        .description("Maximum percentage of reads that may be hedged, at most 100")
+                        .defaultValue("10")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_HEDGE_MAX_CONCURRENT)
+                        .title("Maximum concurrent hedges")
+                        .description("Hedges in flight at once, no read is hedged while they are all waiting")
+                        .defaultValue("16")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_CONCURRENCY_LIMIT_ENABLED)
+                        .title("Limit concurrent requests")
+                        .description("Queue requests beyond a concurrency limit adapted to Vault's response times, "
+                                + "with a share of the limit for each project")
+                        .defaultValue("false")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CONCURRENCY_LIMIT_INITIAL)
+                        .title("Initial concurrency limit")
+                        .description("Concurrent requests allowed until response times are known")
+                        .defaultValue("20")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CONCURRENCY_LIMIT_MIN)
+                        .title("Minimum concurrency limit")
+                        .description("Concurrent requests allowed however slow Vault gets")
+                        .defaultValue("4")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CONCURRENCY_LIMIT_MAX)
+                        .title("Maximum concurrency limit")
+                        .description("Concurrent requests allowed however fast Vault is")
+                        .defaultValue("200")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_PROJECT_CONCURRENCY_PERCENT)
+                        .title("Project concurrency share")
+                        .description("Percentage of the concurrency limit the keys of one project may use")
+                        .defaultValue("50")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CONCURRENCY_QUEUE_SIZE)
+                        .title("Concurrency queue size")
+                        .description("Requests waiting for the concurrency limit, further ones are refused")
+                        .defaultValue("1000")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CONCURRENCY_QUEUE_TIMEOUT_MILLISECONDS)
+                        .title("Concurrency queue timeout")
+                        .description("Maximum time a request waits for the concurrency limit, ms")
+                        .defaultValue("5000")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_SHARD_VIRTUAL_NODES)
+                        .title("Shard virtual nodes")
+                        .description("Points of each shard on the consistent hash ring, "
+                                + "more spread keys more evenly across shards")
+                        .defaultValue("128")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_SHARD_REBALANCING)
+                        .title("Rebalance shards")
+                        .description("Move keys of KV version 2 engines to the shard they belong to after shards were added, "
+                                + "looking keys up on every shard until they are moved")
+                        .defaultValue("false")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_DYNAMIC_SECRET_MIN_TTL_MILLISECONDS)
+                        .title("Dynamic secret minimum TTL")
+                        .description("Time a generated credential must remain valid for to be shared with another read, "
+                                + "at most half its lease, ms")
+                        .defaultValue("60000")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_DYNAMIC_SECRET_RENEWAL_ENABLED)
+                        .title("Renew dynamic secrets")
+                        .description("Renew the leases of generated credentials in the background while they are read")
+                        .defaultValue("true")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_CACHE_ENABLED)
+                        .title("Enable cache")
+                        .description("Keep recently read keys in memory instead of "
+                                + "reading them from Vault on every request")
+                        .defaultValue("false")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CACHE_MAX_SIZE)
+                        .title("Cache size")
+                        .description("Maximum number of keys held in the cache, "
+                                + "least recently used keys are evicted first")
+                        .defaultValue("1000")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CACHE_TTL_MILLISECONDS)
+                        .title("Cache TTL")
+                        .description("Time a cached key is served before it is read again from Vault, ms")
+                        .defaultValue("30000")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_CACHE_WARMUP_ENABLED)
+                        .title("Warm up cache")
+                        .description("Load all keys under the prefix into the cache in the background "
+                                + "when the plugin starts. Requires the cache to be enabled")
+                        .defaultValue("false")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CACHE_WARMUP_CONCURRENCY)
+                        .title("Cache warm-up concurrency")
+                        .description("Number of requests the cache warm-up makes at the same time")
+                        .defaultValue("4")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CACHE_WARMUP_REQUESTS_PER_SECOND)
+                        .title("Cache warm-up rate")
+                        .description("Maximum number of requests per second made by the cache warm-up, 0 for no limit")
+                        .defaultValue("50")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_CACHE_REFRESH_AHEAD_ENABLED)
+                        .title("Enable cache refresh-ahead")
+                        .description("Read frequently used keys again in the background before their cache entry expires")
+                        .defaultValue("false")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CACHE_REFRESH_AHEAD_FRACTION)
+                        .title("Cache refresh-ahead fraction")
+                        .description("Fraction of the cache TTL before expiry from which a key read is refreshed, "
+                                + "between 0 and 1")
+                        .defaultValue("0.2")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CACHE_REFRESH_AHEAD_MIN_READS)
+                        .title("Cache refresh-ahead reads")
+                        .description("Reads of a cached key since it was stored for it to be refreshed, "
+                                + "keys read less often just expire")
+                        .defaultValue("3")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CACHE_REFRESH_AHEAD_CONCURRENCY)
+                        .title("Cache refresh-ahead concurrency")
+                        .description("Number of threads refreshing keys")
+                        .defaultValue("2")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_CACHE_REFRESH_AHEAD_REQUESTS_PER_SECOND)
+                        .title("Cache refresh-ahead rate")
+                        .description("Maximum number of keys refreshed per second, 0 for no limit")
+                        .defaultValue("20")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_NEGATIVE_CACHE_ENABLED)
+                        .title("Enable negative cache")
+                        .description("Remember paths that were not found in Vault, "
+                                + "so that lookups of missing keys are not repeated")
+                        .defaultValue("false")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_NEGATIVE_CACHE_TTL_MILLISECONDS)
+                        .title("Negative cache TTL")
+                        .description("Time a path is remembered as missing, ms")
+                        .defaultValue("5000")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_NEGATIVE_CACHE_MAX_SIZE)
+                        .title("Negative cache max size")
+                        .description("Maximum number of missing paths remembered")
+                        .defaultValue("1000")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_SERVE_STALE_ON_ERROR)
+                        .title("Serve stale keys on error")
+                        .description("While Vault is unreachable, sealed or failing, return the last value read "
+                                + "of a key instead of an error")
+                        .defaultValue("false")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_SERVE_STALE_MAX_AGE_MILLISECONDS)
+                        .title("Maximum staleness")
+                        .description("Oldest value of a key served while Vault is unavailable, ms")
+                        .defaultValue("600000")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_SERVE_STALE_MAX_SIZE)
+                        .title("Stale keys max size")
+                        .description("Maximum number of keys whose last value is kept to be served while Vault is unavailable")
+                        .defaultValue("1000")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_PATH_PROBE_TTL_MILLISECONDS)
+                        .title("Path lookup TTL")
+                        .description("How long to remember whether a path is a directory, a key or missing, ms. "
+                                + "Saves the repeated lookups Rundeck makes before reading a key, "
+                                + "at the cost of changes made outside Rundeck being seen that much later. 0 disables it")
+                        .defaultValue("0")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_LIST_CONCURRENCY)
+                        .title("List concurrency")
+                        .description("Number of keys read from Vault in parallel "
+                                + "when listing a directory. Set to 1 to read them one by one")
+                        .defaultValue("8")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_LIST_TIMEOUT_MILLISECONDS)
+                        .title("List timeout")
+                        .description("Maximum time spent reading the keys of a directory listing, ms")
+                        .defaultValue("30000")
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(VAULT_METRICS_ENABLED)
+                        .title("Enable metrics")
+                        .description("Time storage operations and Vault calls, "
+                                + "and publish latencies, outcomes and cache hit ratios as JMX MBeans")
+                        .defaultValue("true")
+                )
+                .property(PropertyBuilder.builder()
+                        .string(VAULT_SLOW_OPERATION_THRESHOLD_MILLISECONDS)
+                        .title("Slow operation threshold")
+                        .description("Storage operations taking longer than this are logged with the Vault calls "
+                                + "they made, and recorded as Java Flight Recorder events, ms. 0 disables tracing")
+                        .defaultValue("5000")
+                )
                 .build();
     }
 }
@@ -0,0 +1,376 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+
+import static io.github.valfadeev.rundeck.plugin.vault.ConfigOptions.*;
+
+/**
+ * Maps the credentials generated by dynamic secret engines (database, AWS, ...) into Rundeck key storage.
+ * Each is configured as {@code dynamic.<name>.path}, a Rundeck key directory, and {@code dynamic.<name>.vaultPath},
+ * the Vault path generating the credential; every field of the credential is a key of the directory.
+ * A credential is generated once and shared by all reads for as long as its lease leaves enough time to use it,
+ * instead of a new one being generated on every read. Renewable leases are renewed in the background while
+ * the credential is being read, credentials no longer read are left to expire.
+ * <p>
+ * Every request generating a credential is sent once, to the active node: it is neither retried nor hedged,
+ * since each copy of it would create a credential that nobody revokes.
+ */
+class DynamicSecrets {
+
+    static final DynamicSecrets NONE = new DynamicSecrets(Collections.emptyList(), null);
+
+    private final List<Secret> secrets;
+    //null when leases are not renewed
+    private final ScheduledExecutorService renewals;
+
+    private DynamicSecrets(List<Secret> secrets, ScheduledExecutorService renewals) {
+        this.secrets = secrets;
+        this.renewals = renewals;
+    }
+
+    /**
+     * Builds the configured secrets, each read and renewed through {@code client}.
+     */
+    static DynamicSecrets configure(Properties configuration, Logical client) throws ConfigurationException {
+        //by name
+        Map<String, Path> paths = new LinkedHashMap<>();
+        for (String property : new TreeSet<>(configuration.stringPropertyNames())) {
+            if (!property.startsWith(VAULT_DYNAMIC_PREFIX) || !property.endsWith("." + VAULT_DYNAMIC_PATH)) {
+                continue;
+            }
+            String name = property.substring(VAULT_DYNAMIC_PREFIX.length(),
+                    property.length() - VAULT_DYNAMIC_PATH.length() - 1);
+            Path path = PathUtil.asPath(configuration.getProperty(property).trim());
+            if (name.isEmpty() || name.contains(".")) {
+                throw new ConfigurationException("Invalid dynamic secret name: " + property);
+            }
+            if (path.getPath().isEmpty()) {
+                throw new ConfigurationException("Dynamic secret " + name + " needs a key path, e.g. keys/db/readonly");
+            }
+            if (paths.values().stream().anyMatch(mapped -> mapped.getPath().equals(path.getPath()))) {
+                throw new ConfigurationException("Key path " + path + " is mapped to two dynamic secrets");
+            }
+            paths.put(name, path);
+        }
+        if (paths.isEmpty()) {
+            return NONE;
+        }
+
+        long minTtlMilliseconds = Long.parseLong(
+                configuration.getProperty(VAULT_DYNAMIC_SECRET_MIN_TTL_MILLISECONDS, "60000"));
+        ScheduledExecutorService renewals = null;
+        if (Boolean.parseBoolean(configuration.getProperty(VAULT_DYNAMIC_SECRET_RENEWAL_ENABLED, "true"))) {
+            renewals = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("vault-storage-lease"));
+        }
+
+        List<Secret> secrets = new ArrayList<>();
+        for (Map.Entry<String, Path> secret : paths.entrySet()) {
+            String name = secret.getKey();
+            String vaultPath = configuration.getProperty(VAULT_DYNAMIC_PREFIX + name + "." + VAULT_DYNAMIC_VAULT_PATH);
+            if (vaultPath == null || vaultPath.trim().isEmpty()) {
+                throw new ConfigurationException("Dynamic secret " + name + " needs a Vault path, "
+                        + "e.g. " + VAULT_DYNAMIC_PREFIX + name + "." + VAULT_DYNAMIC_VAULT_PATH + "=database/creds/readonly");
+            }
+            Path path = secret.getValue();
+            Logical vault = client;
+            if (client instanceof ShardedLogical) {
+                //the credential and its renewals are kept on one shard
+                vault = ((ShardedLogical) client).keyedBy(any -> path.getPath());
+            }
+            secrets.add(new Secret(name, path, vaultPath.trim(), vault, minTtlMilliseconds, renewals,
+                    System::currentTimeMillis));
+        }
+        return new DynamicSecrets(secrets, renewals);
+    }
+
+    /**
+     * @return the secret generating the key at the path, or mapped to the path itself; null if there is none
+     */
+    Secret secretOf(Path path) {
+        Secret secret = secretAt(path);
+        return secret != null || path.getPath().isEmpty() ? secret : secretAt(PathUtil.parentPath(path));
+    }
+
+    /**
+     * @return the secret mapped to the directory, null if there is none
+     */
+    Secret secretAt(Path directory) {
+        for (Secret secret : secrets) {
+            if (secret.path.getPath().equals(directory.getPath())) {
+                return secret;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the directories directly below {@code directory} that lead to a secret, in the form Vault lists them
+     */
+    Set<String> directoriesBelow(Path directory) {
+        String parent = directory.getPath();
+        Set<String> directories = new TreeSet<>();
+        for (Secret secret : secrets) {
+            String relative;
+            if (parent.isEmpty()) {
+                relative = secret.path.getPath();
+            } else if (secret.path.getPath().startsWith(parent + "/")) {
+                relative = secret.path.getPath().substring(parent.length() + 1);
+            } else {
+                continue;
+            }
+            int separator = relative.indexOf('/');
+            directories.add((separator < 0 ? relative : relative.substring(0, separator)) + "/");
+        }
+        return directories;
+    }
+
+    List<Secret> getSecrets() {
+        return Collections.unmodifiableList(secrets);
+    }
+
+    /**
+     * Stops renewing leases, credentials already handed out stay valid until their lease expires.
+     */
+    void shutdown() {
+        if (renewals != null) {
+            renewals.shutdownNow();
+        }
+    }
+
+    /**
+     * @return reads answered with a credential generated earlier
+     */
+    long getSharedCount() {
+        return secrets.stream().mapToLong(Secret::getSharedCount).sum();
+    }
+
+    long getGeneratedCount() {
+        return secrets.stream().mapToLong(Secret::getGeneratedCount).sum();
+    }
+
+    long getRenewedCount() {
+        return secrets.stream().mapToLong(Secret::getRenewedCount).sum();
+    }
+
+    /**
+     * A credential generated by Vault along with its lease.
+     */
+    private static class Lease {
+        final Map<String, String> data;
+        final String id;
+        final long durationMilliseconds;
+        volatile long expiresAt;
+        //since it was last renewed, generating it is a read
+        volatile boolean read = true;
+
+        Lease(Map<String, String> data, String id, long durationMilliseconds, long expiresAt) {
+            this.data = Collections.unmodifiableMap(new HashMap<>(data));
+            this.id = id;
+            this.durationMilliseconds = durationMilliseconds;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * One Vault path generating credentials, mapped to a Rundeck key directory.
+     */
+    static class Secret {
+
+        java.util.logging.Logger log = java.util.logging.Logger.getLogger("vault-storage");
+
+        final String name;
+        final Path path;
+        final String vaultPath;
+        private final Logical vault;
+        private final long minTtlMilliseconds;
+        private final ScheduledExecutorService renewals;
+        private final LongSupplier clock;
+
+        private final AtomicLong shared = new AtomicLong();
+        private final AtomicLong generated = new AtomicLong();
+        private final AtomicLong renewed = new AtomicLong();
+
+        //guarded by this, null until generated or when the last credential had no lease
+        private Lease lease;
+        //guarded by this, the credential being generated, null when none is
+        private CompletableFuture<Lease> generating;
+
+        /**
+         * @param minTtlMilliseconds time a credential must stay valid for to be handed out, at most half its lease
+         * @param renewals null when leases are not renewed
+         */
+        Secret(String name, Path path, String vaultPath, Logical vault, long minTtlMilliseconds,
+               ScheduledExecutorService renewals, LongSupplier clock) {
+            this.name = name;
+            this.path = path;
+            this.vaultPath = vaultPath;
+            this.vault = vault;
+            this.minTtlMilliseconds = minTtlMilliseconds;
+            this.renewals = renewals;
+            this.clock = clock;
+        }
+
+        /**
+         * @return the fields of the current credential, generated if it expires too soon to be used.
+         * Concurrent reads wait for the credential being generated rather than generating their own.
+         * The fields all belong to the same credential, callers needing several take them from one read.
+         */
+        Map<String, String> read() throws VaultException {
+            CompletableFuture<Lease> pending;
+            boolean generate;
+            synchronized (this) {
+                long now = clock.getAsLong();
+                if (lease != null && lease.expiresAt - now >= Math.min(minTtlMilliseconds, lease.durationMilliseconds / 2)) {
+                    lease.read = true;
+                    shared.incrementAndGet();
+                    return lease.data;
+                }
+                generate = generating == null;
+                if (generate) {
+                    generating = new CompletableFuture<>();
+                }
+                pending = generating;
+            }
+            if (!generate) {
+                shared.incrementAndGet();
+                return await(pending);
+            }
+            //without holding the lock, readers of a credential still valid don't wait for Vault
+            return generate(pending).data;
+        }
+
+        private Lease generate(CompletableFuture<Lease> pending) throws VaultException {
+            LogicalResponse response;
+            try {
+                response = LoadBalancedTransport.callOnActiveNode(() -> vault.read(vaultPath, false));
+            } catch (VaultException | RuntimeException e) {
+                synchronized (this) {
+                    generating = null;
+                }
+                pending.completeExceptionally(e);
+                throw e;
+            }
+
+            generated.incrementAndGet();
+            long duration = TimeUnit.SECONDS.toMillis(response.getLeaseDuration() != null ? response.getLeaseDuration() : 0);
+            Lease generatedLease = new Lease(response.getData(), response.getLeaseId(), duration, clock.getAsLong() + duration);
+            synchronized (this) {
+                //without a lease there is nothing telling how long it may be used, only concurrent reads share it
+                lease = duration > 0 ? generatedLease : null;
+                generating = null;
+            }
+            pending.complete(generatedLease);
+            if (duration > 0 && Boolean.TRUE.equals(response.getRenewable())
+                && generatedLease.id != null && !generatedLease.id.isEmpty()) {
+                scheduleRenewal(generatedLease, duration);
+            }
+            log.fine(String.format("Vault credential generated at %s for %s, lease of %d ms",
+                    vaultPath, path, duration));
+            return generatedLease;
+        }
+
+        //the credential generated by a concurrent read
+        private static Map<String, String> await(CompletableFuture<Lease> pending) throws VaultException {
+            try {
+                return pending.get().data;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof VaultException) {
+                    throw (VaultException) e.getCause();
+                }
+                throw new VaultException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new VaultException(e);
+            }
+        }
+
+        private void scheduleRenewal(Lease renewed, long durationMilliseconds) {
+            if (renewals == null) {
+                return;
+            }
+            try {
+                //a third of the lease left to retry or generate a new credential if renewal fails
+                renewals.schedule(() -> renew(renewed), durationMilliseconds * 2 / 3, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                //shut down, the lease expires
+            }
+        }
+
+        private void renew(Lease renewing) {
+            synchronized (this) {
+                if (lease != renewing) {
+                    //replaced by a new credential
+                    return;
+                }
+                if (!renewing.read) {
+                    log.fine(String.format("Vault lease of %s not renewed, the credential was not read", path));
+                    return;
+                }
+                renewing.read = false;
+            }
+
+            long increment = TimeUnit.MILLISECONDS.toSeconds(renewing.durationMilliseconds);
+            Map<String, Object> request = new HashMap<>();
+            request.put("lease_id", renewing.id);
+            request.put("increment", increment);
+            LogicalResponse response;
+            try {
+                response = vault.write("sys/leases/renew", request);
+            } catch (VaultException e) {
+                log.warning(String.format("Vault lease of %s could not be renewed, a new credential is generated "
+                        + "once it expires: %s", path, e.getMessage()));
+                return;
+            }
+            renewed.incrementAndGet();
+
+            long granted = response.getLeaseDuration() != null ? response.getLeaseDuration() : 0;
+            renewing.expiresAt = clock.getAsLong() + TimeUnit.SECONDS.toMillis(granted);
+            if (granted < increment) {
+                //the maximum TTL of the lease is reached, a new credential is generated once it expires
+                log.fine(String.format("Vault lease of %s renewed for its last %d s", path, granted));
+                return;
+            }
+            scheduleRenewal(renewing, TimeUnit.SECONDS.toMillis(granted));
+        }
+
+        long getSharedCount() {
+            return shared.get();
+        }
+
+        long getGeneratedCount() {
+            return generated.get();
+        }
+
+        long getRenewedCount() {
+            return renewed.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + "{" + path + " -> " + vaultPath + "}";
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.List;
+
+/**
+ * Java Flight Recorder events for slow storage operations and the Vault calls they made,
+ * so they can be lined up with GC pauses and thread dumps in the same recording.
+ * The events are compiled separately, from {@code src/jfr/java}, and loaded by name only on JVMs
+ * with the {@code jdk.jfr} API (not Java 8 before update 262, nor Oracle's Java 8): this class
+ * doesn't depend on it, so the plugin builds and runs without it.
+ */
+class FlightRecorderEvents {
+
+    static final String RECORDER_CLASS = "io.github.valfadeev.rundeck.plugin.vault.JfrStorageEvents";
+
+    //null without JFR
+    private static final Recorder RECORDER = loadRecorder();
+
+    static final boolean AVAILABLE = RECORDER != null;
+
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * The events themselves, implemented against {@code jdk.jfr}.
+     */
+    interface Recorder {
+
+        /**
+         * @return whether a running recording records slow operations
+         */
+        boolean isEnabled();
+
+        Object begin();
+
+        void commit(Object operationEvent,
+                    String operation,
+                    String path,
+                    boolean failed,
+                    List<OperationTrace.Call> calls);
+    }
+
+    /**
+     * @return the event of an operation starting now, to be passed to {@link #commit};
+     * null without JFR or when no recording takes the events
+     */
+    static Object beginOperation() {
+        return RECORDER != null && RECORDER.isEnabled() ? RECORDER.begin() : null;
+    }
+
+    static void commit(Object operationEvent,
+                       String operation,
+                       String path,
+                       boolean failed,
+                       List<OperationTrace.Call> calls) {
+        RECORDER.commit(operationEvent, operation, path, failed, calls);
+    }
+
+    private static Recorder loadRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName(RECORDER_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            //no JFR, or built without the events
+            return null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.List;
+import java.util.Map;
+
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.LogicalResponse;
+
+/**
+ * {@link Logical} that forwards every call to another instance.
+ * Subclasses override the calls they need to decorate.
+ */
+class ForwardingLogical extends Logical {
+
+    protected final Logical delegate;
+
+    ForwardingLogical(Logical delegate) {
+        //the configuration of the decorated instance is used, this one is never read
+        super(new VaultConfig());
+        this.delegate = delegate;
+    }
+
+    @Override
+    public LogicalResponse read(String path) throws VaultException {
+        return delegate.read(path);
+    }
+
+    @Override
+    public LogicalResponse read(String path, boolean shouldRetry) throws VaultException {
+        return delegate.read(path, shouldRetry);
+    }
+
+    @Override
+    public LogicalResponse write(String path, Map<String, Object> nameValuePairs) throws VaultException {
+        return delegate.write(path, nameValuePairs);
+    }
+
+    @Override
+    public List<String> list(String path) throws VaultException {
+        return delegate.list(path);
+    }
+
+    @Override
+    public LogicalResponse delete(String path) throws VaultException {
+        return delegate.delete(path);
+    }
+}
@@ -0,0 +1,286 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.LogicalResponse;
+
+/**
+ * Sends a second copy of a read or list that hasn't been answered within the configured percentile
+ * of recent response times. The first answer is returned and the other request is aborted, by closing
+ * its connection. The first request is made on the calling thread, a hedge on one of at most
+ * {@code maxConcurrentHedges} threads: none is sent while they are all busy.
+ * Concurrent requests take separate pooled connections, and separate nodes when reads are load balanced.
+ * Hedges are limited by a {@link RetryBudget}, so they can't more than double the load on Vault,
+ * and take a permit of the {@link ConcurrencyLimiter} if there is one: a hedge is not sent rather than queued.
+ * Writes, deletes and reads made without retries are never sent twice.
+ */
+class HedgingLogical extends ForwardingLogical {
+
+    //response times needed before the percentile is trusted over the minimum delay
+    private static final int MIN_SAMPLES = 100;
+    //the delay follows the latencies of the last few thousand requests
+    private static final int SAMPLE_WINDOW = 5000;
+
+    //starts the hedges of the requests not answered in time
+    private final ScheduledThreadPoolExecutor timer;
+    private final ThreadPoolExecutor executor;
+    private final double percentile;
+    private final long minDelayMicros;
+    private final RetryBudget budget;
+    //null when the concurrency limit is disabled
+    private final ConcurrencyLimiter limiter;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong samples = new AtomicLong();
+    private volatile long delayMicros;
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * @param percentile           of response times after which a request is hedged, between 0 and 1
+     * @param minDelayMilliseconds delay used until enough response times are known, and lower bound of the delay
+     * @param maxConcurrentHedges  hedges in flight at once
+     * @param budget               hedges allowed for the requests made
+     * @param limiter              permits of the hedges, the first requests are made with the permit of their caller
+     */
+    HedgingLogical(Logical delegate,
+                   double percentile,
+                   long minDelayMilliseconds,
+                   int maxConcurrentHedges,
+                   RetryBudget budget,
+                   ConcurrencyLimiter limiter) {
+        super(delegate);
+        this.percentile = percentile;
+        this.minDelayMicros = TimeUnit.MILLISECONDS.toMicros(minDelayMilliseconds);
+        this.budget = budget;
+        this.limiter = limiter;
+        this.delayMicros = minDelayMicros;
+        this.timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("vault-storage-hedge-timer"));
+        //most requests are answered in time, their timers must not pile up until they are due
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.executor = new ThreadPoolExecutor(0, Math.max(1, maxConcurrentHedges), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new DaemonThreadFactory("vault-storage-hedge"));
+    }
+
+    @Override
+    public LogicalResponse read(String path) throws VaultException {
+        return hedge(path, () -> delegate.read(path));
+    }
+
+    /**
+     * A read that must not be retried is not hedged either, it is sent once.
+     */
+    @Override
+    public LogicalResponse read(String path, boolean shouldRetry) throws VaultException {
+        return shouldRetry ? read(path) : delegate.read(path, false);
+    }
+
+    @Override
+    public List<String> list(String path) throws VaultException {
+        return hedge(path, () -> delegate.list(path));
+    }
+
+    /**
+     * @return number of second requests sent
+     */
+    long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * @return number of second requests answered before the first one
+     */
+    long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    long getDelayMicros() {
+        return delayMicros;
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private <T> T hedge(String path, VaultCall<T> call) throws VaultException {
+        budget.onCall();
+        Cancellation primary = new Cancellation();
+        Hedge<T> hedge = new Hedge<>(ConcurrencyLimiter.projectOf(path), timed(call), primary);
+        ScheduledFuture<?> due;
+        try {
+            due = timer.schedule(hedge::start, delayMicros, TimeUnit.MICROSECONDS);
+        } catch (RejectedExecutionException e) {
+            //shut down by a new configuration while this call was made
+            return call.execute();
+        }
+
+        T result;
+        try {
+            result = primary.run(() -> {
+                long start = System.nanoTime();
+                T response = call.execute();
+                record(System.nanoTime() - start);
+                return response;
+            });
+        } catch (VaultException e) {
+            //a hedge not sent yet is not sent at all, one in flight may still succeed
+            if (isAnswer(e) || due.cancel(false)) {
+                hedge.cancellation.cancel();
+                throw e;
+            }
+            return hedge.await(e);
+        } catch (RuntimeException e) {
+            due.cancel(false);
+            hedge.cancellation.cancel();
+            throw e;
+        }
+        due.cancel(false);
+        hedge.cancellation.cancel();
+        return result;
+    }
+
+    //the call as made by a hedge, on behalf of the operation and the node pinning of the calling thread
+    private <T> Callable<T> timed(VaultCall<T> call) {
+        return LoadBalancedTransport.propagate(OperationTrace.propagate(() -> {
+            long start = System.nanoTime();
+            T result = call.execute();
+            record(System.nanoTime() - start);
+            return result;
+        }));
+    }
+
+    private void record(long elapsedNanos) {
+        latencies.record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        long count = samples.incrementAndGet();
+        if (count % MIN_SAMPLES != 0) {
+            return;
+        }
+        //a single thread gets each multiple, the lock keeps a reset from racing a recompute
+        synchronized (latencies) {
+            delayMicros = Math.max(minDelayMicros, latencies.getValueAt(percentile));
+            if (count % SAMPLE_WINDOW == 0) {
+                latencies.reset();
+            }
+        }
+    }
+
+    /**
+     * The second copy of a request, sent once the delay is over unless the first one was answered.
+     */
+    private class Hedge<T> {
+        private final String project;
+        private final Callable<T> call;
+        private final Cancellation primary;
+        private final Cancellation cancellation = new Cancellation();
+        //cancelled if the hedge was never sent
+        private final CompletableFuture<T> outcome = new CompletableFuture<>();
+
+        Hedge(String project, Callable<T> call, Cancellation primary) {
+            this.project = project;
+            this.call = call;
+            this.primary = primary;
+        }
+
+        //on the timer thread
+        void start() {
+            if (cancellation.isCancelled() || !budget.tryRetry()) {
+                outcome.cancel(false);
+                return;
+            }
+            //Vault is as busy as allowed, a hedge would only add to it
+            if (limiter != null && !limiter.tryAcquire(project)) {
+                outcome.cancel(false);
+                return;
+            }
+            try {
+                executor.execute(this::send);
+                hedges.incrementAndGet();
+            } catch (RejectedExecutionException e) {
+                //as many hedges in flight as allowed: answered by the first request alone
+                if (limiter != null) {
+                    limiter.abandon(project);
+                }
+                outcome.cancel(false);
+            }
+        }
+
+        private void send() {
+            long start = System.nanoTime();
+            boolean dropped = false;
+            try {
+                T result = cancellation.run(() -> {
+                    try {
+                        return call.call();
+                    } catch (VaultException | RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new VaultException(e);
+                    }
+                });
+                outcome.complete(result);
+                primary.cancel();
+            } catch (VaultException e) {
+                dropped = ResilientLogical.isRetryable(e);
+                outcome.completeExceptionally(e);
+                if (isAnswer(e)) {
+                    primary.cancel();
+                }
+            } catch (RuntimeException e) {
+                outcome.completeExceptionally(e);
+            } finally {
+                if (limiter != null) {
+                    //aborted by the first answer, its response time says nothing of Vault
+                    if (cancellation.isCancelled()) {
+                        limiter.abandon(project);
+                    } else {
+                        limiter.release(project, System.nanoTime() - start, dropped);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param failure of the first request, reported if the hedge fails too
+         * @return the answer of the hedge
+         */
+        T await(VaultException failure) throws VaultException {
+            try {
+                T result = outcome.get();
+                hedgeWins.incrementAndGet();
+                return result;
+            } catch (CancellationException e) {
+                throw failure;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof VaultException && isAnswer((VaultException) cause)) {
+                    hedgeWins.incrementAndGet();
+                    throw (VaultException) cause;
+                }
+                throw failure;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancellation.cancel();
+                throw new VaultException(e);
+            }
+        }
+    }
+
+    //an error Vault would give again: anything but a failed connection or a server error
+    private static boolean isAnswer(VaultException e) {
+        int status = e.getHttpStatusCode();
+        return status >= 400 && status < 500 && status != 429;
+    }
+}
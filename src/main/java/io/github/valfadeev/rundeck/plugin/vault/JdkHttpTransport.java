@@ -0,0 +1,120 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.bettercloud.vault.rest.RestResponse;
+
+/**
+ * Sends requests to a single Vault server with the JDK's {@link HttpURLConnection}, which keeps
+ * connections alive between requests in its own cache, sized by the {@code http.maxConnections} system property.
+ * Writes are streamed with a fixed length, so the JDK never sends them again on a failed connection.
+ */
+class JdkHttpTransport implements VaultTransport {
+
+    private final String baseUrl;
+    private final SSLSocketFactory sslSocketFactory;
+    private final boolean verifyHostname;
+    private final int connectTimeoutMilliseconds;
+    private final int readTimeoutMilliseconds;
+
+    /**
+     * @param sslSocketFactory factory for TLS connections, null for plain HTTP addresses
+     */
+    JdkHttpTransport(String address,
+                     SSLSocketFactory sslSocketFactory,
+                     boolean verifyHostname,
+                     int connectTimeoutMilliseconds,
+                     int readTimeoutMilliseconds) throws MalformedURLException {
+        URL url = new URL(address);
+        boolean https = url.getProtocol().equalsIgnoreCase("https");
+        String base = url.toExternalForm();
+        this.baseUrl = (base.endsWith("/") ? base : base + "/") + "v1/";
+        this.sslSocketFactory = https ? sslSocketFactory : null;
+        this.verifyHostname = verifyHostname;
+        this.connectTimeoutMilliseconds = connectTimeoutMilliseconds;
+        this.readTimeoutMilliseconds = readTimeoutMilliseconds;
+
+        if (https && sslSocketFactory == null) {
+            throw new IllegalArgumentException("An SSL socket factory is required for " + address);
+        }
+    }
+
+    @Override
+    public RestResponse send(String method, String path, String token, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        if (connection instanceof HttpsURLConnection && sslSocketFactory != null) {
+            HttpsURLConnection https = (HttpsURLConnection) connection;
+            https.setSSLSocketFactory(sslSocketFactory);
+            if (!verifyHostname) {
+                //same as the driver: no validation at all
+                https.setHostnameVerifier((hostname, session) -> true);
+            }
+        }
+        connection.setConnectTimeout(connectTimeoutMilliseconds);
+        connection.setReadTimeout(readTimeoutMilliseconds);
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", "application/json");
+        if (token != null) {
+            connection.setRequestProperty("X-Vault-Token", token);
+        }
+        if (body != null) {
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        }
+        boolean streamed = !method.equals("GET") && !method.equals("HEAD");
+        if (streamed) {
+            //a streamed request is not sent again when a kept alive connection turns out to be closed
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body != null ? body.length : 0);
+        }
+
+        try {
+            Cancellation.attach(connection::disconnect);
+            if (streamed) {
+                try (OutputStream out = connection.getOutputStream()) {
+                    if (body != null) {
+                        out.write(body);
+                    }
+                }
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            //read to the end, so the connection goes back to the JDK's cache
+            byte[] responseBody = in != null ? readToEnd(in) : new byte[0];
+            return new RestResponse(status, connection.getContentType(), responseBody);
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        } finally {
+            Cancellation.detach();
+        }
+    }
+
+    /**
+     * Nothing to release, idle connections are closed by the JDK's cache.
+     */
+    @Override
+    public void close() {
+    }
+
+    private static byte[] readToEnd(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                data.write(buffer, 0, read);
+            }
+            return data.toByteArray();
+        }
+    }
+}
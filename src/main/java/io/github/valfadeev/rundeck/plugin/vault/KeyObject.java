@@ -2,10 +2,11 @@ package io.github.valfadeev.rundeck.plugin.vault;
 
 import com.bettercloud.vault.api.Logical;
 import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import org.rundeck.storage.api.HasInputStream;
 import org.rundeck.storage.api.Path;
 import org.rundeck.storage.impl.ResourceBase;
 
-import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.util.Map;
 
 public abstract class KeyObject {
@@ -15,12 +16,19 @@ public abstract class KeyObject {
     protected Map<String, String> payload;
     protected Map<String, Object> keys;
     protected Path                path;
+    //version of the secret when read from a KV version 2 engine, null otherwise
+    protected Long                version;
 
     protected boolean             error;
     protected String              errorMessage;
+    //the error is Vault failing to answer, rather than the key missing or the read being refused
+    protected boolean             unavailable;
 
-    abstract Map<String, Object> saveResource(ResourceMeta content, String event, ByteArrayOutputStream baoStream);
+    abstract Map<String, Object> saveResource(ResourceMeta content, String event, ContentCodec.Buffer baoStream);
     abstract ResourceBase loadResource();
+    //builds the resource with the given content source, rather than the content held by the object
+    abstract ResourceBase loadResource(HasInputStream content);
+    abstract InputStream openContent();
     abstract boolean delete(Logical vault,String vaultSecretBackend ,String vaultPrefix);
 
     //empty object or null object
@@ -68,6 +76,14 @@ public abstract class KeyObject {
         this.path = path;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(final Long version) {
+        this.version = version;
+    }
+
     public String getErrorMessage() {
         return errorMessage;
     }
@@ -84,6 +100,14 @@ public abstract class KeyObject {
         this.error = error;
     }
 
+    public boolean isUnavailable() {
+        return unavailable;
+    }
+
+    public void setUnavailable(final boolean unavailable) {
+        this.unavailable = unavailable;
+    }
+
     @Override
     public String toString() {
         return "KeyObject{" +
@@ -92,8 +116,10 @@ public abstract class KeyObject {
                ", payload=" + payload +
                ", keys=" + keys +
                ", path=" + path +
+               ", version=" + version +
                ", error=" + error +
                ", errorMessage='" + errorMessage + '\'' +
+               ", unavailable=" + unavailable +
                '}';
     }
 }
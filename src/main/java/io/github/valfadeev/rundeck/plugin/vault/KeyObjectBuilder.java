@@ -8,9 +8,13 @@ import org.rundeck.storage.api.PathUtil;
 
 public class KeyObjectBuilder {
 
-    Path            path;
-    Logical         vault;
-    String          vaultPrefix;
+    private static final int NOT_FOUND = 404;
+
+    Path                path;
+    Logical             vault;
+    String              vaultPrefix;
+    String              vaultSecretBackend;
+    NegativeLookupCache negativeCache;
 
     static KeyObjectBuilder builder() {
         return new KeyObjectBuilder();
@@ -31,33 +35,62 @@ public class KeyObjectBuilder {
         return this;
     }
 
+    KeyObjectBuilder vaultSecretBackend(String vaultSecretBackend){
+        this.vaultSecretBackend = vaultSecretBackend;
+        return this;
+    }
+
+    KeyObjectBuilder negativeCache(NegativeLookupCache negativeCache){
+        this.negativeCache = negativeCache;
+        return this;
+    }
+
     private String getVaultPath(String rawPath) {
-        return String.format("secret/%s/%s", vaultPrefix, rawPath);
+        return VaultStoragePlugin.getVaultPath(rawPath, vaultSecretBackend, vaultPrefix);
     }
 
     KeyObject build(){
         LogicalResponse response;
         KeyObject object;
-        try {
-            response = vault.read(getVaultPath(path.getPath()));
-            String data = response.getData().get(VaultStoragePlugin.VAULT_STORAGE_KEY);
+        long generation = negativeCache != null ? negativeCache.generation() : 0;
+        boolean unavailable = false;
 
-            if(data !=null) {
-                object = new RundeckKey(response,path);
-            }else{
-                object = new VaultKey(response,path);
-            }
-
-        } catch (VaultException e) {
+        if(negativeCache != null && negativeCache.isMissing(path)){
             object = new RundeckKey(path);
-            object.setErrorMessage(e.getMessage());
+            object.setErrorMessage("Path not found in Vault (cached lookup)");
             object.setError(true);
+        }else {
+            try {
+                response = vault.read(getVaultPath(path.getPath()));
+                String data = response.getData().get(VaultStoragePlugin.VAULT_STORAGE_KEY);
+
+                if (data != null) {
+                    object = new RundeckKey(response, path);
+                } else {
+                    object = new VaultKey(response, path);
+                }
+                object.setVersion(versionOf(response));
+
+            } catch (VaultException e) {
+                object = new RundeckKey(path);
+                object.setErrorMessage(e.getMessage());
+                object.setError(true);
+                markMissing(path, e, generation);
+                unavailable = ResilientLogical.isRetryable(e);
+            }
         }
 
         //check if parent path exists (vault entry with multiples keys)
         //multiples keys inside a secret will be reading on Rundeck as different keys inside a folder
         if(object.isError()) {
-            KeyObject parentObject=getVaultParentObject(path);
+            KeyObject parentObject;
+            try {
+                parentObject = readParent(path, generation);
+            } catch (VaultException e) {
+                //the key may be one of a multi-key secret that couldn't be read
+                parentObject = null;
+                unavailable = unavailable || ResilientLogical.isRetryable(e);
+            }
 
             if(parentObject!=null) {
                 object = new VaultKey(path, parentObject);
@@ -67,28 +100,66 @@ public class KeyObjectBuilder {
                 object.setError(false);
                 object.setErrorMessage(null);
                 object.setMultiplesKeys(true);
+                //updates of the key are written to the parent secret
+                object.setVersion(parentObject.getVersion());
 
                 if (parentObject.getKeys().containsKey(key)) {
                     object.getKeys().put(key, parentObject.getKeys().get(key));
                 }
             }
         }
+        if(object.isError()){
+            object.setUnavailable(unavailable);
+        }
 
         return object;
     }
 
     public KeyObject getVaultParentObject(Path path){
-        KeyObject parentObject=null;
-        LogicalResponse response;
+        return getVaultParentObject(path, negativeCache != null ? negativeCache.generation() : 0);
+    }
 
-        Path parentPath = PathUtil.parentPath(path);
+    private KeyObject getVaultParentObject(Path path, long generation){
         try {
-            response = vault.read(getVaultPath(parentPath.getPath()));
-            parentObject=new VaultKey(response, parentPath);
+            return readParent(path, generation);
         } catch (VaultException e) {
+            return null;
+        }
+    }
 
+    //null if the parent is missing or holds no keys
+    private KeyObject readParent(Path path, long generation) throws VaultException {
+        Path parentPath = PathUtil.parentPath(path);
+        if(negativeCache != null && negativeCache.holdsNoKeys(parentPath)){
+            return null;
         }
 
-        return parentObject;
+        try {
+            LogicalResponse response = vault.read(getVaultPath(parentPath.getPath()));
+            if(response.getData().containsKey(VaultStoragePlugin.VAULT_STORAGE_KEY)){
+                //a Rundeck key, there is nothing below it
+                if(negativeCache != null){
+                    negativeCache.markHoldsNoKeys(parentPath, generation);
+                }
+                return null;
+            }
+            KeyObject parentObject=new VaultKey(response, parentPath);
+            parentObject.setVersion(versionOf(response));
+            return parentObject;
+        } catch (VaultException e) {
+            markMissing(parentPath, e, generation);
+            throw e;
+        }
+    }
+
+    static Long versionOf(LogicalResponse response){
+        return response instanceof KvV2Logical.Response ? ((KvV2Logical.Response) response).getVersion() : null;
+    }
+
+    //only a definite "not found" is remembered, auth and server errors are not
+    private void markMissing(Path missingPath, VaultException e, long generation){
+        if(negativeCache != null && e.getHttpStatusCode() == NOT_FOUND){
+            negativeCache.markMissing(missingPath, generation);
+        }
     }
 }
@@ -0,0 +1,206 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+
+/**
+ * Size-bounded, time-limited cache of {@link KeyObject} lookups.
+ * Least recently used entries are evicted once {@code maxSize} is reached.
+ */
+class KeyObjectCache {
+
+    private final int maxSize;
+    private final long ttlMilliseconds;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    //generations of the paths hashed to each stripe, bumped when they are invalidated, so that reads
+    //which started before a write don't re-populate stale data; reads of other keys are left alone
+    private static final int STRIPES = 1024;
+    //bumped for a path and everything below it
+    private final long[] subtreeGenerations = new long[STRIPES];
+    //bumped for the parent of an invalidated path only, the secret holding it
+    private final long[] pathGenerations = new long[STRIPES];
+    //bumped when everything is invalidated
+    private long epoch;
+
+    KeyObjectCache(int maxSize, long ttlMilliseconds) {
+        this(maxSize, ttlMilliseconds, System::currentTimeMillis);
+    }
+
+    KeyObjectCache(int maxSize, long ttlMilliseconds, LongSupplier clock) {
+        this.maxSize = maxSize;
+        this.ttlMilliseconds = ttlMilliseconds;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > KeyObjectCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized KeyObject get(Path path) {
+        Entry entry = entries.get(path.getPath());
+        if (entry != null && entry.expiresAt > clock.getAsLong()) {
+            hits.incrementAndGet();
+            entry.reads++;
+            return entry.object;
+        }
+        if (entry != null) {
+            entries.remove(path.getPath());
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return the object stored at the path, null if there is none or it expired;
+     * without counting as a hit, a miss or a read of it
+     */
+    synchronized KeyObject peek(Path path) {
+        Entry entry = entries.get(path.getPath());
+        return entry != null && entry.expiresAt > clock.getAsLong() ? entry.object : null;
+    }
+
+    /**
+     * @return whether an object is stored at the path, without counting as a hit, a miss or a read of it
+     */
+    synchronized boolean contains(Path path) {
+        Entry entry = entries.get(path.getPath());
+        return entry != null && entry.expiresAt > clock.getAsLong();
+    }
+
+    /**
+     * @return milliseconds since the object at the path was stored, -1 if there is none or it expired
+     */
+    synchronized long ageOf(Path path) {
+        Entry entry = entries.get(path.getPath());
+        long now = clock.getAsLong();
+        if (entry == null || entry.expiresAt <= now) {
+            return -1;
+        }
+        return now - (entry.expiresAt - ttlMilliseconds);
+    }
+
+    /**
+     * @return whether the object at the path was read at least {@code minReads} times since it was stored
+     * and is in the last {@code aheadFraction} of its TTL
+     */
+    synchronized boolean isRefreshDue(Path path, double aheadFraction, int minReads) {
+        Entry entry = entries.get(path.getPath());
+        long now = clock.getAsLong();
+        if (entry == null || entry.expiresAt <= now || entry.reads < minReads) {
+            return false;
+        }
+        return entry.expiresAt - now <= ttlMilliseconds * aheadFraction;
+    }
+
+    /**
+     * @return the generation of the path, changed by any invalidation that drops it
+     */
+    synchronized long generation(Path path) {
+        String key = path.getPath();
+        long generation = epoch + pathGenerations[stripe(key)];
+        for (int end = key.length(); end > 0; end = key.lastIndexOf('/', end - 1)) {
+            generation += subtreeGenerations[stripe(key.substring(0, end))];
+        }
+        return generation;
+    }
+
+    /**
+     * Stores the object unless the path was invalidated after {@code generation} was taken,
+     * replacing any object stored at the path along with its read count.
+     */
+    synchronized void put(Path path, KeyObject object, long generation) {
+        if (generation != generation(path)) {
+            return;
+        }
+        entries.put(path.getPath(), new Entry(object, clock.getAsLong() + ttlMilliseconds));
+    }
+
+    /**
+     * Drops the path itself, its parent (a multi-key secret holding it) and
+     * anything below it (keys of a multi-key secret stored at the path).
+     *
+     * @return the generation of the path this invalidation started, to store the value written at the path with
+     */
+    synchronized long invalidate(Path path) {
+        String key = path.getPath();
+        subtreeGenerations[stripe(key)]++;
+        pathGenerations[stripe(PathUtil.parentPath(path).getPath())]++;
+        String childPrefix = key + "/";
+        entries.remove(key);
+        entries.remove(PathUtil.parentPath(path).getPath());
+
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(childPrefix)) {
+                it.remove();
+            }
+        }
+        return generation(path);
+    }
+
+    synchronized void invalidateAll() {
+        epoch++;
+        entries.clear();
+    }
+
+    //paths sharing a stripe invalidate each other's reads, which are then only not cached
+    private static int stripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "KeyObjectCache{" +
+               "size=" + size() +
+               ", hits=" + hits.get() +
+               ", misses=" + misses.get() +
+               ", evictions=" + evictions.get() +
+               '}';
+    }
+
+    private static class Entry {
+        final KeyObject object;
+        final long expiresAt;
+        //hits since the object was stored
+        int reads;
+
+        Entry(KeyObject object, long expiresAt) {
+            this.object = object;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonObject;
+import com.bettercloud.vault.json.JsonValue;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.bettercloud.vault.rest.RestResponse;
+
+/**
+ * Speaks the KV version 2 API with the KV version 1 semantics the plugin is written against.
+ * Paths below {@code mount} are rewritten to its {@code data/} and {@code metadata/} endpoints,
+ * reads are unwrapped to the secret itself and deletes remove all versions of a secret.
+ */
+class KvV2Logical extends ForwardingLogical {
+
+    private static final String DATA = "data";
+    private static final String METADATA = "metadata";
+
+    private final String mountPrefix;
+    private final boolean createOnlyIfMissing;
+
+    KvV2Logical(Logical delegate, String mount) {
+        this(delegate, mount, false);
+    }
+
+    /**
+     * @param createOnlyIfMissing whether {@link #create} fails on a secret that already exists,
+     *                            instead of overwriting it as a KV version 1 write would
+     */
+    KvV2Logical(Logical delegate, String mount, boolean createOnlyIfMissing) {
+        super(delegate);
+        this.mountPrefix = mount.endsWith("/") ? mount : mount + "/";
+        this.createOnlyIfMissing = createOnlyIfMissing;
+    }
+
+    /**
+     * @return the latest version of the secret, its number available from {@link Response#getVersion()}
+     */
+    @Override
+    public Response read(String path) throws VaultException {
+        return unwrap(delegate.read(rewrite(path, DATA)));
+    }
+
+    @Override
+    public Response read(String path, boolean shouldRetry) throws VaultException {
+        return unwrap(delegate.read(rewrite(path, DATA), shouldRetry));
+    }
+
+    /**
+     * @return the response, with the number of the version written
+     */
+    @Override
+    public Response write(String path, Map<String, Object> nameValuePairs) throws VaultException {
+        return write(path, nameValuePairs, null);
+    }
+
+    /**
+     * Writes the first version of a new secret: with a check-and-set version of 0 when creating
+     * only missing secrets, so that one created in the meantime is not overwritten.
+     */
+    Response create(String path, Map<String, Object> nameValuePairs) throws VaultException {
+        return write(path, nameValuePairs, createOnlyIfMissing ? Long.valueOf(0) : null);
+    }
+
+    /**
+     * Writes a new version of the secret, only if its current version is {@code casVersion}.
+     * A version of 0 only writes the secret if it does not exist yet; null writes unconditionally.
+     */
+    Response write(String path, Map<String, Object> nameValuePairs, Long casVersion) throws VaultException {
+        Map<String, Object> request = new HashMap<>();
+        request.put(DATA, TransportLogical.toJsonObject(nameValuePairs));
+        if (casVersion != null) {
+            request.put("options", Json.object().add("cas", casVersion));
+        }
+        LogicalResponse response = delegate.write(rewrite(path, DATA), request);
+        String version = response.getData().get("version");
+        return new Response(response.getRestResponse(), response.getRetries(),
+                version == null ? null : Long.valueOf(version));
+    }
+
+    @Override
+    public List<String> list(String path) throws VaultException {
+        return delegate.list(rewrite(path, METADATA));
+    }
+
+    /**
+     * Deletes the metadata and every version of the secret, as a KV version 1 delete would.
+     */
+    @Override
+    public LogicalResponse delete(String path) throws VaultException {
+        return delegate.delete(rewrite(path, METADATA));
+    }
+
+    /**
+     * Checks from the metadata of the secret whether its current version is readable,
+     * without transferring the secret itself.
+     *
+     * @return false if the secret does not exist or its current version was deleted or destroyed
+     */
+    boolean exists(String path) throws VaultException {
+        LogicalResponse response;
+        try {
+            response = delegate.read(rewrite(path, METADATA));
+        } catch (VaultException e) {
+            if (e.getHttpStatusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+
+        JsonObject metadata = body(response).get(DATA).asObject();
+        JsonValue current = metadata.get("versions").asObject()
+                .get(String.valueOf(metadata.getLong("current_version", 0)));
+        if (current == null) {
+            return false;
+        }
+        return current.asObject().getString("deletion_time", "").isEmpty()
+               && !current.asObject().getBoolean("destroyed", false);
+    }
+
+    String rewrite(String path, String endpoint) {
+        if (!path.startsWith(mountPrefix)) {
+            return path;
+        }
+        return mountPrefix + endpoint + "/" + path.substring(mountPrefix.length());
+    }
+
+    private static JsonObject body(LogicalResponse response) {
+        return Json.parse(new String(response.getRestResponse().getBody(), StandardCharsets.UTF_8)).asObject();
+    }
+
+    private static Response unwrap(LogicalResponse response) {
+        JsonObject envelope = body(response).get(DATA).asObject();
+        JsonValue data = envelope.get(DATA);
+        JsonValue metadata = envelope.get(METADATA);
+
+        RestResponse rest = response.getRestResponse();
+        byte[] body = Json.object()
+                .add(DATA, data == null || data.isNull() ? Json.object() : data)
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+        return new Response(
+                new RestResponse(rest.getStatus(), rest.getMimeType(), body),
+                response.getRetries(),
+                metadata == null || metadata.isNull() ? null : metadata.asObject().getLong("version", 0));
+    }
+
+    /**
+     * A secret read from the {@code data/} endpoint, with the version it was read at.
+     */
+    static class Response extends LogicalResponse {
+
+        private final Long version;
+
+        Response(RestResponse restResponse, int retries, Long version) {
+            super(restResponse, retries);
+            this.version = version;
+        }
+
+        Long getVersion() {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.rundeck.storage.api.HasInputStream;
+
+/**
+ * Content of a listed resource, fetched only when the resource is opened, so that
+ * listings don't hold the content of every key they return. Every open fetches
+ * the content again.
+ */
+class LazyContent implements HasInputStream {
+
+    @FunctionalInterface
+    interface Loader {
+        InputStream open() throws IOException;
+    }
+
+    private final Loader loader;
+
+    LazyContent(Loader loader) {
+        this.loader = loader;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return loader.open();
+    }
+
+    @Override
+    public long writeContent(OutputStream out) throws IOException {
+        long written = 0;
+        byte[] buffer = new byte[8192];
+        try (InputStream in = loader.open()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                written += read;
+            }
+        }
+        return written;
+    }
+}
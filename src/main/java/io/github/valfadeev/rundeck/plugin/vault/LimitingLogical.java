@@ -0,0 +1,52 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.List;
+import java.util.Map;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.LogicalResponse;
+
+/**
+ * Makes every call within a {@link ConcurrencyLimiter}, in the bulkhead of the project
+ * the path belongs to. It sits below the retries, so that each attempt takes a permit of its own
+ * and none is held during a backoff; the hedges of a read take theirs in {@link HedgingLogical}.
+ */
+class LimitingLogical extends ForwardingLogical {
+
+    private final ConcurrencyLimiter limiter;
+
+    LimitingLogical(Logical delegate, ConcurrencyLimiter limiter) {
+        super(delegate);
+        this.limiter = limiter;
+    }
+
+    @Override
+    public LogicalResponse read(String path) throws VaultException {
+        return limiter.call(ConcurrencyLimiter.projectOf(path), () -> delegate.read(path));
+    }
+
+    @Override
+    public LogicalResponse read(String path, boolean shouldRetry) throws VaultException {
+        return limiter.call(ConcurrencyLimiter.projectOf(path), () -> delegate.read(path, shouldRetry));
+    }
+
+    @Override
+    public LogicalResponse write(String path, Map<String, Object> nameValuePairs) throws VaultException {
+        return limiter.call(ConcurrencyLimiter.projectOf(path), () -> delegate.write(path, nameValuePairs));
+    }
+
+    @Override
+    public List<String> list(String path) throws VaultException {
+        return limiter.call(ConcurrencyLimiter.projectOf(path), () -> delegate.list(path));
+    }
+
+    @Override
+    public LogicalResponse delete(String path) throws VaultException {
+        return limiter.call(ConcurrencyLimiter.projectOf(path), () -> delegate.delete(path));
+    }
+
+    ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+}
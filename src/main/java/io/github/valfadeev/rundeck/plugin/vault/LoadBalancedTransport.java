@@ -0,0 +1,273 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.rest.RestResponse;
+
+/**
+ * Spreads reads across several Vault nodes, typically the active node and its performance standbys,
+ * while every other request goes to the active node.
+ * Reads are sent to the healthy node with the fewest requests in flight, or to each healthy node in turn.
+ * Health is tracked passively: a node failing {@code failureThreshold} requests in a row, by connection
+ * error or 5xx status, gets no reads for {@code ejectionMilliseconds}. It is then given reads again,
+ * and ejected again on its first failure.
+ * Reads made by a write, see {@link #onActiveNode(Supplier)}, go to the active node as well: a standby
+ * may not have replicated the write yet.
+ */
+class LoadBalancedTransport implements VaultTransport {
+
+    static final String LEAST_OUTSTANDING = "least-outstanding";
+    static final String ROUND_ROBIN = "round-robin";
+
+    private static final java.util.logging.Logger log = java.util.logging.Logger.getLogger("vault-storage");
+
+    //set while the calling thread makes reads that must see the latest writes
+    private static final ThreadLocal<Boolean> ACTIVE_NODE = ThreadLocal.withInitial(() -> false);
+
+    private final List<Endpoint> endpoints;
+    private final boolean leastOutstanding;
+    private final int failureThreshold;
+    private final long ejectionMilliseconds;
+    private final LongSupplier clock;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param endpoints the active node first, then the nodes that only serve reads
+     */
+    LoadBalancedTransport(List<Endpoint> endpoints,
+                          String balancing,
+                          int failureThreshold,
+                          long ejectionMilliseconds) {
+        this(endpoints, balancing, failureThreshold, ejectionMilliseconds, System::currentTimeMillis);
+    }
+
+    LoadBalancedTransport(List<Endpoint> endpoints,
+                          String balancing,
+                          int failureThreshold,
+                          long ejectionMilliseconds,
+                          LongSupplier clock) {
+        if (!balancing.equals(LEAST_OUTSTANDING) && !balancing.equals(ROUND_ROBIN)) {
+            throw new IllegalArgumentException("Unsupported load balancing: " + balancing);
+        }
+        this.endpoints = new ArrayList<>(endpoints);
+        this.leastOutstanding = balancing.equals(LEAST_OUTSTANDING);
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.ejectionMilliseconds = ejectionMilliseconds;
+        this.clock = clock;
+    }
+
+    /**
+     * A Vault node, with the requests in flight to it and its recent failures.
+     */
+    static class Endpoint {
+        private final String address;
+        private final VaultTransport transport;
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private int consecutiveFailures;
+        //0 while the node is given reads
+        private long ejectedUntil;
+
+        Endpoint(String address, VaultTransport transport) {
+            this.address = address;
+            this.transport = transport;
+        }
+
+        String getAddress() {
+            return address;
+        }
+
+        VaultTransport getTransport() {
+            return transport;
+        }
+
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        synchronized boolean isEjected(long now) {
+            return ejectedUntil != 0 && now < ejectedUntil;
+        }
+
+        private synchronized long getEjectedUntil() {
+            return ejectedUntil;
+        }
+    }
+
+    /**
+     * Runs a call with all its requests sent to the active node, for the reads a write depends on:
+     * the version a check-and-set write is made against, and the key read back after it.
+     */
+    static <T> T onActiveNode(Supplier<T> call) {
+        if (ACTIVE_NODE.get()) {
+            return call.get();
+        }
+        ACTIVE_NODE.set(true);
+        try {
+            return call.get();
+        } finally {
+            ACTIVE_NODE.remove();
+        }
+    }
+
+    /**
+     * Makes a Vault call with its requests sent to the active node, for requests that must not be sent twice:
+     * a standby forwards what it can't answer itself, and a failed one is not tried on another node.
+     */
+    static <T> T callOnActiveNode(VaultCall<T> call) throws VaultException {
+        if (ACTIVE_NODE.get()) {
+            return call.execute();
+        }
+        ACTIVE_NODE.set(true);
+        try {
+            return call.execute();
+        } finally {
+            ACTIVE_NODE.remove();
+        }
+    }
+
+    /**
+     * @return whether the requests of the calling thread only go to the active node
+     */
+    static boolean isOnActiveNode() {
+        return ACTIVE_NODE.get();
+    }
+
+    /**
+     * @return the task, with its requests sent to the active node if those of the calling thread are
+     */
+    static <T> Callable<T> propagate(Callable<T> task) {
+        if (!ACTIVE_NODE.get()) {
+            return task;
+        }
+        return () -> {
+            boolean previous = ACTIVE_NODE.get();
+            ACTIVE_NODE.set(true);
+            try {
+                return task.call();
+            } finally {
+                ACTIVE_NODE.set(previous);
+            }
+        };
+    }
+
+    @Override
+    public RestResponse send(String method, String path, String token, byte[] body) throws IOException {
+        if (!method.equals("GET") || ACTIVE_NODE.get()) {
+            return send(endpoints.get(0), method, path, token, body);
+        }
+
+        Endpoint endpoint = select(null);
+        try {
+            return send(endpoint, method, path, token, body);
+        } catch (IOException e) {
+            //reads are safe to send twice, try another node before the error is retried as a whole
+            Endpoint other = select(endpoint);
+            if (other == endpoint || Cancellation.isCurrentCancelled()) {
+                throw e;
+            }
+            return send(other, method, path, token, body);
+        }
+    }
+
+    /**
+     * @return the endpoints, active node first
+     */
+    List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    @Override
+    public void close() {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.transport.close();
+        }
+    }
+
+    //the node to read from, other than excluded if there is another; ejected nodes only if all are
+    private Endpoint select(Endpoint excluded) {
+        long now = clock.getAsLong();
+        int size = endpoints.size();
+        int start = Math.floorMod(next.getAndIncrement(), size);
+
+        Endpoint selected = null;
+        for (int i = 0; i < size; i++) {
+            Endpoint candidate = endpoints.get((start + i) % size);
+            if (candidate == excluded || candidate.isEjected(now)) {
+                continue;
+            }
+            if (!leastOutstanding) {
+                return candidate;
+            }
+            if (selected == null || candidate.getOutstanding() < selected.getOutstanding()) {
+                selected = candidate;
+            }
+        }
+        if (selected != null) {
+            return selected;
+        }
+
+        //every other node is ejected, reading from the one readmitted soonest beats failing outright
+        for (Endpoint candidate : endpoints) {
+            if (candidate != excluded && (selected == null || candidate.getEjectedUntil() < selected.getEjectedUntil())) {
+                selected = candidate;
+            }
+        }
+        return selected != null ? selected : excluded;
+    }
+
+    private RestResponse send(Endpoint endpoint,
+                              String method,
+                              String path,
+                              String token,
+                              byte[] body) throws IOException {
+        endpoint.outstanding.incrementAndGet();
+        try {
+            RestResponse response = endpoint.transport.send(method, path, token, body);
+            if (response.getStatus() >= 500) {
+                onFailure(endpoint, "HTTP status " + response.getStatus());
+            } else {
+                onSuccess(endpoint);
+            }
+            return response;
+        } catch (IOException e) {
+            //aborted by the caller, not failed by the node
+            if (!Cancellation.isCurrentCancelled()) {
+                onFailure(endpoint, e.toString());
+            }
+            throw e;
+        } finally {
+            endpoint.outstanding.decrementAndGet();
+        }
+    }
+
+    private void onSuccess(Endpoint endpoint) {
+        synchronized (endpoint) {
+            endpoint.consecutiveFailures = 0;
+            endpoint.ejectedUntil = 0;
+        }
+    }
+
+    private void onFailure(Endpoint endpoint, String reason) {
+        long now = clock.getAsLong();
+        synchronized (endpoint) {
+            endpoint.consecutiveFailures++;
+            //a readmitted node is ejected again on its first failure
+            boolean readmitted = endpoint.ejectedUntil != 0;
+            if (endpoint.isEjected(now) || (!readmitted && endpoint.consecutiveFailures < failureThreshold)) {
+                return;
+            }
+            endpoint.ejectedUntil = now + ejectionMilliseconds;
+        }
+        log.warning(String.format("Vault node %s ejected from reads for %d ms after %s",
+                endpoint.address, ejectionMilliseconds, reason));
+    }
+}
@@ -0,0 +1,49 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.List;
+import java.util.Map;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.LogicalResponse;
+
+/**
+ * {@link Logical} timing every call made to Vault into {@link VaultMetrics}, and recording it
+ * in the trace of the storage operation it is made for,
+ * as {@code vault.read}, {@code vault.list}, {@code vault.write} and {@code vault.delete}.
+ * It sits right above the transport, so each retry is timed as a call of its own.
+ */
+class MetricsLogical extends ForwardingLogical {
+
+    private final VaultMetrics metrics;
+
+    MetricsLogical(Logical delegate, VaultMetrics metrics) {
+        super(delegate);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public LogicalResponse read(String path) throws VaultException {
+        return metrics.time("vault.read", path, () -> delegate.read(path));
+    }
+
+    @Override
+    public LogicalResponse read(String path, boolean shouldRetry) throws VaultException {
+        return metrics.time("vault.read", path, () -> delegate.read(path, shouldRetry));
+    }
+
+    @Override
+    public LogicalResponse write(String path, Map<String, Object> nameValuePairs) throws VaultException {
+        return metrics.time("vault.write", path, () -> delegate.write(path, nameValuePairs));
+    }
+
+    @Override
+    public List<String> list(String path) throws VaultException {
+        return metrics.time("vault.list", path, () -> delegate.list(path));
+    }
+
+    @Override
+    public LogicalResponse delete(String path) throws VaultException {
+        return metrics.time("vault.delete", path, () -> delegate.delete(path));
+    }
+}
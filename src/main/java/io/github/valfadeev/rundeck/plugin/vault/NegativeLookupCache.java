@@ -0,0 +1,142 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+
+/**
+ * Remembers for a short time which paths were not found in Vault,
+ * so that repeated lookups of missing keys and of their parent
+ * (the multi-key secret fallback) don't reach the server.
+ * A parent is remembered as holding no keys when it is missing or when it is a Rundeck key,
+ * which can't have keys below it.
+ */
+class NegativeLookupCache {
+
+    private final int maxSize;
+    private final long ttlMilliseconds;
+    private final LongSupplier clock;
+    //by path, and by path followed by a slash for parents holding no keys
+    private final LinkedHashMap<String, Long> expiries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    //bumped on every invalidation, so that reads which started before a write don't record a stale miss
+    private long generation;
+
+    NegativeLookupCache(int maxSize, long ttlMilliseconds) {
+        this(maxSize, ttlMilliseconds, System::currentTimeMillis);
+    }
+
+    NegativeLookupCache(int maxSize, long ttlMilliseconds, LongSupplier clock) {
+        this.maxSize = maxSize;
+        this.ttlMilliseconds = ttlMilliseconds;
+        this.clock = clock;
+        this.expiries = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > NegativeLookupCache.this.maxSize;
+            }
+        };
+    }
+
+    synchronized boolean isMissing(Path path) {
+        Long expiresAt = expiries.get(path.getPath());
+        if (expiresAt == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        if (expiresAt <= clock.getAsLong()) {
+            expiries.remove(path.getPath());
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return true if {@code parent} was found to be missing or to hold no keys, the lookup of a key
+     * below it needs not fall back to reading it
+     */
+    synchronized boolean holdsNoKeys(Path parent) {
+        if (isLive(parent.getPath()) || isLive(parent.getPath() + "/")) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    private boolean isLive(String key) {
+        Long expiresAt = expiries.get(key);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (expiresAt <= clock.getAsLong()) {
+            expiries.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    synchronized long generation() {
+        return generation;
+    }
+
+    synchronized void markMissing(Path path, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        expiries.put(path.getPath(), clock.getAsLong() + ttlMilliseconds);
+    }
+
+    /**
+     * Records that {@code parent} exists but can't hold keys, unless a write invalidated it since {@code generation}.
+     */
+    synchronized void markHoldsNoKeys(Path parent, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        expiries.put(parent.getPath() + "/", clock.getAsLong() + ttlMilliseconds);
+    }
+
+    /**
+     * Forgets the path and its parent, a write to either may make the path resolvable.
+     */
+    synchronized void invalidate(Path path) {
+        generation++;
+        String parent = PathUtil.parentPath(path).getPath();
+        expiries.remove(path.getPath());
+        expiries.remove(path.getPath() + "/");
+        expiries.remove(parent);
+        expiries.remove(parent + "/");
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        expiries.clear();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NegativeLookupCache{" +
+               "size=" + expiries.size() +
+               ", hits=" + hits.get() +
+               ", misses=" + misses.get() +
+               '}';
+    }
+}
@@ -0,0 +1,32 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+/**
+ * Latencies and outcomes of one kind of operation, as published over JMX.
+ * Latencies are in microseconds, since the plugin was configured or last reset.
+ */
+public interface OperationMetricsMXBean {
+
+    long getCount();
+
+    long getSuccessCount();
+
+    long getNotFoundCount();
+
+    long getForbiddenCount();
+
+    long getServerErrorCount();
+
+    long getTimeoutCount();
+
+    long getErrorCount();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+
+    void reset();
+}
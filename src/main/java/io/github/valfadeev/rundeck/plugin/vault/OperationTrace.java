@@ -0,0 +1,177 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonArray;
+import com.bettercloud.vault.json.JsonObject;
+import org.rundeck.storage.api.Path;
+
+/**
+ * Records the Vault requests made on behalf of one storage operation, so that an operation
+ * slower than the configured threshold can be logged with everything it waited for.
+ * The trace of the running operation is kept per thread and carried over to the threads
+ * that read listed keys, see {@link #propagate(Callable)}.
+ * Slow operations are also committed as Java Flight Recorder events where JFR is available.
+ */
+class OperationTrace {
+
+    private static final java.util.logging.Logger log = java.util.logging.Logger.getLogger("vault-storage");
+
+    private static final ThreadLocal<OperationTrace> CURRENT = new ThreadLocal<>();
+    //retry of the Vault call being made on this thread, set by ResilientLogical
+    private static final ThreadLocal<Integer> ATTEMPT = ThreadLocal.withInitial(() -> 0);
+
+    private final String operation;
+    private final Path path;
+    private final long startNanos = System.nanoTime();
+    private final List<Call> calls = new ArrayList<>();
+    //null unless a running JFR recording takes the events
+    private final Object event = FlightRecorderEvents.beginOperation();
+
+    private OperationTrace(String operation, Path path) {
+        this.operation = operation;
+        this.path = path;
+    }
+
+    /**
+     * A Vault request, or a connection opened for one.
+     */
+    static class Call {
+        final String name;
+        final String path;
+        //HTTP status, 0 if no response was received
+        final int status;
+        final int attempt;
+        final long startMicros;
+        final long elapsedMicros;
+        final String thread = Thread.currentThread().getName();
+
+        Call(String name, String path, int status, int attempt, long startMicros, long elapsedMicros) {
+            this.name = name;
+            this.path = path;
+            this.status = status;
+            this.attempt = attempt;
+            this.startMicros = startMicros;
+            this.elapsedMicros = elapsedMicros;
+        }
+    }
+
+    /**
+     * Runs a storage operation, logging its trace if it takes {@code thresholdMilliseconds} or longer.
+     * Not traced when the threshold is 0 or the operation is part of another one.
+     */
+    static <T> T run(String operation, Path path, long thresholdMilliseconds, Supplier<T> call) {
+        if (thresholdMilliseconds <= 0 || CURRENT.get() != null) {
+            return call.get();
+        }
+
+        OperationTrace trace = new OperationTrace(operation, path);
+        CURRENT.set(trace);
+        boolean failed = true;
+        try {
+            T result = call.get();
+            failed = false;
+            return result;
+        } finally {
+            CURRENT.remove();
+            trace.finish(failed, TimeUnit.MILLISECONDS.toNanos(thresholdMilliseconds));
+        }
+    }
+
+    static OperationTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return the task, run as part of the operation traced on the calling thread,
+     * and of the retry the calling thread is making
+     */
+    static <T> Callable<T> propagate(Callable<T> task) {
+        OperationTrace trace = CURRENT.get();
+        if (trace == null) {
+            return task;
+        }
+        int attempt = ATTEMPT.get();
+        return () -> {
+            OperationTrace previous = CURRENT.get();
+            CURRENT.set(trace);
+            ATTEMPT.set(attempt);
+            try {
+                return task.call();
+            } finally {
+                ATTEMPT.set(0);
+                if (previous == null) {
+                    CURRENT.remove();
+                } else {
+                    CURRENT.set(previous);
+                }
+            }
+        };
+    }
+
+    static void setAttempt(int attempt) {
+        ATTEMPT.set(attempt);
+    }
+
+    /**
+     * Records a finished call, on behalf of the operation traced on this thread if any.
+     */
+    static void record(String name, String path, int status, long startNanos) {
+        OperationTrace trace = CURRENT.get();
+        if (trace == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        Call call = new Call(name, path, status, ATTEMPT.get(),
+                TimeUnit.NANOSECONDS.toMicros(startNanos - trace.startNanos),
+                TimeUnit.NANOSECONDS.toMicros(now - startNanos));
+        synchronized (trace.calls) {
+            trace.calls.add(call);
+        }
+    }
+
+    List<Call> calls() {
+        synchronized (calls) {
+            return new ArrayList<>(calls);
+        }
+    }
+
+    private void finish(boolean failed, long thresholdNanos) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (elapsedNanos < thresholdNanos) {
+            return;
+        }
+
+        List<Call> calls = calls();
+        log.warning("Slow Vault storage operation: " + toJson(failed, elapsedNanos, calls));
+        if (event != null) {
+            FlightRecorderEvents.commit(event, operation, path.getPath(), failed, calls);
+        }
+    }
+
+    private JsonObject toJson(boolean failed, long elapsedNanos, List<Call> calls) {
+        JsonArray array = new JsonArray();
+        for (Call call : calls) {
+            array.add(Json.object()
+                    .add("call", call.name)
+                    .add("path", call.path)
+                    .add("status", call.status)
+                    .add("retry", call.attempt)
+                    .add("startMs", call.startMicros / 1000.0)
+                    .add("elapsedMs", call.elapsedMicros / 1000.0)
+                    .add("thread", call.thread));
+        }
+        return Json.object()
+                .add("operation", operation)
+                .add("path", path.getPath())
+                .add("outcome", failed ? "error" : "success")
+                .add("elapsedMs", TimeUnit.NANOSECONDS.toMicros(elapsedNanos) / 1000.0)
+                .add("vaultCalls", calls.size())
+                .add("calls", array);
+    }
+}
@@ -0,0 +1,245 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import com.bettercloud.vault.VaultException;
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+
+/**
+ * Resolves what a path is in Vault (directory, Rundeck key, plain Vault key,
+ * multi-key secret or missing) and remembers it for a short time, so that the
+ * existence checks Rundeck makes before most operations share their Vault calls.
+ * Listing and key lookups are resolved separately and only when needed:
+ * a path can be both a directory and a key. Lookups Vault failed to answer are never remembered.
+ */
+class PathProbe {
+
+    enum Kind {
+        DIRECTORY,
+        RUNDECK_KEY,
+        VAULT_KEY,
+        MULTI_KEY_SECRET,
+        MISSING
+    }
+
+    @FunctionalInterface
+    interface Lister {
+        List<String> list(Path path) throws VaultException;
+    }
+
+    @FunctionalInterface
+    interface Existence {
+        /**
+         * @throws VaultException when Vault fails to answer, the key is then reported missing without remembering it
+         */
+        boolean exists(Path path) throws VaultException;
+    }
+
+    private final Lister lister;
+    private final Function<Path, KeyObject> loader;
+    //null when existence is checked by loading the key
+    private final Existence existence;
+    private final int maxSize;
+    private final long ttlMilliseconds;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    //bumped on every invalidation, so that probes which started before a write don't record stale results
+    private long generation;
+
+    PathProbe(Lister lister, Function<Path, KeyObject> loader, Existence existence,
+              int maxSize, long ttlMilliseconds) {
+        this(lister, loader, existence, maxSize, ttlMilliseconds, System::currentTimeMillis);
+    }
+
+    PathProbe(Lister lister, Function<Path, KeyObject> loader, Existence existence,
+              int maxSize, long ttlMilliseconds, LongSupplier clock) {
+        this.lister = lister;
+        this.loader = loader;
+        this.existence = existence;
+        this.maxSize = maxSize;
+        this.ttlMilliseconds = ttlMilliseconds;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > PathProbe.this.maxSize;
+            }
+        };
+    }
+
+    static Kind kindOf(KeyObject object) {
+        if (object.isError()) {
+            return Kind.MISSING;
+        }
+        if (object.isRundeckObject()) {
+            return Kind.RUNDECK_KEY;
+        }
+        return object.isMultiplesKeys() ? Kind.MULTI_KEY_SECRET : Kind.VAULT_KEY;
+    }
+
+    /**
+     * @return {@link Kind#DIRECTORY} if the path has children, otherwise the kind of key at the path
+     */
+    Kind classify(Path path) {
+        return isDirectory(path) ? Kind.DIRECTORY : keyKind(path);
+    }
+
+    /**
+     * @return true if listing the path returns any entries, false as well if it can't be listed
+     */
+    boolean isDirectory(Path path) {
+        Entry entry = entry(path);
+        if (entry != null && entry.listed != null) {
+            hits.incrementAndGet();
+            return entry.listed;
+        }
+        misses.incrementAndGet();
+
+        long generation = generation();
+        boolean listed;
+        try {
+            listed = !lister.list(path).isEmpty();
+        } catch (VaultException e) {
+            return false;
+        }
+        record(path, generation, e -> e.listed = listed);
+        return listed;
+    }
+
+    Kind keyKind(Path path) {
+        Entry entry = entry(path);
+        if (entry != null && entry.key != null) {
+            hits.incrementAndGet();
+            return entry.key;
+        }
+        misses.incrementAndGet();
+        return kindOf(load(path));
+    }
+
+    boolean keyExists(Path path) {
+        Entry entry = entry(path);
+        if (entry != null && (entry.key != null || entry.exists != null)) {
+            hits.incrementAndGet();
+            return entry.key != null ? entry.key != Kind.MISSING : entry.exists;
+        }
+        if (existence == null) {
+            return keyKind(path) != Kind.MISSING;
+        }
+        misses.incrementAndGet();
+
+        long generation = generation();
+        boolean exists;
+        try {
+            exists = existence.exists(path);
+        } catch (VaultException e) {
+            return false;
+        }
+        record(path, generation, e -> e.exists = exists);
+        return exists;
+    }
+
+    /**
+     * Loads the key at the path, recording its kind for later probes.
+     */
+    KeyObject load(Path path) {
+        long generation = generation();
+        KeyObject object = loader.apply(path);
+        if (object.isUnavailable()) {
+            //not known to be missing
+            return object;
+        }
+        Kind kind = kindOf(object);
+        record(path, generation, e -> e.key = kind);
+        return object;
+    }
+
+    /**
+     * Drops the path itself, its parent (whose listing or multi-key secret may change)
+     * and anything below it.
+     */
+    synchronized void invalidate(Path path) {
+        generation++;
+        String key = path.getPath();
+        String childPrefix = key + "/";
+        entries.remove(key);
+        entries.remove(PathUtil.parentPath(path).getPath());
+
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(childPrefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PathProbe{" +
+               "size=" + entries.size() +
+               ", hits=" + hits.get() +
+               ", misses=" + misses.get() +
+               '}';
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    private synchronized Entry entry(Path path) {
+        Entry entry = entries.get(path.getPath());
+        if (entry != null && entry.expiresAt <= clock.getAsLong()) {
+            entries.remove(path.getPath());
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void record(Path path, long generation, Consumer<Entry> update) {
+        if (generation != this.generation || ttlMilliseconds <= 0) {
+            return;
+        }
+        Entry entry = entry(path);
+        if (entry == null) {
+            entry = new Entry(clock.getAsLong() + ttlMilliseconds);
+            entries.put(path.getPath(), entry);
+        }
+        update.accept(entry);
+    }
+
+    private static class Entry {
+        final long expiresAt;
+        //each part is resolved on its own, null until then
+        volatile Boolean listed;
+        volatile Boolean exists;
+        volatile Kind key;
+
+        Entry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.bettercloud.vault.rest.RestResponse;
+
+/**
+ * HTTP/1.1 client keeping a pool of persistent connections to a single Vault server,
+ * so that TCP and TLS handshakes are paid once per connection instead of once per call.
+ * At most {@code maxIdleConnections} connections are kept open between requests,
+ * and connections idle for longer than {@code idleTimeoutMilliseconds} are closed,
+ * in the background when no request comes to reuse them.
+ */
+class PooledHttpTransport implements VaultTransport {
+
+    private static final String CRLF = "\r\n";
+    //shared by all the pools, it only closes sockets
+    private static final ScheduledExecutorService EVICTION = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("vault-storage-pool"));
+
+    private final String host;
+    private final int port;
+    private final String hostHeader;
+    private final SSLSocketFactory sslSocketFactory;
+    private final boolean verifyHostname;
+    private final int maxIdleConnections;
+    private final long idleTimeoutMilliseconds;
+    private final int connectTimeoutMilliseconds;
+    private final int readTimeoutMilliseconds;
+
+    //most recently used connection first
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private final AtomicLong openedConnections = new AtomicLong();
+    private final ScheduledFuture<?> eviction;
+    private boolean closed;
+
+    /**
+     * @param sslSocketFactory factory for TLS connections, null for plain HTTP addresses
+     */
+    PooledHttpTransport(String address,
+                        SSLSocketFactory sslSocketFactory,
+                        boolean verifyHostname,
+                        int maxIdleConnections,
+                        long idleTimeoutMilliseconds,
+                        int connectTimeoutMilliseconds,
+                        int readTimeoutMilliseconds) throws MalformedURLException {
+        URL url = new URL(address);
+        boolean https = url.getProtocol().equalsIgnoreCase("https");
+        this.host = url.getHost();
+        this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        this.hostHeader = url.getPort() != -1 ? host + ":" + port : host;
+        this.sslSocketFactory = https ? sslSocketFactory : null;
+        this.verifyHostname = verifyHostname;
+        this.maxIdleConnections = maxIdleConnections;
+        this.idleTimeoutMilliseconds = idleTimeoutMilliseconds;
+        this.connectTimeoutMilliseconds = connectTimeoutMilliseconds;
+        this.readTimeoutMilliseconds = readTimeoutMilliseconds;
+
+        if (https && sslSocketFactory == null) {
+            throw new IllegalArgumentException("An SSL socket factory is required for " + address);
+        }
+        long period = Math.max(idleTimeoutMilliseconds / 4, 250);
+        this.eviction = EVICTION.scheduleWithFixedDelay(
+                () -> evict(System.currentTimeMillis() - idleTimeoutMilliseconds), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public RestResponse send(String method, String path, String token, byte[] body) throws IOException {
+        Cancellation.checkNotCancelled();
+        Connection connection = borrow();
+        try {
+            return exchange(connection, method, path, token, body);
+        } catch (IOException e) {
+            boolean cancelled = !Cancellation.detach();
+            connection.close();
+            //a write may have reached Vault before the connection failed, it must not be sent twice
+            if (!connection.reused || connection.responseStarted || !isIdempotent(method) || cancelled) {
+                throw e;
+            }
+        }
+
+        //the server closed the pooled connection while it was idle, try once more on a new one
+        Connection fresh = connect();
+        try {
+            return exchange(fresh, method, path, token, body);
+        } catch (IOException e) {
+            Cancellation.detach();
+            fresh.close();
+            throw e;
+        }
+    }
+
+    private static boolean isIdempotent(String method) {
+        return method.equals("GET") || method.equals("HEAD");
+    }
+
+    /**
+     * @return number of connections opened so far, each of them costing a handshake
+     */
+    long getOpenedConnections() {
+        return openedConnections.get();
+    }
+
+    synchronized int getIdleConnections() {
+        return idle.size();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        eviction.cancel(false);
+        evict(Long.MAX_VALUE);
+    }
+
+    private Connection borrow() throws IOException {
+        long now = System.currentTimeMillis();
+        evict(now - idleTimeoutMilliseconds);
+        synchronized (this) {
+            Connection connection = idle.pollFirst();
+            if (connection != null) {
+                return connection;
+            }
+        }
+        return connect();
+    }
+
+    private void release(Connection connection) {
+        synchronized (this) {
+            if (!closed && idle.size() < maxIdleConnections) {
+                connection.lastUsed = System.currentTimeMillis();
+                connection.reused = true;
+                connection.responseStarted = false;
+                idle.addFirst(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    //closes idle connections last used before the given time, oldest first
+    private void evict(long usedBefore) {
+        while (true) {
+            Connection connection;
+            synchronized (this) {
+                connection = idle.peekLast();
+                if (connection == null || connection.lastUsed >= usedBefore) {
+                    return;
+                }
+                idle.pollLast();
+            }
+            connection.close();
+        }
+    }
+
+    private Connection connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(readTimeoutMilliseconds);
+            long start = System.nanoTime();
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMilliseconds);
+            OperationTrace.record("connect", host + ":" + port, 0, start);
+
+            if (sslSocketFactory != null) {
+                start = System.nanoTime();
+                SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, true);
+                if (verifyHostname) {
+                    SSLParameters parameters = sslSocket.getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    sslSocket.setSSLParameters(parameters);
+                }
+                sslSocket.startHandshake();
+                OperationTrace.record("connect.tls", host + ":" + port, 0, start);
+                socket = sslSocket;
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        openedConnections.incrementAndGet();
+        return new Connection(socket);
+    }
+
+    private RestResponse exchange(Connection connection,
+                                  String method,
+                                  String path,
+                                  String token,
+                                  byte[] body) throws IOException {
+        StringBuilder request = new StringBuilder(256)
+                .append(method).append(" /v1/").append(path).append(" HTTP/1.1").append(CRLF)
+                .append("Host: ").append(hostHeader).append(CRLF)
+                .append("Accept: application/json").append(CRLF);
+        if (token != null) {
+            request.append("X-Vault-Token: ").append(token).append(CRLF);
+        }
+        if (body != null) {
+            request.append("Content-Type: application/json; charset=utf-8").append(CRLF);
+        }
+        request.append("Content-Length: ").append(body != null ? body.length : 0).append(CRLF)
+                .append(CRLF);
+
+        Cancellation.attach(connection::close);
+        connection.out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (body != null) {
+            connection.out.write(body);
+        }
+        connection.out.flush();
+
+        int first = connection.in.read();
+        if (first == -1) {
+            throw new EOFException("Connection closed by Vault before a response was received");
+        }
+        connection.responseStarted = true;
+
+        String statusLine = (char) first + readLine(connection.in);
+        int statusCode;
+        boolean keepAlive;
+        String contentType;
+        long contentLength;
+        boolean chunked;
+        while (true) {
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed HTTP status line: " + statusLine);
+            }
+            statusCode = Integer.parseInt(status[1]);
+            keepAlive = !status[0].equals("HTTP/1.0");
+            contentType = null;
+            contentLength = -1;
+            chunked = false;
+            String line;
+            while (!(line = readLine(connection.in)).isEmpty()) {
+                int separator = line.indexOf(':');
+                if (separator <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, separator).trim().toLowerCase(Locale.ENGLISH);
+                String value = line.substring(separator + 1).trim();
+                switch (name) {
+                    case "content-type":
+                        contentType = value;
+                        break;
+                    case "content-length":
+                        contentLength = Long.parseLong(value);
+                        break;
+                    case "transfer-encoding":
+                        chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+                        break;
+                    case "connection":
+                        keepAlive = !value.equalsIgnoreCase("close")
+                                && (keepAlive || value.equalsIgnoreCase("keep-alive"));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (statusCode == 101) {
+                throw new IOException("Unexpected protocol switch by Vault: " + statusLine);
+            }
+            if (statusCode / 100 != 1) {
+                break;
+            }
+            //an interim response, such as 100 Continue, the final one follows
+            statusLine = readLine(connection.in);
+        }
+
+        byte[] responseBody;
+        if (method.equals("HEAD") || statusCode == 204 || statusCode == 304) {
+            responseBody = new byte[0];
+        } else if (chunked) {
+            responseBody = readChunked(connection.in);
+        } else if (contentLength >= 0) {
+            responseBody = readFully(connection.in, contentLength);
+        } else {
+            responseBody = readToEnd(connection.in);
+            keepAlive = false;
+        }
+
+        //a connection closed by a cancelled call must not go back to the pool
+        boolean intact = Cancellation.detach();
+        if (keepAlive && intact) {
+            release(connection);
+        } else {
+            connection.close();
+        }
+
+        return new RestResponse(statusCode, contentType, responseBody);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        throw new EOFException("Connection closed while reading the response headers");
+    }
+
+    private static byte[] readFully(InputStream in, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Response body too large: " + length);
+        }
+        byte[] data = new byte[(int) length];
+        int offset = 0;
+        while (offset < data.length) {
+            int read = in.read(data, offset, data.length - offset);
+            if (read == -1) {
+                throw new EOFException("Connection closed while reading the response body");
+            }
+            offset += read;
+        }
+        return data;
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine(in);
+            int extension = sizeLine.indexOf(';');
+            int size = Integer.parseInt((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+            if (size == 0) {
+                //skip trailers
+                while (!readLine(in).isEmpty()) {
+                }
+                return data.toByteArray();
+            }
+            data.write(readFully(in, size));
+            readLine(in);
+        }
+    }
+
+    private static byte[] readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            data.write(buffer, 0, read);
+        }
+        return data.toByteArray();
+    }
+
+    private static class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long lastUsed;
+        boolean reused;
+        boolean responseStarted;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
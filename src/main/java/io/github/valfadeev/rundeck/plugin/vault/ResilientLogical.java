@@ -0,0 +1,172 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.net.ConnectException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.LogicalResponse;
+
+/**
+ * Retries failed Vault calls with exponential backoff and full jitter, within a
+ * {@link RetryBudget}, and fails fast through a {@link CircuitBreaker} while Vault is down.
+ * Only network errors, 429 and 5xx responses are retried and counted as failures;
+ * any other response shows that Vault is up. A call interrupted by its caller is never retried,
+ * nor one refused by the {@link ConcurrencyLimiter} below: it already waited its turn and never reached Vault.
+ * Writes and deletes are only retried when Vault can't have applied them: a 429, a 503 or a connection
+ * that was never made. Without a response they may have been applied, and a check-and-set write sent
+ * again would fail although it succeeded.
+ */
+class ResilientLogical extends ForwardingLogical {
+
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int SERVICE_UNAVAILABLE = 503;
+
+    private final int maxRetries;
+    private final long baseIntervalMilliseconds;
+    private final long maxIntervalMilliseconds;
+    private final RetryBudget retryBudget;
+    //null when the circuit breaker is disabled
+    private final CircuitBreaker circuitBreaker;
+
+    ResilientLogical(Logical delegate,
+                     int maxRetries,
+                     long baseIntervalMilliseconds,
+                     long maxIntervalMilliseconds,
+                     RetryBudget retryBudget,
+                     CircuitBreaker circuitBreaker) {
+        super(delegate);
+        this.maxRetries = maxRetries;
+        this.baseIntervalMilliseconds = baseIntervalMilliseconds;
+        this.maxIntervalMilliseconds = maxIntervalMilliseconds;
+        this.retryBudget = retryBudget;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @Override
+    public LogicalResponse read(String path) throws VaultException {
+        return call(() -> delegate.read(path), maxRetries, true);
+    }
+
+    @Override
+    public LogicalResponse read(String path, boolean shouldRetry) throws VaultException {
+        //not retried, still failing fast while the breaker is open
+        return shouldRetry ? read(path) : call(() -> delegate.read(path, false), 0, true);
+    }
+
+    @Override
+    public LogicalResponse write(String path, Map<String, Object> nameValuePairs) throws VaultException {
+        return call(() -> delegate.write(path, nameValuePairs), maxRetries, false);
+    }
+
+    @Override
+    public List<String> list(String path) throws VaultException {
+        return call(() -> delegate.list(path), maxRetries, true);
+    }
+
+    @Override
+    public LogicalResponse delete(String path) throws VaultException {
+        return call(() -> delegate.delete(path), maxRetries, false);
+    }
+
+    static boolean isRetryable(VaultException e) {
+        int status = e.getHttpStatusCode();
+        //0 means the request failed before a response was received
+        return status == 0 || status == TOO_MANY_REQUESTS || status >= 500;
+    }
+
+    /**
+     * @return true if Vault refused the request or it never reached Vault, so that it was not applied
+     */
+    static boolean isNotApplied(VaultException e) {
+        int status = e.getHttpStatusCode();
+        if (status == TOO_MANY_REQUESTS || status == SERVICE_UNAVAILABLE) {
+            return true;
+        }
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the call failed because the calling thread was interrupted
+     */
+    static boolean isInterruption(VaultException e) {
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof ClosedByInterruptException) {
+                return true;
+            }
+        }
+        return Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * @param idempotent whether the call may be sent again after any retryable error, not only when it was not applied
+     */
+    private <T> T call(VaultCall<T> call, int maxRetries, boolean idempotent) throws VaultException {
+        retryBudget.onCall();
+        int attempt = 0;
+        while (true) {
+            if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+                throw new VaultException("Vault is unavailable, circuit breaker is open", SERVICE_UNAVAILABLE);
+            }
+
+            OperationTrace.setAttempt(attempt);
+            try {
+                T result = call.execute();
+                if (circuitBreaker != null) {
+                    circuitBreaker.onSuccess();
+                }
+                return result;
+            } catch (VaultException e) {
+                if (e.getHttpStatusCode() == 0 && isInterruption(e)) {
+                    //given up by the caller, who must still see the interrupt
+                    Thread.currentThread().interrupt();
+                    if (circuitBreaker != null) {
+                        circuitBreaker.onAbandoned();
+                    }
+                    throw e;
+                }
+                if (e instanceof ConcurrencyLimiter.Rejection) {
+                    if (circuitBreaker != null) {
+                        circuitBreaker.onAbandoned();
+                    }
+                    throw e;
+                }
+                if (!isRetryable(e)) {
+                    if (circuitBreaker != null) {
+                        circuitBreaker.onSuccess();
+                    }
+                    throw e;
+                }
+                if (circuitBreaker != null) {
+                    circuitBreaker.onFailure();
+                }
+                if (attempt >= maxRetries || !(idempotent || isNotApplied(e)) || !retryBudget.tryRetry()) {
+                    throw e;
+                }
+            } finally {
+                OperationTrace.setAttempt(0);
+            }
+
+            backoff(attempt++);
+        }
+    }
+
+    private void backoff(int attempt) throws VaultException {
+        long ceiling = Math.min(maxIntervalMilliseconds, baseIntervalMilliseconds << Math.min(attempt, 30));
+        long delay = ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VaultException(e);
+        }
+    }
+}
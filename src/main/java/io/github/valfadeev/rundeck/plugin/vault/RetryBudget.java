@@ -0,0 +1,31 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+/**
+ * Limits retries to a fraction of the calls made, so that retrying can't multiply
+ * the load on an overloaded Vault server. Every call deposits {@code ratio} tokens,
+ * every retry spends one; the balance is capped to allow short bursts only.
+ */
+class RetryBudget {
+
+    private final double ratio;
+    private final double maxBalance;
+    private double balance;
+
+    RetryBudget(double ratio, double maxBalance) {
+        this.ratio = ratio;
+        this.maxBalance = maxBalance;
+        this.balance = maxBalance;
+    }
+
+    synchronized void onCall() {
+        balance = Math.min(maxBalance, balance + ratio);
+    }
+
+    synchronized boolean tryRetry() {
+        if (balance < 1) {
+            return false;
+        }
+        balance -= 1;
+        return true;
+    }
+}
@@ -0,0 +1,228 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.bettercloud.vault.api.Logical;
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+
+import static io.github.valfadeev.rundeck.plugin.vault.ConfigOptions.*;
+
+/**
+ * Maps Rundeck key paths to the Vault mount and prefix they are stored under, so that
+ * the keys of busy projects can be spread across several secret engines.
+ * Routes are configured as {@code route.<name>.path}, with any of the {@code secretBackend},
+ * {@code prefix}, {@code engineVersion}, {@code cacheEnabled}, {@code cacheTtlMilliseconds} and
+ * {@code cacheMaxSize} options given as {@code route.<name>.<option>}, defaulting to the plugin's own.
+ * A path is stored by the route with the longest matching path, or by the default route of the
+ * plugin's own options. The whole Rundeck path is kept below the route's prefix.
+ */
+class RoutingTable {
+
+    static final String DEFAULT_ROUTE = "default";
+
+    //longest path first, the default route last
+    private final List<Route> routes;
+
+    private RoutingTable(List<Route> routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * Where the keys below a Rundeck path are stored.
+     */
+    static class Route {
+        final String name;
+        //empty for the default route
+        final String path;
+        final String secretBackend;
+        final String vaultPrefix;
+        final Logical vault;
+        //same client as vault when the secret backend is a KV version 2 engine, null otherwise
+        final KvV2Logical kvV2;
+        //null when caching is disabled
+        final KeyObjectCache cache;
+
+        Route(String name, String path, String secretBackend, String vaultPrefix,
+              Logical vault, KvV2Logical kvV2, KeyObjectCache cache) {
+            this.name = name;
+            this.path = path;
+            this.secretBackend = secretBackend;
+            this.vaultPrefix = vaultPrefix;
+            this.vault = vault;
+            this.kvV2 = kvV2;
+            this.cache = cache;
+        }
+
+        boolean covers(Path rundeckPath) {
+            String candidate = rundeckPath.getPath();
+            return path.isEmpty() || candidate.equals(path) || candidate.startsWith(path + "/");
+        }
+
+        String vaultPath(Path rundeckPath) {
+            return VaultStoragePlugin.getVaultPath(rundeckPath.getPath(), secretBackend, vaultPrefix);
+        }
+
+        @Override
+        public String toString() {
+            return name + "{" + (path.isEmpty() ? "*" : path) + " -> " + secretBackend + "/" + vaultPrefix + "}";
+        }
+    }
+
+    /**
+     * Builds the default route and the configured ones, each making its calls through {@code client}.
+     */
+    static RoutingTable configure(Properties configuration, Logical client) throws ConfigurationException {
+        Map<String, String> paths = new LinkedHashMap<>();
+        for (String property : new TreeSet<>(configuration.stringPropertyNames())) {
+            if (!property.startsWith(VAULT_ROUTE_PREFIX) || !property.endsWith("." + VAULT_ROUTE_PATH)) {
+                continue;
+            }
+            String name = property.substring(VAULT_ROUTE_PREFIX.length(),
+                    property.length() - VAULT_ROUTE_PATH.length() - 1);
+            String path = PathUtil.asPath(configuration.getProperty(property).trim()).getPath();
+            if (name.isEmpty() || name.contains(".") || name.equals(DEFAULT_ROUTE)) {
+                throw new ConfigurationException("Invalid route name: " + property);
+            }
+            if (path.isEmpty()) {
+                throw new ConfigurationException("Route " + name + " needs a key path, e.g. keys/project/name");
+            }
+            if (paths.containsValue(path)) {
+                throw new ConfigurationException("Key path " + path + " is routed twice");
+            }
+            paths.put(name, path);
+        }
+
+        List<Route> routes = new ArrayList<>();
+        for (Map.Entry<String, String> route : paths.entrySet()) {
+            routes.add(route(configuration, route.getKey(), route.getValue(), client));
+        }
+        routes.sort((a, b) -> b.path.length() - a.path.length());
+        routes.add(route(configuration, DEFAULT_ROUTE, "", client));
+        return new RoutingTable(routes);
+    }
+
+    private static Route route(Properties configuration,
+                               String name,
+                               String path,
+                               Logical client) throws ConfigurationException {
+        String secretBackend = option(configuration, name, VAULT_SECRET_BACKEND, null);
+        String vaultPrefix = option(configuration, name, VAULT_PREFIX, null);
+
+        String engineVersion = option(configuration, name, VAULT_ENGINE_VERSION, VaultStoragePlugin.ENGINE_VERSION_1);
+        boolean versioned = engineVersion.equals(VaultStoragePlugin.ENGINE_VERSION_2);
+        if(!versioned && !engineVersion.equals(VaultStoragePlugin.ENGINE_VERSION_1)){
+            throw new ConfigurationException("Unsupported KV engine version: " + engineVersion);
+        }
+
+        Logical vault = client;
+        if(client instanceof ShardedLogical){
+            //keys are sharded by their Rundeck path, so the data and metadata of a version 2 secret stay together
+            vault = ((ShardedLogical) client).keyedBy(
+                    vaultPath -> rundeckPath(vaultPath, secretBackend, vaultPrefix, versioned));
+        }
+
+        KvV2Logical kvV2 = null;
+        if(versioned){
+            //the driver can't send the nested JSON objects of version 2 writes
+            if(VaultClientProvider.HTTP_TRANSPORT_DRIVER.equals(configuration.getProperty(VAULT_HTTP_TRANSPORT))){
+                throw new ConfigurationException("KV engine version 2 is not supported by the 'driver' HTTP transport");
+            }
+            kvV2 = new KvV2Logical(vault, secretBackend,
+                    Boolean.parseBoolean(option(configuration, name, VAULT_CREATE_ONLY_IF_MISSING, "false")));
+            vault = kvV2;
+        }
+
+        KeyObjectCache cache = null;
+        if(Boolean.parseBoolean(option(configuration, name, VAULT_CACHE_ENABLED, "false"))){
+            cache = new KeyObjectCache(
+                    Integer.parseInt(option(configuration, name, VAULT_CACHE_MAX_SIZE, "1000")),
+                    Long.parseLong(option(configuration, name, VAULT_CACHE_TTL_MILLISECONDS, "30000")));
+        }
+
+        return new Route(name, path, secretBackend, vaultPrefix, vault, kvV2, cache);
+    }
+
+    /**
+     * @return the Rundeck path a call to {@code vaultPath} is made for, the path itself if it is not below the prefix
+     */
+    static String rundeckPath(String vaultPath, String secretBackend, String vaultPrefix, boolean versioned) {
+        String path = vaultPath;
+        String mount = secretBackend + "/";
+        if (!path.startsWith(mount)) {
+            return vaultPath;
+        }
+        path = path.substring(mount.length());
+        if (versioned) {
+            for (String endpoint : new String[]{"data/", "metadata/"}) {
+                if (path.startsWith(endpoint)) {
+                    path = path.substring(endpoint.length());
+                    break;
+                }
+            }
+        }
+        String prefix = vaultPrefix + "/";
+        return path.startsWith(prefix) ? path.substring(prefix.length()) : vaultPath;
+    }
+
+    //the route's own value of the option, or the plugin's
+    private static String option(Properties configuration, String route, String option, String defaultValue) {
+        String value = route.equals(DEFAULT_ROUTE)
+                ? null
+                : configuration.getProperty(VAULT_ROUTE_PREFIX + route + "." + option);
+        return value != null ? value : configuration.getProperty(option, defaultValue);
+    }
+
+    Route routeOf(Path path) {
+        for (Route route : routes) {
+            if (route.covers(path)) {
+                return route;
+            }
+        }
+        throw new IllegalStateException("no default route");
+    }
+
+    Route getDefault() {
+        return routes.get(routes.size() - 1);
+    }
+
+    /**
+     * @return the routes, longest path first and the default route last
+     */
+    List<Route> getRoutes() {
+        return Collections.unmodifiableList(routes);
+    }
+
+    /**
+     * @return the directories directly below {@code directory} that lead to the path of a route,
+     * in the form Vault lists them, e.g. {@code A/} for a route of {@code keys/project/A}
+     * listed from {@code keys/project}
+     */
+    Set<String> directoriesBelow(Path directory) {
+        String parent = directory.getPath();
+        Set<String> directories = new TreeSet<>();
+        for (Route route : routes) {
+            String relative;
+            if (route.path.isEmpty() || route.path.equals(parent)) {
+                continue;
+            } else if (parent.isEmpty()) {
+                relative = route.path;
+            } else if (route.path.startsWith(parent + "/")) {
+                relative = route.path.substring(parent.length() + 1);
+            } else {
+                continue;
+            }
+            int separator = relative.indexOf('/');
+            directories.add((separator < 0 ? relative : relative.substring(0, separator)) + "/");
+        }
+        return directories;
+    }
+}
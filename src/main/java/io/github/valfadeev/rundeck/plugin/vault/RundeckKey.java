@@ -6,14 +6,11 @@ import com.bettercloud.vault.response.LogicalResponse;
 import com.dtolabs.rundeck.core.storage.ResourceMeta;
 import com.dtolabs.rundeck.core.storage.ResourceMetaBuilder;
 import com.dtolabs.rundeck.core.storage.StorageUtil;
+import org.rundeck.storage.api.HasInputStream;
 import org.rundeck.storage.api.Path;
-import org.rundeck.storage.api.Resource;
-import org.rundeck.storage.api.StorageException;
 import org.rundeck.storage.impl.ResourceBase;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -35,7 +32,14 @@ public class RundeckKey extends KeyObject {
         super(path);
     }
 
-    public Map<String, Object> saveResource(ResourceMeta content, String event, ByteArrayOutputStream baoStream){
+    public RundeckKey(final Path path, Map<String, String> payload) {
+        super(path);
+        this.payload = payload;
+        this.rundeckObject=true;
+        this.multiplesKeys=false;
+    }
+
+    public Map<String, Object> saveResource(ResourceMeta content, String event, ContentCodec.Buffer baoStream){
 
         Map<String, Object> payload = new HashMap<>();
 
@@ -44,36 +48,38 @@ public class RundeckKey extends KeyObject {
         for (String k : meta.keySet()) {
             payload.put(k, meta.get(k));
         }
+        //set below from the content actually written
+        payload.remove(ContentCodec.ENCODING_META);
 
         if (event.equals("update")) {
-            DateFormat df = new SimpleDateFormat(StorageUtil.ISO_8601_FORMAT, Locale.ENGLISH);
-            Resource<ResourceMeta> existing = this.loadResource();
-            payload.put(
-                    StorageUtil.RES_META_RUNDECK_CONTENT_CREATION_TIME,
-                    df.format(existing.getContents().getCreationTime())
-            );
+            //keep the creation time of the stored key, as written when it was created
+            String creationTime = this.getPayload().get(StorageUtil.RES_META_RUNDECK_CONTENT_CREATION_TIME);
+            if (creationTime != null) {
+                payload.put(StorageUtil.RES_META_RUNDECK_CONTENT_CREATION_TIME, creationTime);
+            }
         }
 
-        try {
-            String data = baoStream.toString("UTF-8");
-            payload.put(VaultStoragePlugin.VAULT_STORAGE_KEY, data);
-        } catch (UnsupportedEncodingException e) {
-            throw new StorageException(
-                    String.format(
-                            "Encountered unsupported encoding error: %s",
-                            e.getMessage()
-                    ),
-                    StorageException.Event.valueOf(event.toUpperCase()),
-                    this.getPath()
-            );
+        ContentCodec.Encoded data = ContentCodec.encode(baoStream);
+        payload.put(VaultStoragePlugin.VAULT_STORAGE_KEY, data.value);
+        if (data.encoding != null) {
+            payload.put(ContentCodec.ENCODING_META, data.encoding);
         }
 
         return payload;
     }
 
     ResourceBase loadResource(){
+        return loadResource(null);
+    }
+
+    InputStream openContent(){
+        return ContentCodec.decode(
+                this.getPayload().get(VaultStoragePlugin.VAULT_STORAGE_KEY),
+                this.getPayload().get(ContentCodec.ENCODING_META));
+    }
+
+    ResourceBase loadResource(HasInputStream content){
         Map<String, String> payload = this.getPayload();
-        String data = payload.get(VaultStoragePlugin.VAULT_STORAGE_KEY);
 
         ResourceMetaBuilder builder = new ResourceMetaBuilder();
         builder.setContentLength(Long.parseLong(payload.get(StorageUtil.RES_META_RUNDECK_CONTENT_LENGTH)));
@@ -99,10 +105,16 @@ public class RundeckKey extends KeyObject {
             builder.setMeta(VaultStoragePlugin.RUNDECK_DATA_TYPE, "password");
         }
 
-        ByteArrayInputStream baiStream = new ByteArrayInputStream(data.getBytes());
+        if (content == null) {
+            return new ResourceBase<>(
+                    this.getPath(),
+                    StorageUtil.withStream(openContent(), builder.getResourceMeta()),
+                    false
+            );
+        }
         return new ResourceBase<>(
                 this.getPath(),
-                StorageUtil.withStream(baiStream, builder.getResourceMeta()),
+                StorageUtil.withStream(content, builder.getResourceMeta()),
                 false
         );
     }
@@ -0,0 +1,347 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonObject;
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+
+/**
+ * Moves keys to the shard they belong to after shards were added or removed.
+ * Each shard is crawled in the background, and only the keys the {@link ShardRing} now assigns
+ * to another shard are copied there and deleted from where they were; every other key is listed but
+ * never read. The keys are moved while {@link ShardedLogical} is rebalancing, so that
+ * they are found wherever they are until the move is finished.
+ * <p>
+ * Keys are only moved from KV version 2 engines: a copy is written with a check-and-set version of 0,
+ * so a key written to its shard since the ring changed is kept and the old copy is dropped. KV version 1
+ * has no such check, its keys are left where they are. A single Rundeck server moves the keys, the one
+ * holding the {@value #LOCK_NAME} secret of the first shard; the others only look keys up on every shard.
+ * A lock left by a server that stopped expires after {@link #LOCK_TTL_MILLISECONDS}.
+ */
+class ShardRebalancer {
+
+    //a completed rebalancing logs its summary at info level, progress in between every this many keys
+    private static final int PROGRESS_INTERVAL = 500;
+    //key path of the lock, below the prefix of the first KV version 2 route
+    static final String LOCK_NAME = ".shard-rebalancing";
+    //renewed every third of it while keys are moved
+    static final long LOCK_TTL_MILLISECONDS = 60000;
+    private static final int CAS_MISMATCH = 400;
+
+    java.util.logging.Logger log = java.util.logging.Logger.getLogger("vault-storage");
+
+    private final RoutingTable routes;
+    private final ShardedLogical sharded;
+    private final LongSupplier clock;
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new DaemonThreadFactory("vault-storage-rebalance"));
+
+    private final AtomicInteger keys = new AtomicInteger();
+    private final AtomicInteger moved = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile long startedAt;
+    private volatile boolean mover;
+    //set by the rebalancing thread only
+    private Lock lock;
+
+    ShardRebalancer(RoutingTable routes, ShardedLogical sharded) {
+        this(routes, sharded, System::currentTimeMillis);
+    }
+
+    ShardRebalancer(RoutingTable routes, ShardedLogical sharded, LongSupplier clock) {
+        this.routes = routes;
+        this.sharded = sharded;
+        this.clock = clock;
+    }
+
+    /**
+     * Starts moving keys and returns immediately.
+     */
+    void start() {
+        startedAt = clock.getAsLong();
+        log.info("Vault shard rebalancing started for shards " + sharded.getRing().getShards());
+        try {
+            executor.execute(this::run);
+        } catch (RejectedExecutionException e) {
+            done.countDown();
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * @return number of keys listed on all shards
+     */
+    int getKeyCount() {
+        return keys.get();
+    }
+
+    int getMovedCount() {
+        return moved.get();
+    }
+
+    int getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @return whether this server was elected to move the keys
+     */
+    boolean isMover() {
+        return mover;
+    }
+
+    private void run() {
+        try {
+            List<RoutingTable.Route> movable = new ArrayList<>();
+            for (RoutingTable.Route route : routes.getRoutes()) {
+                if (route.kvV2 != null) {
+                    movable.add(route);
+                } else {
+                    log.warning("Vault shard rebalancing skips route " + route
+                                + ": KV version 1 can't move a key without overwriting a newer one");
+                }
+            }
+            if (movable.isEmpty()) {
+                return;
+            }
+
+            RoutingTable.Route lockRoute = movable.get(0);
+            lock = new Lock(client(lockRoute, sharded.getShards().values().iterator().next()),
+                    lockRoute.vaultPath(PathUtil.asPath(LOCK_NAME)));
+            try {
+                if (!lock.acquire()) {
+                    return;
+                }
+            } catch (VaultException e) {
+                errors.incrementAndGet();
+                log.warning("Vault shard rebalancing could not take its lock: " + e.getMessage());
+                return;
+            }
+            mover = true;
+
+            try {
+                for (RoutingTable.Route route : movable) {
+                    for (Map.Entry<String, Logical> shard : sharded.getShards().entrySet()) {
+                        crawl(route, shard.getKey(), client(route, shard.getValue()), PathUtil.asPath(route.path));
+                        if (Thread.currentThread().isInterrupted() || lock.isLost()) {
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+            log.info(String.format("Vault shard rebalancing finished in %d ms: %d keys, %d moved, %d errors",
+                    clock.getAsLong() - startedAt, keys.get(), moved.get(), errors.get()));
+        } finally {
+            executor.shutdown();
+            done.countDown();
+        }
+    }
+
+    //the route's view of a single shard, without the rebalancing lookups of the sharded client
+    private static KvV2Logical client(RoutingTable.Route route, Logical shard) {
+        return new KvV2Logical(shard, route.secretBackend);
+    }
+
+    private void crawl(RoutingTable.Route route, String shard, KvV2Logical client, Path directory) {
+        List<String> items;
+        try {
+            items = client.list(route.vaultPath(directory));
+        } catch (VaultException e) {
+            errors.incrementAndGet();
+            log.warning("shard rebalancing could not list " + directory + " on shard " + shard + ": " + e.getMessage());
+            return;
+        }
+
+        for (String item : items) {
+            if (Thread.currentThread().isInterrupted() || !lock.renew()) {
+                return;
+            }
+            Path itemPath = PathUtil.appendPath(directory, item);
+            if (routes.routeOf(itemPath) != route || itemPath.getPath().equals(LOCK_NAME)) {
+                //stored under another route, moved when that route is crawled
+                continue;
+            }
+            if (item.endsWith("/")) {
+                crawl(route, shard, client, itemPath);
+                continue;
+            }
+
+            int listed = keys.incrementAndGet();
+            String owner = sharded.getRing().shardOf(itemPath.getPath());
+            if (!owner.equals(shard)) {
+                move(route, itemPath, shard, client, owner);
+            }
+            if (listed % PROGRESS_INTERVAL == 0) {
+                log.info(String.format("Vault shard rebalancing: %d keys listed, %d moved in %d ms",
+                        listed, moved.get(), clock.getAsLong() - startedAt));
+            }
+        }
+    }
+
+    private void move(RoutingTable.Route route, Path key, String from, KvV2Logical source, String to) {
+        String vaultPath = route.vaultPath(key);
+        KvV2Logical target = client(route, sharded.getShards().get(to));
+        try {
+            KvV2Logical.Response secret = source.read(vaultPath);
+            try {
+                //only if it is still missing, a key written meanwhile is newer than the one moved
+                target.write(vaultPath, rawData(secret), Long.valueOf(0));
+            } catch (VaultException e) {
+                if (e.getHttpStatusCode() != CAS_MISMATCH || !target.exists(vaultPath)) {
+                    throw e;
+                }
+            }
+            source.delete(vaultPath);
+            moved.incrementAndGet();
+            log.fine("moved " + key + " from shard " + from + " to shard " + to);
+        } catch (VaultException e) {
+            errors.incrementAndGet();
+            log.warning("shard rebalancing could not move " + key + " from shard " + from
+                        + " to shard " + to + ": " + e.getMessage());
+        }
+    }
+
+    //the secret as Vault returned it, numbers and nested values included
+    private static Map<String, Object> rawData(KvV2Logical.Response secret) {
+        JsonObject data = Json.parse(new String(secret.getRestResponse().getBody(), StandardCharsets.UTF_8))
+                .asObject().get("data").asObject();
+        Map<String, Object> copy = new LinkedHashMap<>();
+        for (JsonObject.Member member : data) {
+            copy.put(member.getName(), member.getValue());
+        }
+        return copy;
+    }
+
+    /**
+     * The secret naming the server moving the keys and until when, written with check-and-set
+     * so that two servers never both take it.
+     */
+    private class Lock {
+        private final KvV2Logical client;
+        private final String path;
+        private long version;
+        private long renewedAt;
+        private boolean lost;
+
+        Lock(KvV2Logical client, String path) {
+            this.client = client;
+            this.path = path;
+        }
+
+        /**
+         * @return false if another server holds the lock
+         */
+        boolean acquire() throws VaultException {
+            if (write(0)) {
+                return true;
+            }
+            KvV2Logical.Response current;
+            try {
+                current = client.read(path);
+            } catch (VaultException e) {
+                if (e.getHttpStatusCode() != 404) {
+                    throw e;
+                }
+                //released in the meantime, but its metadata remains
+                return false;
+            }
+            String holder = current.getData().get("owner");
+            long expires = Long.parseLong(current.getData().getOrDefault("expires", "0"));
+            if (expires > clock.getAsLong()) {
+                log.info("Vault shards are being rebalanced by " + holder + ", no key is moved by this server");
+                return false;
+            }
+            log.info("Vault shard rebalancing lock of " + holder + " expired, taking over");
+            return write(current.getVersion());
+        }
+
+        /**
+         * Extends the lock once a third of it has passed.
+         *
+         * @return false if it was lost, taken over by another server after it expired
+         */
+        boolean renew() {
+            if (lost) {
+                return false;
+            }
+            if (clock.getAsLong() - renewedAt < LOCK_TTL_MILLISECONDS / 3) {
+                return true;
+            }
+            try {
+                if (!write(version)) {
+                    lost = true;
+                    log.warning("Vault shard rebalancing lock taken over by another server, stopping");
+                }
+            } catch (VaultException e) {
+                //tried again with the next key, it is only lost once it expires
+                log.warning("Vault shard rebalancing could not renew its lock: " + e.getMessage());
+            }
+            return !lost;
+        }
+
+        boolean isLost() {
+            return lost;
+        }
+
+        void release() {
+            if (lost) {
+                return;
+            }
+            try {
+                client.delete(path);
+            } catch (VaultException e) {
+                log.warning("Vault shard rebalancing could not release its lock, it expires in "
+                            + LOCK_TTL_MILLISECONDS + " ms: " + e.getMessage());
+            }
+        }
+
+        //false if the lock is not at the given version any more
+        private boolean write(long casVersion) throws VaultException {
+            long now = clock.getAsLong();
+            Map<String, Object> lock = new HashMap<>();
+            lock.put("owner", owner);
+            lock.put("expires", now + LOCK_TTL_MILLISECONDS);
+            try {
+                Long written = client.write(path, lock, casVersion).getVersion();
+                version = written != null ? written : casVersion + 1;
+                renewedAt = now;
+                return true;
+            } catch (VaultException e) {
+                if (e.getHttpStatusCode() == CAS_MISMATCH) {
+                    return false;
+                }
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring assigning key paths to shards. Every shard is placed on the ring
+ * {@code virtualNodes} times, a path belongs to the shard found next on the ring after the hash of the path.
+ * Adding a shard only takes over paths from the others, about one in the new number of shards,
+ * and the hash is the same on every JVM so that all Rundeck servers agree on where a key is stored.
+ */
+class ShardRing {
+
+    private final List<String> shards;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    ShardRing(List<String> shards, int virtualNodes) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Shards need at least one virtual node, got " + virtualNodes);
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        for (String shard : shards) {
+            for (int i = 0; i < virtualNodes; i++) {
+                //on a collision the smaller name keeps the point, the ring doesn't depend on the order of the shards
+                ring.merge(hash(shard + "#" + i), shard, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+    }
+
+    /**
+     * @return the shard storing {@code key}
+     */
+    String shardOf(String key) {
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * @return the shards, in the order they were configured
+     */
+    List<String> getShards() {
+        return shards;
+    }
+
+    //64 bit FNV-1a, with the murmur3 finalizer so that similar paths land far apart
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,228 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.LogicalResponse;
+
+/**
+ * Spreads keys across independent Vault clusters. Reads, writes and deletes go to the cluster
+ * the {@link ShardRing} assigns the key path to, lists are sent to every cluster and merged,
+ * without the keys of a cluster that can't be reached.
+ * While keys are being moved to the clusters they now belong to, reads missing from their cluster
+ * are looked up on the others and deletes are sent to every cluster, so that a key not moved yet
+ * is neither missed nor brought back by the move.
+ */
+class ShardedLogical extends Logical {
+
+    private static final int NOT_FOUND = 404;
+
+    private static final java.util.logging.Logger log = java.util.logging.Logger.getLogger("vault-storage");
+
+    @FunctionalInterface
+    private interface ShardCall<T> {
+        T on(Logical shard) throws VaultException;
+    }
+
+    private final ShardRing ring;
+    private final Map<String, Logical> shards;
+    private final boolean rebalancing;
+    //the key path a Vault path is sharded by
+    private final Function<String, String> keyOf;
+    //shared with the views returned by keyedBy
+    private final ExecutorService executor;
+
+    /**
+     * @param shards      client of every shard of the ring, by name
+     * @param rebalancing whether keys may still be stored in a shard they no longer belong to
+     */
+    ShardedLogical(ShardRing ring, Map<String, Logical> shards, boolean rebalancing) {
+        this(ring, shards, rebalancing, ShardedLogical::withoutQuery,
+                Executors.newCachedThreadPool(new DaemonThreadFactory("vault-storage-shard")));
+    }
+
+    private ShardedLogical(ShardRing ring,
+                           Map<String, Logical> shards,
+                           boolean rebalancing,
+                           Function<String, String> keyOf,
+                           ExecutorService executor) {
+        //the configuration of the shard clients is used, this one is never read
+        super(new VaultConfig());
+        for (String shard : ring.getShards()) {
+            if (!shards.containsKey(shard)) {
+                throw new IllegalArgumentException("No client for shard " + shard);
+            }
+        }
+        this.ring = ring;
+        this.shards = Collections.unmodifiableMap(shards);
+        this.rebalancing = rebalancing;
+        this.keyOf = keyOf;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the same shards, assigning the calls of a Vault path by the key path {@code keyOf} gives for it,
+     * e.g. the Rundeck path below a mount and prefix
+     */
+    ShardedLogical keyedBy(Function<String, String> keyOf) {
+        return new ShardedLogical(ring, shards, rebalancing, path -> keyOf.apply(withoutQuery(path)), executor);
+    }
+
+    @Override
+    public LogicalResponse read(String path) throws VaultException {
+        return read(path, shard -> shard.read(path));
+    }
+
+    @Override
+    public LogicalResponse read(String path, boolean shouldRetry) throws VaultException {
+        return read(path, shard -> shard.read(path, shouldRetry));
+    }
+
+    @Override
+    public LogicalResponse write(String path, Map<String, Object> nameValuePairs) throws VaultException {
+        return shardOf(path).write(path, nameValuePairs);
+    }
+
+    /**
+     * Lists the path on every shard. A shard failing to answer is left out and logged,
+     * the listing only fails if every shard does.
+     */
+    @Override
+    public List<String> list(String path) throws VaultException {
+        Map<String, Future<List<String>>> listings = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, Logical> shard : shards.entrySet()) {
+                Logical client = shard.getValue();
+                listings.put(shard.getKey(), executor.submit(OperationTrace.propagate(() -> client.list(path))));
+            }
+        } catch (RejectedExecutionException e) {
+            //shut down by a new configuration while this call was made
+            listings.values().forEach(listing -> listing.cancel(true));
+            for (Map.Entry<String, Logical> shard : shards.entrySet()) {
+                Logical client = shard.getValue();
+                listings.put(shard.getKey(), completed(() -> client.list(path)));
+            }
+        }
+
+        TreeSet<String> merged = new TreeSet<>();
+        Throwable firstFailure = null;
+        int failed = 0;
+        try {
+            for (Map.Entry<String, Future<List<String>>> listing : listings.entrySet()) {
+                try {
+                    merged.addAll(listing.getValue().get());
+                } catch (ExecutionException e) {
+                    failed++;
+                    if (firstFailure == null) {
+                        firstFailure = e.getCause();
+                    }
+                    log.warning("Vault shard " + listing.getKey() + " left out of the listing of " + path
+                                + ": " + e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VaultException(e);
+        } finally {
+            listings.values().forEach(listing -> listing.cancel(true));
+        }
+
+        if (failed == listings.size()) {
+            if (firstFailure instanceof VaultException) {
+                throw (VaultException) firstFailure;
+            }
+            if (firstFailure instanceof RuntimeException) {
+                throw (RuntimeException) firstFailure;
+            }
+            throw new VaultException(firstFailure);
+        }
+        return new ArrayList<>(merged);
+    }
+
+    @Override
+    public LogicalResponse delete(String path) throws VaultException {
+        String owner = ring.shardOf(keyOf.apply(path));
+        if (rebalancing) {
+            for (String shard : ring.getShards()) {
+                if (!shard.equals(owner)) {
+                    shards.get(shard).delete(path);
+                }
+            }
+        }
+        return shards.get(owner).delete(path);
+    }
+
+    ShardRing getRing() {
+        return ring;
+    }
+
+    Map<String, Logical> getShards() {
+        return shards;
+    }
+
+    boolean isRebalancing() {
+        return rebalancing;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Logical shardOf(String path) {
+        return shards.get(ring.shardOf(keyOf.apply(path)));
+    }
+
+    private <T> T read(String path, ShardCall<T> call) throws VaultException {
+        String owner = ring.shardOf(keyOf.apply(path));
+        try {
+            return call.on(shards.get(owner));
+        } catch (VaultException e) {
+            if (!rebalancing || e.getHttpStatusCode() != NOT_FOUND) {
+                throw e;
+            }
+            //not moved to its shard yet
+            for (String shard : ring.getShards()) {
+                if (shard.equals(owner)) {
+                    continue;
+                }
+                try {
+                    return call.on(shards.get(shard));
+                } catch (VaultException other) {
+                    if (other.getHttpStatusCode() != NOT_FOUND) {
+                        throw other;
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static <T> Future<T> completed(VaultCall<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            result.complete(call.execute());
+        } catch (VaultException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private static String withoutQuery(String path) {
+        int query = path.indexOf('?');
+        return query < 0 ? path : path.substring(0, query);
+    }
+}
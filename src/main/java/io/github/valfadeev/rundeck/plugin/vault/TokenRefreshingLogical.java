@@ -0,0 +1,72 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.List;
+import java.util.Map;
+
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.LogicalResponse;
+
+/**
+ * {@link Logical} that always sends the current token of a {@link VaultTokenManager}.
+ * A request rejected with 403 is retried once with a fresh token.
+ */
+class TokenRefreshingLogical extends Logical {
+
+    private static final int FORBIDDEN = 403;
+
+    private final VaultTokenManager tokenManager;
+
+    TokenRefreshingLogical(VaultTokenManager tokenManager) {
+        //requests go through the session clients, this configuration is never read
+        super(new VaultConfig());
+        this.tokenManager = tokenManager;
+    }
+
+    @Override
+    public LogicalResponse read(String path) throws VaultException {
+        return call(logical -> logical.read(path));
+    }
+
+    @Override
+    public LogicalResponse read(String path, boolean shouldRetry) throws VaultException {
+        return call(logical -> logical.read(path, shouldRetry));
+    }
+
+    @Override
+    public LogicalResponse write(String path, Map<String, Object> nameValuePairs) throws VaultException {
+        return call(logical -> logical.write(path, nameValuePairs));
+    }
+
+    @Override
+    public List<String> list(String path) throws VaultException {
+        return call(logical -> logical.list(path));
+    }
+
+    @Override
+    public LogicalResponse delete(String path) throws VaultException {
+        return call(logical -> logical.delete(path));
+    }
+
+    private <T> T call(SessionCall<T> call) throws VaultException {
+        VaultTokenManager.Session session = tokenManager.session();
+        try {
+            return call.execute(session.logical());
+        } catch (VaultException e) {
+            if (e.getHttpStatusCode() != FORBIDDEN) {
+                throw e;
+            }
+            VaultTokenManager.Session renewed = tokenManager.reauthenticate(session);
+            if (renewed == null) {
+                throw e;
+            }
+            return call.execute(renewed.logical());
+        }
+    }
+
+    @FunctionalInterface
+    private interface SessionCall<T> {
+        T execute(Logical logical) throws VaultException;
+    }
+}
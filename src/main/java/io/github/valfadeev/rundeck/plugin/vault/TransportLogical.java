@@ -0,0 +1,174 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonArray;
+import com.bettercloud.vault.json.JsonObject;
+import com.bettercloud.vault.json.JsonValue;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.bettercloud.vault.rest.RestResponse;
+
+/**
+ * {@link Logical} implementation sending its requests through a {@link VaultTransport}
+ * instead of opening a new connection for every call.
+ * Responses and errors are reported the same way as by the driver's own implementation.
+ */
+class TransportLogical extends Logical {
+
+    private static final int OK = 200;
+    private static final int NO_CONTENT = 204;
+    private static final int NOT_FOUND = 404;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final VaultTransport transport;
+    private final String token;
+
+    /**
+     * Requests are made once, retries are left to {@link ResilientLogical}.
+     */
+    TransportLogical(VaultTransport transport, String token) {
+        //requests are sent by the transport, this configuration is never read
+        super(new VaultConfig());
+        this.transport = transport;
+        this.token = token;
+    }
+
+    @Override
+    public LogicalResponse read(String path) throws VaultException {
+        return send("GET", path, null, null, OK);
+    }
+
+    @Override
+    public LogicalResponse read(String path, boolean shouldRetry) throws VaultException {
+        return read(path);
+    }
+
+    @Override
+    public LogicalResponse write(String path, Map<String, Object> nameValuePairs) throws VaultException {
+        return send("POST", path, null, toJson(nameValuePairs), OK, NO_CONTENT);
+    }
+
+    @Override
+    public List<String> list(String path) throws VaultException {
+        LogicalResponse response;
+        try {
+            response = send("GET", path, "list=true", null, OK);
+        } catch (VaultException e) {
+            if (e.getHttpStatusCode() == NOT_FOUND) {
+                return Collections.emptyList();
+            }
+            throw e;
+        }
+
+        String keys = response.getData().get("keys");
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        JsonArray array = Json.parse(keys).asArray();
+        List<String> result = new ArrayList<>(array.size());
+        for (JsonValue key : array) {
+            result.add(key.asString());
+        }
+        return result;
+    }
+
+    @Override
+    public LogicalResponse delete(String path) throws VaultException {
+        return send("DELETE", path, null, null, OK, NO_CONTENT);
+    }
+
+    /**
+     * @param query query string, null for none
+     */
+    private LogicalResponse send(String method,
+                                 String path,
+                                 String query,
+                                 byte[] body,
+                                 int... expectedStatus) throws VaultException {
+        RestResponse response;
+        try {
+            response = transport.send(method, query == null ? encodePath(path) : encodePath(path) + "?" + query,
+                    token, body);
+        } catch (IOException e) {
+            throw new VaultException(e);
+        }
+
+        for (int status : expectedStatus) {
+            if (response.getStatus() == status) {
+                return new LogicalResponse(response, 0);
+            }
+        }
+        throw new VaultException(
+                String.format("Vault responded with HTTP status code: %d\nResponse body: %s",
+                        response.getStatus(),
+                        new String(response.getBody(), StandardCharsets.UTF_8)),
+                response.getStatus());
+    }
+
+    /**
+     * @return the path with every character of its segments other than letters, digits and {@code -._~}
+     * percent-encoded, so that key names with spaces, '#', '?' or '%' reach Vault as they were written
+     */
+    static String encodePath(String path) {
+        StringBuilder encoded = null;
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            int c = bytes[i] & 0xff;
+            boolean plain = c == '/' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                            || c == '-' || c == '.' || c == '_' || c == '~';
+            if (plain && encoded == null) {
+                continue;
+            }
+            if (encoded == null) {
+                //the path is ASCII up to here
+                encoded = new StringBuilder(bytes.length + 16).append(path, 0, i);
+            }
+            if (plain) {
+                encoded.append((char) c);
+            } else {
+                encoded.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            }
+        }
+        return encoded == null ? path : encoded.toString();
+    }
+
+    static byte[] toJson(Map<String, Object> nameValuePairs) {
+        return toJsonObject(nameValuePairs).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static JsonObject toJsonObject(Map<String, Object> nameValuePairs) {
+        JsonObject json = Json.object();
+        if (nameValuePairs != null) {
+            for (Map.Entry<String, Object> pair : nameValuePairs.entrySet()) {
+                Object value = pair.getValue();
+                if (value instanceof JsonValue) {
+                    json.add(pair.getKey(), (JsonValue) value);
+                } else if (value instanceof Boolean) {
+                    json.add(pair.getKey(), (Boolean) value);
+                } else if (value instanceof Integer) {
+                    json.add(pair.getKey(), (Integer) value);
+                } else if (value instanceof Long) {
+                    json.add(pair.getKey(), (Long) value);
+                } else if (value instanceof Float) {
+                    json.add(pair.getKey(), (Float) value);
+                } else if (value instanceof Double) {
+                    json.add(pair.getKey(), (Double) value);
+                } else if (value == null) {
+                    json.add(pair.getKey(), Json.NULL);
+                } else {
+                    json.add(pair.getKey(), value.toString());
+                }
+            }
+        }
+        return json;
+    }
+}
@@ -0,0 +1,11 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import com.bettercloud.vault.VaultException;
+
+/**
+ * A single call to the Vault API, as passed around by the {@link ForwardingLogical} decorators.
+ */
+@FunctionalInterface
+interface VaultCall<T> {
+    T execute() throws VaultException;
+}
@@ -1,13 +1,26 @@
 package io.github.valfadeev.rundeck.plugin.vault;
 
 import java.io.File;
+import java.net.MalformedURLException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
 
 import com.bettercloud.vault.SslConfig;
 import com.bettercloud.vault.Vault;
 import com.bettercloud.vault.VaultConfig;
 import com.bettercloud.vault.VaultException;
 import com.bettercloud.vault.api.Auth;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.AuthResponse;
+import com.bettercloud.vault.response.LookupResponse;
 import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
 
 import static io.github.valfadeev.rundeck.plugin.vault.ConfigOptions.*;
@@ -15,24 +28,156 @@ import static io.github.valfadeev.rundeck.plugin.vault.SupportedAuthBackends.*;
 
 class VaultClientProvider {
 
+    static final String HTTP_TRANSPORT_JDK = "jdk";
+    static final String HTTP_TRANSPORT_POOLED = "pooled";
+    static final String HTTP_TRANSPORT_DRIVER = "driver";
+
+    private static final java.util.logging.Logger log = java.util.logging.Logger.getLogger("vault-storage");
+
     private Properties configuration;
+    private final VaultMetrics metrics;
+    //shared by all the clients built by this provider, created on first use
+    private VaultTransport transport;
 
     VaultClientProvider(Properties configuration) {
+        this(configuration, VaultMetrics.DISABLED);
+    }
+
+    /**
+     * @param metrics times the key/value and auth calls made by the clients of this provider
+     */
+    VaultClientProvider(Properties configuration, VaultMetrics metrics) {
         this.configuration = configuration;
+        this.metrics = metrics;
+    }
+
+    VaultMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return client for the key/value API, sending the given token
+     * through the configured HTTP transport
+     */
+    Logical getLogical(String authToken) throws ConfigurationException {
+        final String httpTransport = configuration.getProperty(VAULT_HTTP_TRANSPORT, HTTP_TRANSPORT_JDK);
+
+        if (httpTransport.equals(HTTP_TRANSPORT_DRIVER)) {
+            return new MetricsLogical(getVaultClient(authToken).logical(), metrics);
+        }
+        if (!httpTransport.equals(HTTP_TRANSPORT_JDK) && !httpTransport.equals(HTTP_TRANSPORT_POOLED)) {
+            throw new ConfigurationException(
+                    String.format("Unsupported HTTP transport: %s", httpTransport));
+        }
+
+        return new MetricsLogical(new TransportLogical(getTransport(), authToken), metrics);
+    }
+
+    synchronized VaultTransport getTransport() throws ConfigurationException {
+        if (transport != null) {
+            return transport;
+        }
+
+        final String vaultAddress = configuration.getProperty(VAULT_ADDRESS);
+        final String readAddresses = configuration.getProperty(VAULT_READ_ADDRESSES, "");
+        final String loadBalancing = configuration.getProperty(VAULT_LOAD_BALANCING, LoadBalancedTransport.LEAST_OUTSTANDING);
+        final Integer failureThreshold = Integer.parseInt(configuration.getProperty(VAULT_ENDPOINT_FAILURE_THRESHOLD, "3"));
+        final Long ejectionTime = Long.parseLong(configuration.getProperty(VAULT_ENDPOINT_EJECTION_MILLISECONDS, "30000"));
+
+        //the JDK's HTTP client shares the connection cache of the whole JVM, sized by its system properties
+        if (!HTTP_TRANSPORT_POOLED.equals(configuration.getProperty(VAULT_HTTP_TRANSPORT))
+                && (configuration.getProperty(VAULT_CONNECTION_POOL_SIZE) != null
+                    || configuration.getProperty(VAULT_CONNECTION_IDLE_TIMEOUT_MILLISECONDS) != null)) {
+            log.warning(String.format("%s and %s only apply to the '%s' HTTP transport, set %s=%s to use them",
+                    VAULT_CONNECTION_POOL_SIZE, VAULT_CONNECTION_IDLE_TIMEOUT_MILLISECONDS, HTTP_TRANSPORT_POOLED,
+                    VAULT_HTTP_TRANSPORT, HTTP_TRANSPORT_POOLED));
+        }
+
+        List<LoadBalancedTransport.Endpoint> endpoints = new ArrayList<>();
+        try {
+            endpoints.add(new LoadBalancedTransport.Endpoint(vaultAddress, getEndpointTransport(vaultAddress)));
+            for (String address : readAddresses.split(",")) {
+                if (!address.trim().isEmpty()) {
+                    endpoints.add(new LoadBalancedTransport.Endpoint(address.trim(), getEndpointTransport(address.trim())));
+                }
+            }
+        } catch (ConfigurationException | RuntimeException e) {
+            //the transports of the addresses before the invalid one
+            for (LoadBalancedTransport.Endpoint endpoint : endpoints) {
+                endpoint.getTransport().close();
+            }
+            throw e;
+        }
+        if (endpoints.size() == 1) {
+            transport = endpoints.get(0).getTransport();
+            return transport;
+        }
+
+        try {
+            transport = new LoadBalancedTransport(endpoints, loadBalancing, failureThreshold, ejectionTime);
+        } catch (IllegalArgumentException e) {
+            for (LoadBalancedTransport.Endpoint endpoint : endpoints) {
+                endpoint.getTransport().close();
+            }
+            throw new ConfigurationException(e.getMessage());
+        }
+        return transport;
+    }
+
+    private VaultTransport getEndpointTransport(String vaultAddress) throws ConfigurationException {
+        final Integer vaultOpenTimeout = Integer.parseInt(configuration.getProperty(VAULT_OPEN_TIMEOUT));
+        final Integer vaultReadTimeout = Integer.parseInt(configuration.getProperty(VAULT_READ_TIMEOUT));
+        final Integer poolSize = Integer.parseInt(configuration.getProperty(VAULT_CONNECTION_POOL_SIZE, "10"));
+        final Long idleTimeout = Long.parseLong(configuration.getProperty(VAULT_CONNECTION_IDLE_TIMEOUT_MILLISECONDS, "30000"));
+
+        final SslConfig sslConfig = getSslConfig();
+
+        try {
+            //timeouts are given in seconds, as for the driver's own connections
+            if (!HTTP_TRANSPORT_POOLED.equals(configuration.getProperty(VAULT_HTTP_TRANSPORT))) {
+                return new JdkHttpTransport(vaultAddress,
+                        getSslSocketFactory(sslConfig),
+                        sslConfig.isVerify(),
+                        vaultOpenTimeout * 1000,
+                        vaultReadTimeout * 1000);
+            }
+            return new PooledHttpTransport(vaultAddress,
+                    getSslSocketFactory(sslConfig),
+                    sslConfig.isVerify(),
+                    poolSize,
+                    idleTimeout,
+                    vaultOpenTimeout * 1000,
+                    vaultReadTimeout * 1000);
+        } catch (MalformedURLException e) {
+            throw new ConfigurationException(
+                    String.format("Invalid Vault address %s: %s", vaultAddress, e.getMessage()));
+        }
+    }
+
+    /**
+     * Closes the connections held by the HTTP transport.
+     */
+    synchronized void close() {
+        if (transport != null) {
+            transport.close();
+            transport = null;
+        }
     }
 
     Vault getVaultClient() throws ConfigurationException {
-        final Integer vaultMaxRetries = Integer.parseInt(configuration.getProperty(VAULT_MAX_RETRIES));
-        final Integer vaultRetryIntervalMilliseconds = Integer.parseInt(configuration.getProperty(VAULT_RETRY_INTERVAL_MILLISECONDS));
+        return getVaultClient(getVaultAuthToken().getClientToken());
+    }
 
+    /**
+     * @return client sending the given token, without retries of its own:
+     * those are made by {@link ResilientLogical}
+     */
+    Vault getVaultClient(String authToken) throws ConfigurationException {
         VaultConfig vaultConfig = getVaultConfig();
 
         try {
-            String authToken = getVaultAuthToken();
             vaultConfig.token(authToken).build();
-            return new Vault(vaultConfig)
-                    .withRetries(vaultMaxRetries,
-                            vaultRetryIntervalMilliseconds);
+            return new Vault(vaultConfig);
         } catch (VaultException e) {
             throw new ConfigurationException(String.format("Encountered error while "
                     + "building Vault configuration: %s", e.getMessage()));
@@ -116,14 +261,52 @@ class VaultClientProvider {
         return sslConfig;
     }
 
-    private String getVaultAuthToken() throws ConfigurationException {
+    private SSLSocketFactory getSslSocketFactory(SslConfig sslConfig) throws ConfigurationException {
+        try {
+            if (!sslConfig.isVerify()) {
+                //same as the driver: no certificate validation at all
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, new TrustManager[]{new X509TrustManager() {
+                    @Override
+                    public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                    }
+
+                    @Override
+                    public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                    }
+
+                    @Override
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return new X509Certificate[0];
+                    }
+                }}, new SecureRandom());
+                return sslContext.getSocketFactory();
+            }
+            if (sslConfig.getSslContext() != null) {
+                return sslConfig.getSslContext().getSocketFactory();
+            }
+            return SSLContext.getDefault().getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            throw new ConfigurationException(String.format("Encountered error while building ssl configuration: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * @return true if a new token can be obtained by logging in again,
+     * false if the token is taken as is from the configuration
+     */
+    boolean canReauthenticate() {
+        return !configuration.getProperty(VAULT_AUTH_BACKEND).equals(TOKEN);
+    }
+
+    VaultToken getVaultAuthToken() throws ConfigurationException {
         final String vaultAuthBackend = configuration.getProperty(VAULT_AUTH_BACKEND);
 
-        final String authToken;
+        final AuthResponse authResponse;
         final String msg = "Must specify %s when auth backend is %s";
 
         if (vaultAuthBackend.equals(TOKEN)) {
-            authToken = configuration.getProperty(VAULT_TOKEN);
+            final String authToken = configuration.getProperty(VAULT_TOKEN);
             if (authToken == null) {
                 throw new ConfigurationException(
                         String.format(
@@ -133,7 +316,7 @@ class VaultClientProvider {
                         )
                 );
             }
-            return authToken;
+            return lookupVaultAuthToken(authToken);
         }
 
         final VaultConfig vaultAuthConfig = getVaultConfig();
@@ -159,10 +342,11 @@ class VaultClientProvider {
                 }
 
                 try {
-                    authToken = vaultAuth.loginByAppRole(
+                    authResponse = metrics.time("vault.auth.login", "auth/" + vaultApproleAuthMount + "/login",
+                            () -> vaultAuth.loginByAppRole(
                             vaultApproleAuthMount,
                             vaultApproleId,
-                            vaultApproleSecretId).getAuthClientToken();
+                            vaultApproleSecretId));
 
                 } catch (VaultException e) {
                     throw new ConfigurationException(
@@ -184,9 +368,8 @@ class VaultClientProvider {
                 }
 
                 try {
-                    authToken = vaultAuth
-                            .loginByGithub(vaultGithubToken)
-                            .getAuthClientToken();
+                    authResponse = metrics.time("vault.auth.login", "auth/github/login", () -> vaultAuth
+                            .loginByGithub(vaultGithubToken));
 
                 } catch (VaultException e) {
                     throw new ConfigurationException(
@@ -210,9 +393,8 @@ class VaultClientProvider {
                 }
 
                 try {
-                    authToken = vaultAuth
-                            .loginByUserPass(vaultUsername, vaultPassword)
-                            .getAuthClientToken();
+                    authResponse = metrics.time("vault.auth.login", "auth/userpass/login", () -> vaultAuth
+                            .loginByUserPass(vaultUsername, vaultPassword));
 
                 } catch (VaultException e) {
                     throw new ConfigurationException(
@@ -227,6 +409,20 @@ class VaultClientProvider {
                         String.format("Unsupported auth backend: %s", vaultAuthBackend));
 
         }
-        return authToken;
+        return new VaultToken(authResponse.getAuthClientToken(),
+                authResponse.getAuthLeaseDuration(),
+                authResponse.isAuthRenewable());
+    }
+
+    private VaultToken lookupVaultAuthToken(String authToken) throws ConfigurationException {
+        try {
+            final VaultConfig vaultLookupConfig = getVaultConfig().token(authToken).build();
+            final LookupResponse lookup = metrics.time("vault.auth.lookup", "auth/token/lookup-self",
+                    () -> new Vault(vaultLookupConfig).auth().lookupSelf());
+            return new VaultToken(authToken, lookup.getTTL(), lookup.isRenewable());
+        } catch (VaultException e) {
+            //the token may lack the lookup-self capability, treat it as non-expiring
+            return new VaultToken(authToken, 0, false);
+        }
     }
 }
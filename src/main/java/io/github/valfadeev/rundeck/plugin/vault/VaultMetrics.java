@@ -0,0 +1,389 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.response.VaultResponse;
+
+/**
+ * Latency histograms and outcome counts of the plugin's operations and of the Vault calls they make,
+ * published as MBeans under {@link #DOMAIN} once {@link #register} is called.
+ * Operations are named {@code plugin.<method>} for the {@code StoragePlugin} methods and
+ * {@code vault.<call>} for the requests sent to Vault.
+ */
+class VaultMetrics {
+
+    static final String DOMAIN = "io.github.valfadeev.rundeck.plugin.vault";
+
+    /**
+     * Times nothing and publishes nothing.
+     */
+    static final VaultMetrics DISABLED = new VaultMetrics(false);
+
+    //instance names in use by the providers of this class loader, those of others are found in the MBean server
+    private static final Set<String> CLAIMED = new HashSet<>();
+
+    enum Outcome {
+        SUCCESS,
+        NOT_FOUND,
+        FORBIDDEN,
+        SERVER_ERROR,
+        TIMEOUT,
+        ERROR
+    }
+
+    java.util.logging.Logger log = java.util.logging.Logger.getLogger("vault-storage");
+
+    private final boolean enabled;
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<>();
+    private final List<ObjectName> registered = new ArrayList<>();
+    //quoted instance name while registered
+    private String instance;
+    //unquoted, as claimed in the MBean server
+    private String instanceName;
+
+    VaultMetrics() {
+        this(true);
+    }
+
+    private VaultMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Times a Vault call, its outcome taken from the status of a failure.
+     * The call is also recorded in the trace of the storage operation it is made for, if any.
+     */
+    <T> T time(String operation, String path, VaultCall<T> call) throws VaultException {
+        if (!enabled && OperationTrace.current() == null) {
+            return call.execute();
+        }
+        long start = System.nanoTime();
+        try {
+            T result = call.execute();
+            record(operation, path, start, Outcome.SUCCESS, statusOf(result));
+            return result;
+        } catch (VaultException e) {
+            record(operation, path, start, outcomeOf(e), e.getHttpStatusCode());
+            throw e;
+        } catch (RuntimeException e) {
+            record(operation, path, start, Outcome.ERROR, 0);
+            throw e;
+        }
+    }
+
+    /**
+     * Times a plugin operation, any exception counted as an error.
+     */
+    <T> T timeOperation(String operation, Supplier<T> call) {
+        if (!enabled) {
+            return call.get();
+        }
+        long start = System.nanoTime();
+        try {
+            T result = call.get();
+            operation(operation).record(start, Outcome.SUCCESS);
+            return result;
+        } catch (RuntimeException e) {
+            operation(operation).record(start, Outcome.ERROR);
+            throw e;
+        }
+    }
+
+    private void record(String operation, String path, long start, Outcome outcome, int status) {
+        if (enabled) {
+            operation(operation).record(start, outcome);
+        }
+        OperationTrace.record(operation, path, status, start);
+    }
+
+    private static int statusOf(Object result) {
+        if (result instanceof VaultResponse && ((VaultResponse) result).getRestResponse() != null) {
+            return ((VaultResponse) result).getRestResponse().getStatus();
+        }
+        return 200;
+    }
+
+    Operation operation(String name) {
+        Operation existing = operations.get(name);
+        return existing != null ? existing : create(name);
+    }
+
+    /**
+     * @return the operations timed so far, by name
+     */
+    Map<String, Operation> operations() {
+        return Collections.unmodifiableMap(new TreeMap<>(operations));
+    }
+
+    static Outcome outcomeOf(VaultException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return Outcome.TIMEOUT;
+            }
+        }
+        int status = e.getHttpStatusCode();
+        if (status == 404) {
+            return Outcome.NOT_FOUND;
+        }
+        if (status == 403) {
+            return Outcome.FORBIDDEN;
+        }
+        if (status >= 500) {
+            return Outcome.SERVER_ERROR;
+        }
+        return Outcome.ERROR;
+    }
+
+    /**
+     * Publishes the operations timed from now on, and the hit ratios of the caches that are enabled,
+     * under {@code instance}. Operations first timed later are published when they are first used.
+     * Key caches are published under their name in {@code caches}, concurrency limits under the name
+     * of the Vault cluster they apply to. When another storage provider in the JVM already publishes
+     * under {@code instance}, e.g. two providers with the same backend and prefix, {@code instance#2},
+     * {@code instance#3}, ... is used instead.
+     */
+    synchronized void register(String instance,
+                               Map<String, KeyObjectCache> caches,
+                               NegativeLookupCache negativeCache,
+                               PathProbe probe,
+                               CacheRefresher refresher,
+                               DynamicSecrets dynamicSecrets,
+                               Map<String, ConcurrencyLimiter> limiters) {
+        if (!enabled) {
+            return;
+        }
+        instanceName = claim(instance);
+        this.instance = ObjectName.quote(instanceName);
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            registerOperation(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, KeyObjectCache> cache : caches.entrySet()) {
+            registerCache(cache.getKey(), new Cache(cache.getValue()::getHitCount, cache.getValue()::getMissCount));
+        }
+        if (negativeCache != null) {
+            registerCache("missing", new Cache(negativeCache::getHitCount, negativeCache::getMissCount));
+        }
+        if (probe != null) {
+            registerCache("paths", new Cache(probe::getHitCount, probe::getMissCount));
+        }
+        if (refresher != null) {
+            //hits are keys refreshed before expiring, misses refreshes that failed or were skipped
+            registerCache("refresh", new Cache(refresher::getRefreshCount, refresher::getMissedCount));
+        }
+        if (!dynamicSecrets.getSecrets().isEmpty()) {
+            //hits are reads given a credential generated earlier, misses credentials generated
+            registerCache("leases", new Cache(dynamicSecrets::getSharedCount, dynamicSecrets::getGeneratedCount));
+        }
+        for (Map.Entry<String, ConcurrencyLimiter> limiter : limiters.entrySet()) {
+            register("type=ConcurrencyLimit,instance=" + this.instance + ",name=" + limiter.getKey(), limiter.getValue());
+        }
+    }
+
+    synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                log.fine("could not unregister " + name + ": " + e.getMessage());
+            }
+        }
+        registered.clear();
+        if (instanceName != null) {
+            release(instanceName);
+        }
+        instance = null;
+        instanceName = null;
+    }
+
+    /**
+     * @return the instance name the metrics are published under, null when they are not published
+     */
+    synchronized String getInstance() {
+        return instanceName;
+    }
+
+    private static synchronized String claim(String instance) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String candidate = instance;
+        for (int i = 2; CLAIMED.contains(candidate) || isPublished(server, candidate); i++) {
+            candidate = instance + "#" + i;
+        }
+        CLAIMED.add(candidate);
+        return candidate;
+    }
+
+    private static synchronized void release(String instance) {
+        CLAIMED.remove(instance);
+    }
+
+    private static boolean isPublished(MBeanServer server, String instance) {
+        try {
+            return !server.queryNames(new ObjectName(DOMAIN + ":instance=" + ObjectName.quote(instance) + ",*"), null)
+                    .isEmpty();
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    private synchronized Operation create(String name) {
+        Operation existing = operations.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        Operation created = new Operation();
+        operations.put(name, created);
+        if (instance != null) {
+            registerOperation(name, created);
+        }
+        return created;
+    }
+
+    private void registerOperation(String name, Operation operation) {
+        register("type=Operation,instance=" + instance + ",name=" + ObjectName.quote(name), operation);
+    }
+
+    private void registerCache(String name, Cache cache) {
+        register("type=Cache,instance=" + instance + ",name=" + name, cache);
+    }
+
+    private void register(String properties, Object bean) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+            registered.add(name);
+        } catch (JMException e) {
+            //only when registered concurrently from another class loader
+            log.warning("Vault storage metrics not published as " + properties + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Latencies and outcome counts of one operation.
+     */
+    static class Operation implements OperationMetricsMXBean {
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+
+        void record(long startNanos, Outcome outcome) {
+            latencies.record((System.nanoTime() - startNanos) / 1000);
+            outcomes.incrementAndGet(outcome.ordinal());
+        }
+
+        long getCount(Outcome outcome) {
+            return outcomes.get(outcome.ordinal());
+        }
+
+        @Override
+        public long getCount() {
+            return latencies.getCount();
+        }
+
+        @Override
+        public long getSuccessCount() {
+            return getCount(Outcome.SUCCESS);
+        }
+
+        @Override
+        public long getNotFoundCount() {
+            return getCount(Outcome.NOT_FOUND);
+        }
+
+        @Override
+        public long getForbiddenCount() {
+            return getCount(Outcome.FORBIDDEN);
+        }
+
+        @Override
+        public long getServerErrorCount() {
+            return getCount(Outcome.SERVER_ERROR);
+        }
+
+        @Override
+        public long getTimeoutCount() {
+            return getCount(Outcome.TIMEOUT);
+        }
+
+        @Override
+        public long getErrorCount() {
+            return getCount(Outcome.ERROR);
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return latencies.getMean();
+        }
+
+        @Override
+        public long getP50Micros() {
+            return latencies.getValueAt(0.5);
+        }
+
+        @Override
+        public long getP99Micros() {
+            return latencies.getValueAt(0.99);
+        }
+
+        @Override
+        public long getMaxMicros() {
+            return latencies.getMax();
+        }
+
+        @Override
+        public void reset() {
+            latencies.reset();
+            for (int i = 0; i < outcomes.length(); i++) {
+                outcomes.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Hit ratio of a cache, read from its own counters.
+     */
+    private static class Cache implements CacheMetricsMXBean {
+
+        private final LongSupplier hits;
+        private final LongSupplier misses;
+
+        Cache(LongSupplier hits, LongSupplier misses) {
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        @Override
+        public long getHitCount() {
+            return hits.getAsLong();
+        }
+
+        @Override
+        public long getMissCount() {
+            return misses.getAsLong();
+        }
+
+        @Override
+        public double getHitRatio() {
+            long hit = hits.getAsLong();
+            long total = hit + misses.getAsLong();
+            return total == 0 ? 0 : (double) hit / total;
+        }
+    }
+}
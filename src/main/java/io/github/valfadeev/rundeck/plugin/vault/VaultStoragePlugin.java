@@ -1,13 +1,20 @@
 package io.github.valfadeev.rundeck.plugin.vault;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import com.bettercloud.vault.VaultException;
 import com.bettercloud.vault.api.Logical;
-import com.bettercloud.vault.response.VaultResponse;
+import com.bettercloud.vault.response.LogicalResponse;
 import com.dtolabs.rundeck.core.plugins.Plugin;
 import com.dtolabs.rundeck.core.plugins.configuration.Configurable;
 import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
@@ -45,13 +52,44 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
     protected static final String PRIVATE_KEY_MIME_TYPE = "application/octet-stream";
     protected static final String PUBLIC_KEY_MIME_TYPE = "application/pgp-keys";
     protected static final String PASSWORD_MIME_TYPE = "application/x-rundeck-data-password";
+    static final String ENGINE_VERSION_1 = "1";
+    static final String ENGINE_VERSION_2 = "2";
+    static final String DEFAULT_SHARD = "default";
+    //retries that may be spent at once before the budget has to be earned back by calls
+    private static final int RETRY_BUDGET_BURST = 10;
 
 
     private String vaultPrefix;
     private String vaultSecretBackend;
-    private Logical vault;
+    //the mount, prefix, engine and cache of every key path
+    private RoutingTable routes;
+    //credentials generated by dynamic secret engines, shared for their lease
+    private DynamicSecrets dynamicSecrets = DynamicSecrets.NONE;
+    //token renewal, hedging and connections of every Vault cluster, stopped when configured again
+    private final List<Runnable> clusterShutdowns = new ArrayList<>();
+    //of the default cluster, null unless reads are hedged
+    private HedgingLogical hedging;
+    //by shard name, empty unless concurrent requests are limited
+    private final Map<String, ConcurrencyLimiter> limiters = new LinkedHashMap<>();
+    //null unless shards were added and their keys are being moved
+    private ShardRebalancer rebalancer;
     //if is true, objects will be saved with rundeck default headers behaivour
     private boolean rundeckObject=true;
+    //null unless a cache warm-up was started
+    private CacheWarmer warmer;
+    //null unless hot keys are refreshed before their cache entry expires
+    private CacheRefresher refresher;
+    //null when negative lookup caching is disabled
+    private NegativeLookupCache negativeCache;
+    //last value read of every key, null unless keys are served stale while Vault is unavailable
+    private KeyObjectCache staleKeys;
+    private PathProbe probe;
+    //null when list entries are read sequentially
+    private ExecutorService listExecutor;
+    private long listTimeoutMilliseconds;
+    private VaultMetrics metrics = VaultMetrics.DISABLED;
+    //0 when slow operations are not traced
+    private long slowOperationThresholdMilliseconds;
 
 
     @Override
@@ -61,48 +99,316 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     @Override
     public void configure(Properties configuration) throws ConfigurationException {
+        metrics.unregister();
+        metrics = Boolean.parseBoolean(configuration.getProperty(VAULT_METRICS_ENABLED, "true"))
+                ? new VaultMetrics()
+                : VaultMetrics.DISABLED;
+
+        configure(configuration, configureVault(configuration));
+        Map<String, KeyObjectCache> caches = new LinkedHashMap<>();
+        for (RoutingTable.Route route : routes.getRoutes()) {
+            if (route.cache != null) {
+                caches.put(route == routes.getDefault() ? "keys" : "keys." + route.name, route.cache);
+            }
+        }
+        if(staleKeys != null){
+            //hits are keys served stale, misses failed reads of keys without a value to serve
+            caches.put("stale", staleKeys);
+        }
+        metrics.register(vaultSecretBackend + "/" + vaultPrefix, caches, negativeCache, probe, refresher, dynamicSecrets, limiters);
+    }
+
+    /**
+     * Configures the plugin to make its key/value calls with {@code client},
+     * tests and benchmarks pass one backed by memory.
+     */
+    void configure(Properties configuration, Logical client) throws ConfigurationException {
         vaultPrefix = configuration.getProperty(VAULT_PREFIX);
         vaultSecretBackend = configuration.getProperty(VAULT_SECRET_BACKEND);
 
-        vault = new VaultClientProvider(configuration)
-                .getVaultClient()
-                .logical();
+        routes = RoutingTable.configure(configuration, client);
+        if(routes.getRoutes().size() > 1){
+            log.info("Vault key storage routes: " + routes.getRoutes());
+        }
+
+        dynamicSecrets.shutdown();
+        dynamicSecrets = DynamicSecrets.configure(configuration, client);
+        if(!dynamicSecrets.getSecrets().isEmpty()){
+            log.info("Vault dynamic secrets: " + dynamicSecrets.getSecrets());
+        }
 
         //check storage behaivour
         String storageBehaviour=configuration.getProperty(VAULT_STORAGE_BEHAVIOUR);
         if(storageBehaviour!=null && storageBehaviour.equals("vault")){
             rundeckObject=false;
         }
-    }
 
-    public static String getVaultPath(String rawPath, String vaultSecretBackend, String vaultPrefix) {
-        return String.format("%s/%s/%s", vaultSecretBackend, vaultPrefix, rawPath);
+        staleKeys = null;
+        if(Boolean.parseBoolean(configuration.getProperty(VAULT_SERVE_STALE_ON_ERROR, "false"))){
+            staleKeys = new KeyObjectCache(
+                    Integer.parseInt(configuration.getProperty(VAULT_SERVE_STALE_MAX_SIZE, "1000")),
+                    Long.parseLong(configuration.getProperty(VAULT_SERVE_STALE_MAX_AGE_MILLISECONDS, "600000")));
+        }
+
+        negativeCache = null;
+        if(Boolean.parseBoolean(configuration.getProperty(VAULT_NEGATIVE_CACHE_ENABLED, "false"))){
+            negativeCache = new NegativeLookupCache(
+                    Integer.parseInt(configuration.getProperty(VAULT_NEGATIVE_CACHE_MAX_SIZE, "1000")),
+                    Long.parseLong(configuration.getProperty(VAULT_NEGATIVE_CACHE_TTL_MILLISECONDS, "5000")));
+        }
+
+        boolean kvV2 = routes.getRoutes().stream().anyMatch(route -> route.kvV2 != null);
+        probe = new PathProbe(
+                this::list,
+                this::getVaultObject,
+                kvV2 ? this::keyExists : null,
+                Integer.parseInt(configuration.getProperty(VAULT_CACHE_MAX_SIZE, "1000")),
+                Long.parseLong(configuration.getProperty(VAULT_PATH_PROBE_TTL_MILLISECONDS, "0")));
+
+        if(listExecutor != null){
+            listExecutor.shutdownNow();
+            listExecutor = null;
+        }
+        final int listConcurrency = Integer.parseInt(configuration.getProperty(VAULT_LIST_CONCURRENCY, "8"));
+        if(listConcurrency > 1){
+            listExecutor = Executors.newFixedThreadPool(listConcurrency,
+                    new DaemonThreadFactory("vault-storage-list"));
+        }
+        listTimeoutMilliseconds = Long.parseLong(configuration.getProperty(VAULT_LIST_TIMEOUT_MILLISECONDS, "30000"));
+        slowOperationThresholdMilliseconds = Long.parseLong(
+                configuration.getProperty(VAULT_SLOW_OPERATION_THRESHOLD_MILLISECONDS, "5000"));
+
+        if(rebalancer != null){
+            rebalancer.shutdown();
+            rebalancer = null;
+        }
+        if(client instanceof ShardedLogical && ((ShardedLogical) client).isRebalancing()){
+            rebalancer = new ShardRebalancer(routes, (ShardedLogical) client);
+            rebalancer.start();
+        }
+
+        if(refresher != null){
+            refresher.shutdown();
+            refresher = null;
+        }
+        if(Boolean.parseBoolean(configuration.getProperty(VAULT_CACHE_REFRESH_AHEAD_ENABLED, "false"))){
+            if(routes.getRoutes().stream().allMatch(route -> route.cache == null)){
+                log.warning("Vault cache refresh-ahead skipped, it requires " + VAULT_CACHE_ENABLED + "=true");
+            }else{
+                refresher = new CacheRefresher(
+                        this::refreshVaultObject,
+                        Double.parseDouble(configuration.getProperty(VAULT_CACHE_REFRESH_AHEAD_FRACTION, "0.2")),
+                        Integer.parseInt(configuration.getProperty(VAULT_CACHE_REFRESH_AHEAD_MIN_READS, "3")),
+                        Integer.parseInt(configuration.getProperty(VAULT_CACHE_REFRESH_AHEAD_CONCURRENCY, "2")),
+                        Integer.parseInt(configuration.getProperty(VAULT_CACHE_REFRESH_AHEAD_REQUESTS_PER_SECOND, "20")));
+            }
+        }
+
+        if(warmer != null){
+            warmer.shutdown();
+            warmer = null;
+        }
+        if(Boolean.parseBoolean(configuration.getProperty(VAULT_CACHE_WARMUP_ENABLED, "false"))){
+            if(routes.getRoutes().stream().allMatch(route -> route.cache == null)){
+                log.warning("Vault cache warm-up skipped, it requires " + VAULT_CACHE_ENABLED + "=true");
+            }else{
+                warmer = new CacheWarmer(
+                        this::listCacheable,
+                        this::getVaultObject,
+                        Integer.parseInt(configuration.getProperty(VAULT_CACHE_WARMUP_CONCURRENCY, "4")),
+                        Integer.parseInt(configuration.getProperty(VAULT_CACHE_WARMUP_REQUESTS_PER_SECOND, "50")));
+                warmer.start(PathUtil.asPath(""));
+            }
+        }
     }
 
-    private boolean isDir(String key) {
-        return key.endsWith("/");
+    /**
+     * Builds the client used for all key/value calls: the one of the configured cluster,
+     * or one spreading keys across the shards when more clusters are configured.
+     */
+    private Logical configureVault(Properties configuration) throws ConfigurationException {
+        //the clients first, the connections they use last
+        for (int i = clusterShutdowns.size() - 1; i >= 0; i--) {
+            clusterShutdowns.get(i).run();
+        }
+        clusterShutdowns.clear();
+        hedging = null;
+        limiters.clear();
+
+        Map<String, Properties> clusters = shardConfigurations(configuration);
+        if(clusters.size() == 1){
+            return configureCluster(DEFAULT_SHARD, configuration);
+        }
+
+        Map<String, Logical> shards = new LinkedHashMap<>();
+        for (Map.Entry<String, Properties> cluster : clusters.entrySet()) {
+            shards.put(cluster.getKey(), configureCluster(cluster.getKey(), cluster.getValue()));
+        }
+        ShardRing ring;
+        try {
+            ring = new ShardRing(new ArrayList<>(shards.keySet()),
+                    Integer.parseInt(configuration.getProperty(VAULT_SHARD_VIRTUAL_NODES, "128")));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
+        ShardedLogical sharded = new ShardedLogical(ring, shards,
+                Boolean.parseBoolean(configuration.getProperty(VAULT_SHARD_REBALANCING, "false")));
+        clusterShutdowns.add(sharded::shutdown);
+        log.info("Vault keys sharded across " + clusters.keySet());
+        return sharded;
     }
 
-    private boolean isVaultDir(String key) {
+    /**
+     * @return the configuration of every Vault cluster keys are stored in, by shard name:
+     * the plugin's own as {@value #DEFAULT_SHARD}, then each {@code shard.<name>} with its options
+     * taking precedence over the plugin's
+     */
+    static Map<String, Properties> shardConfigurations(Properties configuration) throws ConfigurationException {
+        Map<String, Properties> clusters = new LinkedHashMap<>();
+        clusters.put(DEFAULT_SHARD, configuration);
+        for (String property : new TreeSet<>(configuration.stringPropertyNames())) {
+            if(!property.startsWith(VAULT_SHARD_PREFIX) || !property.endsWith("." + VAULT_ADDRESS)){
+                continue;
+            }
+            String name = property.substring(VAULT_SHARD_PREFIX.length(),
+                    property.length() - VAULT_ADDRESS.length() - 1);
+            if(name.isEmpty() || name.contains(".") || name.equals(DEFAULT_SHARD)){
+                throw new ConfigurationException("Invalid shard name: " + property);
+            }
 
-        try{
-            if(vault.list(getVaultPath(key,vaultSecretBackend,vaultPrefix)).size() > 0){
-                return true;
-            }else{
-                if(!rundeckObject) {
-                    //key/value with multiples keys
-                    KeyObject object = this.getVaultObject(PathUtil.asPath(key));
-                    if (!object.isRundeckObject() && object.isMultiplesKeys()) {
-                        return true;
-                    }
+            Properties shard = new Properties();
+            shard.putAll(configuration);
+            String options = VAULT_SHARD_PREFIX + name + ".";
+            for (String option : configuration.stringPropertyNames()) {
+                if(option.startsWith(options)){
+                    shard.setProperty(option.substring(options.length()), configuration.getProperty(option));
                 }
+            }
+            clusters.put(name, shard);
+        }
+        return clusters;
+    }
 
-                return false;
+    /**
+     * Builds the client of a single Vault cluster, from the transport up:
+     * token renewal, hedged reads, the concurrency limit, retries with circuit breaker, then read coalescing.
+     */
+    private Logical configureCluster(String name, Properties configuration) throws ConfigurationException {
+        Logical client;
+        VaultClientProvider clientProvider = new VaultClientProvider(configuration, metrics);
+        clusterShutdowns.add(clientProvider::close);
+        if(Boolean.parseBoolean(configuration.getProperty(VAULT_TOKEN_RENEWAL_ENABLED, "true"))){
+            VaultTokenManager tokenManager = new VaultTokenManager(clientProvider);
+            clusterShutdowns.add(tokenManager::shutdown);
+            tokenManager.start();
+            client = new TokenRefreshingLogical(tokenManager);
+        }else{
+            client = clientProvider.getLogical(
+                    clientProvider.getVaultAuthToken().getClientToken());
+        }
+
+        ConcurrencyLimiter limiter = null;
+        if(Boolean.parseBoolean(configuration.getProperty(VAULT_CONCURRENCY_LIMIT_ENABLED, "false"))){
+            try {
+                limiter = new ConcurrencyLimiter(
+                        Integer.parseInt(configuration.getProperty(VAULT_CONCURRENCY_LIMIT_INITIAL, "20")),
+                        Integer.parseInt(configuration.getProperty(VAULT_CONCURRENCY_LIMIT_MIN, "4")),
+                        Integer.parseInt(configuration.getProperty(VAULT_CONCURRENCY_LIMIT_MAX, "200")),
+                        Math.min(100, Integer.parseInt(configuration.getProperty(VAULT_PROJECT_CONCURRENCY_PERCENT, "50"))) / 100.0,
+                        Integer.parseInt(configuration.getProperty(VAULT_CONCURRENCY_QUEUE_SIZE, "1000")),
+                        Long.parseLong(configuration.getProperty(VAULT_CONCURRENCY_QUEUE_TIMEOUT_MILLISECONDS, "5000")));
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException(e.getMessage());
             }
-        } catch (VaultException e) {
-            log.info("error:" + e.getMessage());
-            return false;
+            limiters.put(name, limiter);
+        }
+
+        if(Boolean.parseBoolean(configuration.getProperty(VAULT_HEDGED_READS_ENABLED, "false"))){
+            //a hedge is one more request at most, the budget can't go beyond doubling the reads
+            final int budgetPercent = Math.min(100,
+                    Integer.parseInt(configuration.getProperty(VAULT_HEDGE_BUDGET_PERCENT, "10")));
+            HedgingLogical clusterHedging = new HedgingLogical(client,
+                    Double.parseDouble(configuration.getProperty(VAULT_HEDGE_DELAY_PERCENTILE, "95")) / 100.0,
+                    Long.parseLong(configuration.getProperty(VAULT_HEDGE_MIN_DELAY_MILLISECONDS, "10")),
+                    Integer.parseInt(configuration.getProperty(VAULT_HEDGE_MAX_CONCURRENT, "16")),
+                    new RetryBudget(budgetPercent / 100.0, RETRY_BUDGET_BURST),
+                    limiter);
+            clusterShutdowns.add(clusterHedging::shutdown);
+            if(hedging == null){
+                //the default cluster is configured first
+                hedging = clusterHedging;
+            }
+            client = clusterHedging;
+        }
+
+        if(limiter != null){
+            //each attempt holds a permit while it is made, a retry takes a new one after its backoff
+            client = new LimitingLogical(client, limiter);
+        }
+
+        final int failureThreshold = Integer.parseInt(configuration.getProperty(VAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "5"));
+        client = new ResilientLogical(client,
+                Integer.parseInt(configuration.getProperty(VAULT_MAX_RETRIES)),
+                Long.parseLong(configuration.getProperty(VAULT_RETRY_INTERVAL_MILLISECONDS)),
+                Long.parseLong(configuration.getProperty(VAULT_RETRY_MAX_INTERVAL_MILLISECONDS, "10000")),
+                new RetryBudget(
+                        Integer.parseInt(configuration.getProperty(VAULT_RETRY_BUDGET_PERCENT, "20")) / 100.0,
+                        RETRY_BUDGET_BURST),
+                failureThreshold > 0
+                        ? new CircuitBreaker(failureThreshold,
+                                Long.parseLong(configuration.getProperty(VAULT_CIRCUIT_BREAKER_OPEN_MILLISECONDS, "10000")))
+                        : null);
+
+        if(Boolean.parseBoolean(configuration.getProperty(VAULT_COALESCE_READS, "true"))){
+            client = new CoalescingLogical(client);
+        }
+
+        return client;
+    }
+
+    public static String getVaultPath(String rawPath, String vaultSecretBackend, String vaultPrefix) {
+        return String.format("%s/%s/%s", vaultSecretBackend, vaultPrefix, rawPath);
+    }
+
+    /**
+     * Lists a directory in the mount it is routed to, along with the directories leading to other routes
+     * and to dynamic secrets. The keys of a dynamic secret are the fields of its current credential.
+     */
+    private List<String> list(Path path) throws VaultException {
+        DynamicSecrets.Secret secret = dynamicSecrets.secretAt(path);
+        if(secret != null){
+            return new ArrayList<>(new TreeSet<>(secret.read().keySet()));
+        }
+
+        RoutingTable.Route route = routes.routeOf(path);
+        List<String> entries = route.vault.list(route.vaultPath(path));
+        Set<String> routed = new TreeSet<>(routes.directoriesBelow(path));
+        routed.addAll(dynamicSecrets.directoriesBelow(path));
+        if(routed.isEmpty()){
+            return entries;
         }
+
+        List<String> merged = new ArrayList<>(entries);
+        for (String directory : routed) {
+            if(!merged.contains(directory)){
+                merged.add(directory);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Lists a directory for the cache warm-up, leaving out the dynamic secrets: their keys are never cached,
+     * and reading them would generate a credential nobody asked for.
+     */
+    private List<String> listCacheable(Path path) throws VaultException {
+        List<String> entries = new ArrayList<>(list(path));
+        entries.removeIf(entry -> dynamicSecrets.secretAt(PathUtil.appendPath(path, entry)) != null);
+        return entries;
+    }
+
+    private boolean isDir(String key) {
+        return key.endsWith("/");
     }
 
     private enum KeyType {
@@ -111,8 +417,15 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
         ALL
     }
 
-    private VaultResponse saveResource(Path path, ResourceMeta content, String event) {
-        ByteArrayOutputStream baoStream = new ByteArrayOutputStream();
+    /**
+     * Writes the resource and returns the key as stored, built from the written payload
+     * rather than read back from Vault.
+     */
+    private KeyObject saveResource(Path path, ResourceMeta content, String event) {
+        refuseDynamic(path, StorageException.Event.valueOf(event.toUpperCase()));
+
+        //sized up front, so the content is not copied while the buffer grows
+        ContentCodec.Buffer baoStream = new ContentCodec.Buffer(content.getContentLength());
         try {
             content.writeContent(baoStream);
         }
@@ -134,22 +447,77 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
                object=new VaultKey(path,null);
            }
         }else{
-           object = this.getVaultObject(path);
+           //Rundeck keys are not modified by saveResource and can be updated from the cache,
+           //a Vault key may change its path to the parent secret so it is always read again.
+           //On KV version 2 the key is read again too, for the version its check-and-set write is made against
+           RoutingTable.Route route = routes.routeOf(path);
+           KeyObject cached = route.cache != null && route.kvV2 == null ? route.cache.peek(path) : null;
+           object = cached instanceof RundeckKey ? cached : this.buildVaultObject(path);
         }
 
         Map<String, Object> payload=object.saveResource(content,event,baoStream);
 
+        RoutingTable.Route route = routes.routeOf(path);
+        KeyObjectCache cache = route.cache;
+        //the write invalidates the cache once, any other invalidation in between means a concurrent write
+        long started = cache != null ? cache.generation(path) : 0;
+        long generation = 0;
+        LogicalResponse response;
         try {
-            return vault.write(getVaultPath(object.getPath().getPath(),vaultSecretBackend,vaultPrefix), payload);
+            String vaultPath = route.vaultPath(object.getPath());
+            if(route.kvV2 != null){
+                //fail instead of overwriting a secret changed since it was read
+                response = event.equals("create")
+                        ? route.kvV2.create(vaultPath, payload)
+                        : route.kvV2.write(vaultPath, payload, object.getVersion());
+            }else {
+                response = route.vault.write(vaultPath, payload);
+            }
         } catch (VaultException e) {
             throw new StorageException(
                     String.format("Encountered error while writing data to Vault %s",
                                   e.getMessage()),
                     StorageException.Event.valueOf(event.toUpperCase()),
                     path);
+        } finally {
+            generation = invalidate(path);
         }
 
+        KeyObject written = writtenObject(path, object, payload, KeyObjectBuilder.versionOf(response));
+        if(cache != null && generation == started + 1){
+            cache.put(path, written, generation);
+        }
+        if(staleKeys != null){
+            staleKeys.put(path, written, staleKeys.generation(path));
+        }
+        return written;
+    }
 
+    /**
+     * The key at {@code path} after {@code payload} was written for {@code object}.
+     */
+    private KeyObject writtenObject(Path path, KeyObject object, Map<String, Object> payload, Long version) {
+        KeyObject written;
+        if(object instanceof RundeckKey){
+            Map<String, String> stored = new HashMap<>();
+            for (Map.Entry<String, Object> entry : payload.entrySet()) {
+                stored.put(entry.getKey(), entry.getValue().toString());
+            }
+            written = new RundeckKey(path, stored);
+        }else if(!object.getPath().getPath().equals(path.getPath())){
+            //a key of a multi-key secret, the whole secret was written to the parent path,
+            //which later updates and deletes of the key rewrite
+            KeyObject parent = new VaultKey(payload, object.getPath());
+            parent.setVersion(version);
+            String key = PathUtil.removePrefix(object.getPath().toString(), path.toString());
+            written = new VaultKey(path, parent);
+            written.getKeys().put(key, payload.get(key));
+            written.setMultiplesKeys(true);
+        }else{
+            written = new VaultKey(payload, path);
+        }
+        written.setVersion(version);
+        return written;
     }
 
     private Resource<ResourceMeta> loadDir(Path path) {
@@ -157,7 +525,7 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
     }
 
     private Resource<ResourceMeta> loadResource(Path path, String event) {
-        KeyObject object = this.getVaultObject(path);
+        KeyObject object = probe.load(path);
         return loadResource(object,event);
     }
 
@@ -176,11 +544,34 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     }
 
+    /**
+     * Resource with the metadata of the listed key, its content is read again when opened.
+     */
+    private Resource<ResourceMeta> loadListedResource(KeyObject object) {
+        if(object.isError()){
+            return loadResource(object, "list");
+        }
+
+        Path path = object.getPath();
+        return object.loadResource(new LazyContent(() -> {
+            KeyObject current = this.getVaultObject(path);
+            if(current.isError()){
+                throw new IOException(String.format("Encountered error while reading data from Vault %s",
+                                                    current.getErrorMessage()));
+            }
+            return current.openContent();
+        }));
+    }
+
     private Set<Resource<ResourceMeta>> listResources(Path path, KeyType type) {
+        if(dynamicSecrets.secretAt(path) != null){
+            return listDynamicResources(path, type);
+        }
+
         List<String> response;
 
         try {
-            response = vault.list(getVaultPath(path.getPath(),vaultSecretBackend,vaultPrefix));
+            response = list(path);
         } catch (VaultException e) {
             throw StorageException.listException(
                     path,
@@ -188,7 +579,7 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
                             e.getMessage()));
         }
 
-        Set<Resource<ResourceMeta>> resources = new HashSet<>();
+        Set<Resource<ResourceMeta>> resources = new LinkedHashSet<>();
 
         List<String> filtered;
         if (type.equals(KeyType.RESOURCE)) {
@@ -210,62 +601,133 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
             }
         }
 
+        final boolean multipleValues = isKeyMultipleValues;
+        final KeyObject multivalueParent = multivalueObject;
+
+        if (listExecutor == null || filtered.size() < 2) {
+            for (String item : filtered) {
+                Resource<ResourceMeta> resource = loadListItem(path, item, multipleValues, multivalueParent);
+                if(resource!=null){
+                    resources.add(resource);
+                }
+            }
+            return resources;
+        }
+
+        //read the entries concurrently, results and errors are still collected in listing order
+        List<Callable<Resource<ResourceMeta>>> tasks = new ArrayList<>(filtered.size());
         for (String item : filtered) {
-            Path itemPath = PathUtil.appendPath(path, item);
-            Resource<ResourceMeta> resource=null;
-            if (isDir(item)) {
-                resource = loadDir(itemPath);
-            } else {
-                KeyObject object = this.getVaultObject(itemPath);
-                if(rundeckObject){
-                    //normal case with rundeck format
-                    if(object.isRundeckObject()){
-                         resource = loadResource(object,"list");
-                    }
-                }else{
-                    //vault key/value format
-                    if(isKeyMultipleValues){
-                        //object with multiples keys
-                        KeyObject multipleValue= new VaultKey(itemPath, item, multivalueObject.getKeys().get(item));
-                        resource = loadResource(multipleValue,"list");
-                    }else {
-                        if(!object.isRundeckObject()){
-                            if (object.isMultiplesKeys()) {
-                                resource = loadDir(itemPath);
-                            }else {
-                                resource = loadResource(object,"list");
-                            }
-                        }
-                    }
+            tasks.add(OperationTrace.propagate(() -> loadListItem(path, item, multipleValues, multivalueParent)));
+        }
+
+        List<Future<Resource<ResourceMeta>>> futures;
+        try {
+            futures = listExecutor.invokeAll(tasks, listTimeoutMilliseconds, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw StorageException.listException(
+                    path,
+                    "Interrupted while reading data from Vault");
+        }
+
+        for (Future<Resource<ResourceMeta>> future : futures) {
+            Resource<ResourceMeta> resource;
+            try {
+                resource = future.get();
+            } catch (CancellationException e) {
+                throw StorageException.listException(
+                        path,
+                        String.format("Timed out after %d ms while reading data from Vault",
+                                listTimeoutMilliseconds));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw StorageException.listException(
+                        path,
+                        "Interrupted while reading data from Vault");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
                 }
+                throw StorageException.listException(
+                        path,
+                        String.format("Encountered error while reading data from Vault %s",
+                                e.getCause().getMessage()));
             }
 
             if(resource!=null){
                 resources.add(resource);
             }
-
         }
 
         return resources;
     }
 
-    @Override
-    public boolean hasPath(Path path) {
+    /**
+     * The keys of a dynamic secret, listed in both storage behaviours since they are never Rundeck keys.
+     */
+    private Set<Resource<ResourceMeta>> listDynamicResources(Path path, KeyType type) {
+        Set<Resource<ResourceMeta>> resources = new LinkedHashSet<>();
+        if(type.equals(KeyType.DIRECTORY)){
+            return resources;
+        }
+
+        //every key from the same credential, a user name is never listed with the password of another
+        DynamicSecrets.Secret secret = dynamicSecrets.secretAt(path);
+        Map<String, String> credential;
         try {
-            if(vault.list(getVaultPath(path.getPath(),vaultSecretBackend,vaultPrefix)).size() > 0){
-                return true;
-            }
+            credential = secret.read();
+        } catch (VaultException e) {
+            throw StorageException.listException(
+                    path,
+                    String.format("Encountered error while reading data from Vault %s",
+                            e.getMessage()));
+        }
+        for (String field : new TreeSet<>(credential.keySet())) {
+            resources.add(loadResource(dynamicObject(secret, PathUtil.appendPath(path, field), credential), "list"));
+        }
+        return resources;
+    }
 
-            KeyObject object = this.getVaultObject(path);
-            if(!object.isRundeckObject()&& object.isMultiplesKeys()){
-                return true;
+    private Resource<ResourceMeta> loadListItem(Path path,
+                                                String item,
+                                                boolean isKeyMultipleValues,
+                                                KeyObject multivalueObject) {
+        Path itemPath = PathUtil.appendPath(path, item);
+        Resource<ResourceMeta> resource=null;
+        if (isDir(item)) {
+            resource = loadDir(itemPath);
+        } else {
+            KeyObject object = this.getVaultObject(itemPath);
+            if(rundeckObject){
+                //normal case with rundeck format
+                if(object.isRundeckObject()){
+                     resource = loadListedResource(object);
+                }
+            }else{
+                //vault key/value format
+                if(isKeyMultipleValues){
+                    //object with multiples keys
+                    KeyObject multipleValue= new VaultKey(itemPath, item, multivalueObject.getKeys().get(item));
+                    resource = loadResource(multipleValue,"list");
+                }else {
+                    if(!object.isRundeckObject()){
+                        if (object.isMultiplesKeys()) {
+                            resource = loadDir(itemPath);
+                        }else {
+                            resource = loadListedResource(object);
+                        }
+                    }
+                }
             }
-
-            //check if the path is a key
-            return hasResource(path);
-        } catch (VaultException e) {
-            return false;
         }
+
+        return resource;
+    }
+
+    @Override
+    public boolean hasPath(Path path) {
+        //a key inside a multi-key secret exists as a key as well
+        return operation("plugin.hasPath", path, () -> probe.isDirectory(path) || probe.keyExists(path));
     }
 
     @Override
@@ -275,13 +737,7 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     @Override
     public boolean hasResource(Path path) {
-        KeyObject object=getVaultObject(path);
-
-        if(object.isError()){
-            return false;
-        }else{
-            return true;
-        }
+        return operation("plugin.hasResource", path, () -> probe.keyExists(path));
     }
 
     @Override
@@ -291,23 +747,14 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     @Override
     public boolean hasDirectory(Path path) {
-        try {
-            List<String> list=vault.list(getVaultPath(path.getPath(),vaultSecretBackend,vaultPrefix));
-
-            if(list.size() > 0){
-                return list.size() > 0;
-            }else{
-                KeyObject object = this.getVaultObject(path);
-                if(object.isRundeckObject()==false && object.isMultiplesKeys()){
-                    return true;
-                }
+        return operation("plugin.hasDirectory", path, () -> {
+            if(probe.isDirectory(path)){
+                return true;
             }
 
-            return false;
-
-        } catch (VaultException e) {
-            return false;
-        }
+            //secrets with multiple keys are shown as directories, a single read tells both whether it exists and its kind
+            return probe.keyKind(path) == PathProbe.Kind.MULTI_KEY_SECRET;
+        });
     }
 
     @Override
@@ -317,11 +764,18 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     @Override
     public Resource<ResourceMeta> getPath(Path path) {
-        if (isVaultDir(path.toString())) {
-            return loadDir(path);
-        } else {
-            return loadResource(path, "read");
-        }
+        return operation("plugin.getPath", path, () -> {
+            if (probe.isDirectory(path)) {
+                return loadDir(path);
+            }
+
+            KeyObject object = probe.load(path);
+            if (!rundeckObject && PathProbe.kindOf(object) == PathProbe.Kind.MULTI_KEY_SECRET) {
+                //key/value with multiples keys
+                return loadDir(path);
+            }
+            return loadResource(object, "read");
+        });
     }
 
     @Override
@@ -331,7 +785,7 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     @Override
     public Resource<ResourceMeta> getResource(Path path) {
-        return loadResource(path, "read");
+        return operation("plugin.getResource", path, () -> loadResource(path, "read"));
     }
 
     @Override
@@ -341,7 +795,7 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     @Override
     public Set<Resource<ResourceMeta>> listDirectoryResources(Path path) {
-        return listResources(path, KeyType.RESOURCE);
+        return operation("plugin.listDirectoryResources", path, () -> listResources(path, KeyType.RESOURCE));
     }
 
     @Override
@@ -351,7 +805,7 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     @Override
     public Set<Resource<ResourceMeta>> listDirectory(Path path) {
-        return listResources(path, KeyType.ALL);
+        return operation("plugin.listDirectory", path, () -> listResources(path, KeyType.ALL));
     }
 
     @Override
@@ -361,7 +815,7 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     @Override
     public Set<Resource<ResourceMeta>> listDirectorySubdirs(Path path) {
-        return listResources(path, KeyType.DIRECTORY);
+        return operation("plugin.listDirectorySubdirs", path, () -> listResources(path, KeyType.DIRECTORY));
     }
 
     @Override
@@ -371,8 +825,16 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     @Override
     public boolean deleteResource(Path path) {
-        KeyObject object = this.getVaultObject(path);
-        return object.delete(vault,vaultSecretBackend,vaultPrefix);
+        return writeOperation("plugin.deleteResource", path, () -> {
+            refuseDynamic(path, StorageException.Event.DELETE);
+            KeyObject object = this.buildVaultObject(path);
+            RoutingTable.Route route = routes.routeOf(path);
+            try {
+                return object.delete(route.vault,route.secretBackend,route.vaultPrefix);
+            } finally {
+                invalidate(path);
+            }
+        });
     }
 
     @Override
@@ -382,8 +844,8 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     @Override
     public Resource<ResourceMeta> createResource(Path path, ResourceMeta content) {
-        saveResource(path, content, "create");
-        return loadResource(path, "read");
+        return writeOperation("plugin.createResource", path,
+                () -> loadResource(saveResource(path, content, "create"), "read"));
     }
 
     @Override
@@ -393,8 +855,8 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
 
     @Override
     public Resource<ResourceMeta> updateResource(Path path, ResourceMeta content) {
-        saveResource(path, content, "update");
-        return loadResource(path, "read");
+        return writeOperation("plugin.updateResource", path,
+                () -> loadResource(saveResource(path, content, "update"), "read"));
     }
 
     @Override
@@ -402,17 +864,265 @@ public class VaultStoragePlugin implements StoragePlugin, Configurable, Describa
         return updateResource(PathUtil.asPath(path), content);
     }
 
+    /**
+     * Times a storage operation, and logs the Vault calls it made if it is slow.
+     */
+    private <T> T operation(String name, Path path, Supplier<T> call) {
+        return OperationTrace.run(name, path, slowOperationThresholdMilliseconds,
+                () -> metrics.timeOperation(name, call));
+    }
+
+    /**
+     * A storage operation writing to Vault, whose reads all go to the active node when reads are load balanced.
+     */
+    private <T> T writeOperation(String name, Path path, Supplier<T> call) {
+        return operation(name, path, () -> LoadBalancedTransport.onActiveNode(call));
+    }
+
+    /**
+     * @return the hedging client of the default cluster, null unless reads are hedged
+     */
+    HedgingLogical getHedging() {
+        return hedging;
+    }
+
+    /**
+     * @return the warm-up started by the last configuration, null unless the cache is warmed up
+     */
+    CacheWarmer getWarmer() {
+        return warmer;
+    }
+
+    /**
+     * @return the rebalancing started by the last configuration, null unless shards are rebalanced
+     */
+    ShardRebalancer getRebalancer() {
+        return rebalancer;
+    }
+
+    /**
+     * @return null unless hot keys are refreshed before their cache entry expires
+     */
+    CacheRefresher getRefresher() {
+        return refresher;
+    }
+
+    /**
+     * @return the concurrency limits by shard name, empty unless concurrent requests are limited
+     */
+    Map<String, ConcurrencyLimiter> getLimiters() {
+        return Collections.unmodifiableMap(limiters);
+    }
+
+    VaultMetrics getMetrics() {
+        return metrics;
+    }
+
     public KeyObject getVaultObject(Path path){
+        DynamicSecrets.Secret secret = dynamicSecrets.secretOf(path);
+        if(secret != null){
+            return dynamicObject(secret, path);
+        }
+
+        KeyObjectCache cache = routes.routeOf(path).cache;
+        if(cache != null){
+            KeyObject cached = cache.get(path);
+            if(cached != null){
+                if(refresher != null){
+                    refresher.read(path, cache);
+                }
+                return cached;
+            }
+        }
+
+        long generation = cache != null ? cache.generation(path) : 0;
+        long staleGeneration = staleKeys != null ? staleKeys.generation(path) : 0;
+        KeyObject value = buildVaultObject(path);
+        if(!value.isError()){
+            if(cache != null){
+                cache.put(path, value, generation);
+            }
+            if(staleKeys != null){
+                staleKeys.put(path, value, staleGeneration);
+            }
+        }else if(value.isUnavailable()){
+            KeyObject stale = stale(path, value.getErrorMessage());
+            if(stale != null){
+                return stale;
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * A key of a dynamic secret, one field of its current credential. Neither cached nor served stale:
+     * the credential is shared for as long as its lease allows.
+     */
+    private KeyObject dynamicObject(DynamicSecrets.Secret secret, Path path){
+        if(path.getPath().equals(secret.path.getPath())){
+            return dynamicObject(secret, path, Collections.emptyMap());
+        }
+        Map<String, String> credential;
+        try {
+            credential = secret.read();
+        } catch (VaultException e) {
+            KeyObject object = new RundeckKey(path);
+            object.setError(true);
+            object.setErrorMessage(e.getMessage());
+            object.setUnavailable(ResilientLogical.isRetryable(e));
+            return object;
+        }
+        return dynamicObject(secret, path, credential);
+    }
+
+    /**
+     * A key of a dynamic secret, one field of {@code credential}, read once for all the keys built from it.
+     */
+    private KeyObject dynamicObject(DynamicSecrets.Secret secret, Path path, Map<String, String> credential){
+        KeyObject object = new RundeckKey(path);
+        object.setError(true);
+        if(path.getPath().equals(secret.path.getPath())){
+            object.setErrorMessage(String.format("%s holds the credentials generated at %s", path, secret.vaultPath));
+            return object;
+        }
+
+        String field = PathUtil.removePrefix(secret.path.toString(), path.toString());
+        Object value = credential.get(field);
+        if(value == null){
+            object.setErrorMessage(String.format("No %s in the credentials generated at %s", field, secret.vaultPath));
+            return object;
+        }
+        return new VaultKey(path, field, value);
+    }
+
+    private void refuseDynamic(Path path, StorageException.Event event){
+        DynamicSecrets.Secret secret = dynamicSecrets.secretOf(path);
+        if(secret != null){
+            throw new StorageException(
+                    String.format("%s is generated by Vault at %s and can't be changed", path, secret.vaultPath),
+                    event,
+                    path);
+        }
+    }
+
+    /**
+     * Reads the key for {@link CacheRefresher}, which stores it in the cache itself.
+     */
+    private KeyObject refreshVaultObject(Path path){
+        long staleGeneration = staleKeys != null ? staleKeys.generation(path) : 0;
+        KeyObject value = buildVaultObject(path);
+        if(!value.isError() && staleKeys != null){
+            staleKeys.put(path, value, staleGeneration);
+        }
+        return value;
+    }
+
+    /**
+     * @return the last value read of the key if it is recent enough to be served while Vault is unavailable,
+     * null if there is none
+     */
+    private KeyObject stale(Path path, String error){
+        if(staleKeys == null){
+            return null;
+        }
+        long age = staleKeys.ageOf(path);
+        KeyObject stale = staleKeys.get(path);
+        if(stale != null){
+            log.warning(String.format("Vault unavailable, serving %s as read %d ms ago: %s", path, age, error));
+        }
+        return stale;
+    }
 
+    /**
+     * @return number of keys served stale while Vault was unavailable
+     */
+    long getStaleServeCount() {
+        return staleKeys != null ? staleKeys.getHitCount() : 0;
+    }
+
+    /**
+     * Existence check of a key, against KV version 2 metadata where the key is routed to a version 2 engine.
+     */
+    private boolean keyExists(Path path) throws VaultException {
+        RoutingTable.Route route = routes.routeOf(path);
+        if(route.kvV2 == null || dynamicSecrets.secretOf(path) != null){
+            KeyObject object = getVaultObject(path);
+            if(object.isUnavailable()){
+                throw new VaultException(object.getErrorMessage());
+            }
+            return !object.isError();
+        }
+        //a missing key is still resolved through its parent, see KeyObjectBuilder
+        return secretExists(route, path) || secretExists(route, PathUtil.parentPath(path));
+    }
+
+    /**
+     * Existence check against KV version 2 metadata, so that the secret itself is not transferred.
+     */
+    private boolean secretExists(RoutingTable.Route route, Path path) throws VaultException {
+        if(route.cache != null && route.cache.contains(path)){
+            return true;
+        }
+        if(negativeCache != null && negativeCache.isMissing(path)){
+            return false;
+        }
+
+        long generation = negativeCache != null ? negativeCache.generation() : 0;
+        try {
+            if(route.kvV2.exists(route.vaultPath(path))){
+                return true;
+            }
+            if(negativeCache != null){
+                negativeCache.markMissing(path, generation);
+            }
+            return false;
+        } catch (VaultException e) {
+            if(ResilientLogical.isRetryable(e)){
+                if(stale(path, e.getMessage()) != null){
+                    return true;
+                }
+                throw e;
+            }
+            log.info("error:" + e.getMessage());
+            return false;
+        }
+    }
+
+    private KeyObject buildVaultObject(Path path){
+
+        RoutingTable.Route route = routes.routeOf(path);
         KeyObject value= KeyObjectBuilder.builder()
                                 .path(path)
-                                .vault(vault)
-                                .vaultPrefix(vaultPrefix)
+                                .vault(route.vault)
+                                .vaultPrefix(route.vaultPrefix)
+                                .vaultSecretBackend(route.secretBackend)
+                                .negativeCache(negativeCache)
                                 .build();
 
         return value;
     }
 
+    /**
+     * @return the generation of the key cache started by the invalidation, 0 without a cache
+     */
+    private long invalidate(Path path){
+        KeyObjectCache cache = routes.routeOf(path).cache;
+        long generation = 0;
+        if(cache != null){
+            generation = cache.invalidate(path);
+            log.fine("cache invalidated for " + path + ": " + cache);
+        }
+        if(negativeCache != null){
+            negativeCache.invalidate(path);
+        }
+        if(staleKeys != null){
+            staleKeys.invalidate(path);
+        }
+        probe.invalidate(path);
+        return generation;
+    }
+
 
 
 }
\ No newline at end of file
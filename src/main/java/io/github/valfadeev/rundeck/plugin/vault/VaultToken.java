@@ -0,0 +1,44 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+/**
+ * Vault client token together with its lease.
+ */
+class VaultToken {
+
+    private final String clientToken;
+    private final long leaseDurationSeconds;
+    private final boolean renewable;
+
+    VaultToken(String clientToken, long leaseDurationSeconds, boolean renewable) {
+        this.clientToken = clientToken;
+        this.leaseDurationSeconds = leaseDurationSeconds;
+        this.renewable = renewable;
+    }
+
+    String getClientToken() {
+        return clientToken;
+    }
+
+    /**
+     * @return lease duration in seconds, 0 for tokens that never expire
+     */
+    long getLeaseDurationSeconds() {
+        return leaseDurationSeconds;
+    }
+
+    boolean isRenewable() {
+        return renewable;
+    }
+
+    boolean isExpiring() {
+        return leaseDurationSeconds > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "VaultToken{" +
+               "leaseDurationSeconds=" + leaseDurationSeconds +
+               ", renewable=" + renewable +
+               '}';
+    }
+}
@@ -0,0 +1,239 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.bettercloud.vault.Vault;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.AuthResponse;
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
+
+/**
+ * Keeps the plugin's Vault token valid for the life of the plugin.
+ * Expiring tokens are renewed in the background once {@link #RENEW_AFTER}
+ * of their lease has passed, and replaced by a new login when they
+ * can't be renewed any more or Vault stops accepting them. Renewals and logins
+ * are made on the token thread, never while holding the lock request threads take.
+ */
+class VaultTokenManager {
+
+    private static final double RENEW_AFTER = 2.0 / 3.0;
+    private static final long RETRY_DELAY_MILLISECONDS = 30000;
+    //a token that passed a lookup this recently is not checked again after a 403
+    private static final long VALIDATION_INTERVAL_MILLISECONDS = 1000;
+
+    java.util.logging.Logger log = java.util.logging.Logger.getLogger("vault-storage");
+
+    private final VaultClientProvider clientProvider;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile Session session;
+    //guarded by this
+    private ScheduledFuture<?> renewal;
+    private long lastValidated;
+    //login in progress after a 403, shared by the requests that were rejected
+    private CompletableFuture<Session> pendingLogin;
+
+    VaultTokenManager(VaultClientProvider clientProvider) {
+        this.clientProvider = clientProvider;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new DaemonThreadFactory("vault-storage-token"));
+        executor.setRemoveOnCancelPolicy(true);
+        this.scheduler = executor;
+    }
+
+    /**
+     * Logs in and schedules the renewal of the token.
+     */
+    synchronized void start() throws ConfigurationException {
+        session = newSession(clientProvider.getVaultAuthToken());
+        scheduleRenewal(session);
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    Session session() {
+        return session;
+    }
+
+    /**
+     * Called when Vault rejected a request made with the token of {@code failed}.
+     * The token is checked and a new one obtained on the token thread, concurrent callers
+     * wait for the same login instead of each making their own, and no lock is held meanwhile.
+     *
+     * @return the session to retry the request with, or null if the token is still valid
+     * and the request was denied by policy, or there is no way to obtain another token
+     */
+    Session reauthenticate(Session failed) throws VaultException {
+        CompletableFuture<Session> login;
+        synchronized (this) {
+            if (session != failed) {
+                //rotated while the request was in flight
+                return session;
+            }
+            if (!clientProvider.canReauthenticate()
+                || System.currentTimeMillis() - lastValidated < VALIDATION_INTERVAL_MILLISECONDS) {
+                return null;
+            }
+            if (pendingLogin == null) {
+                CompletableFuture<Session> started = new CompletableFuture<>();
+                try {
+                    scheduler.execute(() -> reauthenticate(failed, started));
+                } catch (RejectedExecutionException e) {
+                    throw new VaultException("Vault token manager is shut down");
+                }
+                pendingLogin = started;
+            }
+            login = pendingLogin;
+        }
+
+        try {
+            return login.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VaultException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof VaultException) {
+                throw (VaultException) e.getCause();
+            }
+            throw new VaultException(e.getCause());
+        }
+    }
+
+    private void reauthenticate(Session failed, CompletableFuture<Session> login) {
+        Session replacement = null;
+        VaultException error = null;
+        try {
+            if (session != failed) {
+                //renewed by the token thread before the login got its turn
+                replacement = session;
+            } else if (!isStillValid(failed)) {
+                log.info("Vault rejected the auth token, logging in again");
+                replacement = newSession(clientProvider.getVaultAuthToken());
+            }
+        } catch (ConfigurationException | RuntimeException e) {
+            error = new VaultException(e.getMessage());
+        }
+
+        synchronized (this) {
+            pendingLogin = null;
+            if (replacement != null && session == failed) {
+                session = replacement;
+                scheduleRenewal(replacement);
+            } else if (replacement == null && error == null) {
+                lastValidated = System.currentTimeMillis();
+            }
+        }
+        if (error != null) {
+            login.completeExceptionally(error);
+        } else {
+            login.complete(replacement != null ? session : null);
+        }
+    }
+
+    private boolean isStillValid(Session candidate) {
+        try {
+            clientProvider.getMetrics().time("vault.auth.lookup", "auth/token/lookup-self",
+                    () -> candidate.client.auth().lookupSelf());
+            return true;
+        } catch (VaultException e) {
+            return false;
+        }
+    }
+
+    //on the token thread, Vault is called without holding the lock so that requests needing a new token aren't blocked
+    private void renew(Session expected) {
+        if (session != expected) {
+            return;
+        }
+
+        Session renewed = null;
+        try {
+            if (expected.token.isRenewable()) {
+                AuthResponse response = clientProvider.getMetrics().time("vault.auth.renew", "auth/token/renew-self",
+                        () -> expected.client.auth().renewSelf());
+                if (response.getAuthLeaseDuration() > 0) {
+                    renewed = new Session(
+                            new VaultToken(expected.token.getClientToken(),
+                                    response.getAuthLeaseDuration(),
+                                    response.isAuthRenewable()),
+                            expected.client,
+                            expected.logical);
+                }
+            }
+        } catch (VaultException e) {
+            log.warning("Failed to renew Vault auth token: " + e.getMessage());
+        }
+
+        if (renewed == null && !clientProvider.canReauthenticate()) {
+            log.warning("Vault auth token can't be renewed and will expire");
+            return;
+        }
+        if (renewed == null) {
+            try {
+                renewed = newSession(clientProvider.getVaultAuthToken());
+            } catch (ConfigurationException e) {
+                log.warning("Failed to log in to Vault: " + e.getMessage());
+            }
+        }
+
+        synchronized (this) {
+            if (session != expected) {
+                //replaced after a 403 in the meantime
+                return;
+            }
+            if (renewed == null) {
+                renewal = scheduler.schedule(() -> renew(expected),
+                        RETRY_DELAY_MILLISECONDS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            session = renewed;
+            scheduleRenewal(renewed);
+        }
+    }
+
+    private void scheduleRenewal(Session current) {
+        if (renewal != null) {
+            renewal.cancel(false);
+            renewal = null;
+        }
+        if (!current.token.isExpiring()) {
+            return;
+        }
+        long delay = (long) (TimeUnit.SECONDS.toMillis(current.token.getLeaseDurationSeconds()) * RENEW_AFTER);
+        renewal = scheduler.schedule(() -> renew(current), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private Session newSession(VaultToken token) throws ConfigurationException {
+        return new Session(token,
+                clientProvider.getVaultClient(token.getClientToken()),
+                clientProvider.getLogical(token.getClientToken()));
+    }
+
+    /**
+     * A token and the clients that send it.
+     */
+    static class Session {
+        private final VaultToken token;
+        private final Vault client;
+        private final Logical logical;
+
+        Session(VaultToken token, Vault client, Logical logical) {
+            this.token = token;
+            this.client = client;
+            this.logical = logical;
+        }
+
+        Logical logical() {
+            return logical;
+        }
+    }
+}
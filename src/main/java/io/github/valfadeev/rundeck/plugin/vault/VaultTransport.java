@@ -0,0 +1,23 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.bettercloud.vault.rest.RestResponse;
+
+/**
+ * Sends HTTP requests to the Vault API on behalf of {@link TransportLogical}.
+ */
+interface VaultTransport extends Closeable {
+
+    /**
+     * @param method HTTP method
+     * @param path   API path below {@code /v1/}, percent-encoded, including any query string
+     * @param token  Vault token sent with the request, may be null
+     * @param body   JSON request body, or null for none
+     */
+    RestResponse send(String method, String path, String token, byte[] body) throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,133 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class CacheRefresherTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+    private final KeyObjectCache cache = new KeyObjectCache(10, 1000, now::get);
+    private final Set<String> loaded = new ConcurrentSkipListSet<>();
+    private CountDownLatch loading = new CountDownLatch(0);
+    private CacheRefresher refresher;
+
+    @After
+    public void tearDown() {
+        if (refresher != null) {
+            refresher.shutdown();
+        }
+    }
+
+    private CacheRefresher refresher(int requestsPerSecond) {
+        refresher = new CacheRefresher(path -> {
+            try {
+                loading.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            loaded.add(path.getPath());
+            return new RundeckKey(path);
+        }, 0.2, 3, 2, requestsPerSecond);
+        return refresher;
+    }
+
+    private Path stored(String key) {
+        Path path = PathUtil.asPath(key);
+        cache.put(path, new RundeckKey(path), cache.generation(path));
+        return path;
+    }
+
+    private void read(Path path, int times) {
+        for (int i = 0; i < times; i++) {
+            assertThat(cache.get(path), is(notNullValue()));
+            refresher.read(path, cache);
+        }
+    }
+
+    private static void await(LongSupplier count, long expected) throws InterruptedException {
+        for (int i = 0; i < 500 && count.getAsLong() < expected; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(count.getAsLong(), is(expected));
+    }
+
+    @Test
+    public void hotKeyIsRefreshedBeforeItExpires() throws Exception {
+        refresher(0);
+        Path path = stored("keys/hot");
+
+        //not yet in the last fifth of its TTL
+        read(path, 3);
+        assertThat(loaded.isEmpty(), is(true));
+
+        now.addAndGet(850);
+        read(path, 1);
+        await(refresher::getRefreshCount, 1);
+        assertThat(loaded, hasItem("keys/hot"));
+
+        //stored again when refreshed, past the first expiry
+        now.addAndGet(300);
+        assertThat(cache.get(path), is(notNullValue()));
+        assertThat(cache.getMissCount(), is(0L));
+    }
+
+    @Test
+    public void coldKeyExpires() throws Exception {
+        refresher(0);
+        Path path = stored("keys/cold");
+
+        read(path, 1);
+        now.addAndGet(850);
+        read(path, 1);
+        assertThat(loaded.isEmpty(), is(true));
+
+        now.addAndGet(150);
+        assertThat(cache.get(path), is(nullValue()));
+    }
+
+    @Test
+    public void refreshesBeyondTheRateAreSkipped() throws Exception {
+        refresher(1);
+        Path first = stored("keys/first");
+        Path second = stored("keys/second");
+
+        read(first, 3);
+        read(second, 3);
+        now.addAndGet(850);
+        read(first, 1);
+        read(second, 1);
+
+        await(refresher::getRefreshCount, 1);
+        assertThat(refresher.getMissedCount(), is(1L));
+        assertThat(loaded, hasItem("keys/first"));
+    }
+
+    @Test
+    public void keyWrittenDuringRefreshIsNotOverwritten() throws Exception {
+        loading = new CountDownLatch(1);
+        refresher(0);
+        Path path = stored("keys/written");
+
+        read(path, 3);
+        now.addAndGet(850);
+        read(path, 3);
+        cache.invalidate(path);
+        loading.countDown();
+
+        await(refresher::getRefreshCount, 1);
+        assertThat(loaded.size(), is(1));
+        assertThat(cache.get(path), is(nullValue()));
+    }
+}
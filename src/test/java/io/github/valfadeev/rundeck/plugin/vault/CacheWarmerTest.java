@@ -0,0 +1,86 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
+import com.bettercloud.vault.VaultException;
+import org.junit.Test;
+import org.rundeck.storage.api.PathUtil;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class CacheWarmerTest {
+
+    private final InMemoryLogical backend = new InMemoryLogical()
+            .put("secret/rundeck/keys/a", Collections.singletonMap("value", "1"))
+            .put("secret/rundeck/keys/db/password", Collections.singletonMap("value", "2"))
+            .put("secret/rundeck/keys/db/ssh/id_rsa", Collections.singletonMap("value", "3"));
+
+    private final Set<String> loaded = new ConcurrentSkipListSet<>();
+    //loaded as an error object
+    private volatile String unreadable;
+
+    private CacheWarmer warmer(int requestsPerSecond) {
+        return new CacheWarmer(
+                path -> backend.list("secret/rundeck/" + path.getPath()),
+                path -> {
+                    loaded.add(path.getPath());
+                    KeyObject object = new RundeckKey(path);
+                    if (path.getPath().equals(unreadable)) {
+                        object.setError(true);
+                        object.setErrorMessage("permission denied");
+                    }
+                    return object;
+                },
+                2,
+                requestsPerSecond);
+    }
+
+    @Test
+    public void loadsEveryKeyBelowTheRoot() throws Exception {
+        CacheWarmer warmer = warmer(0);
+        warmer.start(PathUtil.asPath("keys"));
+
+        assertThat(warmer.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(loaded, hasItems("keys/a", "keys/db/password", "keys/db/ssh/id_rsa"));
+        assertThat(warmer.getKeyCount(), is(3));
+        assertThat(warmer.getDirectoryCount(), is(3));
+        assertThat(warmer.getErrorCount(), is(0));
+    }
+
+    @Test
+    public void countsFailedListingsAndCompletes() throws Exception {
+        backend.failure = new VaultException("unavailable", 503);
+        CacheWarmer warmer = warmer(0);
+        warmer.start(PathUtil.asPath("keys"));
+
+        assertThat(warmer.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(warmer.getErrorCount(), is(1));
+        assertThat(loaded.isEmpty(), is(true));
+    }
+
+    @Test
+    public void countsKeysThatFailToLoad() throws Exception {
+        unreadable = "keys/db/password";
+        CacheWarmer warmer = warmer(0);
+        warmer.start(PathUtil.asPath("keys"));
+
+        assertThat(warmer.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(warmer.getKeyCount(), is(2));
+        assertThat(warmer.getErrorCount(), is(1));
+    }
+
+    @Test
+    public void limitsRequestRate() throws Exception {
+        CacheWarmer warmer = warmer(20);
+        long started = System.nanoTime();
+        warmer.start(PathUtil.asPath("keys"));
+
+        assertThat(warmer.await(5, TimeUnit.SECONDS), is(true));
+        //6 requests at 20 per second, the first one is not delayed
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 250, is(true));
+    }
+}
@@ -0,0 +1,149 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.response.LogicalResponse;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class CoalescingLogicalTest {
+
+    private static final int CALLERS = 8;
+
+    @Test
+    public void concurrentReadsShareOneRequest() throws Exception {
+        InMemoryLogical backend = new InMemoryLogical()
+                .put("secret/rundeck/keys/a", Collections.singletonMap("value", "x"));
+        CountDownLatch release = new CountDownLatch(1);
+        backend.beforeCall = () -> awaitQuietly(release);
+        CoalescingLogical vault = new CoalescingLogical(backend);
+
+        List<Future<LogicalResponse>> results = readConcurrently(vault, "secret/rundeck/keys/a", release);
+
+        for (Future<LogicalResponse> result : results) {
+            assertThat(result.get().getData().get("value"), is("x"));
+        }
+        assertThat(backend.calls("read"), is(1));
+    }
+
+    @Test
+    public void concurrentReadsShareTheError() throws Exception {
+        InMemoryLogical backend = new InMemoryLogical();
+        CountDownLatch release = new CountDownLatch(1);
+        backend.beforeCall = () -> awaitQuietly(release);
+        CoalescingLogical vault = new CoalescingLogical(backend);
+
+        List<Future<LogicalResponse>> results = readConcurrently(vault, "secret/rundeck/keys/missing", release);
+
+        for (Future<LogicalResponse> result : results) {
+            try {
+                result.get();
+                fail("expected the read to fail");
+            } catch (ExecutionException e) {
+                assertThat(((VaultException) e.getCause()).getHttpStatusCode(), is(404));
+            }
+        }
+        assertThat(backend.calls("read"), is(1));
+    }
+
+    @Test
+    public void sequentialReadsAreNotShared() throws Exception {
+        InMemoryLogical backend = new InMemoryLogical()
+                .put("secret/rundeck/keys/a", Collections.singletonMap("value", "x"));
+        CoalescingLogical vault = new CoalescingLogical(backend);
+
+        vault.read("secret/rundeck/keys/a");
+        vault.read("secret/rundeck/keys/a");
+
+        assertThat(backend.calls("read"), is(2));
+    }
+
+    @Test
+    public void writeThroughAnotherEndpointIsNotJoined() throws Exception {
+        InMemoryLogical backend = new InMemoryLogical()
+                .put("kv/data/rundeck/keys/a", Collections.singletonMap("value", "old"));
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch reading = new CountDownLatch(1);
+        backend.beforeCall = () -> {
+            if (reading.getCount() > 0) {
+                reading.countDown();
+                awaitQuietly(release);
+            }
+        };
+        //as KvV2Logical sends them
+        CoalescingLogical vault = new CoalescingLogical(backend);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<LogicalResponse> before = executor.submit(() -> vault.read("kv/data/rundeck/keys/a"));
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+            //deleted through the metadata endpoint while the data read is outstanding
+            vault.delete("kv/metadata/rundeck/keys/a");
+            backend.put("kv/data/rundeck/keys/a", Collections.singletonMap("value", "new"));
+
+            Future<LogicalResponse> after = executor.submit(() -> vault.read("kv/data/rundeck/keys/a"));
+            assertThat(after.get(5, TimeUnit.SECONDS).getData().get("value"), is("new"));
+            release.countDown();
+            before.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(backend.calls("read"), is(2));
+    }
+
+    @Test
+    public void secretOfStripsTheKvVersion2Endpoint() {
+        assertThat(CoalescingLogical.secretOf("kv/data/rundeck/keys/a"), is("kv/rundeck/keys/a"));
+        assertThat(CoalescingLogical.secretOf("kv/metadata/rundeck/keys/a"), is("kv/rundeck/keys/a"));
+        assertThat(CoalescingLogical.secretOf("kv/metadata/rundeck/keys/data/a"), is("kv/rundeck/keys/data/a"));
+        assertThat(CoalescingLogical.secretOf("secret/rundeck/keys/a"), is("secret/rundeck/keys/a"));
+    }
+
+    private static List<Future<LogicalResponse>> readConcurrently(CoalescingLogical vault,
+                                                                  String path,
+                                                                  CountDownLatch release) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        CountDownLatch started = new CountDownLatch(CALLERS);
+        List<Future<LogicalResponse>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(executor.submit(() -> {
+                    started.countDown();
+                    return vault.read(path);
+                }));
+            }
+            started.await(5, TimeUnit.SECONDS);
+            //give the callers time to join the outstanding request before it completes
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<LogicalResponse> result : results) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException ignored) {
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
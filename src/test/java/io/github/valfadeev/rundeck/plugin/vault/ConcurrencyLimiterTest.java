@@ -0,0 +1,273 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.ObjectName;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.response.LogicalResponse;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class ConcurrencyLimiterTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private List<Future<String>> blocked(ConcurrencyLimiter limiter,
+                                         String project,
+                                         int calls,
+                                         CountDownLatch release,
+                                         AtomicInteger running,
+                                         AtomicInteger maxRunning) {
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < calls; i++) {
+            futures.add(executor.submit(() -> limiter.call(project, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new VaultException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+                return project;
+            })));
+        }
+        return futures;
+    }
+
+    private static void awaitQueued(ConcurrencyLimiter limiter, int queued) throws InterruptedException {
+        for (int i = 0; i < 500 && limiter.getQueueDepth() < queued; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(limiter.getQueueDepth(), is(queued));
+    }
+
+    @Test
+    public void callsBeyondTheLimitQueue() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 2, 2, 1.0, 10, 10000);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        List<Future<String>> calls = blocked(limiter, null, 6, release, running, maxRunning);
+        awaitQueued(limiter, 4);
+        assertThat(limiter.getInFlight(), is(2));
+
+        release.countDown();
+        for (Future<String> call : calls) {
+            call.get(10, TimeUnit.SECONDS);
+        }
+        assertThat(maxRunning.get(), is(2));
+        assertThat(limiter.getInFlight(), is(0));
+        assertThat(limiter.getRejectedCount(), is(0L));
+    }
+
+    @Test
+    public void busyProjectLeavesRoomForOthers() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 4, 4, 0.5, 10, 10000);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        List<Future<String>> busy = blocked(limiter, "busy", 5, release, running, maxRunning);
+        awaitQueued(limiter, 3);
+        assertThat(limiter.getProjectInFlight().get("busy"), is(2));
+
+        //not queued behind the busy project
+        assertThat(limiter.call("other", () -> "done"), is("done"));
+        assertThat(limiter.call(null, () -> "done"), is("done"));
+
+        release.countDown();
+        for (Future<String> call : busy) {
+            call.get(10, TimeUnit.SECONDS);
+        }
+        assertThat(maxRunning.get(), is(2));
+        assertTrue(limiter.getProjectInFlight().isEmpty());
+    }
+
+    @Test
+    public void fullQueueAndLongWaitsAreRefused() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 1.0, 1, 100);
+        limiter.acquire("a");
+
+        Future<?> queued = executor.submit(() -> {
+            limiter.acquire("a");
+            return null;
+        });
+        awaitQueued(limiter, 1);
+        try {
+            limiter.acquire("b");
+            fail("expected the queue to be full");
+        } catch (VaultException e) {
+            assertThat(e.getHttpStatusCode(), is(429));
+        }
+
+        try {
+            queued.get(10, TimeUnit.SECONDS);
+            fail("expected the queued request to time out");
+        } catch (ExecutionException e) {
+            assertThat(((VaultException) e.getCause()).getHttpStatusCode(), is(429));
+        }
+        assertThat(limiter.getRejectedCount(), is(1L));
+        assertThat(limiter.getTimeoutCount(), is(1L));
+        assertThat(limiter.getProjectRejectedCount().get("a"), is(1L));
+        assertThat(limiter.getProjectRejectedCount().get("b"), is(1L));
+        assertThat(limiter.getQueueDepth(), is(0));
+
+        limiter.release("a", TimeUnit.MILLISECONDS.toNanos(1), false);
+        assertThat(limiter.getInFlight(), is(0));
+    }
+
+    @Test
+    public void limitFollowsLatency() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 2, 100, 1.0, 10, 1000);
+
+        //as fast as usual with the limit in use: it grows
+        for (int round = 0; round < 20; round++) {
+            int permits = limiter.getLimit();
+            for (int i = 0; i < permits; i++) {
+                limiter.acquire(null);
+            }
+            for (int i = 0; i < permits; i++) {
+                limiter.release(null, TimeUnit.MILLISECONDS.toNanos(2), false);
+            }
+        }
+        int grown = limiter.getLimit();
+        assertTrue(String.valueOf(grown), grown > 20);
+
+        //ten times slower: Vault is queueing, it shrinks
+        for (int i = 0; i < 50; i++) {
+            limiter.acquire(null);
+            limiter.release(null, TimeUnit.MILLISECONDS.toNanos(20), false);
+        }
+        int shrunk = limiter.getLimit();
+        assertTrue(grown + " -> " + shrunk, shrunk < grown / 2);
+
+        //refused by Vault: cut by a tenth each time
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire(null);
+            limiter.release(null, TimeUnit.MILLISECONDS.toNanos(2), true);
+        }
+        assertTrue(String.valueOf(limiter.getLimit()), limiter.getLimit() <= (int) Math.ceil((shrunk + 1) * 0.729));
+
+        //never below the minimum
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(null);
+            limiter.release(null, 0, true);
+        }
+        assertThat(limiter.getLimit(), is(2));
+    }
+
+    @Test
+    public void retryTakesANewPermitAfterItsBackoff() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 1.0, 10, 10000);
+        InMemoryLogical backend = new InMemoryLogical()
+                .put("secret/a", Collections.singletonMap("value", "a"))
+                .put("secret/b", Collections.singletonMap("value", "b"));
+        List<String> reads = new CopyOnWriteArrayList<>();
+        AtomicReference<Logical> client = new AtomicReference<>();
+        List<Future<LogicalResponse>> queued = new CopyOnWriteArrayList<>();
+        client.set(new ResilientLogical(new LimitingLogical(new ForwardingLogical(backend) {
+            @Override
+            public LogicalResponse read(String path) throws VaultException {
+                reads.add(path);
+                if (reads.size() == 1) {
+                    //another read queues for the permit of this one, which then fails
+                    queued.add(executor.submit(() -> client.get().read("secret/b")));
+                    try {
+                        awaitQueued(limiter, 1);
+                    } catch (InterruptedException e) {
+                        throw new VaultException(e);
+                    }
+                    throw new VaultException("unavailable", 503);
+                }
+                return super.read(path);
+            }
+        }, limiter), 1, 50, 50, new RetryBudget(1.0, 10), null));
+
+        assertThat(client.get().read("secret/a").getData().get("value"), is("a"));
+        assertThat(queued.get(0).get(10, TimeUnit.SECONDS).getData().get("value"), is("b"));
+        //the queued read went ahead during the backoff, the retry waited for its turn
+        assertThat(reads, is(Arrays.asList("secret/a", "secret/b", "secret/a")));
+        assertThat(limiter.getInFlight(), is(0));
+    }
+
+    @Test
+    public void refusedCallIsNeitherRetriedNorAFailure() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 1.0, 0, 10000);
+        InMemoryLogical backend = new InMemoryLogical().put("secret/a", Collections.singletonMap("value", "a"));
+        Logical client = new ResilientLogical(new LimitingLogical(backend, limiter),
+                3, 1, 1, new RetryBudget(1.0, 10), new CircuitBreaker(1, 10000));
+
+        limiter.acquire(null);
+        try {
+            client.read("secret/a");
+            fail("expected the read to be refused");
+        } catch (ConcurrencyLimiter.Rejection e) {
+            assertThat(e.getHttpStatusCode(), is(429));
+        }
+        assertThat(limiter.getRejectedCount(), is(1L));
+        assertThat(backend.calls("read"), is(0));
+
+        //the circuit breaker is still closed
+        limiter.release(null, TimeUnit.MILLISECONDS.toNanos(1), false);
+        assertThat(client.read("secret/a").getData().get("value"), is("a"));
+    }
+
+    @Test
+    public void projectOfPath() {
+        assertThat(ConcurrencyLimiter.projectOf("secret/rundeck/keys/project/P1/db/password"), is("P1"));
+        assertThat(ConcurrencyLimiter.projectOf("secret/data/rundeck/keys/project/P1/db?version=2"), is("P1"));
+        assertThat(ConcurrencyLimiter.projectOf("secret/rundeck/keys/project/P1"), is("P1"));
+        assertThat(ConcurrencyLimiter.projectOf("keys/project/P1/db"), is("P1"));
+        assertThat(ConcurrencyLimiter.projectOf("secret/rundeck/keys/project/"), nullValue());
+        assertThat(ConcurrencyLimiter.projectOf("secret/rundeck/keys/db"), nullValue());
+        assertThat(ConcurrencyLimiter.projectOf("secret/rundeck/mykeys/project/P1/db"), nullValue());
+    }
+
+    @Test
+    public void limitIsPublished() throws Exception {
+        try (FakeVaultServer server = new FakeVaultServer()) {
+            VaultStoragePlugin plugin = VaultTestSupport.configured(VaultTestSupport.configuration(server, "limit-test",
+                    ConfigOptions.VAULT_CONCURRENCY_LIMIT_ENABLED, "true",
+                    ConfigOptions.VAULT_CONCURRENCY_LIMIT_INITIAL, "8"));
+            try {
+                plugin.createResource("keys/project/P1/db", VaultTestSupport.content("s3cret"));
+                assertThat(VaultTestSupport.read(plugin.getResource("keys/project/P1/db")), is("s3cret"));
+
+                ConcurrencyLimiter limiter = plugin.getLimiters().get(VaultStoragePlugin.DEFAULT_SHARD);
+                assertThat(limiter.getInFlight(), is(0));
+                ObjectName name = new ObjectName(VaultMetrics.DOMAIN + ":type=ConcurrencyLimit,instance="
+                        + ObjectName.quote(plugin.getMetrics().getInstance()) + ",name=default");
+                assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Limit"),
+                        is((Object) limiter.getLimit()));
+                assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "QueueDepth"),
+                        is((Object) 0));
+            } finally {
+                plugin.getMetrics().unregister();
+            }
+        }
+    }
+}
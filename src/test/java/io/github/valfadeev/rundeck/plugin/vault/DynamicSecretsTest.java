@@ -0,0 +1,274 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rundeck.storage.api.PathUtil;
+import org.rundeck.storage.api.Resource;
+import org.rundeck.storage.api.StorageException;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class DynamicSecretsTest {
+
+    private FakeVaultServer server;
+    private VaultStoragePlugin plugin;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeVaultServer()
+                .dynamic("database/creds/readonly", 3600, true)
+                .dynamic("database/creds/short", 2, true)
+                .dynamic("aws/creds/deploy", 1, false)
+                .dynamic("database/creds/once", 0, false);
+    }
+
+    @After
+    public void tearDown() {
+        if (plugin != null) {
+            plugin.getMetrics().unregister();
+        }
+        server.close();
+    }
+
+    private VaultStoragePlugin plugin(String storageBehaviour, String... extra) throws Exception {
+        Properties configuration = VaultTestSupport.configuration(server, "rundeck",
+                ConfigOptions.VAULT_STORAGE_BEHAVIOUR, storageBehaviour,
+                "dynamic.db.path", "keys/dynamic/db",
+                "dynamic.db.vaultPath", "database/creds/readonly",
+                "dynamic.short.path", "keys/dynamic/short",
+                "dynamic.short.vaultPath", "database/creds/short",
+                "dynamic.aws.path", "keys/dynamic/aws",
+                "dynamic.aws.vaultPath", "aws/creds/deploy",
+                "dynamic.once.path", "keys/dynamic/once",
+                "dynamic.once.vaultPath", "database/creds/once");
+        for (int i = 0; i < extra.length; i += 2) {
+            configuration.setProperty(extra[i], extra[i + 1]);
+        }
+        plugin = VaultTestSupport.configured(configuration);
+        return plugin;
+    }
+
+    private static Set<String> names(Set<Resource<ResourceMeta>> resources) {
+        Set<String> names = new TreeSet<>();
+        for (Resource<ResourceMeta> resource : resources) {
+            names.add(resource.getPath().getName());
+        }
+        return names;
+    }
+
+    private void awaitRenewals(int renewals) throws InterruptedException {
+        for (int i = 0; i < 300 && server.calls("lease") < renewals; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(server.calls("lease"), is(renewals));
+    }
+
+    @Test
+    public void credentialIsSharedForItsLease() throws Exception {
+        plugin("rundeck");
+
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/dynamic/db/username")), is("v-rundeck-1"));
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/dynamic/db/password")), is("p-1"));
+
+        ExecutorService steps = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> reads = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                reads.add(steps.submit(() -> VaultTestSupport.read(plugin.getResource("keys/dynamic/db/password"))));
+            }
+            for (Future<String> read : reads) {
+                assertThat(read.get(10, TimeUnit.SECONDS), is("p-1"));
+            }
+        } finally {
+            steps.shutdownNow();
+        }
+        assertThat(server.issuedCredentials(), is(1));
+        assertTrue(plugin.hasResource("keys/dynamic/db/username"));
+        assertFalse(plugin.hasResource("keys/dynamic/db/port"));
+    }
+
+    @Test
+    public void fieldsAreListedAsKeys() throws Exception {
+        for (String storageBehaviour : new String[]{"rundeck", "vault"}) {
+            plugin(storageBehaviour);
+
+            //in a stable order, as every listing
+            List<String> listed = new ArrayList<>();
+            for (Resource<ResourceMeta> resource : plugin.listDirectory("keys/dynamic/db")) {
+                listed.add(resource.getPath().getName());
+            }
+            assertThat(storageBehaviour, listed, is(Arrays.asList("password", "username")));
+            assertThat(names(plugin.listDirectory("keys/dynamic")), hasItems("aws", "db", "once", "short"));
+            assertTrue(plugin.hasDirectory("keys/dynamic/db"));
+            assertTrue(plugin.getPath("keys/dynamic/db").isDirectory());
+            plugin.getMetrics().unregister();
+        }
+    }
+
+    @Test
+    public void credentialExpiringSoonIsReplaced() throws Exception {
+        plugin("rundeck");
+
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/dynamic/aws/username")), is("v-rundeck-1"));
+        //less than half of the lease left
+        Thread.sleep(600);
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/dynamic/aws/username")), is("v-rundeck-2"));
+        assertThat(server.calls("lease"), is(0));
+    }
+
+    @Test
+    public void leaseIsRenewedWhileTheCredentialIsRead() throws Exception {
+        plugin("rundeck");
+
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/dynamic/short/password")), is("p-1"));
+        awaitRenewals(1);
+
+        //renewed, still shared past the first lease
+        Thread.sleep(800);
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/dynamic/short/password")), is("p-1"));
+        assertThat(server.issuedCredentials(), is(1));
+        awaitRenewals(2);
+
+        //no longer read, left to expire
+        Thread.sleep(1800);
+        assertThat(server.calls("lease"), is(2));
+    }
+
+    @Test
+    public void generatedKeysCannotBeChanged() throws Exception {
+        plugin("rundeck");
+
+        try {
+            plugin.createResource("keys/dynamic/db/username", VaultTestSupport.content("mine"));
+            fail("expected the write to be refused");
+        } catch (StorageException e) {
+            assertThat(e.getMessage(), containsString("generated by Vault"));
+        }
+        try {
+            plugin.deleteResource("keys/dynamic/db/username");
+            fail("expected the delete to be refused");
+        } catch (StorageException e) {
+            assertThat(e.getMessage(), containsString("generated by Vault"));
+        }
+        assertThat(server.calls("write"), is(0));
+        assertThat(server.calls("delete"), is(0));
+    }
+
+    @Test
+    public void keysOfAListingComeFromOneCredential() throws Exception {
+        plugin("rundeck");
+
+        //not shared without a lease, every read generates a credential
+        Set<String> contents = new TreeSet<>();
+        for (Resource<ResourceMeta> resource : plugin.listDirectory("keys/dynamic/once")) {
+            contents.add(VaultTestSupport.read(resource));
+        }
+        assertThat(contents, is((Set<String>) new TreeSet<>(Arrays.asList("p-1", "v-rundeck-1"))));
+        assertThat(server.issuedCredentials(), is(1));
+    }
+
+    @Test
+    public void cacheWarmUpGeneratesNoCredential() throws Exception {
+        server.put("secret/rundeck/keys/dynamic/static", VaultTestSupport.rundeckKey("s3cret"));
+        plugin("rundeck",
+                ConfigOptions.VAULT_CACHE_ENABLED, "true",
+                ConfigOptions.VAULT_CACHE_WARMUP_ENABLED, "true");
+
+        assertTrue(plugin.getWarmer().await(10, TimeUnit.SECONDS));
+        assertThat(plugin.getWarmer().getKeyCount(), is(1));
+        assertThat(server.issuedCredentials(), is(0));
+    }
+
+    @Test
+    public void credentialIsGeneratedByASingleRequest() throws Exception {
+        plugin("rundeck",
+                ConfigOptions.VAULT_MAX_RETRIES, "3",
+                ConfigOptions.VAULT_HEDGED_READS_ENABLED, "true",
+                ConfigOptions.VAULT_HEDGE_MIN_DELAY_MILLISECONDS, "10",
+                ConfigOptions.VAULT_HEDGE_BUDGET_PERCENT, "100");
+        server.latencyMilliseconds = 100;
+
+        //slow enough to be hedged, a hedge would generate a second credential
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/dynamic/once/username")), is("v-rundeck-1"));
+        assertThat(server.issuedCredentials(), is(1));
+
+        server.resetCalls();
+        server.failureStatus = 503;
+        try {
+            plugin.getResource("keys/dynamic/once/username");
+            fail("expected the read to fail");
+        } catch (StorageException e) {
+            //expected
+        }
+        server.failureStatus = 0;
+        assertThat(server.calls("read"), is(1));
+        assertThat(plugin.getHedging().getHedgeCount(), is(0L));
+    }
+
+    @Test
+    public void readWaitingForACredentialCanBeInterrupted() throws Exception {
+        CountDownLatch generating = new CountDownLatch(1);
+        CountDownLatch answer = new CountDownLatch(1);
+        InMemoryLogical backend = new InMemoryLogical()
+                .put("database/creds/readonly", Collections.singletonMap("username", "v-rundeck-1"));
+        DynamicSecrets.Secret secret = new DynamicSecrets.Secret("db", PathUtil.asPath("keys/dynamic/db"),
+                "database/creds/readonly", new ForwardingLogical(backend) {
+                    @Override
+                    public LogicalResponse read(String path, boolean shouldRetry) throws VaultException {
+                        generating.countDown();
+                        try {
+                            answer.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            throw new VaultException(e);
+                        }
+                        return super.read(path, shouldRetry);
+                    }
+                }, 60000, null, System::currentTimeMillis);
+
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        try {
+            Future<Map<String, String>> first = readers.submit(secret::read);
+            assertTrue(generating.await(10, TimeUnit.SECONDS));
+            CountDownLatch gaveUp = new CountDownLatch(1);
+            Future<Map<String, String>> second = readers.submit(() -> {
+                try {
+                    return secret.read();
+                } finally {
+                    gaveUp.countDown();
+                }
+            });
+            Thread.sleep(50);
+            second.cancel(true);
+
+            //given up while Vault is still generating the credential
+            assertTrue(gaveUp.await(5, TimeUnit.SECONDS));
+            assertFalse(first.isDone());
+            answer.countDown();
+            assertThat(first.get(10, TimeUnit.SECONDS).get("username"), is("v-rundeck-1"));
+            readers.shutdown();
+            assertTrue(readers.awaitTermination(10, TimeUnit.SECONDS));
+            assertThat(backend.calls("read"), is(1));
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonArray;
+import com.bettercloud.vault.json.JsonObject;
+import com.bettercloud.vault.json.JsonValue;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for a Vault server on a local port, speaking the parts of the HTTP API the plugin uses:
+ * KV version 1 and 2 reads, lists, writes and deletes, token lookup and renewal, the
+ * approle, userpass and github logins, and credentials generated with a lease and their renewal. Every request is recorded, so tests can assert how many
+ * Vault calls an operation takes.
+ */
+class FakeVaultServer implements AutoCloseable {
+
+    static final String ROOT_TOKEN = "root";
+
+    /**
+     * A request as received, {@code path} is below {@code /v1/} and includes the query string.
+     */
+    static class Request {
+        final String method;
+        final String path;
+        final String operation;
+
+        Request(String method, String path, String operation) {
+            this.method = method;
+            this.path = path;
+            this.operation = operation;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + path;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    //mount (without trailing slash) -> true for KV version 2
+    private final Map<String, Boolean> mounts = new ConcurrentHashMap<>();
+    //full logical path, e.g. secret/rundeck/keys/a -> versions, oldest first
+    private final NavigableMap<String, Secret> secrets = new ConcurrentSkipListMap<>();
+    //path generating credentials -> their lease duration in seconds
+    private final Map<String, Integer> dynamicSecrets = new ConcurrentHashMap<>();
+    //lease id -> lease duration in seconds
+    private final Map<String, Integer> leases = new ConcurrentHashMap<>();
+    private final AtomicInteger issuedCredentials = new AtomicInteger();
+    private final Set<String> tokens = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger issuedTokens = new AtomicInteger();
+
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+
+    //lease duration of issued tokens in seconds, 0 for tokens that don't expire
+    volatile int tokenTtlSeconds;
+
+    //when not 0, every key/value request is answered with this status, tests use it to simulate failures
+    volatile int failureStatus;
+
+    //added to the time taken by every key/value request, tests use it to simulate a slow server
+    volatile long latencyMilliseconds;
+
+    FakeVaultServer() throws IOException {
+        mounts.put("secret", false);
+        tokens.add(ROOT_TOKEN);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool(new DaemonThreadFactory("fake-vault"));
+        server.setExecutor(executor);
+        server.createContext("/v1/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Revokes every token issued by a login, as Vault does once they expire.
+     */
+    void revokeTokens() {
+        tokens.retainAll(Collections.singleton(ROOT_TOKEN));
+    }
+
+    /**
+     * @return address to configure the plugin with
+     */
+    String address() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Mounts a KV secret engine of the given version at {@code mount}.
+     */
+    FakeVaultServer mount(String mount, int engineVersion) {
+        mounts.put(mount, engineVersion == 2);
+        return this;
+    }
+
+    /**
+     * Generates a new {@code username} and {@code password} on every read of {@code path},
+     * with a renewable lease of {@code leaseSeconds}, or a lease that can't be renewed.
+     */
+    FakeVaultServer dynamic(String path, int leaseSeconds, boolean renewable) {
+        dynamicSecrets.put(path, renewable ? leaseSeconds : -leaseSeconds);
+        return this;
+    }
+
+    /**
+     * @return number of credentials generated so far
+     */
+    int issuedCredentials() {
+        return issuedCredentials.get();
+    }
+
+    /**
+     * Stores a secret without recording a request, as a new version on KV version 2 mounts.
+     */
+    FakeVaultServer put(String path, Map<String, String> data) {
+        JsonObject json = Json.object();
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            json.add(entry.getKey(), entry.getValue());
+        }
+        secrets.computeIfAbsent(path, p -> new Secret()).write(json);
+        return this;
+    }
+
+    /**
+     * @return the current data of the secret, null if it does not exist or was deleted
+     */
+    JsonObject get(String path) {
+        Secret secret = secrets.get(path);
+        return secret == null ? null : secret.current();
+    }
+
+    List<Request> requests() {
+        return new ArrayList<>(requests);
+    }
+
+    /**
+     * @param operation one of {@code read}, {@code list}, {@code write}, {@code delete},
+     *                  {@code metadata} (KV version 2 metadata reads), {@code login},
+     *                  {@code lookup}, {@code renew} or {@code lease} (lease renewals)
+     */
+    int calls(String operation) {
+        int count = 0;
+        for (Request request : requests) {
+            if (request.operation.equals(operation)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int totalCalls() {
+        return requests.size();
+    }
+
+    void resetCalls() {
+        requests.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().substring("/v1/".length());
+            String query = exchange.getRequestURI().getRawQuery();
+            String method = exchange.getRequestMethod();
+            boolean list = method.equals("LIST") || "list=true".equals(query);
+            byte[] body = readFully(exchange.getRequestBody());
+
+            if (path.startsWith("auth/")) {
+                handleAuth(exchange, method, path, query, body);
+                return;
+            }
+
+            String mount = mountOf(path);
+            boolean v2 = mount != null && mounts.get(mount);
+            String operation = path.equals("sys/leases/renew") ? "lease" : operation(method, path, mount, v2, list);
+            requests.add(new Request(method, query == null ? path : path + "?" + query, operation));
+
+            if (!tokens.contains(String.valueOf(exchange.getRequestHeaders().getFirst("X-Vault-Token")))) {
+                respond(exchange, 403, errors("permission denied"));
+                return;
+            }
+            if (latencyMilliseconds > 0) {
+                try {
+                    Thread.sleep(latencyMilliseconds);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failureStatus != 0) {
+                respond(exchange, failureStatus, errors("injected failure"));
+                return;
+            }
+            if (dynamicSecrets.containsKey(path) && method.equals("GET")) {
+                handleDynamic(exchange, path);
+                return;
+            }
+            if (path.equals("sys/leases/renew")) {
+                handleLeaseRenewal(exchange, body);
+                return;
+            }
+            if (mount == null) {
+                respond(exchange, 404, errors("no handler for route '" + path + "'"));
+                return;
+            }
+
+            if (v2) {
+                handleKvV2(exchange, method, path.substring(mount.length() + 1), mount, query, list, body);
+            } else {
+                handleKvV1(exchange, method, path, list, body);
+            }
+        } catch (RuntimeException e) {
+            respond(exchange, 500, errors(String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleDynamic(HttpExchange exchange, String path) throws IOException {
+        int lease = dynamicSecrets.get(path);
+        int issued = issuedCredentials.incrementAndGet();
+        String leaseId = path + "/" + issued;
+        leases.put(leaseId, Math.abs(lease));
+        respond(exchange, 200, Json.object()
+                .add("lease_id", leaseId)
+                .add("renewable", lease > 0)
+                .add("lease_duration", Math.abs(lease))
+                .add("data", Json.object()
+                        .add("username", "v-rundeck-" + issued)
+                        .add("password", "p-" + issued)));
+    }
+
+    private void handleLeaseRenewal(HttpExchange exchange, byte[] body) throws IOException {
+        JsonObject request = parse(body);
+        String leaseId = request.getString("lease_id", "");
+        Integer duration = leases.get(leaseId);
+        if (duration == null) {
+            respond(exchange, 400, errors("lease not found"));
+            return;
+        }
+        respond(exchange, 200, Json.object()
+                .add("lease_id", leaseId)
+                .add("renewable", true)
+                .add("lease_duration", request.getInt("increment", duration))
+                .add("data", Json.NULL));
+    }
+
+    private void handleKvV1(HttpExchange exchange, String method, String path, boolean list, byte[] body)
+            throws IOException {
+        if (list) {
+            respondList(exchange, path);
+            return;
+        }
+        switch (method) {
+            case "GET": {
+                JsonObject data = get(path);
+                if (data == null) {
+                    respond(exchange, 404, errors());
+                } else {
+                    respond(exchange, 200, envelope().add("data", data));
+                }
+                return;
+            }
+            case "POST":
+            case "PUT":
+                secrets.put(path, new Secret().write(parse(body)));
+                respond(exchange, 204, null);
+                return;
+            case "DELETE":
+                secrets.remove(path);
+                respond(exchange, 204, null);
+                return;
+            default:
+                respond(exchange, 405, errors());
+        }
+    }
+
+    private void handleKvV2(HttpExchange exchange, String method, String rest, String mount, String query,
+                            boolean list, byte[] body) throws IOException {
+        String endpoint = rest.contains("/") ? rest.substring(0, rest.indexOf('/')) : rest;
+        String path = mount + "/" + rest.substring(Math.min(rest.length(), endpoint.length() + 1));
+
+        if (endpoint.equals("metadata")) {
+            if (list) {
+                respondList(exchange, path);
+                return;
+            }
+            Secret secret = secrets.get(path);
+            if (method.equals("DELETE")) {
+                secrets.remove(path);
+                respond(exchange, 204, null);
+            } else if (secret == null) {
+                respond(exchange, 404, errors());
+            } else {
+                respond(exchange, 200, envelope().add("data", secret.metadata()));
+            }
+            return;
+        }
+        if (!endpoint.equals("data")) {
+            respond(exchange, 404, errors("no handler for route '" + mount + "/" + rest + "'"));
+            return;
+        }
+
+        if (method.equals("GET")) {
+            Secret secret = secrets.get(path);
+            int version = query != null && query.startsWith("version=")
+                    ? Integer.parseInt(query.substring("version=".length()))
+                    : secret == null ? 0 : secret.versions.size();
+            JsonObject data = secret == null ? null : secret.version(version);
+            if (data == null) {
+                respond(exchange, 404, errors());
+                return;
+            }
+            respond(exchange, 200, envelope().add("data", Json.object()
+                    .add("data", data)
+                    .add("metadata", Json.object()
+                            .add("version", version)
+                            .add("deletion_time", "")
+                            .add("destroyed", false))));
+        } else if (method.equals("POST") || method.equals("PUT")) {
+            JsonObject request = parse(body);
+            JsonValue options = request.get("options");
+            synchronized (secrets) {
+                Secret secret = secrets.get(path);
+                int current = secret == null ? 0 : secret.versions.size();
+                if (options != null && options.asObject().get("cas") != null
+                    && options.asObject().get("cas").asLong() != current) {
+                    respond(exchange, 400, errors("check-and-set parameter did not match the current version"));
+                    return;
+                }
+                if (secret == null) {
+                    secret = new Secret();
+                    secrets.put(path, secret);
+                }
+                secret.write(request.get("data").asObject());
+                respond(exchange, 200, envelope().add("data", Json.object()
+                        .add("version", secret.versions.size())
+                        .add("deletion_time", "")
+                        .add("destroyed", false)));
+            }
+        } else {
+            respond(exchange, 405, errors());
+        }
+    }
+
+    private void respondList(HttpExchange exchange, String path) throws IOException {
+        String prefix = path.endsWith("/") ? path : path + "/";
+        TreeSet<String> keys = new TreeSet<>();
+        for (String key : secrets.tailMap(prefix).keySet()) {
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            String rest = key.substring(prefix.length());
+            int slash = rest.indexOf('/');
+            keys.add(slash < 0 ? rest : rest.substring(0, slash + 1));
+        }
+        if (keys.isEmpty()) {
+            respond(exchange, 404, errors());
+            return;
+        }
+        JsonArray array = new JsonArray();
+        for (String key : keys) {
+            array.add(key);
+        }
+        respond(exchange, 200, envelope().add("data", Json.object().add("keys", array)));
+    }
+
+    private void handleAuth(HttpExchange exchange, String method, String path, String query, byte[] body)
+            throws IOException {
+        String token = exchange.getRequestHeaders().getFirst("X-Vault-Token");
+        String full = query == null ? path : path + "?" + query;
+
+        if (path.equals("auth/token/lookup-self")) {
+            requests.add(new Request(method, full, "lookup"));
+            if (!tokens.contains(String.valueOf(token))) {
+                respond(exchange, 403, errors("permission denied"));
+                return;
+            }
+            respond(exchange, 200, envelope().add("data", Json.object()
+                    .add("id", token)
+                    .add("policies", new JsonArray().add("default"))
+                    .add("ttl", tokenTtlSeconds)
+                    .add("renewable", tokenTtlSeconds > 0)));
+        } else if (path.equals("auth/token/renew-self")) {
+            requests.add(new Request(method, full, "renew"));
+            if (!tokens.contains(String.valueOf(token))) {
+                respond(exchange, 403, errors("permission denied"));
+                return;
+            }
+            respond(exchange, 200, auth(token));
+        } else if (path.endsWith("/login") || path.contains("/login/")) {
+            requests.add(new Request(method, full, "login"));
+            String issued = "token-" + issuedTokens.incrementAndGet();
+            tokens.add(issued);
+            respond(exchange, 200, auth(issued));
+        } else {
+            requests.add(new Request(method, full, "auth"));
+            respond(exchange, 404, errors());
+        }
+    }
+
+    private JsonObject auth(String token) {
+        return envelope().add("auth", Json.object()
+                .add("client_token", token)
+                .add("policies", new JsonArray().add("default"))
+                .add("metadata", Json.object())
+                .add("lease_duration", tokenTtlSeconds)
+                .add("renewable", tokenTtlSeconds > 0));
+    }
+
+    /**
+     * Fields of every Vault response, the driver reads them before the auth or data block.
+     */
+    private static JsonObject envelope() {
+        return Json.object()
+                .add("lease_id", "")
+                .add("renewable", false)
+                .add("lease_duration", 0);
+    }
+
+    private String mountOf(String path) {
+        for (String mount : mounts.keySet()) {
+            if (path.equals(mount) || path.startsWith(mount + "/")) {
+                return mount;
+            }
+        }
+        return null;
+    }
+
+    private static String operation(String method, String path, String mount, boolean v2, boolean list) {
+        if (list) {
+            return "list";
+        }
+        switch (method) {
+            case "GET":
+                return v2 && path.startsWith(mount + "/metadata/") ? "metadata" : "read";
+            case "POST":
+            case "PUT":
+                return "write";
+            case "DELETE":
+                return "delete";
+            default:
+                return method.toLowerCase();
+        }
+    }
+
+    private static JsonObject errors(String... messages) {
+        JsonArray array = new JsonArray();
+        for (String message : messages) {
+            array.add(message);
+        }
+        return Json.object().add("errors", array);
+    }
+
+    private static JsonObject parse(byte[] body) {
+        return body.length == 0 ? Json.object() : Json.parse(new String(body, StandardCharsets.UTF_8)).asObject();
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonObject body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Versions of a secret, a KV version 1 secret only ever has its latest one.
+     */
+    private static class Secret {
+        final List<JsonObject> versions = Collections.synchronizedList(new ArrayList<>());
+
+        Secret write(JsonObject data) {
+            versions.add(data);
+            return this;
+        }
+
+        JsonObject current() {
+            return versions.isEmpty() ? null : versions.get(versions.size() - 1);
+        }
+
+        JsonObject version(int version) {
+            return version < 1 || version > versions.size() ? null : versions.get(version - 1);
+        }
+
+        JsonObject metadata() {
+            JsonObject all = Json.object();
+            for (int i = 1; i <= versions.size(); i++) {
+                all.add(String.valueOf(i), Json.object()
+                        .add("deletion_time", "")
+                        .add("destroyed", false));
+            }
+            return Json.object()
+                    .add("current_version", versions.size())
+                    .add("versions", all);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.response.LogicalResponse;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class HedgingLogicalTest {
+
+    private final InMemoryLogical backend = new InMemoryLogical()
+            .put("secret/a", Collections.singletonMap("value", "1"));
+
+    private HedgingLogical hedging;
+    //permits of the hedges, none by default
+    private ConcurrencyLimiter limiter;
+
+    /**
+     * Reads behaving as scripted for each call, numbered from 1.
+     */
+    private interface Script {
+        void before(int call) throws Exception;
+    }
+
+    private HedgingLogical hedging(long minDelayMilliseconds, RetryBudget budget, Script script) {
+        return hedging(minDelayMilliseconds, 4, budget, script);
+    }
+
+    private HedgingLogical hedging(long minDelayMilliseconds, int maxConcurrentHedges, RetryBudget budget, Script script) {
+        AtomicInteger calls = new AtomicInteger();
+        hedging = new HedgingLogical(new ForwardingLogical(backend) {
+            @Override
+            public LogicalResponse read(String path) throws VaultException {
+                try {
+                    script.before(calls.incrementAndGet());
+                } catch (VaultException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new VaultException(e);
+                }
+                return super.read(path);
+            }
+        }, 0.95, minDelayMilliseconds, maxConcurrentHedges, budget, limiter);
+        return hedging;
+    }
+
+    //waits like a request in flight, unless its connection is closed by a cancellation
+    private static void slow(long milliseconds) throws Exception {
+        CountDownLatch closed = new CountDownLatch(1);
+        Cancellation.attach(closed::countDown);
+        try {
+            if (closed.await(milliseconds, TimeUnit.MILLISECONDS)) {
+                throw new VaultException("connection closed", 0);
+            }
+        } finally {
+            Cancellation.detach();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (hedging != null) {
+            hedging.shutdown();
+        }
+    }
+
+    @Test
+    public void slowReadIsHedged() throws Exception {
+        HedgingLogical logical = hedging(10, new RetryBudget(0.1, 10), call -> {
+            if (call == 1) {
+                slow(5000);
+            }
+        });
+
+        long start = System.nanoTime();
+        assertThat(logical.read("secret/a").getData().get("value"), is("1"));
+        assertTrue((System.nanoTime() - start) / 1000000 < 2000);
+        assertThat(logical.getHedgeCount(), is(1L));
+        assertThat(logical.getHedgeWinCount(), is(1L));
+    }
+
+    @Test
+    public void fastReadsAreNotHedged() throws Exception {
+        HedgingLogical logical = hedging(50, new RetryBudget(0.1, 10), call -> { });
+
+        for (int i = 0; i < 50; i++) {
+            logical.read("secret/a");
+        }
+        try {
+            logical.read("secret/missing");
+            fail("expected a 404");
+        } catch (VaultException e) {
+            assertThat(e.getHttpStatusCode(), is(404));
+        }
+        assertThat(logical.getHedgeCount(), is(0L));
+        assertThat(backend.calls("read"), is(51));
+    }
+
+    @Test
+    public void hedgesAreLimitedByTheBudget() throws Exception {
+        HedgingLogical logical = hedging(1, new RetryBudget(0.0, 2), call -> slow(20));
+
+        for (int i = 0; i < 5; i++) {
+            logical.read("secret/a");
+        }
+        assertThat(logical.getHedgeCount(), is(2L));
+        //the losing requests were aborted while they waited
+        assertTrue(backend.calls("read") < 7);
+    }
+
+    @Test
+    public void firstRequestIsMadeOnTheCallingThread() throws Exception {
+        AtomicReference<Thread> first = new AtomicReference<>();
+        HedgingLogical logical = hedging(10, new RetryBudget(0.1, 10), call -> {
+            if (call == 1) {
+                first.set(Thread.currentThread());
+            }
+        });
+
+        logical.read("secret/a");
+        assertThat(first.get(), is(Thread.currentThread()));
+        assertThat(logical.getHedgeCount(), is(0L));
+    }
+
+    @Test
+    public void noHedgeIsSentWhileAllHedgeThreadsAreBusy() throws Exception {
+        HedgingLogical logical = hedging(10, 1, new RetryBudget(1.0, 10), call -> slow(300));
+
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        try {
+            Future<LogicalResponse> first = readers.submit(() -> logical.read("secret/a"));
+            Future<LogicalResponse> second = readers.submit(() -> logical.read("secret/a"));
+            assertThat(first.get().getData().get("value"), is("1"));
+            assertThat(second.get().getData().get("value"), is("1"));
+        } finally {
+            readers.shutdownNow();
+        }
+        assertThat(logical.getHedgeCount(), is(1L));
+    }
+
+    @Test
+    public void hedgeIsOnlySentWithAFreePermit() throws Exception {
+        limiter = new ConcurrencyLimiter(1, 1, 1, 1.0, 10, 10000);
+        HedgingLogical logical = hedging(10, new RetryBudget(1.0, 10), call -> slow(100));
+
+        //the first request holds the only permit, as it would below LimitingLogical
+        limiter.acquire(null);
+        logical.read("secret/a");
+        assertThat(logical.getHedgeCount(), is(0L));
+        limiter.release(null, TimeUnit.MILLISECONDS.toNanos(100), false);
+
+        logical.read("secret/a");
+        assertThat(logical.getHedgeCount(), is(1L));
+        //given back by the losing hedge once it is aborted
+        for (int i = 0; i < 500 && limiter.getInFlight() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(limiter.getInFlight(), is(0));
+    }
+
+    @Test
+    public void failedReadWaitsForTheHedge() throws Exception {
+        HedgingLogical logical = hedging(10, new RetryBudget(0.1, 10), call -> {
+            if (call == 1) {
+                Thread.sleep(100);
+                throw new VaultException("unavailable", 503);
+            }
+            Thread.sleep(200);
+        });
+
+        assertThat(logical.read("secret/a").getData().get("value"), is("1"));
+        assertThat(logical.getHedgeWinCount(), is(1L));
+    }
+
+    @Test
+    public void firstFailureIsReportedWhenBothFail() throws Exception {
+        HedgingLogical logical = hedging(10, new RetryBudget(0.1, 10), call -> {
+            Thread.sleep(call == 1 ? 50 : 100);
+            throw new VaultException("unavailable " + call, 503);
+        });
+
+        try {
+            logical.read("secret/a");
+            fail("expected the read to fail");
+        } catch (VaultException e) {
+            assertThat(e.getHttpStatusCode(), is(503));
+            assertThat(e.getMessage(), is("unavailable 1"));
+        }
+    }
+
+    @Test
+    public void delayFollowsResponseTimes() throws Exception {
+        HedgingLogical logical = hedging(1, new RetryBudget(0.0, 0), call -> Thread.sleep(3));
+
+        for (int i = 0; i < 100; i++) {
+            logical.read("secret/a");
+        }
+        assertTrue(String.valueOf(logical.getDelayMicros()), logical.getDelayMicros() >= 3000);
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonObject;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.bettercloud.vault.rest.RestResponse;
+
+/**
+ * KV v1 style {@link Logical} backed by a map, counting the calls made to it.
+ */
+class InMemoryLogical extends Logical {
+
+    private final Map<String, Map<String, Object>> secrets = new ConcurrentSkipListMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+
+    //invoked before every call, tests use it to block or slow down requests
+    volatile Runnable beforeCall = () -> { };
+
+    //when set, every call fails with it, tests use it to simulate an unavailable server
+    volatile VaultException failure;
+
+    InMemoryLogical() {
+        super(new VaultConfig());
+    }
+
+    InMemoryLogical put(String path, Map<String, Object> data) {
+        secrets.put(path, data);
+        return this;
+    }
+
+    boolean contains(String path) {
+        return secrets.containsKey(path);
+    }
+
+    int calls(String operation) {
+        AtomicInteger count = calls.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    int totalCalls() {
+        return calls.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    void resetCalls() {
+        calls.clear();
+    }
+
+    @Override
+    public LogicalResponse read(String path) throws VaultException {
+        record("read");
+        Map<String, Object> data = secrets.get(path);
+        if (data == null) {
+            throw new VaultException("Vault responded with HTTP status code: 404", 404);
+        }
+        JsonObject json = Json.object();
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            json.add(entry.getKey(), entry.getValue().toString());
+        }
+        return response(Json.object().add("data", json));
+    }
+
+    @Override
+    public LogicalResponse read(String path, boolean shouldRetry) throws VaultException {
+        return read(path);
+    }
+
+    @Override
+    public List<String> list(String path) throws VaultException {
+        record("list");
+        String prefix = path.endsWith("/") ? path : path + "/";
+        TreeSet<String> keys = new TreeSet<>();
+        for (String key : secrets.keySet()) {
+            if (key.startsWith(prefix)) {
+                String rest = key.substring(prefix.length());
+                int separator = rest.indexOf('/');
+                keys.add(separator < 0 ? rest : rest.substring(0, separator + 1));
+            }
+        }
+        return new ArrayList<>(keys);
+    }
+
+    @Override
+    public LogicalResponse write(String path, Map<String, Object> nameValuePairs) throws VaultException {
+        record("write");
+        secrets.put(path, new ConcurrentSkipListMap<>(nameValuePairs));
+        return response(Json.object());
+    }
+
+    @Override
+    public LogicalResponse delete(String path) throws VaultException {
+        record("delete");
+        secrets.remove(path);
+        return response(Json.object());
+    }
+
+    private void record(String operation) throws VaultException {
+        calls.computeIfAbsent(operation, k -> new AtomicInteger()).incrementAndGet();
+        beforeCall.run();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static LogicalResponse response(JsonObject body) {
+        return new LogicalResponse(
+                new RestResponse(200, "application/json", body.toString().getBytes(StandardCharsets.UTF_8)),
+                0);
+    }
+}
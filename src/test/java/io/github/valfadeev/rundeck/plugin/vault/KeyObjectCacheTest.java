@@ -0,0 +1,113 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class KeyObjectCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private static KeyObject key(Path path) {
+        return new RundeckKey(path);
+    }
+
+    @Test
+    public void expiresEntriesAfterTtl() {
+        KeyObjectCache cache = new KeyObjectCache(10, 100, now::get);
+        Path path = PathUtil.asPath("keys/a");
+
+        cache.put(path, key(path), cache.generation(path));
+        assertThat(cache.get(path), is(notNullValue()));
+
+        now.addAndGet(100);
+        assertThat(cache.get(path), is(nullValue()));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void containsAndPeekAreNotCountedAsReads() {
+        KeyObjectCache cache = new KeyObjectCache(10, 100, now::get);
+        Path path = PathUtil.asPath("keys/a");
+
+        assertThat(cache.contains(path), is(false));
+        assertThat(cache.peek(path), is(nullValue()));
+        cache.put(path, key(path), cache.generation(path));
+        assertThat(cache.contains(path), is(true));
+        assertThat(cache.peek(path), is(notNullValue()));
+        assertThat(cache.isRefreshDue(path, 1.0, 1), is(false));
+        assertThat(cache.getHitCount(), is(0L));
+        assertThat(cache.getMissCount(), is(0L));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        KeyObjectCache cache = new KeyObjectCache(2, 1000, now::get);
+        Path a = PathUtil.asPath("keys/a");
+        Path b = PathUtil.asPath("keys/b");
+        Path c = PathUtil.asPath("keys/c");
+
+        cache.put(a, key(a), cache.generation(a));
+        cache.put(b, key(b), cache.generation(b));
+        cache.get(a);
+        cache.put(c, key(c), cache.generation(c));
+
+        assertThat(cache.get(a), is(notNullValue()));
+        assertThat(cache.get(b), is(nullValue()));
+        assertThat(cache.get(c), is(notNullValue()));
+        assertThat(cache.getEvictionCount(), is(1L));
+    }
+
+    @Test
+    public void invalidatesPathParentAndChildren() {
+        KeyObjectCache cache = new KeyObjectCache(10, 1000, now::get);
+        Path parent = PathUtil.asPath("keys/multi");
+        Path child = PathUtil.asPath("keys/multi/user");
+        Path sibling = PathUtil.asPath("keys/other");
+
+        cache.put(parent, key(parent), cache.generation(parent));
+        cache.put(child, key(child), cache.generation(child));
+        cache.put(sibling, key(sibling), cache.generation(sibling));
+
+        cache.invalidate(parent);
+
+        assertThat(cache.get(parent), is(nullValue()));
+        assertThat(cache.get(child), is(nullValue()));
+        assertThat(cache.get(sibling), is(notNullValue()));
+    }
+
+    @Test
+    public void ignoresPutsStartedBeforeInvalidation() {
+        KeyObjectCache cache = new KeyObjectCache(10, 1000, now::get);
+        Path path = PathUtil.asPath("keys/a");
+
+        long generation = cache.generation(path);
+        cache.invalidate(path);
+        cache.put(path, key(path), generation);
+
+        assertThat(cache.get(path), is(nullValue()));
+    }
+
+    @Test
+    public void putsOfOtherKeysSurviveAnInvalidation() {
+        KeyObjectCache cache = new KeyObjectCache(10, 1000, now::get);
+        Path written = PathUtil.asPath("keys/multi");
+        Path child = PathUtil.asPath("keys/multi/user");
+        Path sibling = PathUtil.asPath("keys/other");
+
+        long childGeneration = cache.generation(child);
+        long siblingGeneration = cache.generation(sibling);
+        cache.invalidate(written);
+        cache.put(child, key(child), childGeneration);
+        cache.put(sibling, key(sibling), siblingGeneration);
+
+        assertThat(cache.get(child), is(nullValue()));
+        assertThat(cache.get(sibling), is(notNullValue()));
+    }
+}
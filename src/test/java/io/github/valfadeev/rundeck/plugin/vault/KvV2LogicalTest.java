@@ -0,0 +1,124 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.bettercloud.vault.json.JsonObject;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.bettercloud.vault.rest.RestResponse;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class KvV2LogicalTest {
+
+    /**
+     * Answers reads with canned response bodies and records the requests made.
+     */
+    private static class CannedLogical extends Logical {
+        final Map<String, String> bodies = new HashMap<>();
+        String lastPath;
+        Map<String, Object> lastWrite;
+
+        CannedLogical() {
+            super(new VaultConfig());
+        }
+
+        @Override
+        public LogicalResponse read(String path) throws VaultException {
+            lastPath = path;
+            String body = bodies.get(path);
+            if (body == null) {
+                throw new VaultException("Vault responded with HTTP status code: 404", 404);
+            }
+            return new LogicalResponse(
+                    new RestResponse(200, "application/json", body.getBytes(StandardCharsets.UTF_8)), 0);
+        }
+
+        @Override
+        public LogicalResponse write(String path, Map<String, Object> nameValuePairs) throws VaultException {
+            lastPath = path;
+            lastWrite = nameValuePairs;
+            return new LogicalResponse(new RestResponse(200, "application/json", new byte[0]), 0);
+        }
+
+        @Override
+        public List<String> list(String path) throws VaultException {
+            lastPath = path;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public LogicalResponse delete(String path) throws VaultException {
+            lastPath = path;
+            return new LogicalResponse(new RestResponse(204, "application/json", new byte[0]), 0);
+        }
+    }
+
+    private final CannedLogical backend = new CannedLogical();
+    private final KvV2Logical kv = new KvV2Logical(backend, "kv");
+
+    @Test
+    public void readsUnwrapSecretAndVersion() throws Exception {
+        backend.bodies.put("kv/data/rundeck/keys/db",
+                "{\"data\":{\"data\":{\"password\":\"s3cret\"},\"metadata\":{\"version\":3}}}");
+
+        KvV2Logical.Response response = kv.read("kv/rundeck/keys/db");
+
+        assertThat(response.getData().get("password"), is("s3cret"));
+        assertThat(response.getData().size(), is(1));
+        assertThat(response.getVersion(), is(3L));
+    }
+
+    @Test
+    public void rewritesListAndDeleteToMetadata() throws Exception {
+        kv.list("kv/rundeck/keys");
+        assertThat(backend.lastPath, is("kv/metadata/rundeck/keys"));
+
+        kv.delete("kv/rundeck/keys/db");
+        assertThat(backend.lastPath, is("kv/metadata/rundeck/keys/db"));
+    }
+
+    @Test
+    public void writesCheckAndSet() throws Exception {
+        kv.write("kv/rundeck/keys/db", Collections.singletonMap("password", "s3cret"), 3L);
+
+        assertThat(backend.lastPath, is("kv/data/rundeck/keys/db"));
+        assertThat(((JsonObject) backend.lastWrite.get("data")).getString("password", null), is("s3cret"));
+        assertThat(((JsonObject) backend.lastWrite.get("options")).getLong("cas", -1), is(3L));
+
+        kv.write("kv/rundeck/keys/db", Collections.singletonMap("password", "s3cret"));
+        assertThat(backend.lastWrite.containsKey("options"), is(false));
+    }
+
+    @Test
+    public void createsOverwriteUnlessOnlyMissingSecretsAreCreated() throws Exception {
+        kv.create("kv/rundeck/keys/db", Collections.singletonMap("password", "s3cret"));
+        assertThat(backend.lastWrite.containsKey("options"), is(false));
+
+        new KvV2Logical(backend, "kv", true).create("kv/rundeck/keys/db", Collections.singletonMap("password", "s3cret"));
+        assertThat(((JsonObject) backend.lastWrite.get("options")).getLong("cas", -1), is(0L));
+    }
+
+    @Test
+    public void existenceIsReadFromMetadata() throws Exception {
+        backend.bodies.put("kv/metadata/rundeck/keys/db",
+                "{\"data\":{\"current_version\":2,\"versions\":{"
+                + "\"1\":{\"deletion_time\":\"\",\"destroyed\":false},"
+                + "\"2\":{\"deletion_time\":\"\",\"destroyed\":false}}}}");
+        backend.bodies.put("kv/metadata/rundeck/keys/old",
+                "{\"data\":{\"current_version\":1,\"versions\":{"
+                + "\"1\":{\"deletion_time\":\"2018-03-22T02:24:06.945319214Z\",\"destroyed\":false}}}}");
+
+        assertThat(kv.exists("kv/rundeck/keys/db"), is(true));
+        assertThat(kv.exists("kv/rundeck/keys/old"), is(false));
+        assertThat(kv.exists("kv/rundeck/keys/missing"), is(false));
+    }
+}
@@ -0,0 +1,45 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import com.dtolabs.rundeck.core.storage.StorageUtil;
+import org.junit.Test;
+import org.rundeck.storage.api.PathUtil;
+import org.rundeck.storage.api.Resource;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class LazyContentTest {
+
+    @Test
+    public void contentIsLoadedWhenOpened() throws Exception {
+        Map<String, String> payload = new HashMap<>();
+        payload.put(StorageUtil.RES_META_RUNDECK_CONTENT_TYPE, VaultStoragePlugin.PASSWORD_MIME_TYPE);
+        payload.put(StorageUtil.RES_META_RUNDECK_CONTENT_LENGTH, "6");
+        payload.put(StorageUtil.RES_META_RUNDECK_CONTENT_CREATION_TIME, "2018-01-01T00:00:00Z");
+        payload.put(StorageUtil.RES_META_RUNDECK_CONTENT_MODIFY_TIME, "2018-01-01T00:00:00Z");
+        RundeckKey key = new RundeckKey(PathUtil.asPath("keys/db/password"), payload);
+
+        AtomicInteger loads = new AtomicInteger();
+        @SuppressWarnings("unchecked")
+        Resource<ResourceMeta> resource = key.loadResource(new LazyContent(() -> {
+            loads.incrementAndGet();
+            return new ByteArrayInputStream("s3cret".getBytes(StandardCharsets.UTF_8));
+        }));
+
+        assertThat(resource.getContents().getContentLength(), is(6L));
+        assertThat(loads.get(), is(0));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        resource.getContents().writeContent(out);
+        assertThat(out.toString("UTF-8"), is("s3cret"));
+        assertThat(loads.get(), is(1));
+    }
+}
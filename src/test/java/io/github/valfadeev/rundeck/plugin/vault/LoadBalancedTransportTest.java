@@ -0,0 +1,278 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bettercloud.vault.rest.RestResponse;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class LoadBalancedTransportTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    /**
+     * Answers every request with its status, or fails it while down.
+     */
+    private static class StubNode implements VaultTransport {
+        final AtomicInteger requests = new AtomicInteger();
+        volatile int status = 200;
+        volatile boolean down;
+        volatile CountDownLatch blocked;
+
+        @Override
+        public RestResponse send(String method, String path, String token, byte[] body) throws IOException {
+            requests.incrementAndGet();
+            CountDownLatch latch = blocked;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (down) {
+                throw new IOException("connection refused");
+            }
+            return new RestResponse(status, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private LoadBalancedTransport transport(String balancing, StubNode... nodes) {
+        List<LoadBalancedTransport.Endpoint> endpoints = new ArrayList<>();
+        for (int i = 0; i < nodes.length; i++) {
+            endpoints.add(new LoadBalancedTransport.Endpoint("http://node-" + i + ":8200", nodes[i]));
+        }
+        return new LoadBalancedTransport(endpoints, balancing, 2, 5000, now::get);
+    }
+
+    @Test
+    public void readsAreSpreadAndWritesGoToTheActiveNode() throws Exception {
+        StubNode active = new StubNode();
+        StubNode standby1 = new StubNode();
+        StubNode standby2 = new StubNode();
+        LoadBalancedTransport transport = transport(LoadBalancedTransport.ROUND_ROBIN, active, standby1, standby2);
+
+        for (int i = 0; i < 30; i++) {
+            transport.send("GET", "secret/a", "token", null);
+        }
+        assertThat(active.requests.get(), is(10));
+        assertThat(standby1.requests.get(), is(10));
+        assertThat(standby2.requests.get(), is(10));
+
+        transport.send("POST", "secret/a", "token", new byte[0]);
+        transport.send("DELETE", "secret/a", "token", null);
+        assertThat(active.requests.get(), is(12));
+        assertThat(standby1.requests.get() + standby2.requests.get(), is(20));
+    }
+
+    @Test
+    public void leastOutstandingAvoidsBusyNodes() throws Exception {
+        StubNode busy = new StubNode();
+        StubNode idle = new StubNode();
+        LoadBalancedTransport transport = transport(LoadBalancedTransport.LEAST_OUTSTANDING, busy, idle);
+
+        busy.blocked = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            //the first read goes to the first node, which holds it until released
+            Future<RestResponse> pending = executor.submit(() -> transport.send("GET", "secret/a", "token", null));
+            while (transport.getEndpoints().get(0).getOutstanding() == 0) {
+                Thread.sleep(1);
+            }
+
+            for (int i = 0; i < 10; i++) {
+                transport.send("GET", "secret/a", "token", null);
+            }
+            assertThat(idle.requests.get(), is(10));
+            assertThat(busy.requests.get(), is(1));
+
+            busy.blocked.countDown();
+            assertThat(pending.get().getStatus(), is(200));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failingNodeIsEjectedAndReadmitted() throws Exception {
+        StubNode active = new StubNode();
+        StubNode standby = new StubNode();
+        LoadBalancedTransport transport = transport(LoadBalancedTransport.ROUND_ROBIN, active, standby);
+        LoadBalancedTransport.Endpoint standbyEndpoint = transport.getEndpoints().get(1);
+
+        standby.status = 503;
+        for (int i = 0; i < 4; i++) {
+            transport.send("GET", "secret/a", "token", null);
+        }
+        assertThat(standby.requests.get(), is(2));
+        assertTrue(standbyEndpoint.isEjected(now.get()));
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(transport.send("GET", "secret/a", "token", null).getStatus(), is(200));
+        }
+        assertThat(standby.requests.get(), is(2));
+
+        //readmitted once the ejection time is over, and ejected again on its first failure
+        now.addAndGet(5000);
+        transport.send("GET", "secret/a", "token", null);
+        transport.send("GET", "secret/a", "token", null);
+        assertThat(standby.requests.get(), is(3));
+        assertTrue(standbyEndpoint.isEjected(now.get()));
+
+        now.addAndGet(5000);
+        standby.status = 200;
+        transport.send("GET", "secret/a", "token", null);
+        transport.send("GET", "secret/a", "token", null);
+        assertThat(standby.requests.get(), is(4));
+        assertFalse(standbyEndpoint.isEjected(now.get()));
+    }
+
+    @Test
+    public void readFailingToConnectIsSentToAnotherNode() throws Exception {
+        StubNode active = new StubNode();
+        StubNode standby = new StubNode();
+        LoadBalancedTransport transport = transport(LoadBalancedTransport.ROUND_ROBIN, active, standby);
+
+        standby.down = true;
+        for (int i = 0; i < 4; i++) {
+            assertThat(transport.send("GET", "secret/a", "token", null).getStatus(), is(200));
+        }
+        assertThat(active.requests.get(), is(4));
+
+        //writes are never sent twice
+        active.down = true;
+        try {
+            transport.send("POST", "secret/a", "token", new byte[0]);
+            fail("expected the write to fail");
+        } catch (IOException e) {
+            //expected
+        }
+        assertThat(standby.requests.get(), is(2));
+    }
+
+    @Test
+    public void allNodesEjectedStillServeReads() throws Exception {
+        StubNode active = new StubNode();
+        StubNode standby = new StubNode();
+        LoadBalancedTransport transport = transport(LoadBalancedTransport.LEAST_OUTSTANDING, active, standby);
+
+        active.status = 500;
+        standby.status = 500;
+        for (int i = 0; i < 4; i++) {
+            transport.send("GET", "secret/a", "token", null);
+        }
+        assertTrue(transport.getEndpoints().get(0).isEjected(now.get()));
+        assertTrue(transport.getEndpoints().get(1).isEjected(now.get()));
+
+        active.status = 200;
+        standby.status = 200;
+        assertThat(transport.send("GET", "secret/a", "token", null).getStatus(), is(200));
+    }
+
+    @Test
+    public void readsOfAWriteGoToTheActiveNode() throws Exception {
+        StubNode active = new StubNode();
+        StubNode standby = new StubNode();
+        LoadBalancedTransport transport = transport(LoadBalancedTransport.ROUND_ROBIN, active, standby);
+
+        LoadBalancedTransport.onActiveNode(() -> {
+            for (int i = 0; i < 4; i++) {
+                try {
+                    transport.send("GET", "secret/a", "token", null);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return null;
+        });
+        assertThat(active.requests.get(), is(4));
+        assertThat(standby.requests.get(), is(0));
+        assertFalse(LoadBalancedTransport.isOnActiveNode());
+    }
+
+    @Test
+    public void pluginUpdatesReadFromTheActiveNode() throws Exception {
+        FakeVaultServer active = new FakeVaultServer();
+        FakeVaultServer standby = new FakeVaultServer();
+        VaultStoragePlugin plugin = new VaultStoragePlugin();
+        try {
+            for (FakeVaultServer server : Arrays.asList(active, standby)) {
+                server.put("secret/balanced/keys/db/password", VaultTestSupport.rundeckKey("s3cret"));
+            }
+            plugin.configure(VaultTestSupport.configuration(active, "balanced",
+                    ConfigOptions.VAULT_READ_ADDRESSES, standby.address(),
+                    ConfigOptions.VAULT_LOAD_BALANCING, LoadBalancedTransport.ROUND_ROBIN,
+                    ConfigOptions.VAULT_METRICS_ENABLED, "false"));
+            active.resetCalls();
+
+            for (int i = 0; i < 4; i++) {
+                plugin.updateResource("keys/db/password", VaultTestSupport.content("updated-" + i));
+            }
+            assertThat(active.calls("write"), is(4));
+            assertThat(standby.calls("read"), is(0));
+        } finally {
+            plugin.getMetrics().unregister();
+            active.close();
+            standby.close();
+        }
+    }
+
+    @Test
+    public void pluginReadsFromStandbyServers() throws Exception {
+        FakeVaultServer active = new FakeVaultServer();
+        FakeVaultServer standby1 = new FakeVaultServer();
+        FakeVaultServer standby2 = new FakeVaultServer();
+        VaultStoragePlugin plugin = new VaultStoragePlugin();
+        try {
+            for (FakeVaultServer server : Arrays.asList(active, standby1, standby2)) {
+                server.put("secret/balanced/keys/db/password", VaultTestSupport.rundeckKey("s3cret"));
+            }
+
+            plugin.configure(VaultTestSupport.configuration(active, "balanced",
+                    ConfigOptions.VAULT_READ_ADDRESSES, standby1.address() + ", " + standby2.address(),
+                    ConfigOptions.VAULT_LOAD_BALANCING, LoadBalancedTransport.ROUND_ROBIN,
+                    ConfigOptions.VAULT_METRICS_ENABLED, "false"));
+            active.resetCalls();
+
+            for (int i = 0; i < 9; i++) {
+                assertTrue(plugin.hasResource("keys/db/password"));
+            }
+            assertThat(active.calls("read"), is(3));
+            assertThat(standby1.calls("read"), is(3));
+            assertThat(standby2.calls("read"), is(3));
+
+            //a standby going away is taken out of rotation without failing reads
+            standby2.close();
+            for (int i = 0; i < 9; i++) {
+                assertTrue(plugin.hasResource("keys/db/password"));
+            }
+            assertThat(standby2.calls("read"), is(3));
+
+            plugin.deleteResource("keys/db/password");
+            assertThat(active.calls("delete"), is(1));
+            assertThat(standby1.calls("delete") + standby2.calls("delete"), is(0));
+        } finally {
+            plugin.getMetrics().unregister();
+            active.close();
+            standby1.close();
+            standby2.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NegativeLookupCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+    private final NegativeLookupCache cache = new NegativeLookupCache(10, 100, now::get);
+    private final InMemoryLogical vault = new InMemoryLogical();
+
+    private KeyObject build(String path) {
+        return KeyObjectBuilder.builder()
+                .path(PathUtil.asPath(path))
+                .vault(vault)
+                .vaultPrefix("rundeck")
+                .vaultSecretBackend("secret")
+                .negativeCache(cache)
+                .build();
+    }
+
+    @Test
+    public void missingPathIsRememberedForItsTtl() {
+        Path path = PathUtil.asPath("keys/a");
+        cache.markMissing(path, cache.generation());
+        assertTrue(cache.isMissing(path));
+
+        now.addAndGet(99);
+        assertTrue(cache.isMissing(path));
+        now.addAndGet(1);
+        assertFalse(cache.isMissing(path));
+        assertThat(cache.getHitCount(), is(2L));
+        assertThat(cache.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void writeForgetsThePathAndItsParent() {
+        Path parent = PathUtil.asPath("keys/db");
+        Path path = PathUtil.asPath("keys/db/password");
+        cache.markMissing(parent, cache.generation());
+        cache.markMissing(path, cache.generation());
+        cache.invalidate(path);
+        assertFalse(cache.isMissing(path));
+        assertFalse(cache.isMissing(parent));
+        assertFalse(cache.holdsNoKeys(parent));
+
+        //a read that started before the write doesn't record its miss
+        long generation = cache.generation();
+        cache.invalidate(path);
+        cache.markMissing(path, generation);
+        cache.markHoldsNoKeys(parent, generation);
+        assertFalse(cache.isMissing(path));
+        assertFalse(cache.holdsNoKeys(parent));
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        NegativeLookupCache small = new NegativeLookupCache(2, 100, now::get);
+        for (String path : new String[]{"keys/a", "keys/b", "keys/c"}) {
+            small.markMissing(PathUtil.asPath(path), small.generation());
+        }
+        assertFalse(small.isMissing(PathUtil.asPath("keys/a")));
+        assertTrue(small.isMissing(PathUtil.asPath("keys/c")));
+    }
+
+    @Test
+    public void missingParentIsNotReadAgain() {
+        assertTrue(build("keys/db/password").isError());
+        assertThat(vault.calls("read"), is(2));
+
+        assertTrue(build("keys/db/password").isError());
+        assertTrue(build("keys/db/user").isError());
+        //the key not seen before is read, its parent is not
+        assertThat(vault.calls("read"), is(3));
+        assertTrue(cache.isMissing(PathUtil.asPath("keys/db")));
+    }
+
+    @Test
+    public void rundeckKeyHoldsNoKeys() {
+        Map<String, Object> data = new HashMap<>(VaultTestSupport.rundeckKey("s3cret"));
+        vault.put("secret/rundeck/keys/db/password", data);
+
+        assertTrue(build("keys/db/password/user").isError());
+        assertTrue(build("keys/db/password/port").isError());
+        //read once as the parent of a key, never remembered as missing itself
+        assertThat(vault.calls("read"), is(3));
+        assertTrue(cache.holdsNoKeys(PathUtil.asPath("keys/db/password")));
+        assertFalse(cache.isMissing(PathUtil.asPath("keys/db/password")));
+        assertFalse(build("keys/db/password").isError());
+    }
+
+    @Test
+    public void keyOfAMultiKeySecretIsFoundThroughItsParent() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("user", "admin");
+        data.put("password", "s3cret");
+        vault.put("secret/rundeck/keys/db", data);
+
+        KeyObject key = build("keys/db/user");
+        assertFalse(key.isError());
+        assertTrue(key.isMultiplesKeys());
+        assertFalse(cache.holdsNoKeys(PathUtil.asPath("keys/db")));
+
+        //written to the parent in the meantime
+        cache.invalidate(PathUtil.asPath("keys/db/user"));
+        assertFalse(build("keys/db/user").isError());
+    }
+}
@@ -0,0 +1,156 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonObject;
+import com.bettercloud.vault.json.JsonValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rundeck.storage.api.StorageException;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class OperationTraceTest {
+
+    private static final String SLOW = "Slow Vault storage operation: ";
+
+    private FakeVaultServer server;
+    private VaultStoragePlugin plugin;
+    private final List<JsonObject> logged = new ArrayList<>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            if (record.getMessage().startsWith(SLOW)) {
+                synchronized (logged) {
+                    logged.add(Json.parse(record.getMessage().substring(SLOW.length())).asObject());
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeVaultServer();
+        server.put("secret/trace-test/keys/db/password", VaultTestSupport.rundeckKey("s3cret"));
+        server.put("secret/trace-test/keys/db/user", VaultTestSupport.rundeckKey("admin"));
+        Logger.getLogger("vault-storage").addHandler(handler);
+    }
+
+    @After
+    public void tearDown() {
+        Logger.getLogger("vault-storage").removeHandler(handler);
+        if (plugin != null) {
+            plugin.getMetrics().unregister();
+        }
+        server.close();
+    }
+
+    private void configure(String thresholdMilliseconds, String... extra) throws Exception {
+        Properties configuration = VaultTestSupport.configuration(server, "trace-test", extra);
+        configuration.setProperty(ConfigOptions.VAULT_SLOW_OPERATION_THRESHOLD_MILLISECONDS, thresholdMilliseconds);
+        plugin = VaultTestSupport.configured(configuration);
+    }
+
+    private static List<JsonObject> calls(JsonObject operation, String name) {
+        List<JsonObject> calls = new ArrayList<>();
+        for (JsonValue call : operation.get("calls").asArray()) {
+            if (call.asObject().getString("call", "").equals(name)) {
+                calls.add(call.asObject());
+            }
+        }
+        return calls;
+    }
+
+    @Test
+    public void slowOperationIsLoggedWithItsCalls() throws Exception {
+        configure("20");
+        server.latencyMilliseconds = 30;
+
+        plugin.getResource("keys/db/password");
+
+        assertThat(logged.size(), is(1));
+        JsonObject operation = logged.get(0);
+        assertThat(operation.getString("operation", null), is("plugin.getResource"));
+        assertThat(operation.getString("path", null), is("keys/db/password"));
+        assertThat(operation.getString("outcome", null), is("success"));
+        assertTrue(operation.getDouble("elapsedMs", 0) >= 30);
+
+        List<JsonObject> reads = calls(operation, "vault.read");
+        assertThat(reads.size(), is(1));
+        assertThat(reads.get(0).getString("path", null), is("secret/trace-test/keys/db/password"));
+        assertThat(reads.get(0).getInt("status", 0), is(200));
+        assertThat(reads.get(0).getInt("retry", -1), is(0));
+        assertTrue(reads.get(0).getDouble("elapsedMs", 0) >= 30);
+        assertThat(operation.getInt("vaultCalls", 0), is(operation.get("calls").asArray().size()));
+    }
+
+    @Test
+    public void fastOperationsAreNotLogged() throws Exception {
+        configure("10000");
+        plugin.getResource("keys/db/password");
+        plugin.listDirectory("keys/db");
+
+        configure("0");
+        server.latencyMilliseconds = 20;
+        plugin.getResource("keys/db/password");
+
+        assertTrue(logged.isEmpty());
+    }
+
+    @Test
+    public void retriesAreNumbered() throws Exception {
+        configure("1",
+                ConfigOptions.VAULT_MAX_RETRIES, "1",
+                ConfigOptions.VAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "0");
+        server.failureStatus = 503;
+
+        try {
+            plugin.getResource("keys/db/password");
+            fail("expected the read to fail");
+        } catch (StorageException e) {
+            //expected
+        }
+
+        JsonObject operation = logged.get(0);
+        assertThat(operation.getString("outcome", null), is("error"));
+        List<JsonObject> reads = calls(operation, "vault.read");
+        assertThat(reads.get(0).getInt("status", 0), is(503));
+        assertThat(reads.get(0).getInt("retry", -1), is(0));
+        assertThat(reads.get(1).getString("path", null), is(reads.get(0).getString("path", null)));
+        assertThat(reads.get(1).getInt("retry", -1), is(1));
+    }
+
+    @Test
+    public void listedKeysAreReadAsPartOfTheListing() throws Exception {
+        configure("20");
+        server.latencyMilliseconds = 30;
+
+        plugin.listDirectory("keys/db");
+
+        assertThat(logged.size(), is(1));
+        JsonObject operation = logged.get(0);
+        assertThat(operation.getString("operation", null), is("plugin.listDirectory"));
+        assertThat(calls(operation, "vault.list").size(), is(1));
+        List<JsonObject> reads = calls(operation, "vault.read");
+        assertThat(reads.size(), is(2));
+        for (JsonObject read : reads) {
+            assertTrue(read.getString("thread", "").startsWith("vault-storage-list"));
+        }
+    }
+}
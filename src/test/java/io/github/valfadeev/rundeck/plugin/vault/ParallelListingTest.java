@@ -0,0 +1,137 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import org.junit.After;
+import org.junit.Test;
+import org.rundeck.storage.api.Resource;
+import org.rundeck.storage.api.StorageException;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class ParallelListingTest {
+
+    private final CountDownLatch released = new CountDownLatch(1);
+    //per Vault path, how long its read takes and how it fails
+    private final Map<String, Long> delays = new ConcurrentHashMap<>();
+    private final Map<String, VaultException> failures = new ConcurrentHashMap<>();
+    private final InMemoryLogical vault = new InMemoryLogical() {
+        @Override
+        public LogicalResponse read(String path) throws VaultException {
+            try {
+                Long delay = delays.get(path);
+                if (delay != null && delay < 0) {
+                    released.await();
+                } else if (delay != null) {
+                    Thread.sleep(delay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new VaultException(e);
+            }
+            VaultException failure = failures.get(path);
+            if (failure != null) {
+                throw failure;
+            }
+            return super.read(path);
+        }
+    };
+    private VaultStoragePlugin plugin;
+
+    @After
+    public void tearDown() {
+        released.countDown();
+        if (plugin != null) {
+            plugin.getMetrics().unregister();
+        }
+    }
+
+    private VaultStoragePlugin plugin(String storageBehaviour, String listTimeoutMilliseconds) throws Exception {
+        Properties configuration = new Properties();
+        configuration.setProperty(ConfigOptions.VAULT_PREFIX, "rundeck");
+        configuration.setProperty(ConfigOptions.VAULT_SECRET_BACKEND, "secret");
+        configuration.setProperty(ConfigOptions.VAULT_STORAGE_BEHAVIOUR, storageBehaviour);
+        configuration.setProperty(ConfigOptions.VAULT_PATH_PROBE_TTL_MILLISECONDS, "0");
+        configuration.setProperty(ConfigOptions.VAULT_LIST_CONCURRENCY, "4");
+        configuration.setProperty(ConfigOptions.VAULT_LIST_TIMEOUT_MILLISECONDS, listTimeoutMilliseconds);
+        plugin = new VaultStoragePlugin();
+        plugin.configure(configuration, vault);
+        return plugin;
+    }
+
+    private void stored(int count) {
+        for (int i = 0; i < count; i++) {
+            vault.put("secret/rundeck/keys/db/key-" + i, new HashMap<>(VaultTestSupport.rundeckKey("s3cret-" + i)));
+        }
+    }
+
+    private static List<String> names(Iterable<Resource<ResourceMeta>> resources) {
+        List<String> names = new ArrayList<>();
+        for (Resource<ResourceMeta> resource : resources) {
+            names.add(resource.getPath().getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void entriesAreReturnedInListingOrder() throws Exception {
+        stored(6);
+        //the first entries finish last
+        delays.put("secret/rundeck/keys/db/key-0", 300L);
+        delays.put("secret/rundeck/keys/db/key-1", 150L);
+        plugin("rundeck", "10000");
+
+        assertThat(names(plugin.listDirectory("keys/db")),
+                is(Arrays.asList("key-0", "key-1", "key-2", "key-3", "key-4", "key-5")));
+        assertThat(vault.calls("read"), is(6));
+    }
+
+    @Test
+    public void firstFailingEntryInListingOrderIsReported() throws Exception {
+        stored(4);
+        delays.put("secret/rundeck/keys/db/key-1", 200L);
+        failures.put("secret/rundeck/keys/db/key-1", new VaultException("key-1 unavailable", 503));
+        failures.put("secret/rundeck/keys/db/key-3", new VaultException("key-3 forbidden", 403));
+        plugin("vault", "10000");
+
+        try {
+            plugin.listDirectory("keys/db");
+            fail("expected the listing to fail");
+        } catch (StorageException e) {
+            assertThat(e.getMessage(), containsString("key-1 unavailable"));
+        }
+    }
+
+    @Test
+    public void listingTimesOut() throws Exception {
+        stored(4);
+        delays.put("secret/rundeck/keys/db/key-2", -1L);
+        plugin("rundeck", "200");
+
+        long start = System.nanoTime();
+        try {
+            plugin.listDirectory("keys/db");
+            fail("expected the listing to time out");
+        } catch (StorageException e) {
+            assertThat(e.getMessage(), containsString("Timed out after 200 ms"));
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(String.valueOf(elapsed), elapsed < 5000);
+
+        //the blocked read was cancelled, the pool is free for the next listing
+        delays.clear();
+        assertThat(plugin.listDirectory("keys/db").size(), is(4));
+    }
+}
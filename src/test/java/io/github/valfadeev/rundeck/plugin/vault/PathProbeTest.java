@@ -0,0 +1,135 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bettercloud.vault.VaultException;
+import org.junit.Test;
+import org.rundeck.storage.api.Path;
+import org.rundeck.storage.api.PathUtil;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class PathProbeTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private final InMemoryLogical backend = new InMemoryLogical();
+
+    private PathProbe probe(long ttlMilliseconds) {
+        return probe(ttlMilliseconds, null);
+    }
+
+    private PathProbe probe(long ttlMilliseconds, PathProbe.Existence existence) {
+        return new PathProbe(
+                path -> backend.list(VaultStoragePlugin.getVaultPath(path.getPath(), "secret", "rundeck")),
+                path -> KeyObjectBuilder.builder()
+                        .path(path)
+                        .vault(backend)
+                        .vaultSecretBackend("secret")
+                        .vaultPrefix("rundeck")
+                        .build(),
+                existence,
+                100,
+                ttlMilliseconds,
+                now::get);
+    }
+
+    private static Map<String, Object> rundeckKey() {
+        Map<String, Object> data = new HashMap<>();
+        data.put(VaultStoragePlugin.VAULT_STORAGE_KEY, "secret");
+        data.put("Rundeck-content-type", VaultStoragePlugin.PASSWORD_MIME_TYPE);
+        return data;
+    }
+
+    @Test
+    public void classifiesPaths() {
+        Map<String, Object> multi = new HashMap<>();
+        multi.put("user", "admin");
+        multi.put("password", "s3cret");
+        backend.put("secret/rundeck/keys/db/password", rundeckKey())
+               .put("secret/rundeck/keys/plain", Collections.singletonMap("value", "v"))
+               .put("secret/rundeck/keys/multi", multi);
+        PathProbe probe = probe(1000);
+
+        assertThat(probe.classify(PathUtil.asPath("keys/db")), is(PathProbe.Kind.DIRECTORY));
+        assertThat(probe.classify(PathUtil.asPath("keys/db/password")), is(PathProbe.Kind.RUNDECK_KEY));
+        assertThat(probe.classify(PathUtil.asPath("keys/plain")), is(PathProbe.Kind.VAULT_KEY));
+        assertThat(probe.classify(PathUtil.asPath("keys/multi")), is(PathProbe.Kind.MULTI_KEY_SECRET));
+        assertThat(probe.classify(PathUtil.asPath("keys/none")), is(PathProbe.Kind.MISSING));
+    }
+
+    @Test
+    public void existenceChecksShareVaultCalls() {
+        backend.put("secret/rundeck/keys/db/password", rundeckKey());
+        PathProbe probe = probe(1000);
+        Path path = PathUtil.asPath("keys/db/password");
+
+        //hasPath, then hasResource, then hasDirectory, as the storage tree does before a read
+        assertThat(probe.isDirectory(path) || probe.keyExists(path), is(true));
+        assertThat(probe.keyExists(path), is(true));
+        assertThat(probe.isDirectory(path), is(false));
+        assertThat(backend.calls("list"), is(1));
+        assertThat(backend.calls("read"), is(1));
+
+        backend.resetCalls();
+        now.addAndGet(1000);
+        assertThat(probe.keyExists(path), is(true));
+        assertThat(backend.calls("read"), is(1));
+    }
+
+    @Test
+    public void writesInvalidateClassification() {
+        PathProbe probe = probe(1000);
+        Path path = PathUtil.asPath("keys/new");
+
+        assertThat(probe.keyExists(path), is(false));
+        backend.put("secret/rundeck/keys/new", rundeckKey());
+        probe.invalidate(path);
+
+        assertThat(probe.keyKind(path), is(PathProbe.Kind.RUNDECK_KEY));
+    }
+
+    @Test
+    public void disabledProbeStillResolves() {
+        backend.put("secret/rundeck/keys/db/password", rundeckKey());
+        PathProbe probe = probe(0);
+        Path path = PathUtil.asPath("keys/db/password");
+
+        assertThat(probe.keyExists(path), is(true));
+        assertThat(probe.keyExists(path), is(true));
+        assertThat(backend.calls("read"), is(2));
+    }
+
+    @Test
+    public void keyVaultFailedToReadIsNotRememberedAsMissing() {
+        backend.put("secret/rundeck/keys/db/password", rundeckKey());
+        PathProbe probe = probe(1000);
+        Path path = PathUtil.asPath("keys/db/password");
+
+        backend.failure = new VaultException("unavailable", 503);
+        assertThat(probe.keyKind(path), is(PathProbe.Kind.MISSING));
+        backend.failure = null;
+        assertThat(probe.keyKind(path), is(PathProbe.Kind.RUNDECK_KEY));
+    }
+
+    @Test
+    public void failedExistenceCheckIsNotRemembered() {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        PathProbe probe = probe(1000, path -> {
+            if (failing.get()) {
+                throw new VaultException("unavailable", 503);
+            }
+            return true;
+        });
+        Path path = PathUtil.asPath("keys/db/password");
+
+        assertThat(probe.keyExists(path), is(false));
+        failing.set(false);
+        assertThat(probe.keyExists(path), is(true));
+    }
+}
@@ -0,0 +1,328 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.rest.RestResponse;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class PooledHttpTransportTest {
+
+    private HttpServer server;
+    private String address;
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            byte[] body = ("{\"data\":{\"path\":\"" + exchange.getRequestURI() + "\"}}")
+                    .getBytes(StandardCharsets.UTF_8);
+            boolean chunked = exchange.getRequestURI().getPath().endsWith("chunked");
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, chunked ? 0 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        address = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void pathSegmentsArePercentEncoded() throws Exception {
+        assertThat(TransportLogical.encodePath("secret/rundeck/keys/db-1/a_b.c~d"), is("secret/rundeck/keys/db-1/a_b.c~d"));
+        assertThat(TransportLogical.encodePath("secret/keys/a b#c?d%e+f"), is("secret/keys/a%20b%23c%3Fd%25e%2Bf"));
+        assertThat(TransportLogical.encodePath("secret/keys/caf\u00e9"), is("secret/keys/caf%C3%A9"));
+
+        FakeVaultServer vault = new FakeVaultServer();
+        PooledHttpTransport transport = new PooledHttpTransport(vault.address(), null, false, 2, 60000, 1000, 1000);
+        try {
+            TransportLogical logical = new TransportLogical(transport, FakeVaultServer.ROOT_TOKEN);
+            String key = "secret/rundeck/keys/a b#c?d%e";
+            logical.write(key, Collections.singletonMap("value", "s3cret"));
+
+            assertThat(vault.get(key).getString("value", null), is("s3cret"));
+            assertThat(logical.read(key).getData().get("value"), is("s3cret"));
+            assertThat(logical.list("secret/rundeck/keys"), is(Collections.singletonList("a b#c?d%e")));
+            logical.delete(key);
+            assertThat(vault.get(key), is(nullValue()));
+        } finally {
+            transport.close();
+            vault.close();
+        }
+    }
+
+    @Test
+    public void reusesConnectionAcrossRequests() throws Exception {
+        PooledHttpTransport transport = new PooledHttpTransport(address, null, false, 2, 60000, 1000, 1000);
+
+        for (int i = 0; i < 5; i++) {
+            RestResponse response = transport.send("GET", "secret/rundeck/keys/a", "token", null);
+            assertThat(response.getStatus(), is(200));
+            assertThat(new String(response.getBody(), StandardCharsets.UTF_8),
+                    containsString("/v1/secret/rundeck/keys/a"));
+        }
+
+        assertThat(transport.getOpenedConnections(), is(1L));
+        assertThat(clientPorts.size(), is(1));
+        transport.close();
+    }
+
+    @Test
+    public void readsChunkedResponses() throws Exception {
+        PooledHttpTransport transport = new PooledHttpTransport(address, null, false, 2, 60000, 1000, 1000);
+
+        RestResponse first = transport.send("GET", "secret/chunked", "token", null);
+        RestResponse second = transport.send("GET", "secret/chunked?list=true", "token", null);
+
+        assertThat(new String(first.getBody(), StandardCharsets.UTF_8), containsString("/v1/secret/chunked"));
+        assertThat(new String(second.getBody(), StandardCharsets.UTF_8), containsString("list=true"));
+        assertThat(transport.getOpenedConnections(), is(1L));
+        transport.close();
+    }
+
+    @Test
+    public void closesConnectionsIdleForTooLong() throws Exception {
+        PooledHttpTransport transport = new PooledHttpTransport(address, null, false, 2, 0, 1000, 1000);
+
+        transport.send("GET", "secret/a", "token", null);
+        Thread.sleep(5);
+        transport.send("GET", "secret/a", "token", null);
+
+        assertThat(transport.getOpenedConnections(), is(2L));
+        transport.close();
+        assertThat(transport.getIdleConnections(), is(0));
+    }
+
+    @Test
+    public void idleConnectionsAreClosedWithoutFurtherRequests() throws Exception {
+        PooledHttpTransport transport = new PooledHttpTransport(address, null, false, 2, 100, 1000, 1000);
+
+        transport.send("GET", "secret/a", "token", null);
+        assertThat(transport.getIdleConnections(), is(1));
+        for (int i = 0; i < 200 && transport.getIdleConnections() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(transport.getIdleConnections(), is(0));
+        transport.close();
+    }
+
+    @Test
+    public void interimResponsesAreSkipped() throws Exception {
+        try (DroppingServer dropping = new DroppingServer(true)) {
+            PooledHttpTransport transport = new PooledHttpTransport(dropping.address(), null, false, 2, 60000, 1000, 1000);
+
+            RestResponse response = transport.send("GET", "secret/a", "token", null);
+            assertThat(response.getStatus(), is(200));
+            assertThat(new String(response.getBody(), StandardCharsets.UTF_8), is("{\"data\":{}}"));
+            transport.close();
+        }
+    }
+
+    @Test
+    public void onlyReadsAreSentAgainWhenAPooledConnectionFails() throws Exception {
+        try (DroppingServer dropping = new DroppingServer()) {
+            PooledHttpTransport transport = new PooledHttpTransport(dropping.address(), null, false, 2, 60000, 1000, 1000);
+
+            assertThat(transport.send("GET", "secret/a", "token", null).getStatus(), is(200));
+            //dropped on the pooled connection, sent again on a new one
+            assertThat(transport.send("GET", "secret/a", "token", null).getStatus(), is(200));
+            assertThat(dropping.requests.get(), is(3));
+
+            try {
+                transport.send("POST", "secret/a", "token", "{}".getBytes(StandardCharsets.UTF_8));
+                fail("expected the write to fail");
+            } catch (IOException e) {
+                //expected, Vault may have applied it
+            }
+            assertThat(dropping.requests.get(), is(4));
+            transport.close();
+        }
+    }
+
+    @Test
+    public void jdkTransportSendsOnlyReadsAgainWhenAConnectionFails() throws Exception {
+        try (DroppingServer dropping = new DroppingServer()) {
+            JdkHttpTransport transport = new JdkHttpTransport(dropping.address(), null, false, 1000, 1000);
+
+            assertThat(transport.send("GET", "secret/a", "token", null).getStatus(), is(200));
+            assertThat(transport.send("GET", "secret/a", "token", null).getStatus(), is(200));
+            assertThat(dropping.requests.get(), is(3));
+
+            try {
+                transport.send("POST", "secret/a", "token", "{}".getBytes(StandardCharsets.UTF_8));
+                fail("expected the write to fail");
+            } catch (IOException e) {
+                //expected, Vault may have applied it
+            }
+            assertThat(dropping.requests.get(), is(4));
+        }
+    }
+
+    @Test
+    public void jdkTransportReadsErrorResponses() throws Exception {
+        FakeVaultServer vault = new FakeVaultServer();
+        try {
+            TransportLogical logical = new TransportLogical(
+                    new JdkHttpTransport(vault.address(), null, false, 1000, 1000), FakeVaultServer.ROOT_TOKEN);
+            logical.write("secret/rundeck/keys/a b", Collections.singletonMap("value", "s3cret"));
+            assertThat(logical.read("secret/rundeck/keys/a b").getData().get("value"), is("s3cret"));
+            try {
+                logical.read("secret/rundeck/keys/missing");
+                fail("expected the read to fail");
+            } catch (VaultException e) {
+                assertThat(e.getHttpStatusCode(), is(404));
+            }
+        } finally {
+            vault.close();
+        }
+    }
+
+    @Test
+    public void cancelledRequestIsAbortedAndItsConnectionNotPooled() throws Exception {
+        FakeVaultServer vault = new FakeVaultServer();
+        vault.put("secret/rundeck/keys/a", Collections.singletonMap("value", "s3cret"));
+        PooledHttpTransport pooled = new PooledHttpTransport(vault.address(), null, false, 2, 60000, 5000, 5000);
+        try {
+            for (VaultTransport transport : new VaultTransport[]{
+                    pooled, new JdkHttpTransport(vault.address(), null, false, 5000, 5000)}) {
+                TransportLogical logical = new TransportLogical(transport, FakeVaultServer.ROOT_TOKEN);
+                vault.latencyMilliseconds = 2000;
+                Cancellation cancellation = new Cancellation();
+                Thread canceller = new Thread(() -> {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException ignored) {
+                    }
+                    cancellation.cancel();
+                });
+                canceller.start();
+
+                long start = System.nanoTime();
+                try {
+                    cancellation.run(() -> logical.read("secret/rundeck/keys/a"));
+                    fail("expected the read to be aborted");
+                } catch (VaultException e) {
+                    assertThat(e.getHttpStatusCode(), is(0));
+                }
+                assertTrue((System.nanoTime() - start) / 1000000 < 1500);
+                canceller.join();
+                try {
+                    cancellation.run(() -> logical.read("secret/rundeck/keys/a"));
+                    fail("expected the cancelled call to send nothing more");
+                } catch (VaultException e) {
+                    assertThat(e.getHttpStatusCode(), is(0));
+                }
+
+                vault.latencyMilliseconds = 0;
+                assertThat(logical.read("secret/rundeck/keys/a").getData().get("value"), is("s3cret"));
+            }
+            assertThat(pooled.getOpenedConnections(), is(2L));
+        } finally {
+            pooled.close();
+            vault.close();
+        }
+    }
+
+    /**
+     * Answers the first request of every connection, then reads the second one and closes
+     * the connection without answering, as a server going away mid-request would.
+     */
+    private static class DroppingServer implements AutoCloseable {
+        final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final AtomicInteger requests = new AtomicInteger();
+        final Thread acceptor = new Thread(this::accept, "dropping-server");
+        //a 100 Continue sent ahead of every response
+        final boolean interim;
+
+        DroppingServer() throws IOException {
+            this(false);
+        }
+
+        DroppingServer(boolean interim) throws IOException {
+            this.interim = interim;
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        String address() {
+            return "http://127.0.0.1:" + socket.getLocalPort();
+        }
+
+        private void accept() {
+            while (!socket.isClosed()) {
+                try (Socket client = socket.accept()) {
+                    InputStream in = new BufferedInputStream(client.getInputStream());
+                    readRequest(in);
+                    requests.incrementAndGet();
+                    byte[] body = "{\"data\":{}}".getBytes(StandardCharsets.UTF_8);
+                    OutputStream out = client.getOutputStream();
+                    if (interim) {
+                        out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    }
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: "
+                            + body.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(body);
+                    out.flush();
+                    if (readRequest(in)) {
+                        requests.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    //closed
+                }
+            }
+        }
+
+        //false if the connection was closed first
+        private static boolean readRequest(InputStream in) throws IOException {
+            StringBuilder head = new StringBuilder();
+            int c;
+            while (!head.toString().endsWith("\r\n\r\n")) {
+                if ((c = in.read()) == -1) {
+                    return false;
+                }
+                head.append((char) c);
+            }
+            String lower = head.toString().toLowerCase();
+            int length = lower.indexOf("content-length: ");
+            if (length >= 0) {
+                int end = lower.indexOf("\r\n", length);
+                int remaining = Integer.parseInt(lower.substring(length + 16, end).trim());
+                for (int i = 0; i < remaining; i++) {
+                    in.read();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
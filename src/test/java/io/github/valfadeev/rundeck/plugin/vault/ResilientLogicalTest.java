@@ -0,0 +1,168 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bettercloud.vault.VaultException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class ResilientLogicalTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private final InMemoryLogical backend = new InMemoryLogical()
+            .put("secret/a", Collections.singletonMap("value", "1"));
+
+    private ResilientLogical resilient(int maxRetries, CircuitBreaker breaker) {
+        return new ResilientLogical(backend, maxRetries, 1, 1, new RetryBudget(1.0, 100), breaker);
+    }
+
+    @Test
+    public void retriesServerErrors() throws Exception {
+        backend.failure = new VaultException("unavailable", 503);
+        backend.beforeCall = () -> {
+            if (backend.calls("read") == 3) {
+                backend.failure = null;
+            }
+        };
+
+        assertThat(resilient(5, null).read("secret/a").getData().get("value"), is("1"));
+        assertThat(backend.calls("read"), is(3));
+    }
+
+    @Test
+    public void writesAreOnlyRetriedWhenVaultCantHaveAppliedThem() throws Exception {
+        //no response: the write may have been applied
+        backend.failure = new VaultException(new SocketTimeoutException("Read timed out"));
+        try {
+            resilient(5, null).write("secret/b", Collections.singletonMap("value", "2"));
+            fail("expected the write to fail");
+        } catch (VaultException e) {
+            assertThat(e.getHttpStatusCode(), is(0));
+        }
+        try {
+            resilient(5, null).delete("secret/a");
+            fail("expected the delete to fail");
+        } catch (VaultException e) {
+            assertThat(e.getHttpStatusCode(), is(0));
+        }
+        backend.failure = new VaultException("internal error", 500);
+        try {
+            resilient(5, null).write("secret/b", Collections.singletonMap("value", "2"));
+            fail("expected the write to fail");
+        } catch (VaultException e) {
+            assertThat(e.getHttpStatusCode(), is(500));
+        }
+        assertThat(backend.calls("write"), is(2));
+        assertThat(backend.calls("delete"), is(1));
+
+        //refused or never sent: retried
+        backend.beforeCall = () -> {
+            if (backend.calls("write") == 2) {
+                backend.failure = null;
+            }
+        };
+        for (VaultException failure : new VaultException[]{
+                new VaultException("sealed", 503),
+                new VaultException("rate limited", 429),
+                new VaultException(new ConnectException("Connection refused"))}) {
+            backend.resetCalls();
+            backend.failure = failure;
+            resilient(5, null).write("secret/b", Collections.singletonMap("value", "2"));
+            assertThat(failure.getMessage(), backend.calls("write"), is(2));
+        }
+    }
+
+    @Test
+    public void doesNotRetryMissingPaths() throws Exception {
+        try {
+            resilient(5, null).read("secret/missing");
+            fail("expected a 404");
+        } catch (VaultException e) {
+            assertThat(e.getHttpStatusCode(), is(404));
+        }
+        assertThat(backend.calls("read"), is(1));
+    }
+
+    @Test
+    public void stopsRetryingWhenBudgetIsSpent() throws Exception {
+        backend.failure = new VaultException("unavailable", 503);
+        ResilientLogical logical = new ResilientLogical(backend, 5, 1, 1, new RetryBudget(0.0, 2), null);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                logical.read("secret/a");
+                fail("expected a 503");
+            } catch (VaultException expected) {
+            }
+        }
+        //first call retried twice, the others not at all
+        assertThat(backend.calls("read"), is(5));
+    }
+
+    @Test
+    public void breakerFailsFastAndRecoversAfterProbe() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(2, 100, now::get);
+        ResilientLogical logical = resilient(0, breaker);
+        backend.failure = new VaultException("unavailable", 503);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                logical.read("secret/a");
+                fail("expected a 503");
+            } catch (VaultException e) {
+                assertThat(e.getHttpStatusCode(), is(503));
+            }
+        }
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat(backend.calls("read"), is(2));
+
+        backend.failure = null;
+        now.addAndGet(100);
+        assertThat(logical.read("secret/a").getData().get("value"), is("1"));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(backend.calls("read"), is(3));
+    }
+
+    @Test
+    public void readsWithoutRetriesGoThroughTheBreaker() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(2, 100, now::get);
+        ResilientLogical logical = resilient(5, breaker);
+        backend.failure = new VaultException("unavailable", 503);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                logical.read("secret/a", false);
+                fail("expected a 503");
+            } catch (VaultException e) {
+                assertThat(e.getHttpStatusCode(), is(503));
+            }
+        }
+        //not retried, then failing fast
+        assertThat(backend.calls("read"), is(2));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void interruptedCallIsNotRetried() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100, now::get);
+        backend.failure = new VaultException(new InterruptedException());
+
+        try {
+            resilient(5, breaker).read("secret/a");
+            fail("expected the interruption");
+        } catch (VaultException e) {
+            assertThat(e.getCause(), is(instanceOf(InterruptedException.class)));
+        } finally {
+            //cleared so it doesn't leak into other tests
+            assertTrue(Thread.interrupted());
+        }
+        assertThat(backend.calls("read"), is(1));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+}
@@ -0,0 +1,136 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
+import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rundeck.storage.api.PathUtil;
+import org.rundeck.storage.api.Resource;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class RoutingTableTest {
+
+    private FakeVaultServer server;
+    private VaultStoragePlugin plugin;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeVaultServer().mount("kv-a", 2);
+    }
+
+    @After
+    public void tearDown() {
+        if (plugin != null) {
+            plugin.getMetrics().unregister();
+        }
+        server.close();
+    }
+
+    private Properties configuration(String... extra) {
+        return VaultTestSupport.configuration(server, "rundeck", extra);
+    }
+
+    private static RoutingTable table(Properties configuration) throws ConfigurationException {
+        return RoutingTable.configure(configuration, new InMemoryLogical());
+    }
+
+    private static Set<String> names(Set<Resource<ResourceMeta>> resources) {
+        return resources.stream().map(r -> r.getPath().getName()).collect(Collectors.toSet());
+    }
+
+    @Test
+    public void longestPathWins() throws Exception {
+        RoutingTable routes = table(configuration(
+                "route.projects.path", "keys/project",
+                "route.projects.secretBackend", "kv-projects",
+                "route.a.path", "/keys/project/A/",
+                "route.a.secretBackend", "kv-a",
+                "route.a.prefix", "heavy"));
+
+        assertThat(routes.routeOf(PathUtil.asPath("keys/project/A/db")).name, is("a"));
+        assertThat(routes.routeOf(PathUtil.asPath("keys/project/A")).name, is("a"));
+        assertThat(routes.routeOf(PathUtil.asPath("keys/project/AB/db")).name, is("projects"));
+        assertThat(routes.routeOf(PathUtil.asPath("keys/other")).name, is(RoutingTable.DEFAULT_ROUTE));
+
+        assertThat(routes.routeOf(PathUtil.asPath("keys/project/A/db")).vaultPath(PathUtil.asPath("keys/project/A/db")),
+                is("kv-a/heavy/keys/project/A/db"));
+        //options not given for a route are the plugin's own
+        assertThat(routes.routeOf(PathUtil.asPath("keys/project/B")).vaultPath(PathUtil.asPath("keys/project/B")),
+                is("kv-projects/rundeck/keys/project/B"));
+    }
+
+    @Test
+    public void directoriesLeadingToRoutes() throws Exception {
+        RoutingTable routes = table(configuration(
+                "route.a.path", "keys/project/A",
+                "route.b.path", "keys/project/B/secrets"));
+
+        assertThat(routes.directoriesBelow(PathUtil.asPath("")), is(setOf("keys/")));
+        assertThat(routes.directoriesBelow(PathUtil.asPath("keys")), is(setOf("project/")));
+        assertThat(routes.directoriesBelow(PathUtil.asPath("keys/project")), is(setOf("A/", "B/")));
+        assertThat(routes.directoriesBelow(PathUtil.asPath("keys/project/B")), is(setOf("secrets/")));
+        assertTrue(routes.directoriesBelow(PathUtil.asPath("keys/project/A")).isEmpty());
+        assertTrue(routes.directoriesBelow(PathUtil.asPath("keys/other")).isEmpty());
+    }
+
+    @Test
+    public void invalidRoutes() {
+        for (String[] routes : new String[][]{
+                {"route.a.path", ""},
+                {"route.a.path", "keys/x", "route.b.path", "keys/x/"},
+                {"route.default.path", "keys/x"},
+                {"route.a.path", "keys/x", "route.a.engineVersion", "3"}}) {
+            try {
+                table(configuration(routes));
+                fail("expected " + Arrays.toString(routes) + " to be rejected");
+            } catch (ConfigurationException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void keysAreStoredInTheirRoutesMount() throws Exception {
+        plugin = new VaultStoragePlugin();
+        plugin.configure(configuration(
+                "route.a.path", "keys/project/A",
+                "route.a.secretBackend", "kv-a",
+                "route.a.engineVersion", "2",
+                "route.a.cacheEnabled", "true"));
+
+        plugin.createResource("keys/project/A/db", VaultTestSupport.content("a-secret"));
+        plugin.createResource("keys/project/B/db", VaultTestSupport.content("b-secret"));
+        assertThat(server.get("kv-a/rundeck/keys/project/A/db"), notNullValue());
+        assertThat(server.get("secret/rundeck/keys/project/B/db"), notNullValue());
+        assertThat(server.get("secret/rundeck/keys/project/A/db"), nullValue());
+
+        assertThat(names(plugin.listDirectory("keys/project")), is(setOf("A", "B")));
+        assertThat(names(plugin.listDirectory("keys")), is(setOf("project")));
+        assertTrue(plugin.hasDirectory("keys/project/A"));
+
+        //only the route of project A caches its keys
+        server.resetCalls();
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/project/A/db")), is("a-secret"));
+        assertThat(server.totalCalls(), is(0));
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/project/B/db")), is("b-secret"));
+        assertThat(server.calls("read"), is(1));
+
+        assertTrue(plugin.deleteResource("keys/project/A/db"));
+        assertThat(server.get("kv-a/rundeck/keys/project/A/db"), nullValue());
+        assertFalse(plugin.hasResource("keys/project/A/db"));
+        assertTrue(plugin.hasResource("keys/project/B/db"));
+    }
+
+    private static Set<String> setOf(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+}
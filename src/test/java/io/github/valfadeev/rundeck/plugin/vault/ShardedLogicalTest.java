@@ -0,0 +1,345 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.api.Logical;
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class ShardedLogicalTest {
+
+    private final InMemoryLogical first = new InMemoryLogical();
+    private final InMemoryLogical second = new InMemoryLogical();
+    private final InMemoryLogical added = new InMemoryLogical();
+
+    private VaultStoragePlugin plugin;
+    private ShardedLogical sharded;
+    private FakeVaultServer server;
+    private FakeVaultServer shardServer;
+    private FakeVaultServer addedServer;
+
+    @After
+    public void tearDown() {
+        if (plugin != null) {
+            plugin.getMetrics().unregister();
+            if (plugin.getRebalancer() != null) {
+                plugin.getRebalancer().shutdown();
+            }
+        }
+        if (sharded != null) {
+            sharded.shutdown();
+        }
+        if (server != null) {
+            server.close();
+        }
+        if (shardServer != null) {
+            shardServer.close();
+        }
+        if (addedServer != null) {
+            addedServer.close();
+        }
+    }
+
+    private ShardedLogical sharded(boolean rebalancing, InMemoryLogical... backends) {
+        Map<String, Logical> shards = new LinkedHashMap<>();
+        for (int i = 0; i < backends.length; i++) {
+            shards.put(i == 0 ? VaultStoragePlugin.DEFAULT_SHARD : "shard" + i, backends[i]);
+        }
+        sharded = new ShardedLogical(new ShardRing(Arrays.asList(shards.keySet().toArray(new String[0])), 128),
+                shards, rebalancing);
+        return sharded;
+    }
+
+    private static Properties configuration() {
+        Properties configuration = new Properties();
+        configuration.setProperty(ConfigOptions.VAULT_PREFIX, "rundeck");
+        configuration.setProperty(ConfigOptions.VAULT_SECRET_BACKEND, "secret");
+        configuration.setProperty(ConfigOptions.VAULT_PATH_PROBE_TTL_MILLISECONDS, "0");
+        configuration.setProperty(ConfigOptions.VAULT_LIST_CONCURRENCY, "1");
+        return configuration;
+    }
+
+    private static Set<String> names(int count) {
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            names.add("key" + i);
+        }
+        return names;
+    }
+
+    @Test
+    public void addedShardOnlyTakesKeysFromTheOthers() {
+        ShardRing before = new ShardRing(Arrays.asList("default", "a"), 128);
+        ShardRing after = new ShardRing(Arrays.asList("default", "a", "b"), 128);
+
+        int moved = 0;
+        int[] counts = new int[3];
+        for (int i = 0; i < 30000; i++) {
+            String key = "keys/project/P" + (i % 50) + "/key" + i;
+            String owner = after.shardOf(key);
+            if (!owner.equals(before.shardOf(key))) {
+                assertThat(owner, is("b"));
+                moved++;
+            }
+            counts[after.getShards().indexOf(owner)]++;
+        }
+        assertTrue(String.valueOf(moved), moved > 30000 / 4 && moved < 30000 / 2);
+        for (int count : counts) {
+            assertTrue(Arrays.toString(counts), count > 30000 / 5);
+        }
+
+        //the same on every server, whatever order the shards are configured in
+        ShardRing reordered = new ShardRing(Arrays.asList("b", "default", "a"), 128);
+        assertThat(reordered.shardOf("keys/project/P1/key1"), is(after.shardOf("keys/project/P1/key1")));
+    }
+
+    @Test
+    public void keysAreStoredOnOneShardAndListedFromAll() throws Exception {
+        plugin = new VaultStoragePlugin();
+        plugin.configure(configuration(), sharded(false, first, second));
+
+        for (String name : names(40)) {
+            plugin.createResource("keys/project/" + name, VaultTestSupport.content("secret-" + name));
+        }
+        for (String name : names(40)) {
+            String vaultPath = "secret/rundeck/keys/project/" + name;
+            assertThat(name, first.contains(vaultPath), is(!second.contains(vaultPath)));
+            assertThat(second.contains(vaultPath),
+                    is(sharded.getRing().shardOf("keys/project/" + name).equals("shard1")));
+        }
+        assertTrue(first.calls("write") > 0);
+        assertTrue(second.calls("write") > 0);
+
+        Set<String> listed = plugin.listDirectory("keys/project").stream()
+                .map(resource -> resource.getPath().getName())
+                .collect(Collectors.toSet());
+        assertThat(listed, is(names(40)));
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/project/key7")), is("secret-key7"));
+
+        assertTrue(plugin.deleteResource("keys/project/key7"));
+        assertFalse(plugin.hasResource("keys/project/key7"));
+        assertThat(plugin.listDirectory("keys/project").size(), is(39));
+    }
+
+    @Test
+    public void keysNotMovedYetAreFoundWhileRebalancing() throws Exception {
+        Map<String, Object> data = Collections.singletonMap("value", "1");
+        //stored on the shard it belonged to before the third one was added
+        ShardedLogical logical = sharded(true, first, second, added);
+        String key = null;
+        for (String name : names(100)) {
+            if (logical.getRing().shardOf("secret/rundeck/keys/" + name).equals("shard2")) {
+                key = "secret/rundeck/keys/" + name;
+                break;
+            }
+        }
+        assertNotNull(key);
+        first.put(key, data);
+
+        assertThat(logical.read(key).getData().get("value"), is("1"));
+        logical.delete(key);
+        assertFalse(first.contains(key));
+        logical.shutdown();
+
+        ShardedLogical settled = sharded(false, first, second, added);
+        first.put(key, data);
+        try {
+            settled.read(key);
+            fail("expected a 404 from the shard the key belongs to");
+        } catch (VaultException e) {
+            assertThat(e.getHttpStatusCode(), is(404));
+        }
+    }
+
+    @Test
+    public void rebalancingMovesOnlyTheKeysOfTheAddedShard() throws Exception {
+        server = new FakeVaultServer().mount("secret", 2);
+        shardServer = new FakeVaultServer().mount("secret", 2);
+        addedServer = new FakeVaultServer().mount("secret", 2);
+        Properties configuration = VaultTestSupport.configuration(server, "rundeck",
+                ConfigOptions.VAULT_LIST_CONCURRENCY, "1",
+                ConfigOptions.VAULT_ENGINE_VERSION, "2",
+                "shard.b.address", shardServer.address());
+        plugin = VaultTestSupport.configured(configuration);
+        for (String name : names(60)) {
+            plugin.createResource("keys/project/" + name, VaultTestSupport.content("secret-" + name));
+        }
+        ShardRing ring = new ShardRing(Arrays.asList("default", "b", "c"), 128);
+        String typed = null;
+        for (String name : names(60)) {
+            if (ring.shardOf("keys/project/" + name).equals("c")) {
+                typed = "secret/rundeck/keys/project/" + name;
+                break;
+            }
+        }
+        assertNotNull(typed);
+        //a number stays a number once moved
+        FakeVaultServer typedServer = server.get(typed) != null ? server : shardServer;
+        new KvV2Logical(new TransportLogical(new JdkHttpTransport(typedServer.address(), null, false, 5000, 5000),
+                FakeVaultServer.ROOT_TOKEN), "secret").write(typed, Collections.singletonMap("port", 5432));
+        plugin.getMetrics().unregister();
+
+        server.resetCalls();
+        shardServer.resetCalls();
+        configuration.setProperty("shard.c.address", addedServer.address());
+        configuration.setProperty(ConfigOptions.VAULT_SHARD_REBALANCING, "true");
+        plugin = VaultTestSupport.configured(configuration);
+        assertTrue(plugin.getRebalancer().await(10, TimeUnit.SECONDS));
+        assertTrue(plugin.getRebalancer().isMover());
+
+        int expected = 0;
+        for (String name : names(60)) {
+            String vaultPath = "secret/rundeck/keys/project/" + name;
+            String owner = ring.shardOf("keys/project/" + name);
+            assertThat(name, server.get(vaultPath) != null, is(owner.equals(VaultStoragePlugin.DEFAULT_SHARD)));
+            assertThat(name, shardServer.get(vaultPath) != null, is(owner.equals("b")));
+            assertThat(name, addedServer.get(vaultPath) != null, is(owner.equals("c")));
+            if (owner.equals("c")) {
+                expected++;
+            }
+        }
+        assertTrue(expected > 0);
+        assertThat(plugin.getRebalancer().getMovedCount(), is(expected));
+        //the added shard is crawled last, after the keys were moved to it
+        assertThat(plugin.getRebalancer().getKeyCount(), is(60 + expected));
+        assertThat(plugin.getRebalancer().getErrorCount(), is(0));
+        assertTrue(addedServer.get(typed).get("port").isNumber());
+        //released once done
+        assertThat(server.get("secret/rundeck/" + ShardRebalancer.LOCK_NAME), is(nullValue()));
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/project/key3")), is("secret-key3"));
+    }
+
+    @Test
+    public void keysAreMovedByTheServerHoldingTheLock() throws Exception {
+        server = new FakeVaultServer().mount("secret", 2);
+        shardServer = new FakeVaultServer().mount("secret", 2);
+        String lock = "secret/rundeck/" + ShardRebalancer.LOCK_NAME;
+        Map<String, String> held = new HashMap<>();
+        held.put("owner", "another-server");
+        held.put("expires", String.valueOf(System.currentTimeMillis() + 60000));
+        server.put(lock, held);
+        for (String name : names(20)) {
+            server.put("secret/rundeck/keys/" + name, VaultTestSupport.rundeckKey("secret-" + name));
+        }
+
+        Properties configuration = VaultTestSupport.configuration(server, "rundeck",
+                ConfigOptions.VAULT_ENGINE_VERSION, "2",
+                ConfigOptions.VAULT_SHARD_REBALANCING, "true",
+                "shard.b.address", shardServer.address());
+        plugin = VaultTestSupport.configured(configuration);
+        assertTrue(plugin.getRebalancer().await(10, TimeUnit.SECONDS));
+        assertFalse(plugin.getRebalancer().isMover());
+        assertThat(plugin.getRebalancer().getMovedCount(), is(0));
+        assertThat(shardServer.calls("write"), is(0));
+        plugin.getMetrics().unregister();
+
+        //left behind by a server that stopped
+        held.put("expires", String.valueOf(System.currentTimeMillis() - 1));
+        server.put(lock, held);
+        plugin = VaultTestSupport.configured(configuration);
+        assertTrue(plugin.getRebalancer().await(10, TimeUnit.SECONDS));
+        assertTrue(plugin.getRebalancer().isMover());
+        assertTrue(plugin.getRebalancer().getMovedCount() > 0);
+    }
+
+    @Test
+    public void kvVersion1KeysAreNotMoved() throws Exception {
+        plugin = new VaultStoragePlugin();
+        plugin.configure(configuration(), sharded(false, first, second));
+        for (String name : names(20)) {
+            plugin.createResource("keys/project/" + name, VaultTestSupport.content("secret-" + name));
+        }
+        sharded.shutdown();
+
+        Properties rebalancing = configuration();
+        rebalancing.setProperty(ConfigOptions.VAULT_SHARD_REBALANCING, "true");
+        plugin.configure(rebalancing, sharded(true, first, second, added));
+        assertTrue(plugin.getRebalancer().await(10, TimeUnit.SECONDS));
+        assertThat(plugin.getRebalancer().getMovedCount(), is(0));
+        assertThat(added.calls("write"), is(0));
+        //still found where they are
+        for (String name : names(20)) {
+            assertThat(VaultTestSupport.read(plugin.getResource("keys/project/" + name)), is("secret-" + name));
+        }
+    }
+
+    @Test
+    public void listingLeavesOutAShardThatFails() throws Exception {
+        ShardedLogical logical = sharded(false, first, second);
+        first.put("secret/rundeck/keys/a", Collections.singletonMap("value", "1"));
+        second.put("secret/rundeck/keys/b", Collections.singletonMap("value", "2"));
+        second.failure = new VaultException("unavailable", 503);
+
+        assertThat(logical.list("secret/rundeck/keys"), is(Collections.singletonList("a")));
+
+        first.failure = new VaultException("unavailable", 503);
+        try {
+            logical.list("secret/rundeck/keys");
+            fail("expected the listing to fail on every shard");
+        } catch (VaultException e) {
+            assertThat(e.getHttpStatusCode(), is(503));
+        }
+    }
+
+    @Test
+    public void shardsAreSeparateClusters() throws Exception {
+        server = new FakeVaultServer().mount("secret", 2);
+        shardServer = new FakeVaultServer().mount("secret", 2);
+
+        Properties configuration = VaultTestSupport.configuration(server, "rundeck",
+                ConfigOptions.VAULT_LIST_CONCURRENCY, "1",
+                ConfigOptions.VAULT_TOKEN, "not-a-token",
+                ConfigOptions.VAULT_ENGINE_VERSION, "2",
+                "shard.b.address", shardServer.address(),
+                "shard.b.token", FakeVaultServer.ROOT_TOKEN);
+
+        Map<String, Properties> clusters = VaultStoragePlugin.shardConfigurations(configuration);
+        assertThat(clusters.keySet(), is(new HashSet<>(Arrays.asList("default", "b"))));
+        assertThat(clusters.get("b").getProperty(ConfigOptions.VAULT_ADDRESS), is(shardServer.address()));
+        assertThat(clusters.get("b").getProperty(ConfigOptions.VAULT_TOKEN), is(FakeVaultServer.ROOT_TOKEN));
+        assertThat(clusters.get("b").getProperty(ConfigOptions.VAULT_SECRET_BACKEND), is("secret"));
+
+        configuration.setProperty(ConfigOptions.VAULT_TOKEN, FakeVaultServer.ROOT_TOKEN);
+        plugin = VaultTestSupport.configured(configuration);
+        for (String name : names(20)) {
+            plugin.createResource("keys/" + name, VaultTestSupport.content("secret-" + name));
+        }
+        for (String name : names(20)) {
+            //data and metadata of a secret are on the same cluster
+            assertTrue(name, plugin.hasResource("keys/" + name));
+            assertThat(name, server.get("secret/rundeck/keys/" + name) == null,
+                    is(shardServer.get("secret/rundeck/keys/" + name) != null));
+        }
+        assertThat(plugin.listDirectoryResources("keys").size(), is(20));
+        assertTrue(server.calls("write") > 0);
+        assertTrue(shardServer.calls("write") > 0);
+    }
+
+    @Test
+    public void invalidShards() {
+        for (String shard : new String[]{"shard.default.address", "shard..address", "shard.a.b.address"}) {
+            Properties configuration = configuration();
+            configuration.setProperty(shard, "http://127.0.0.1:8200");
+            try {
+                VaultStoragePlugin.shardConfigurations(configuration);
+                fail("expected " + shard + " to be rejected");
+            } catch (ConfigurationException e) {
+                assertThat(e.getMessage(), containsString("Invalid shard name"));
+            }
+        }
+    }
+}
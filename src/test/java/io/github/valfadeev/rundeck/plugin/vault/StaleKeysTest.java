@@ -0,0 +1,124 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rundeck.storage.api.StorageException;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class StaleKeysTest {
+
+    private FakeVaultServer server;
+    private VaultStoragePlugin plugin;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeVaultServer().mount("kv", 2);
+    }
+
+    @After
+    public void tearDown() {
+        if (plugin != null) {
+            plugin.getMetrics().unregister();
+        }
+        server.close();
+    }
+
+    private VaultStoragePlugin plugin(String secretBackend, String engineVersion, long maxAgeMilliseconds)
+            throws Exception {
+        plugin = VaultTestSupport.configured(VaultTestSupport.configuration(server, "rundeck",
+                //Vault comes back within the tests
+                ConfigOptions.VAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "0",
+                ConfigOptions.VAULT_SECRET_BACKEND, secretBackend,
+                ConfigOptions.VAULT_ENGINE_VERSION, engineVersion,
+                ConfigOptions.VAULT_SERVE_STALE_ON_ERROR, "true",
+                ConfigOptions.VAULT_SERVE_STALE_MAX_AGE_MILLISECONDS, String.valueOf(maxAgeMilliseconds)));
+        return plugin;
+    }
+
+    private static void assertFails(Runnable read) {
+        try {
+            read.run();
+            fail("expected the read to fail");
+        } catch (StorageException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void lastValueIsServedWhileVaultFails() throws Exception {
+        for (String[] engine : new String[][]{{"secret", "1"}, {"kv", "2"}}) {
+            VaultStoragePlugin plugin = plugin(engine[0], engine[1], 60000);
+            plugin.createResource("keys/db/written", VaultTestSupport.content("written"));
+            plugin.createResource("keys/db/read", VaultTestSupport.content("read"));
+            plugin.createResource("keys/db/unread", VaultTestSupport.content("unread"));
+            assertThat(VaultTestSupport.read(plugin.getResource("keys/db/read")), is("read"));
+
+            server.failureStatus = 503;
+            assertThat(engine[1], VaultTestSupport.read(plugin.getResource("keys/db/read")), is("read"));
+            assertTrue(engine[1], plugin.hasResource("keys/db/read"));
+            //as written, without being read back
+            assertThat(VaultTestSupport.read(plugin.getResource("keys/db/written")), is("written"));
+            assertTrue(plugin.getStaleServeCount() >= 3);
+
+            server.failureStatus = 0;
+            assertTrue(plugin.deleteResource("keys/db/written"));
+            server.failureStatus = 503;
+            assertFails(() -> plugin.getResource("keys/db/written"));
+
+            //refused rather than unavailable: the token may have been revoked
+            server.failureStatus = 403;
+            assertFails(() -> plugin.getResource("keys/db/read"));
+            server.failureStatus = 0;
+
+            plugin.getMetrics().unregister();
+        }
+    }
+
+    @Test
+    public void valuesNeverReadAreNotServed() throws Exception {
+        plugin("secret", "1", 60000);
+        server.put("secret/rundeck/keys/db/password", VaultTestSupport.rundeckKey("s3cret"));
+
+        server.failureStatus = 500;
+        assertFails(() -> plugin.getResource("keys/db/password"));
+        assertThat(plugin.getStaleServeCount(), is(0L));
+    }
+
+    @Test
+    public void valuesOlderThanTheMaximumAgeAreNotServed() throws Exception {
+        plugin("secret", "1", 100);
+        plugin.createResource("keys/db/password", VaultTestSupport.content("s3cret"));
+
+        Thread.sleep(200);
+        server.failureStatus = 503;
+        assertFails(() -> plugin.getResource("keys/db/password"));
+    }
+
+    @Test
+    public void lastValueIsServedWhenVaultIsUnreachable() throws Exception {
+        plugin("secret", "1", 60000);
+        plugin.createResource("keys/db/password", VaultTestSupport.content("s3cret"));
+
+        server.close();
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/db/password")), is("s3cret"));
+        assertThat(plugin.getStaleServeCount(), is(1L));
+    }
+
+    @Test
+    public void staleKeysAreBoundedByTheirOwnSize() throws Exception {
+        plugin = VaultTestSupport.configured(VaultTestSupport.configuration(server, "rundeck",
+                ConfigOptions.VAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "0",
+                ConfigOptions.VAULT_CACHE_MAX_SIZE, "10",
+                ConfigOptions.VAULT_SERVE_STALE_ON_ERROR, "true",
+                ConfigOptions.VAULT_SERVE_STALE_MAX_SIZE, "1"));
+        plugin.createResource("keys/db/first", VaultTestSupport.content("first"));
+        plugin.createResource("keys/db/second", VaultTestSupport.content("second"));
+
+        server.failureStatus = 503;
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/db/second")), is("second"));
+        assertFails(() -> plugin.getResource("keys/db/first"));
+    }
+}
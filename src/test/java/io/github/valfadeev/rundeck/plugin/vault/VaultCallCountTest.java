@@ -0,0 +1,257 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.Properties;
+
+import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rundeck.storage.api.Resource;
+
+import static io.github.valfadeev.rundeck.plugin.vault.VaultTestSupport.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Number of Vault requests made by each storage operation, against {@link FakeVaultServer}.
+ * A change in these counts is a change in what every Rundeck instance sends to Vault:
+ * update them deliberately, never to make a regression pass.
+ */
+public class VaultCallCountTest {
+
+    private FakeVaultServer server;
+    private VaultStoragePlugin plugin;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeVaultServer();
+        for (int i = 0; i < 20; i++) {
+            server.put("secret/rundeck/keys/bulk/key-" + i, rundeckKey("s3cret-" + i));
+        }
+        server.put("secret/rundeck/keys/db/password", rundeckKey("s3cret"));
+        server.put("secret/rundeck/keys/db/sub/nested", rundeckKey("nested"));
+    }
+
+    @After
+    public void tearDown() {
+        release();
+        server.close();
+    }
+
+    //the MBeans of the previous plugin would keep its successor from publishing its own
+    private void release() {
+        if (plugin != null) {
+            plugin.getMetrics().unregister();
+        }
+    }
+
+    private Properties configuration(String... extra) {
+        Properties configuration = new Properties();
+        configuration.setProperty(ConfigOptions.VAULT_ADDRESS, server.address());
+        configuration.setProperty(ConfigOptions.VAULT_OPEN_TIMEOUT, "5");
+        configuration.setProperty(ConfigOptions.VAULT_READ_TIMEOUT, "5");
+        configuration.setProperty(ConfigOptions.VAULT_MAX_RETRIES, "0");
+        configuration.setProperty(ConfigOptions.VAULT_RETRY_INTERVAL_MILLISECONDS, "10");
+        configuration.setProperty(ConfigOptions.VAULT_AUTH_BACKEND, SupportedAuthBackends.TOKEN);
+        configuration.setProperty(ConfigOptions.VAULT_TOKEN, FakeVaultServer.ROOT_TOKEN);
+        configuration.setProperty(ConfigOptions.VAULT_PREFIX, "rundeck");
+        configuration.setProperty(ConfigOptions.VAULT_SECRET_BACKEND, "secret");
+        for (int i = 0; i < extra.length; i += 2) {
+            configuration.setProperty(extra[i], extra[i + 1]);
+        }
+        return configuration;
+    }
+
+    /**
+     * Configures a new plugin, counting calls from when it is ready.
+     */
+    private void configure(String... extra) throws Exception {
+        release();
+        plugin = new VaultStoragePlugin();
+        plugin.configure(configuration(extra));
+        server.resetCalls();
+    }
+
+    private void assertCalls(int list, int read, int write, int delete) {
+        String requests = server.requests().toString();
+        assertThat(requests, server.calls("list"), is(list));
+        assertThat(requests, server.calls("read"), is(read));
+        assertThat(requests, server.calls("write"), is(write));
+        assertThat(requests, server.calls("delete"), is(delete));
+        //KV version 2 metadata reads are asserted on their own
+        assertThat(requests, server.totalCalls(), is(list + read + write + delete + server.calls("metadata")));
+    }
+
+    @Test
+    public void configureAuthenticatesOnce() throws Exception {
+        release();
+        plugin = new VaultStoragePlugin();
+        plugin.configure(configuration());
+        assertThat(server.requests().toString(), server.calls("lookup"), is(1));
+        assertThat(server.totalCalls(), is(1));
+
+        server.resetCalls();
+        release();
+        plugin = new VaultStoragePlugin();
+        plugin.configure(configuration(
+                ConfigOptions.VAULT_AUTH_BACKEND, SupportedAuthBackends.APPROLE,
+                ConfigOptions.VAULT_APPROLE_AUTH_MOUNT, "approle",
+                ConfigOptions.VAULT_APPROLE_ID, "role",
+                ConfigOptions.VAULT_APPROLE_SECRET_ID, "secret"));
+        assertThat(server.requests().toString(), server.calls("login"), is(1));
+        assertThat(server.totalCalls(), is(1));
+
+        //the issued token is used from then on
+        server.resetCalls();
+        assertTrue(plugin.hasResource("keys/db/password"));
+        assertCalls(0, 1, 0, 0);
+    }
+
+    @Test
+    public void existenceChecks() throws Exception {
+        configure();
+        assertTrue(plugin.hasPath("keys/db/password"));
+        assertCalls(1, 1, 0, 0);
+
+        configure();
+        assertTrue(plugin.hasPath("keys/db"));
+        assertCalls(1, 0, 0, 0);
+
+        configure();
+        //a missing key is also looked up as a key of a multi-key secret at its parent path
+        assertFalse(plugin.hasPath("keys/nothing"));
+        assertCalls(1, 2, 0, 0);
+
+        configure();
+        assertTrue(plugin.hasResource("keys/db/password"));
+        assertCalls(0, 1, 0, 0);
+
+        configure();
+        assertTrue(plugin.hasDirectory("keys/db"));
+        assertCalls(1, 0, 0, 0);
+
+        configure();
+        //a key is read once to find out it is not a multi-key secret
+        assertFalse(plugin.hasDirectory("keys/db/password"));
+        assertCalls(1, 1, 0, 0);
+    }
+
+    @Test
+    public void readingAKeyAfterCheckingItSharesTheCalls() throws Exception {
+        configure(ConfigOptions.VAULT_PATH_PROBE_TTL_MILLISECONDS, "1000");
+
+        assertTrue(plugin.hasPath("keys/db/password"));
+        assertTrue(plugin.hasResource("keys/db/password"));
+        Resource<ResourceMeta> resource = plugin.getPath("keys/db/password");
+        assertThat(read(resource), is("s3cret"));
+
+        assertCalls(1, 2, 0, 0);
+    }
+
+    @Test
+    public void listingReadsEachKeyOnce() throws Exception {
+        configure();
+        assertThat(plugin.listDirectory("keys/bulk").size(), is(20));
+        assertCalls(1, 20, 0, 0);
+
+        configure(ConfigOptions.VAULT_LIST_CONCURRENCY, "1");
+        assertThat(plugin.listDirectoryResources("keys/bulk").size(), is(20));
+        assertCalls(1, 20, 0, 0);
+
+        configure(ConfigOptions.VAULT_HTTP_TRANSPORT, VaultClientProvider.HTTP_TRANSPORT_DRIVER);
+        assertThat(plugin.listDirectory("keys/bulk").size(), is(20));
+        assertCalls(1, 20, 0, 0);
+    }
+
+    @Test
+    public void listedContentIsReadWhenOpened() throws Exception {
+        configure();
+        Resource<ResourceMeta> listed = plugin.listDirectory("keys/db").stream()
+                .filter(r -> !r.isDirectory())
+                .findFirst()
+                .get();
+        assertCalls(1, 1, 0, 0);
+
+        assertThat(read(listed), is("s3cret"));
+        assertCalls(1, 2, 0, 0);
+    }
+
+    @Test
+    public void writes() throws Exception {
+        configure();
+        plugin.createResource("keys/db/new", content("created"));
+        assertCalls(0, 0, 1, 0);
+        assertThat(server.get("secret/rundeck/keys/db/new").getString(VaultStoragePlugin.VAULT_STORAGE_KEY, null),
+                is("created"));
+
+        configure();
+        plugin.updateResource("keys/db/password", content("updated"));
+        assertCalls(0, 1, 1, 0);
+
+        configure();
+        assertTrue(plugin.deleteResource("keys/db/password"));
+        assertCalls(0, 1, 0, 1);
+        assertThat(server.get("secret/rundeck/keys/db/password"), is(nullValue()));
+    }
+
+    @Test
+    public void cachedKeysAreNotReadAgain() throws Exception {
+        configure(ConfigOptions.VAULT_CACHE_ENABLED, "true",
+                  ConfigOptions.VAULT_PATH_PROBE_TTL_MILLISECONDS, "0");
+        assertThat(read(plugin.getResource("keys/db/password")), is("s3cret"));
+        server.resetCalls();
+
+        assertThat(read(plugin.getResource("keys/db/password")), is("s3cret"));
+        assertTrue(plugin.hasResource("keys/db/password"));
+        assertCalls(0, 0, 0, 0);
+    }
+
+    @Test
+    public void kvVersion2() throws Exception {
+        server.mount("kv", 2)
+              .put("kv/rundeck/keys/db/password", rundeckKey("s3cret"));
+        configure(ConfigOptions.VAULT_SECRET_BACKEND, "kv",
+                  ConfigOptions.VAULT_ENGINE_VERSION, "2");
+
+        assertTrue(plugin.hasResource("keys/db/password"));
+        assertThat(read(plugin.getResource("keys/db/password")), is("s3cret"));
+        //existence is checked from the metadata, without reading the secret
+        assertThat(server.requests().toString(), server.calls("metadata"), is(1));
+        assertCalls(0, 1, 0, 0);
+    }
+
+    @Test
+    public void kvVersion2Writes() throws Exception {
+        server.mount("kv", 2)
+              .put("kv/rundeck/keys/db/password", rundeckKey("s3cret"));
+        configure(ConfigOptions.VAULT_SECRET_BACKEND, "kv",
+                  ConfigOptions.VAULT_ENGINE_VERSION, "2");
+
+        plugin.updateResource("keys/db/password", content("updated"));
+        assertThat(server.calls("metadata"), is(0));
+        assertCalls(0, 1, 1, 0);
+        assertThat(server.get("kv/rundeck/keys/db/password").getString(VaultStoragePlugin.VAULT_STORAGE_KEY, null),
+                is("updated"));
+
+        server.resetCalls();
+        assertTrue(plugin.deleteResource("keys/db/password"));
+        assertThat(server.calls("metadata"), is(0));
+        assertCalls(0, 1, 0, 1);
+    }
+
+    @Test
+    public void kvVersion2UpdatesACachedKeyChangedOutsideRundeck() throws Exception {
+        server.mount("kv", 2)
+              .put("kv/rundeck/keys/db/password", rundeckKey("s3cret"));
+        configure(ConfigOptions.VAULT_SECRET_BACKEND, "kv",
+                  ConfigOptions.VAULT_ENGINE_VERSION, "2",
+                  ConfigOptions.VAULT_CACHE_ENABLED, "true");
+        assertThat(read(plugin.getResource("keys/db/password")), is("s3cret"));
+        server.put("kv/rundeck/keys/db/password", rundeckKey("rotated"));
+
+        //the check-and-set write is made against the current version, not the cached one
+        plugin.updateResource("keys/db/password", content("updated"));
+        assertThat(server.get("kv/rundeck/keys/db/password").getString(VaultStoragePlugin.VAULT_STORAGE_KEY, null),
+                is("updated"));
+    }
+}
@@ -1,7 +1,12 @@
 package io.github.valfadeev.rundeck.plugin.vault;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
 import com.bettercloud.vault.VaultConfig;
 import org.junit.Test;
@@ -28,4 +33,37 @@ public class VaultClientProviderTest {
         assertThat(config.getOpenTimeout(), is(5));
         assertThat(config.getReadTimeout(), is(20));
     }
+
+    @Test
+    public void poolOptionsOfTheJdkTransportAreReported() throws Exception {
+        Properties configuration = new Properties();
+        configuration.load(getClass().getResourceAsStream("rundeck-config.properties"));
+        configuration.setProperty(ConfigOptions.VAULT_CONNECTION_POOL_SIZE, "50");
+        List<String> warnings = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                warnings.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        Logger.getLogger("vault-storage").addHandler(handler);
+        try {
+            new VaultClientProvider(configuration).getTransport().close();
+            configuration.setProperty(ConfigOptions.VAULT_HTTP_TRANSPORT, VaultClientProvider.HTTP_TRANSPORT_POOLED);
+            new VaultClientProvider(configuration).getTransport().close();
+        } finally {
+            Logger.getLogger("vault-storage").removeHandler(handler);
+        }
+        assertThat(warnings.size(), is(1));
+        assertThat(warnings.get(0), containsString(ConfigOptions.VAULT_CONNECTION_POOL_SIZE));
+    }
 }
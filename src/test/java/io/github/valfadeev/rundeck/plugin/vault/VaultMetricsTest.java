@@ -0,0 +1,132 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rundeck.storage.api.StorageException;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class VaultMetricsTest {
+
+    private FakeVaultServer server;
+    private VaultStoragePlugin plugin;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeVaultServer();
+        server.put("secret/metrics-test/keys/db/password", VaultTestSupport.rundeckKey("s3cret"));
+
+        plugin = VaultTestSupport.configured(VaultTestSupport.configuration(server, "metrics-test"));
+    }
+
+    @After
+    public void tearDown() {
+        plugin.getMetrics().unregister();
+        server.close();
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertThat(histogram.getCount(), is(1000L));
+        assertThat(histogram.getMax(), is(1000L));
+        assertEquals(500.5, histogram.getMean(), 0.01);
+        //buckets are an eighth of a power of two wide
+        long p50 = histogram.getValueAt(0.5);
+        assertTrue(String.valueOf(p50), p50 >= 500 && p50 <= 563);
+        long p99 = histogram.getValueAt(0.99);
+        assertTrue(String.valueOf(p99), p99 >= 990 && p99 <= 1000);
+
+        for (long value : new long[]{0, 7, 8, 15, 16, 1000, 123456789}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(LatencyHistogram.upperBoundOf(bucket) >= value);
+            assertTrue(bucket == 0 || LatencyHistogram.upperBoundOf(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void callsAreCountedByOutcome() throws Exception {
+        VaultMetrics metrics = plugin.getMetrics();
+        assertThat(metrics.operation("vault.auth.lookup").getSuccessCount(), is(1L));
+
+        assertTrue(plugin.hasResource("keys/db/password"));
+        assertFalse(plugin.hasResource("keys/db/nothing"));
+        server.failureStatus = 503;
+        try {
+            plugin.getResource("keys/db/password");
+            fail("expected the read to fail");
+        } catch (StorageException e) {
+            //expected
+        }
+
+        VaultMetrics.Operation reads = metrics.operation("vault.read");
+        assertThat(reads.getSuccessCount(), is(1L));
+        //a key that can't be read is looked up at its parent path as well
+        assertThat(reads.getNotFoundCount(), is(2L));
+        assertThat(reads.getServerErrorCount(), is(2L));
+        assertThat(reads.getCount(), is(5L));
+        assertTrue(reads.getMaxMicros() > 0);
+
+        assertThat(metrics.operation("plugin.hasResource").getSuccessCount(), is(2L));
+        assertThat(metrics.operation("plugin.getResource").getErrorCount(), is(1L));
+    }
+
+    @Test
+    public void publishedOverJmx() throws Exception {
+        plugin.hasResource("keys/db/password");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertThat(plugin.getMetrics().getInstance(), is("secret/metrics-test"));
+        ObjectName reads = new ObjectName(VaultMetrics.DOMAIN
+                + ":type=Operation,instance=" + ObjectName.quote("secret/metrics-test")
+                + ",name=" + ObjectName.quote("vault.read"));
+        assertThat(server.getAttribute(reads, "SuccessCount"), is((Object) 1L));
+        assertTrue((Long) server.getAttribute(reads, "P99Micros") > 0);
+
+        ObjectName paths = new ObjectName(VaultMetrics.DOMAIN
+                + ":type=Cache,instance=" + ObjectName.quote("secret/metrics-test") + ",name=paths");
+        assertThat(server.getAttribute(paths, "MissCount"), is((Object) 1L));
+
+        //unregistered when the plugin is configured again
+        plugin.getMetrics().unregister();
+        assertFalse(server.isRegistered(reads));
+        assertFalse(server.isRegistered(paths));
+    }
+
+    @Test
+    public void providersWithTheSamePrefixArePublishedApart() throws Exception {
+        VaultStoragePlugin other = VaultTestSupport.configured(VaultTestSupport.configuration(server, "metrics-test"));
+        try {
+            assertThat(plugin.getMetrics().getInstance(), is("secret/metrics-test"));
+            assertThat(other.getMetrics().getInstance(), is("secret/metrics-test#2"));
+            plugin.hasResource("keys/db/password");
+            other.hasResource("keys/db/password");
+            other.hasResource("keys/db/password");
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (VaultStoragePlugin provider : new VaultStoragePlugin[]{plugin, other}) {
+                ObjectName reads = new ObjectName(VaultMetrics.DOMAIN
+                        + ":type=Operation,instance=" + ObjectName.quote(provider.getMetrics().getInstance())
+                        + ",name=" + ObjectName.quote("vault.read"));
+                assertThat(server.getAttribute(reads, "SuccessCount"),
+                        is((Object) provider.getMetrics().operation("vault.read").getSuccessCount()));
+            }
+        } finally {
+            other.getMetrics().unregister();
+        }
+        //the name is free again
+        VaultStoragePlugin again = VaultTestSupport.configured(VaultTestSupport.configuration(server, "metrics-test"));
+        assertThat(again.getMetrics().getInstance(), is("secret/metrics-test#2"));
+        again.getMetrics().unregister();
+    }
+}
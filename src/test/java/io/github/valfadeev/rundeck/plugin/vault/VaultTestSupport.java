@@ -0,0 +1,88 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
+import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import com.dtolabs.rundeck.core.storage.ResourceMetaBuilder;
+import com.dtolabs.rundeck.core.storage.StorageUtil;
+import org.rundeck.storage.api.Resource;
+
+/**
+ * Fixtures shared by the tests that store and read keys through the plugin.
+ */
+final class VaultTestSupport {
+
+    private VaultTestSupport() {
+    }
+
+    /**
+     * @return the configuration of a plugin storing keys under {@code secret/<prefix>} of {@code server},
+     * failing fast and without retries, followed by the {@code extra} property names and values
+     */
+    static Properties configuration(FakeVaultServer server, String prefix, String... extra) {
+        Properties configuration = new Properties();
+        configuration.setProperty(ConfigOptions.VAULT_ADDRESS, server.address());
+        configuration.setProperty(ConfigOptions.VAULT_OPEN_TIMEOUT, "5");
+        configuration.setProperty(ConfigOptions.VAULT_READ_TIMEOUT, "5");
+        configuration.setProperty(ConfigOptions.VAULT_MAX_RETRIES, "0");
+        configuration.setProperty(ConfigOptions.VAULT_RETRY_INTERVAL_MILLISECONDS, "10");
+        configuration.setProperty(ConfigOptions.VAULT_AUTH_BACKEND, SupportedAuthBackends.TOKEN);
+        configuration.setProperty(ConfigOptions.VAULT_TOKEN, FakeVaultServer.ROOT_TOKEN);
+        configuration.setProperty(ConfigOptions.VAULT_PREFIX, prefix);
+        configuration.setProperty(ConfigOptions.VAULT_SECRET_BACKEND, "secret");
+        configuration.setProperty(ConfigOptions.VAULT_PATH_PROBE_TTL_MILLISECONDS, "0");
+        for (int i = 0; i < extra.length; i += 2) {
+            configuration.setProperty(extra[i], extra[i + 1]);
+        }
+        return configuration;
+    }
+
+    static VaultStoragePlugin configured(Properties configuration) throws ConfigurationException {
+        VaultStoragePlugin plugin = new VaultStoragePlugin();
+        plugin.configure(configuration);
+        return plugin;
+    }
+
+    /**
+     * @return the data of a key as the plugin stores it in Vault in the Rundeck storage behaviour
+     */
+    static Map<String, String> rundeckKey(String content) {
+        Map<String, String> data = new HashMap<>();
+        data.put(VaultStoragePlugin.VAULT_STORAGE_KEY, content);
+        data.put(StorageUtil.RES_META_RUNDECK_CONTENT_TYPE, VaultStoragePlugin.PASSWORD_MIME_TYPE);
+        data.put(StorageUtil.RES_META_RUNDECK_CONTENT_LENGTH, Integer.toString(content.length()));
+        data.put(StorageUtil.RES_META_RUNDECK_CONTENT_CREATION_TIME, "2018-08-03T10:15:30Z");
+        data.put(StorageUtil.RES_META_RUNDECK_CONTENT_MODIFY_TIME, "2018-08-03T10:15:30Z");
+        return data;
+    }
+
+    /**
+     * @return a password as Rundeck passes it to the plugin to be created or updated
+     */
+    static ResourceMeta content(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        ResourceMetaBuilder builder = new ResourceMetaBuilder();
+        builder.setContentType(VaultStoragePlugin.PASSWORD_MIME_TYPE);
+        builder.setContentLength(bytes.length);
+        //as set by Rundeck's storage layer before the plugin is called
+        builder.setMeta(StorageUtil.RES_META_RUNDECK_CONTENT_CREATION_TIME, "2018-08-03T10:15:30Z");
+        builder.setMeta(StorageUtil.RES_META_RUNDECK_CONTENT_MODIFY_TIME, "2018-08-03T10:15:30Z");
+        return StorageUtil.withStream(new ByteArrayInputStream(bytes), builder.getResourceMeta());
+    }
+
+    /**
+     * @return the content of a key read through the plugin
+     */
+    static String read(Resource<ResourceMeta> resource) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        resource.getContents().writeContent(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
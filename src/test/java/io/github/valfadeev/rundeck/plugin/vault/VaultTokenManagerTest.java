@@ -0,0 +1,130 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rundeck.storage.api.StorageException;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class VaultTokenManagerTest {
+
+    private FakeVaultServer server;
+    private VaultStoragePlugin plugin;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeVaultServer();
+        server.put("secret/rundeck/keys/db/password", VaultTestSupport.rundeckKey("s3cret"));
+    }
+
+    @After
+    public void tearDown() {
+        if (plugin != null) {
+            plugin.getMetrics().unregister();
+        }
+        server.close();
+    }
+
+    private VaultStoragePlugin approle() throws Exception {
+        plugin = VaultTestSupport.configured(VaultTestSupport.configuration(server, "rundeck",
+                ConfigOptions.VAULT_AUTH_BACKEND, SupportedAuthBackends.APPROLE,
+                ConfigOptions.VAULT_APPROLE_AUTH_MOUNT, "approle",
+                ConfigOptions.VAULT_APPROLE_ID, "role",
+                ConfigOptions.VAULT_APPROLE_SECRET_ID, "secret",
+                //every request reaches Vault
+                ConfigOptions.VAULT_COALESCE_READS, "false",
+                ConfigOptions.VAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "0"));
+        return plugin;
+    }
+
+    private void await(String operation, int calls) throws InterruptedException {
+        for (int i = 0; i < 500 && server.calls(operation) < calls; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(server.requests().toString(), server.calls(operation), is(calls));
+    }
+
+    @Test
+    public void expiringTokenIsRenewedInTheBackground() throws Exception {
+        server.tokenTtlSeconds = 1;
+        approle();
+
+        //after two thirds of the lease
+        await("renew", 1);
+        await("renew", 2);
+        assertTrue(plugin.hasResource("keys/db/password"));
+        assertThat(server.calls("login"), is(1));
+    }
+
+    @Test
+    public void tokenThatCantBeRenewedIsReplacedBeforeItExpires() throws Exception {
+        server.tokenTtlSeconds = 1;
+        approle();
+        server.revokeTokens();
+
+        await("login", 2);
+        //installed once the login response is read
+        Thread.sleep(200);
+        server.resetCalls();
+        //the new token is used without a request being rejected first
+        assertTrue(plugin.hasResource("keys/db/password"));
+        assertThat(server.calls("login"), is(0));
+        assertThat(server.calls("lookup"), is(0));
+    }
+
+    @Test
+    public void rejectedRequestsShareOneLogin() throws Exception {
+        approle();
+        server.revokeTokens();
+        server.latencyMilliseconds = 50;
+
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Boolean>> reads = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                reads.add(callers.submit(() -> {
+                    start.await();
+                    return plugin.hasResource("keys/db/password");
+                }));
+            }
+            start.countDown();
+            for (Future<Boolean> read : reads) {
+                assertTrue(read.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        //the one at configuration, then one for all the rejected requests
+        assertThat(server.calls("login"), is(2));
+        assertThat(server.calls("lookup"), is(1));
+    }
+
+    @Test
+    public void requestDeniedByPolicyDoesNotLogIn() throws Exception {
+        approle();
+        server.failureStatus = 403;
+
+        try {
+            plugin.getResource("keys/db/password");
+            fail("expected the read to be denied");
+        } catch (StorageException e) {
+            //expected
+        }
+        //the token was found valid, it is not checked again for every denied request
+        assertThat(server.calls("lookup"), is(1));
+        assertFalse(plugin.hasResource("keys/db/password"));
+        assertThat(server.calls("lookup"), is(1));
+        assertThat(server.calls("login"), is(1));
+    }
+}
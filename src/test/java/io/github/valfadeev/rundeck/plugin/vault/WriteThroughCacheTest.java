@@ -0,0 +1,87 @@
+package io.github.valfadeev.rundeck.plugin.vault;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+import org.rundeck.storage.api.PathUtil;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class WriteThroughCacheTest {
+
+    private final InMemoryLogical vault = new InMemoryLogical();
+    private VaultStoragePlugin plugin;
+
+    @After
+    public void tearDown() {
+        if (plugin != null) {
+            plugin.getMetrics().unregister();
+        }
+    }
+
+    private VaultStoragePlugin plugin(String storageBehaviour) throws Exception {
+        Properties configuration = new Properties();
+        configuration.setProperty(ConfigOptions.VAULT_PREFIX, "rundeck");
+        configuration.setProperty(ConfigOptions.VAULT_SECRET_BACKEND, "secret");
+        configuration.setProperty(ConfigOptions.VAULT_STORAGE_BEHAVIOUR, storageBehaviour);
+        configuration.setProperty(ConfigOptions.VAULT_CACHE_ENABLED, "true");
+        plugin = new VaultStoragePlugin();
+        plugin.configure(configuration, vault);
+        return plugin;
+    }
+
+    @Test
+    public void writtenKeyIsReadFromTheCache() throws Exception {
+        plugin("rundeck");
+
+        plugin.createResource("keys/db/password", VaultTestSupport.content("s3cret"));
+        vault.resetCalls();
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/db/password")), is("s3cret"));
+        assertThat(vault.calls("read"), is(0));
+    }
+
+    @Test
+    public void keyWrittenConcurrentlyIsReadAgain() throws Exception {
+        vault.put("secret/rundeck/keys/db/password", new HashMap<>(VaultTestSupport.rundeckKey("old")));
+        plugin("rundeck");
+        AtomicBoolean concurrentWrite = new AtomicBoolean(true);
+        vault.beforeCall = () -> {
+            if (vault.calls("write") == 1 && concurrentWrite.getAndSet(false)) {
+                //written and cached by another request while this write is in flight
+                plugin.updateResource("keys/db/password", VaultTestSupport.content("other"));
+            }
+        };
+
+        plugin.updateResource("keys/db/password", VaultTestSupport.content("mine"));
+        vault.resetCalls();
+        assertThat(VaultTestSupport.read(plugin.getResource("keys/db/password")), is("mine"));
+        assertThat(vault.calls("read"), is(1));
+    }
+
+    @Test
+    public void keyOfAMultiKeySecretIsCachedWithItsSecret() throws Exception {
+        Map<String, Object> secret = new HashMap<>();
+        secret.put("user", "admin");
+        secret.put("password", "s3cret");
+        vault.put("secret/rundeck/keys/db", secret);
+        plugin("vault");
+
+        plugin.updateResource("keys/db/password", VaultTestSupport.content("updated"));
+        vault.resetCalls();
+        KeyObject cached = plugin.getVaultObject(PathUtil.asPath("keys/db/password"));
+        assertThat(vault.calls("read"), is(0));
+        assertTrue(cached.isMultiplesKeys());
+        assertThat(cached.getKeys().get("password"), is("updated"));
+
+        //the cached key removes itself from its secret, as one read from Vault would
+        assertTrue(cached.delete(vault, "secret", "rundeck"));
+        assertThat(vault.contains("secret/rundeck/keys/db"), is(true));
+        assertThat(vault.read("secret/rundeck/keys/db").getData().get("user"), is("admin"));
+        assertThat(vault.read("secret/rundeck/keys/db").getData().containsKey("password"), is(false));
+    }
+}